@@ -529,6 +529,15 @@ public class MockVmManagerImpl implements MockVmManager {
         }
         
         Map<String, Ternary<String,Long, Long>> rules = _securityRules.get(info.getHostUuid());
+
+        if (cmd.isDelta()) {
+            Ternary<String, Long, Long> current = rules == null ? null : rules.get(cmd.getVmName());
+            if (current == null || !cmd.getBaseSignature().equals(current.first())) {
+                s_logger.info("Ruleset diff for vm " + cmd.getVmName() + " is based on signature " + cmd.getBaseSignature() + " but current is "
+                        + (current == null ? null : current.first()) + ", asking for the full ruleset");
+                return new SecurityGroupRuleAnswer(cmd, false, "Base signature mismatch", SecurityGroupRuleAnswer.FailureReason.BASE_SIGNATURE_MISMATCH);
+            }
+        }
        
         if (rules == null) {
             logSecurityGroupAction(cmd, null);
@@ -37,6 +37,7 @@ import com.cloud.agent.api.PrepareForMigrationAnswer;
 import com.cloud.agent.api.PrepareForMigrationCommand;
 import com.cloud.agent.api.ReadyAnswer;
 import com.cloud.agent.api.ReadyCommand;
+import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.agent.api.ShutdownCommand;
 import com.cloud.agent.api.StartAnswer;
 import com.cloud.agent.api.StartCommand;
@@ -145,6 +146,7 @@ public class AgentRoutingResource extends AgentStorageResource {
         
         Map<String, String> hostDetails = new HashMap<String, String>();
         hostDetails.put(RouterPrivateIpStrategy.class.getCanonicalName(), RouterPrivateIpStrategy.DcGlobal.toString());
+        hostDetails.put(SecurityGroupRulesCmd.DELTA_CAPABLE, Boolean.TRUE.toString());
 
         cmd.setHostDetails(hostDetails);
         cmd.setAgentTag("agent-simulator");
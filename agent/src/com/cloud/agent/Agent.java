@@ -53,6 +53,7 @@ import com.cloud.agent.api.StartupAnswer;
 import com.cloud.agent.api.StartupCommand;
 import com.cloud.agent.api.UpgradeAnswer;
 import com.cloud.agent.api.UpgradeCommand;
+import com.cloud.agent.transport.BinaryCommandCodec;
 import com.cloud.agent.transport.Request;
 import com.cloud.agent.transport.Response;
 import com.cloud.exception.AgentControlChannelException;
@@ -258,7 +259,7 @@ public class Agent implements HandlerFactory, IAgentControl {
             try {
                 if (_link != null) {
                     Request req = new Request((_id != null ? _id : -1), -1, cmd, false);
-                    _link.send(req.toBytes());
+                    _link.send(req.toBytes(_link.getCodecVersion()));
                 }
             } catch (final ClosedChannelException e) {
                 s_logger.warn("Unable to send: " + cmd.toString());
@@ -335,7 +336,7 @@ public class Agent implements HandlerFactory, IAgentControl {
             _timer.schedule(_startup, _startupWait);
         }
         try {
-            link.send(request.toBytes());
+            link.send(request.toBytes(link.getCodecVersion()));
         } catch (final ClosedChannelException e) {
             s_logger.warn("Unable to send reques: " + request.toString());
         }
@@ -364,6 +365,7 @@ public class Agent implements HandlerFactory, IAgentControl {
         startup.setGuid(getResourceGuid());
         startup.setResourceName(getResourceName());
         startup.setVersion(getVersion());
+        startup.setCodecVersion(BinaryCommandCodec.VERSION);
     }
 
     @Override
@@ -446,6 +448,7 @@ public class Agent implements HandlerFactory, IAgentControl {
 
         setId(startup.getHostId());
         _pingInterval = startup.getPingInterval() * 1000; // change to ms.
+        link.setCodecVersion(Math.min(startup.getCodecVersion(), BinaryCommandCodec.VERSION));
 
         setLastPingResponseTime();
         scheduleWatch(link, response, _pingInterval, _pingInterval);
@@ -557,7 +560,7 @@ public class Agent implements HandlerFactory, IAgentControl {
 
             if (response != null) {
                 try {
-                    link.send(response.toBytes());
+                    link.send(response.toBytes(link.getCodecVersion()));
                 } catch (final ClosedChannelException e) {
                     s_logger.warn("Unable to send response: " + response.toString());
                 }
@@ -615,7 +618,8 @@ public class Agent implements HandlerFactory, IAgentControl {
             }
 
             try {
-                task.getLink().send(request.toBytes());
+                final Link link = task.getLink();
+                link.send(request.toBytes(link.getCodecVersion()));
                 //if i can send pingcommand out, means the link is ok
                 setLastPingResponseTime();
             } catch (final ClosedChannelException e) {
@@ -639,7 +643,8 @@ public class Agent implements HandlerFactory, IAgentControl {
                     s_logger.debug("Watch Sent: " + response.toString());
                 }
                 try {
-                    task.getLink().send(response.toBytes());
+                    final Link link = task.getLink();
+                    link.send(response.toBytes(link.getCodecVersion()));
                 } catch (final ClosedChannelException e) {
                     s_logger.warn("Unable to send response: " + response.toString());
                 }
@@ -724,7 +729,7 @@ public class Agent implements HandlerFactory, IAgentControl {
     private void postRequest(Request request) throws AgentControlChannelException {
         if (_link != null) {
             try {
-                _link.send(request.toBytes());
+                _link.send(request.toBytes(_link.getCodecVersion()));
             } catch (final ClosedChannelException e) {
                 s_logger.warn("Unable to post agent control reques: " + request.toString());
                 throw new AgentControlChannelException("Unable to post agent control request due to " + e.getMessage());
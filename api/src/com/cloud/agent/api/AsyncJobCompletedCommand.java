@@ -0,0 +1,48 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.api;
+
+/**
+ * Sent between management servers when an async job completes so that
+ * queryAsyncJobResult callers waiting on a peer can return right away.
+ * It is never sent to an agent.
+ */
+public class AsyncJobCompletedCommand extends Command {
+    long jobId;
+    int jobStatus;
+
+    protected AsyncJobCompletedCommand() {
+    }
+
+    public AsyncJobCompletedCommand(long jobId, int jobStatus) {
+        this.jobId = jobId;
+        this.jobStatus = jobStatus;
+    }
+
+    public long getJobId() {
+        return jobId;
+    }
+
+    public int getJobStatus() {
+        return jobStatus;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return false;
+    }
+}
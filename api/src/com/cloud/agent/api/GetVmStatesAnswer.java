@@ -0,0 +1,46 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.api;
+
+import java.util.HashMap;
+
+import com.cloud.vm.VirtualMachine.State;
+
+public class GetVmStatesAnswer extends Answer {
+    HashMap<String, State> states;
+    long sequence;
+
+    protected GetVmStatesAnswer() {
+    }
+
+    public GetVmStatesAnswer(GetVmStatesCommand cmd, HashMap<String, State> states, long sequence) {
+        super(cmd);
+        this.states = states;
+        this.sequence = sequence;
+    }
+
+    public HashMap<String, State> getStates() {
+        return states;
+    }
+
+    /**
+     * @return the state sequence of the last ping whose changes are included.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+}
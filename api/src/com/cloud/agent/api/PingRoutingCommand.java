@@ -25,6 +25,8 @@ public class PingRoutingCommand extends PingCommand {
     Map<String, State> newStates;
     boolean _gatewayAccessible = true;
     boolean _vnetAccessible = true;
+    long _stateSequence;
+    Long _stateDigest;
    
     protected PingRoutingCommand() {
     }
@@ -45,6 +47,25 @@ public class PingRoutingCommand extends PingCommand {
         _gatewayAccessible = gatewayAccessible;
     }
 
+    /**
+     * @return sequence of the state changes in this ping; it moves by one for every ping that has changes.
+     */
+    public long getStateSequence() {
+        return _stateSequence;
+    }
+
+    /**
+     * @return digest of the states reported so far (see VmStateReport), or null if the agent does not keep one.
+     */
+    public Long getStateDigest() {
+        return _stateDigest;
+    }
+
+    public void setStateReport(VmStateReport report) {
+        _stateSequence = report.getSequence();
+        _stateDigest = report.getDigest();
+    }
+
     public boolean isVnetAccessible() {
         return _vnetAccessible;
     }
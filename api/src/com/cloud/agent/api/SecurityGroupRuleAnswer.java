@@ -21,7 +21,8 @@ public class SecurityGroupRuleAnswer extends Answer {
         NONE,
         UNKNOWN,
         PROGRAMMING_FAILED,
-        CANNOT_BRIDGE_FIREWALL
+        CANNOT_BRIDGE_FIREWALL,
+        BASE_SIGNATURE_MISMATCH
     }
     Long logSequenceNumber = null;
     Long vmId = null;
@@ -30,6 +30,12 @@ import com.cloud.utils.net.NetUtils;
 
 public class SecurityGroupRulesCmd extends Command {
     private static Logger s_logger = Logger.getLogger(SecurityGroupRulesCmd.class);
+
+    /**
+     * Host detail reported in the StartupRoutingCommand by resources that can apply a ruleset diff.
+     */
+    public static final String DELTA_CAPABLE = "security.group.rules.delta";
+
     public static class IpPortAndProto {
         private String proto;
         private int startPort;
@@ -80,6 +86,9 @@ public class SecurityGroupRulesCmd extends Command {
     Long msId;
     IpPortAndProto [] ingressRuleSet;
     IpPortAndProto [] egressRuleSet;
+    String baseSignature;
+    IpPortAndProto [] revokedIngressRuleSet;
+    IpPortAndProto [] revokedEgressRuleSet;
 
     public SecurityGroupRulesCmd() {
         super();
@@ -102,6 +111,24 @@ public class SecurityGroupRulesCmd extends Command {
         }
     }
 
+    /**
+     * Creates a diff against the ruleset the vm currently has on the host. The host applies it only if its current
+     * signature is baseSignature and otherwise fails the command with FailureReason.BASE_SIGNATURE_MISMATCH, so that
+     * the full ruleset is sent again.
+     *
+     * @param signature signature of the full ruleset once the diff is applied.
+     * @param ingressRuleSet cidrs to add.
+     * @param revokedIngressRuleSet cidrs to remove.
+     */
+    public SecurityGroupRulesCmd(String guestIp, String guestMac, String vmName, Long vmId, String signature, String baseSignature, Long seqNum,
+            IpPortAndProto[] ingressRuleSet, IpPortAndProto[] egressRuleSet, IpPortAndProto[] revokedIngressRuleSet, IpPortAndProto[] revokedEgressRuleSet) {
+        this(guestIp, guestMac, vmName, vmId, signature, seqNum, ingressRuleSet, egressRuleSet);
+        assert (signature != null) : "A ruleset diff needs the signature of the full ruleset";
+        this.baseSignature = baseSignature;
+        this.revokedIngressRuleSet = revokedIngressRuleSet;
+        this.revokedEgressRuleSet = revokedEgressRuleSet;
+    }
+
 
     @Override
     public boolean executeInSequence() {
@@ -229,6 +256,22 @@ public class SecurityGroupRulesCmd extends Command {
         return signature;
     }
 
+    public boolean isDelta() {
+        return baseSignature != null;
+    }
+
+    public String getBaseSignature() {
+        return baseSignature;
+    }
+
+    public IpPortAndProto[] getRevokedIngressRuleSet() {
+        return revokedIngressRuleSet;
+    }
+
+    public IpPortAndProto[] getRevokedEgressRuleSet() {
+        return revokedEgressRuleSet;
+    }
+
 
     public String getGuestMac() {
         return guestMac;
@@ -0,0 +1,73 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.api;
+
+/**
+ * Sent between management servers when security groups are distributed across
+ * the cluster: either ruleset work for vms on hosts owned by the receiving
+ * server, or a change that the receiving server has to apply to its in-memory
+ * rule index.  It is never sent to an agent.
+ */
+public class SecurityGroupWorkCommand extends Command {
+    public enum Type {
+        Work,
+        VmStarted,
+        VmStopped,
+        VmGroupsChanged,
+        RulesChanged
+    }
+
+    Type type;
+    long[] ids;
+    long[] hostIds;
+
+    protected SecurityGroupWorkCommand() {
+    }
+
+    public SecurityGroupWorkCommand(Type type, long[] ids) {
+        this.type = type;
+        this.ids = ids;
+    }
+
+    public SecurityGroupWorkCommand(long[] vmIds, long[] hostIds) {
+        this(Type.Work, vmIds);
+        this.hostIds = hostIds;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return vm ids, or security group ids for RulesChanged
+     */
+    public long[] getIds() {
+        return ids;
+    }
+
+    /**
+     * @return for Work, the host of the vm at the same position in getIds()
+     */
+    public long[] getHostIds() {
+        return hostIds;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return false;
+    }
+}
@@ -20,6 +20,7 @@ package com.cloud.agent.api;
 public class StartupAnswer extends Answer {
     long hostId;
     int pingInterval;
+    int codecVersion;
     
     protected StartupAnswer() {
     }
@@ -41,4 +42,15 @@ public class StartupAnswer extends Answer {
     public int getPingInterval() {
         return pingInterval;
     }
+
+    /**
+     * @return version of the binary wire encoding to use on this connection, 0 for json.
+     */
+    public int getCodecVersion() {
+        return codecVersion;
+    }
+
+    public void setCodecVersion(int codecVersion) {
+        this.codecVersion = codecVersion;
+    }
 }
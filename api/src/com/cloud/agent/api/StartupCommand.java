@@ -43,6 +43,7 @@ public class StartupCommand extends Command {
     String agentTag;
     String resourceName;
     String gatewayIpAddress;
+    int codecVersion;
     
     public StartupCommand(Host.Type type) {
         this.type = type;
@@ -277,6 +278,17 @@ public class StartupCommand extends Command {
     public void setGatewayIpAddress(String gatewayIpAddress) {
         this.gatewayIpAddress = gatewayIpAddress;
     }
+
+    /**
+     * @return highest version of the binary wire encoding the agent understands, 0 if none.
+     */
+    public int getCodecVersion() {
+        return codecVersion;
+    }
+
+    public void setCodecVersion(int codecVersion) {
+        this.codecVersion = codecVersion;
+    }
   
     
     @Override
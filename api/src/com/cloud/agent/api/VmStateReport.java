@@ -0,0 +1,99 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.api;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.cloud.vm.VirtualMachine.State;
+
+/**
+ * The vm states of a host as it has reported them: the states sent at startup (or in the
+ * last GetVmStatesAnswer) with the changes of every later ping applied in order, leaving out
+ * vms last reported as Stopped or Error.  The agent and the management server each keep one and compute the same digest
+ * from it, so a lost, repeated or misapplied change shows up as a mismatch on the next ping.
+ * The digest is a sum of per vm hashes, so it does not depend on ordering and is updated
+ * as the changes are applied.
+ */
+public class VmStateReport {
+    private final HashMap<String, State> _states = new HashMap<String, State>();
+    private long _sequence;
+    private long _digest;
+
+    public synchronized void reset(Map<String, State> states, long sequence) {
+        _states.clear();
+        _digest = 0;
+        _sequence = sequence;
+        if (states != null) {
+            apply(states);
+        }
+    }
+
+    public synchronized void apply(Map<String, State> changes) {
+        for (Map.Entry<String, State> change : changes.entrySet()) {
+            String name = change.getKey();
+            State old = _states.remove(name);
+            if (old != null) {
+                _digest -= hash(name, old);
+            }
+
+            State state = change.getValue();
+            if (state != null && state != State.Stopped && state != State.Error) {
+                _states.put(name, state);
+                _digest += hash(name, state);
+            }
+        }
+    }
+
+    /**
+     * Used by the agent for each ping: applies the changes and moves the sequence if there are any.
+     */
+    public synchronized void next(Map<String, State> changes) {
+        if (changes != null && !changes.isEmpty()) {
+            apply(changes);
+            _sequence++;
+        }
+    }
+
+    public synchronized long getSequence() {
+        return _sequence;
+    }
+
+    public synchronized void setSequence(long sequence) {
+        _sequence = sequence;
+    }
+
+    public synchronized long getDigest() {
+        return _digest;
+    }
+
+    public synchronized HashMap<String, State> getStates() {
+        return new HashMap<String, State>(_states);
+    }
+
+    static long hash(String name, State state) {
+        // FNV-1a over the name and the state
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= state.ordinal() + 1;
+        h *= 0x100000001b3L;
+        return h;
+    }
+}
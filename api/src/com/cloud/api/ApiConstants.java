@@ -207,11 +207,14 @@ public class ApiConstants {
     public static final String VM_TOTAL = "vmtotal";
     public static final String VNET = "vnet";
     public static final String VOLUME_ID = "volumeid";
+    public static final String WAIT = "wait";
     public static final String ZONE_ID = "zoneid";
     public static final String ZONE_NAME = "zonename";
     public static final String NETWORK_TYPE = "networktype";
     public static final String PAGE = "page";
     public static final String PAGE_SIZE = "pagesize";
+    public static final String START_ID = "startid";
+    public static final String NEXT_PAGE_TOKEN = "nextpagetoken";
     public static final String COUNT = "count";
     public static final String TRAFFIC_TYPE = "traffictype";
     public static final String NETWORK_OFFERING_ID = "networkofferingid";
@@ -337,6 +340,7 @@ public class ApiConstants {
     public static final String IS_TAGGED = "istagged";
     public static final String INSTANCE_NAME = "instancename";
     public static final String START_VM = "startvm";
+    public static final String SPREAD_ACROSS_HOSTS = "spreadacrosshosts";
     public static final String HA_HOST = "hahost";
     public static final String CUSTOM_DISK_OFF_MAX_SIZE = "customdiskofferingmaxsize";
     public static final String DEFAULT_ZONE_ID = "defaultzoneid";
@@ -38,6 +38,10 @@ public abstract class BaseListCmd extends BaseCmd {
     @Parameter(name = ApiConstants.PAGE_SIZE, type = CommandType.INTEGER)
     private Integer pageSize;
 
+    @Parameter(name = ApiConstants.START_ID, type = CommandType.STRING, description = "the nextpagetoken returned with the previous page. " +
+            "The list starts right after the last item of that page and page is ignored. Pass 0 to get the first page of a list paged this way")
+    private String startId;
+
     // ///////////////////////////////////////////////////
     // ///////////////// Accessors ///////////////////////
     // ///////////////////////////////////////////////////
@@ -102,6 +106,35 @@ public abstract class BaseListCmd extends BaseCmd {
         return startIndex;
     }
 
+    /**
+     * @return the position to start the list after, decoded from startid, or null
+     *         if the list should be paged by page number.
+     */
+    public Long getStartId() {
+        if (startId == null) {
+            return null;
+        }
+
+        try {
+            return Long.parseLong(startId, Character.MAX_RADIX);
+        } catch (NumberFormatException e) {
+            throw new InvalidParameterValueException("Invalid " + ApiConstants.START_ID + ": " + startId);
+        }
+    }
+
+    /**
+     * @param itemCount number of items in the page being returned.
+     * @param lastId id of the last item in the page being returned.
+     * @return the token to pass as startid to get the next page or null if this is the last page.
+     */
+    public String getNextPageToken(int itemCount, long lastId) {
+        Long pageSizeVal = getPageSizeVal();
+        if (pageSizeVal == null || itemCount < pageSizeVal.longValue()) {
+            return null;
+        }
+        return Long.toString(lastId, Character.MAX_RADIX);
+    }
+
     public AsyncJob.Type getInstanceType() {
         return AsyncJob.Type.None;
     }
@@ -67,6 +67,9 @@ public class ListAsyncJobsCmd extends BaseListAccountResourcesCmd {
         }
 
         response.setResponses(jobResponses, result.second());
+        if (!result.first().isEmpty()) {
+            response.setNextPageToken(getNextPageToken(result.first().size(), result.first().get(result.first().size() - 1).getId()));
+        }
         response.setResponseName(getCommandName());
         this.setResponseObject(response);
     }
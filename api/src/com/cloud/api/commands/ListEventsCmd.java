@@ -114,6 +114,10 @@ public class ListEventsCmd extends BaseListProjectAndAccountResourcesCmd {
         }
 
         response.setResponses(eventResponses);
+        // events are ordered by id, which the token is, only when paged by startid
+        if (getStartId() != null && !result.isEmpty()) {
+            response.setNextPageToken(getNextPageToken(result.size(), result.get(result.size() - 1).getId()));
+        }
         response.setResponseName(getCommandName());
         this.setResponseObject(response);
     }
@@ -140,6 +140,9 @@ public class ListRoutersCmd extends BaseListProjectAndAccountResourcesCmd {
         }
 
         response.setResponses(routerResponses, result.second());
+        if (!result.first().isEmpty()) {
+            response.setNextPageToken(getNextPageToken(result.first().size(), result.first().get(result.first().size() - 1).getId()));
+        }
         response.setResponseName(getCommandName());
         this.setResponseObject(response);
     }
@@ -0,0 +1,95 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.commands;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.api.ApiConstants;
+import com.cloud.api.BaseCmd;
+import com.cloud.api.IdentityMapper;
+import com.cloud.api.Implementation;
+import com.cloud.api.Parameter;
+import com.cloud.api.response.ListResponse;
+import com.cloud.api.response.StatsSampleResponse;
+import com.cloud.server.StatsHistory;
+import com.cloud.user.Account;
+
+@Implementation(description="Lists the recent statistics samples of a virtual machine, a host or a volume kept by the management server, oldest first.", responseObject=StatsSampleResponse.class)
+public class ListStatsHistoryCmd extends BaseCmd {
+    public static final Logger s_logger = Logger.getLogger(ListStatsHistoryCmd.class.getName());
+
+    private static final String s_name = "liststatshistoryresponse";
+
+    /////////////////////////////////////////////////////
+    //////////////// API parameters /////////////////////
+    /////////////////////////////////////////////////////
+
+    @IdentityMapper(entityTableName="vm_instance")
+    @Parameter(name=ApiConstants.VIRTUAL_MACHINE_ID, type=CommandType.LONG, description="the ID of the virtual machine")
+    private Long virtualMachineId;
+
+    @IdentityMapper(entityTableName="host")
+    @Parameter(name=ApiConstants.HOST_ID, type=CommandType.LONG, description="the ID of the host")
+    private Long hostId;
+
+    @IdentityMapper(entityTableName="volumes")
+    @Parameter(name=ApiConstants.VOLUME_ID, type=CommandType.LONG, description="the ID of the volume")
+    private Long volumeId;
+
+    /////////////////////////////////////////////////////
+    /////////////////// Accessors ///////////////////////
+    /////////////////////////////////////////////////////
+
+    public Long getVirtualMachineId() {
+        return virtualMachineId;
+    }
+
+    public Long getHostId() {
+        return hostId;
+    }
+
+    public Long getVolumeId() {
+        return volumeId;
+    }
+
+    /////////////////////////////////////////////////////
+    /////////////// API Implementation///////////////////
+    /////////////////////////////////////////////////////
+
+    @Override
+    public String getCommandName() {
+        return s_name;
+    }
+
+    @Override
+    public long getEntityOwnerId() {
+        return Account.ACCOUNT_ID_SYSTEM;
+    }
+
+    @Override
+    public void execute(){
+        StatsHistory history = _mgr.listStatsHistory(this);
+
+        ListResponse<StatsSampleResponse> response = new ListResponse<StatsSampleResponse>();
+        List<StatsSampleResponse> sampleResponses = _responseGenerator.createStatsSampleResponses(history);
+        response.setResponses(sampleResponses);
+        response.setResponseName(getCommandName());
+        this.setResponseObject(response);
+    }
+}
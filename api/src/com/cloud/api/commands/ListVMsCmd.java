@@ -210,6 +210,9 @@ public class ListVMsCmd extends BaseListTaggedResourcesCmd {
         	 vmResponses = _responseGenerator.createUserVmResponse("virtualmachine", getDetails(), result.first().toArray(new UserVm[result.first().size()]));
         }
         response.setResponses(vmResponses, result.second());
+        if (!result.first().isEmpty()) {
+            response.setNextPageToken(getNextPageToken(result.first().size(), result.first().get(result.first().size() - 1).getId()));
+        }
         response.setResponseName(getCommandName());
         this.setResponseObject(response);
     }
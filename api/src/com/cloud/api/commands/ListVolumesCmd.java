@@ -129,6 +129,10 @@ public class ListVolumesCmd extends BaseListTaggedResourcesCmd {
         }
 
         response.setResponses(volResponses, volumes.second());
+        // volumes are ordered by id, which the token is, only when paged by startid
+        if (getStartId() != null && !volumes.first().isEmpty()) {
+            response.setNextPageToken(getNextPageToken(volumes.first().size(), volumes.first().get(volumes.first().size() - 1).getId()));
+        }
         response.setResponseName(getCommandName());
         this.setResponseObject(response);
     }
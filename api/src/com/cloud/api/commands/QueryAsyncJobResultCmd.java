@@ -40,6 +40,9 @@ public class QueryAsyncJobResultCmd extends BaseCmd {
     @Parameter(name=ApiConstants.JOB_ID, type=CommandType.LONG, required=true, description="the ID of the asychronous job")
     private Long id;
 
+    @Parameter(name=ApiConstants.WAIT, type=CommandType.INTEGER, description="if the job has not completed yet, wait up to this many seconds for it to complete before returning")
+    private Integer wait;
+
     /////////////////////////////////////////////////////
     /////////////////// Accessors ///////////////////////
     /////////////////////////////////////////////////////
@@ -48,6 +51,10 @@ public class QueryAsyncJobResultCmd extends BaseCmd {
         return id;
     }
 
+    public int getWait() {
+        return wait == null ? 0 : wait;
+    }
+
     /////////////////////////////////////////////////////
     /////////////// API Implementation///////////////////
     /////////////////////////////////////////////////////
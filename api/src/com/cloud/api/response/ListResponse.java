@@ -23,6 +23,7 @@ import com.cloud.api.ResponseObject;
 public class ListResponse<T extends ResponseObject> extends BaseResponse {
     List<T> responses;
     private transient Integer count;
+    private transient String nextPageToken;
 
     public List<T> getResponses() {
         return responses;
@@ -49,4 +50,12 @@ public class ListResponse<T extends ResponseObject> extends BaseResponse {
         
         return null;
     }
+
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    public void setNextPageToken(String nextPageToken) {
+        this.nextPageToken = nextPageToken;
+    }
 }
@@ -0,0 +1,66 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.response;
+
+import java.util.Date;
+
+import com.cloud.serializer.Param;
+import com.google.gson.annotations.SerializedName;
+
+public class StatsSampleResponse extends BaseResponse {
+    @SerializedName("date") @Param(description="the time of the sample")
+    private Date date;
+
+    @SerializedName("cpuused") @Param(description="the amount of the cpu used, for a virtual machine or a host")
+    private String cpuUsed;
+
+    @SerializedName("networkkbsread") @Param(description="the incoming network traffic, for a virtual machine or a host")
+    private Long networkKbsRead;
+
+    @SerializedName("networkkbswrite") @Param(description="the outgoing network traffic, for a virtual machine or a host")
+    private Long networkKbsWrite;
+
+    @SerializedName("memoryused") @Param(description="the amount of memory used, for a host")
+    private Long memoryUsed;
+
+    @SerializedName("bytesused") @Param(description="the bytes used, for a volume")
+    private Long bytesUsed;
+
+    public void setDate(Date date) {
+        this.date = date;
+    }
+
+    public void setCpuUsed(String cpuUsed) {
+        this.cpuUsed = cpuUsed;
+    }
+
+    public void setNetworkKbsRead(Long networkKbsRead) {
+        this.networkKbsRead = networkKbsRead;
+    }
+
+    public void setNetworkKbsWrite(Long networkKbsWrite) {
+        this.networkKbsWrite = networkKbsWrite;
+    }
+
+    public void setMemoryUsed(Long memoryUsed) {
+        this.memoryUsed = memoryUsed;
+    }
+
+    public void setBytesUsed(Long bytesUsed) {
+        this.bytesUsed = bytesUsed;
+    }
+}
@@ -29,6 +29,7 @@ public class DataCenterDeployment implements DeploymentPlan {
     ExcludeList _avoids = null;
     boolean _recreateDisks;
     ReservationContext _context;
+    DeployDestination _plannedDestination;
 
     public DataCenterDeployment(long dataCenterId) {
         this(dataCenterId, null, null, null, null, null);
@@ -93,4 +94,16 @@ public class DataCenterDeployment implements DeploymentPlan {
         return _context;
     }
 
+    /**
+     * @return destination planned ahead of the start, storage included.  It's tried once before the
+     * planners are run.
+     */
+    public DeployDestination getPlannedDestination() {
+        return _plannedDestination;
+    }
+
+    public void setPlannedDestination(DeployDestination plannedDestination) {
+        _plannedDestination = plannedDestination;
+    }
+
 }
@@ -46,6 +46,7 @@ import com.cloud.api.commands.ListPublicIpAddressesCmd;
 import com.cloud.api.commands.ListRoutersCmd;
 import com.cloud.api.commands.ListSSHKeyPairsCmd;
 import com.cloud.api.commands.ListServiceOfferingsCmd;
+import com.cloud.api.commands.ListStatsHistoryCmd;
 import com.cloud.api.commands.ListStoragePoolsCmd;
 import com.cloud.api.commands.ListSystemVMsCmd;
 import com.cloud.api.commands.ListTemplatesCmd;
@@ -451,4 +452,12 @@ public interface ManagementService {
      */
     List<? extends Capacity> listTopConsumedResources(ListCapacityCmd cmd);
 
+    /**
+     * lists the statistics samples kept in memory for a vm, host or volume
+     * 
+     * @param cmd
+     * @return the samples, oldest first
+     */
+    StatsHistory listStatsHistory(ListStatsHistoryCmd cmd);
+
 }
@@ -0,0 +1,50 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+/**
+ * Recent statistics samples of a vm, host or volume kept in memory by the
+ * management server, oldest first.
+ */
+public interface StatsHistory {
+    public enum Metric {
+        CpuUtilization,
+        NetworkReadKBs,
+        NetworkWriteKBs,
+        UsedMemoryKBs,
+        BytesUsed
+    }
+
+    /**
+     * @return minimum time in milliseconds between two samples.
+     */
+    long getResolution();
+
+    Metric[] getMetrics();
+
+    int getSampleCount();
+
+    /**
+     * @return time of the sample in milliseconds since the epoch.
+     */
+    long getTime(int sample);
+
+    /**
+     * @return value of the metric at the given index of getMetrics(), or NaN if the sample has none.
+     */
+    double getValue(int sample, int metric);
+}
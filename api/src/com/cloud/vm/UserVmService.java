@@ -27,6 +27,7 @@ import com.cloud.api.commands.CreateTemplateCmd;
 import com.cloud.api.commands.CreateVMGroupCmd;
 import com.cloud.api.commands.DeleteVMGroupCmd;
 import com.cloud.api.commands.DeployVMCmd;
+import com.cloud.api.commands.DeployVMsCmd;
 import com.cloud.api.commands.DestroyVMCmd;
 import com.cloud.api.commands.DetachVolumeCmd;
 import com.cloud.api.commands.ListVMsCmd;
@@ -346,6 +347,25 @@ public interface UserVmService {
      */
     UserVm startVirtualMachine(DeployVMCmd cmd) throws InsufficientCapacityException, ConcurrentOperationException, ResourceUnavailableException;
 
+    /**
+     * Creates a batch of identical virtual machines and starts them. Placement for the whole batch is planned in
+     * one pass and the VMs are then started in parallel, one worker per destination host.
+     * 
+     * @param cmd
+     *            Command to deploy.
+     * @return the VMs that were started; VMs that failed to start are left in Stopped or Error state.
+     * @throws InsufficientCapacityException
+     *             if there is insufficient capacity to deploy the VMs.
+     * @throws ConcurrentOperationException
+     *             if there are multiple users working on the same VM.
+     * @throws ResourceUnavailableException
+     *             if the resources required the deploy the VMs are not currently available.
+     * @throws ResourceAllocationException
+     *             if the batch would exceed the owner's resource limits.
+     */
+    List<? extends UserVm> deployVirtualMachines(DeployVMsCmd cmd) throws InsufficientCapacityException, ConcurrentOperationException, ResourceUnavailableException,
+            ResourceAllocationException;
+
     /**
      * Creates a vm group.
      * 
@@ -0,0 +1,75 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package src.com.cloud.agent.api.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import com.cloud.agent.api.VmStateReport;
+import com.cloud.vm.VirtualMachine.State;
+
+public class VmStateReportTest {
+
+    private static HashMap<String, State> states(Object... pairs) {
+        HashMap<String, State> states = new HashMap<String, State>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            states.put((String) pairs[i], (State) pairs[i + 1]);
+        }
+        return states;
+    }
+
+    @Test
+    public void testDigestFollowsChanges() {
+        VmStateReport agent = new VmStateReport();
+        VmStateReport server = new VmStateReport();
+        agent.reset(states("i-2-3-VM", State.Running, "r-4-VM", State.Running), 0);
+        server.reset(states("r-4-VM", State.Running, "i-2-3-VM", State.Running), 0);
+        assertEquals(agent.getDigest(), server.getDigest());
+
+        agent.next(states("i-2-3-VM", State.Stopped, "i-2-5-VM", State.Starting));
+        assertEquals(1, agent.getSequence());
+        assertFalse(agent.getDigest() == server.getDigest());
+
+        server.apply(states("i-2-3-VM", State.Stopped, "i-2-5-VM", State.Starting));
+        assertEquals(agent.getDigest(), server.getDigest());
+        assertEquals(states("r-4-VM", State.Running, "i-2-5-VM", State.Starting), server.getStates());
+    }
+
+    @Test
+    public void testNoChangesKeepSequence() {
+        VmStateReport report = new VmStateReport();
+        report.reset(states("i-2-3-VM", State.Running), 7);
+        long digest = report.getDigest();
+        report.next(new HashMap<String, State>());
+        assertEquals(7, report.getSequence());
+        assertEquals(digest, report.getDigest());
+    }
+
+    @Test
+    public void testStoppedLeavesNothing() {
+        VmStateReport report = new VmStateReport();
+        report.reset(states("i-2-3-VM", State.Running), 0);
+        report.apply(states("i-2-3-VM", State.Error));
+        assertTrue(report.getStates().isEmpty());
+        assertEquals(0, report.getDigest());
+    }
+}
@@ -0,0 +1,84 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package src.com.cloud.api.commands.test;
+
+import java.lang.reflect.Field;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.api.BaseListCmd;
+import com.cloud.api.commands.ListVolumesCmd;
+import com.cloud.exception.InvalidParameterValueException;
+
+public class ListVolumesCmdTest extends TestCase {
+
+    private ListVolumesCmd listVolumesCmd;
+
+    @Before
+    public void setUp() {
+        listVolumesCmd = new ListVolumesCmd() {
+
+            @Override
+            public Long getPageSizeVal() {
+                return 20L;
+            }
+
+        };
+    }
+
+    private void setStartId(String startId) throws Exception {
+        Field field = BaseListCmd.class.getDeclaredField("startId");
+        field.setAccessible(true);
+        field.set(listVolumesCmd, startId);
+    }
+
+    @Test
+    public void testNextPageTokenIsTheStartIdOfTheNextPage() throws Exception {
+        String token = listVolumesCmd.getNextPageToken(20, 123456789L);
+        Assert.assertNotNull(token);
+
+        setStartId(token);
+        Assert.assertEquals(Long.valueOf(123456789L), listVolumesCmd.getStartId());
+    }
+
+    @Test
+    public void testNoNextPageTokenOnTheLastPage() {
+        Assert.assertNull(listVolumesCmd.getNextPageToken(19, 123456789L));
+    }
+
+    @Test
+    public void testZeroStartsKeysetPaging() throws Exception {
+        Assert.assertNull(listVolumesCmd.getStartId());
+
+        setStartId("0");
+        Assert.assertEquals(Long.valueOf(0), listVolumesCmd.getStartId());
+    }
+
+    @Test
+    public void testInvalidStartId() throws Exception {
+        setStartId("not a token");
+        try {
+            listVolumesCmd.getStartId();
+            Assert.fail("An invalid startid was accepted");
+        } catch (InvalidParameterValueException e) {
+        }
+    }
+}
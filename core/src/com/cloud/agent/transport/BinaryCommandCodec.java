@@ -0,0 +1,768 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Command;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * BinaryCommandCodec is a compact alternative to the Gson encoding of the
+ * commands and answers.  Like Gson, it walks the non-transient fields of
+ * the classes so the Command classes themselves are the schema.  Field names
+ * are sent once per class per message and matched by name on the other side,
+ * so fields added or removed on one side are handled the same way as Gson
+ * does: unknown fields are skipped and missing fields keep their defaults.
+ * 
+ * Every value is preceded by a one byte tag.  Integers are sent as zig-zag
+ * varints and strings are sent only once per message.
+ * 
+ * Only registered types, enums, strings, boxed primitives, dates, arrays,
+ * lists, sets and maps can be encoded.  The registered types are the Command
+ * and Answer classes and the com.cloud classes their fields are declared
+ * with, so the sender can not make the receiver create any other class.
+ * encode() throws IllegalArgumentException for anything else and the caller
+ * is expected to fall back to Gson.
+ */
+public class BinaryCommandCodec {
+    private static final Logger s_logger = Logger.getLogger(BinaryCommandCodec.class);
+
+    public static final int VERSION = 1;
+
+    protected static final byte NULL = 0;
+    protected static final byte TRUE = 1;
+    protected static final byte FALSE = 2;
+    protected static final byte BYTE = 3;
+    protected static final byte SHORT = 4;
+    protected static final byte INT = 5;
+    protected static final byte LONG = 6;
+    protected static final byte FLOAT = 7;
+    protected static final byte DOUBLE = 8;
+    protected static final byte CHAR = 9;
+    protected static final byte STRING = 10;
+    protected static final byte ENUM = 11;
+    protected static final byte OBJECT = 12;
+    protected static final byte ARRAY = 13;
+    protected static final byte LIST = 14;
+    protected static final byte SET = 15;
+    protected static final byte MAP = 16;
+    protected static final byte DATE = 17;
+    protected static final byte BYTES = 18;
+
+    protected static final String OBJECT_PACKAGE = "com.cloud.";
+
+    protected static final Map<String, Class<?>> s_primitives = new HashMap<String, Class<?>>();
+    static {
+        for (Class<?> clazz : new Class<?>[] { boolean.class, byte.class, short.class, int.class, long.class, float.class, double.class, char.class }) {
+            s_primitives.put(clazz.getName(), clazz);
+        }
+    }
+
+    protected static final ConcurrentHashMap<Class<?>, Schema> s_schemas = new ConcurrentHashMap<Class<?>, Schema>();
+    protected static final Set<Class<?>> s_unencodable = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+    protected static final Set<Class<?>> s_types = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+    static {
+        s_types.add(Command.class);
+    }
+
+    /**
+     * @param value usually the Command[] or Answer[] of a request.
+     * @return the encoded bytes, starting with the codec version.
+     * @throws IllegalArgumentException if part of the value can not be encoded.
+     */
+    public static byte[] encode(Object value) {
+        Encoder encoder = new Encoder();
+        encoder.write(VERSION);
+        encoder.writeValue(value);
+        return encoder.toByteArray();
+    }
+
+    public static Object decode(byte[] bytes) {
+        return decode(bytes, 0, bytes.length);
+    }
+
+    public static Object decode(byte[] bytes, int offset, int length) {
+        Decoder decoder = new Decoder(bytes, offset, length);
+        int version = decoder.read();
+        if (version != VERSION) {
+            throw new CloudRuntimeException("Unsupported binary codec version " + version);
+        }
+        try {
+            return decoder.readValue();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new CloudRuntimeException("Truncated binary content", e);
+        }
+    }
+
+    /**
+     * Allows objects of the class and its subclasses to be encoded and
+     * decoded.  The com.cloud classes its fields are declared with are
+     * registered the first time an object of it is encoded or decoded.
+     */
+    public static void registerType(Class<?> clazz) {
+        s_types.add(clazz);
+    }
+
+    protected static boolean isRegistered(Class<?> clazz) {
+        if (!clazz.getName().startsWith(OBJECT_PACKAGE) || clazz.isInterface() || Modifier.isAbstract(clazz.getModifiers())) {
+            return false;
+        }
+        if (s_schemas.containsKey(clazz)) {
+            return true;
+        }
+        for (Class<?> type : s_types) {
+            if (type.isAssignableFrom(clazz)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Registers the com.cloud classes found in the declared type of a field,
+     * including the element types of arrays and collections.
+     */
+    protected static void registerDeclaredTypes(Type type) {
+        if (type instanceof Class) {
+            Class<?> clazz = (Class<?>)type;
+            while (clazz.isArray()) {
+                clazz = clazz.getComponentType();
+            }
+            if (!clazz.isEnum() && clazz.getName().startsWith(OBJECT_PACKAGE)) {
+                s_types.add(clazz);
+            }
+        } else if (type instanceof ParameterizedType) {
+            registerDeclaredTypes(((ParameterizedType)type).getRawType());
+            for (Type argument : ((ParameterizedType)type).getActualTypeArguments()) {
+                registerDeclaredTypes(argument);
+            }
+        } else if (type instanceof WildcardType) {
+            for (Type bound : ((WildcardType)type).getUpperBounds()) {
+                registerDeclaredTypes(bound);
+            }
+        } else if (type instanceof GenericArrayType) {
+            registerDeclaredTypes(((GenericArrayType)type).getGenericComponentType());
+        }
+    }
+
+    /**
+     * @param clazz a class that passed isRegistered().
+     */
+    protected static Schema getSchema(Class<?> clazz) {
+        Schema schema = s_schemas.get(clazz);
+        if (schema == null) {
+            schema = new Schema(clazz);
+            Schema existing = s_schemas.putIfAbsent(clazz, schema);
+            if (existing != null) {
+                schema = existing;
+            }
+        }
+        return schema;
+    }
+
+    /**
+     * The fields of a class, collected the way Gson does it.
+     */
+    protected static class Schema {
+        final Class<?> _clazz;
+        final Constructor<?> _constructor;
+        final Field[] _fields;
+        final Map<String, Field> _fieldsByName;
+
+        Schema(Class<?> clazz) {
+            _clazz = clazz;
+
+            Constructor<?> constructor = null;
+            try {
+                constructor = clazz.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+            }
+            _constructor = constructor;
+
+            List<Field> fields = new ArrayList<Field>();
+            _fieldsByName = new HashMap<String, Field>();
+            for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    fields.add(field);
+                    if (!_fieldsByName.containsKey(field.getName())) {
+                        _fieldsByName.put(field.getName(), field);
+                    }
+                }
+            }
+            _fields = fields.toArray(new Field[fields.size()]);
+            for (Field field : _fields) {
+                registerDeclaredTypes(field.getGenericType());
+            }
+        }
+
+        Object newInstance() {
+            if (_constructor == null) {
+                throw new CloudRuntimeException("No default constructor for " + _clazz.getName());
+            }
+            try {
+                return _constructor.newInstance();
+            } catch (Exception e) {
+                throw new CloudRuntimeException("Unable to create " + _clazz.getName(), e);
+            }
+        }
+    }
+
+    protected static class Encoder extends ByteArrayOutputStream {
+        final Map<String, Integer> _strings = new HashMap<String, Integer>();
+        final Map<Class<?>, Integer> _classes = new HashMap<Class<?>, Integer>();
+        final Map<Class<?>, Integer> _schemas = new HashMap<Class<?>, Integer>();
+
+        Encoder() {
+            super(512);
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int)((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int)value);
+        }
+
+        void writeSignedVarLong(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        void writeFixedLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                write((int)(value >>> shift));
+            }
+        }
+
+        void writeString(String value) {
+            Integer index = _strings.get(value);
+            if (index != null) {
+                writeVarLong(index);
+                return;
+            }
+            writeVarLong(_strings.size());
+            _strings.put(value, _strings.size());
+            byte[] bytes;
+            try {
+                bytes = value.getBytes("UTF-8");
+            } catch (java.io.UnsupportedEncodingException e) {
+                throw new CloudRuntimeException("UTF-8 is not supported", e);
+            }
+            writeVarLong(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        void writeClass(Class<?> clazz) {
+            Integer index = _classes.get(clazz);
+            if (index != null) {
+                writeVarLong(index);
+                return;
+            }
+            writeVarLong(_classes.size());
+            _classes.put(clazz, _classes.size());
+            writeString(clazz.getName());
+        }
+
+        void writeSchema(Schema schema) {
+            Integer index = _schemas.get(schema._clazz);
+            if (index != null) {
+                writeVarLong(index);
+                return;
+            }
+            writeVarLong(_schemas.size());
+            _schemas.put(schema._clazz, _schemas.size());
+            writeString(schema._clazz.getName());
+            writeVarLong(schema._fields.length);
+            for (Field field : schema._fields) {
+                writeString(field.getName());
+            }
+        }
+
+        void writeValue(Object value) {
+            if (value == null) {
+                write(NULL);
+                return;
+            }
+
+            Class<?> clazz = value.getClass();
+            if (clazz == String.class) {
+                write(STRING);
+                writeString((String)value);
+            } else if (clazz == Boolean.class) {
+                write(((Boolean)value).booleanValue() ? TRUE : FALSE);
+            } else if (clazz == Integer.class) {
+                write(INT);
+                writeSignedVarLong((Integer)value);
+            } else if (clazz == Long.class) {
+                write(LONG);
+                writeSignedVarLong((Long)value);
+            } else if (clazz == Double.class) {
+                write(DOUBLE);
+                writeFixedLong(Double.doubleToLongBits((Double)value));
+            } else if (clazz == Float.class) {
+                write(FLOAT);
+                writeVarLong(Float.floatToIntBits((Float)value) & 0xFFFFFFFFL);
+            } else if (clazz == Short.class) {
+                write(SHORT);
+                writeSignedVarLong((Short)value);
+            } else if (clazz == Byte.class) {
+                write(BYTE);
+                write((Byte)value);
+            } else if (clazz == Character.class) {
+                write(CHAR);
+                writeVarLong((Character)value);
+            } else if (clazz == Date.class) {
+                write(DATE);
+                writeSignedVarLong(((Date)value).getTime());
+            } else if (value instanceof Enum) {
+                write(ENUM);
+                writeClass(((Enum<?>)value).getDeclaringClass());
+                writeString(((Enum<?>)value).name());
+            } else if (clazz == byte[].class) {
+                byte[] bytes = (byte[])value;
+                write(BYTES);
+                writeVarLong(bytes.length);
+                write(bytes, 0, bytes.length);
+            } else if (clazz.isArray()) {
+                int length = Array.getLength(value);
+                write(ARRAY);
+                writeClass(clazz.getComponentType());
+                writeVarLong(length);
+                for (int i = 0; i < length; i++) {
+                    writeValue(Array.get(value, i));
+                }
+            } else if (value instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>)value;
+                write(MAP);
+                writeVarLong(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    writeValue(entry.getKey());
+                    writeValue(entry.getValue());
+                }
+            } else if (value instanceof Collection) {
+                Collection<?> collection = (Collection<?>)value;
+                write(value instanceof Set ? SET : LIST);
+                writeVarLong(collection.size());
+                for (Object element : collection) {
+                    writeValue(element);
+                }
+            } else {
+                writeObject(value, clazz);
+            }
+        }
+
+        void writeObject(Object value, Class<?> clazz) {
+            if (s_unencodable.contains(clazz) || !isRegistered(clazz)) {
+                throw new IllegalArgumentException("Unable to encode " + clazz.getName());
+            }
+            Schema schema = getSchema(clazz);
+            if (schema._constructor == null || !clazz.getName().startsWith(OBJECT_PACKAGE)) {
+                s_unencodable.add(clazz);
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Unable to encode " + clazz.getName() + ", falling back to json for it");
+                }
+                throw new IllegalArgumentException("Unable to encode " + clazz.getName());
+            }
+
+            write(OBJECT);
+            writeSchema(schema);
+            for (Field field : schema._fields) {
+                try {
+                    writeValue(field.get(value));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalArgumentException("Unable to read " + field, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A class as described by the sender; fields unknown here are null.
+     */
+    protected static class RemoteSchema {
+        final Schema _schema;
+        final Field[] _fields;
+
+        RemoteSchema(Schema schema, Field[] fields) {
+            _schema = schema;
+            _fields = fields;
+        }
+    }
+
+    protected static class Decoder {
+        final byte[] _bytes;
+        final int _limit;
+        int _pos;
+        final List<String> _strings = new ArrayList<String>();
+        final List<Class<?>> _classes = new ArrayList<Class<?>>();
+        final List<RemoteSchema> _schemas = new ArrayList<RemoteSchema>();
+
+        Decoder(byte[] bytes, int offset, int length) {
+            _bytes = bytes;
+            _pos = offset;
+            _limit = offset + length;
+        }
+
+        int read() {
+            if (_pos >= _limit) {
+                throw new ArrayIndexOutOfBoundsException(_pos);
+            }
+            return _bytes[_pos++] & 0xFF;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = read();
+                value |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new CloudRuntimeException("Malformed varint at " + _pos);
+        }
+
+        long readSignedVarLong() {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        int readLength() {
+            long length = readVarLong();
+            if (length < 0 || length > _limit - _pos) {
+                throw new CloudRuntimeException("Bad length " + length + " at " + _pos);
+            }
+            return (int)length;
+        }
+
+        long readFixedLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | read();
+            }
+            return value;
+        }
+
+        String readString() {
+            int index = (int)readVarLong();
+            if (index < _strings.size()) {
+                return _strings.get(index);
+            }
+            if (index != _strings.size()) {
+                throw new CloudRuntimeException("Bad string reference " + index);
+            }
+            int length = readLength();
+            String value;
+            try {
+                value = new String(_bytes, _pos, length, "UTF-8");
+            } catch (java.io.UnsupportedEncodingException e) {
+                throw new CloudRuntimeException("UTF-8 is not supported", e);
+            }
+            _pos += length;
+            _strings.add(value);
+            return value;
+        }
+
+        Class<?> loadClass(String name) {
+            Class<?> clazz = s_primitives.get(name);
+            if (clazz != null) {
+                return clazz;
+            }
+            try {
+                return Class.forName(name, false, BinaryCommandCodec.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new CloudRuntimeException("Unable to find class " + name, e);
+            }
+        }
+
+        Class<?> readClass() {
+            int index = (int)readVarLong();
+            if (index < _classes.size()) {
+                return _classes.get(index);
+            }
+            if (index != _classes.size()) {
+                throw new CloudRuntimeException("Bad class reference " + index);
+            }
+            Class<?> clazz = loadClass(readString());
+            _classes.add(clazz);
+            return clazz;
+        }
+
+        RemoteSchema readSchema() {
+            int index = (int)readVarLong();
+            if (index < _schemas.size()) {
+                return _schemas.get(index);
+            }
+            if (index != _schemas.size()) {
+                throw new CloudRuntimeException("Bad schema reference " + index);
+            }
+            String name = readString();
+            if (!name.startsWith(OBJECT_PACKAGE)) {
+                throw new CloudRuntimeException("Refusing to decode " + name);
+            }
+            Class<?> clazz = loadClass(name);
+            if (!isRegistered(clazz)) {
+                throw new CloudRuntimeException("Refusing to decode " + name + " as it is not a registered type");
+            }
+            Schema schema = getSchema(clazz);
+            Field[] fields = new Field[readLength()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = schema._fieldsByName.get(readString());
+            }
+            RemoteSchema remote = new RemoteSchema(schema, fields);
+            _schemas.add(remote);
+            return remote;
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Object readValue() {
+            int tag = read();
+            switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case BYTE:
+                return (byte)read();
+            case SHORT:
+                return (short)readSignedVarLong();
+            case INT:
+                return (int)readSignedVarLong();
+            case LONG:
+                return readSignedVarLong();
+            case FLOAT:
+                return Float.intBitsToFloat((int)readVarLong());
+            case DOUBLE:
+                return Double.longBitsToDouble(readFixedLong());
+            case CHAR:
+                return (char)readVarLong();
+            case STRING:
+                return readString();
+            case DATE:
+                return new Date(readSignedVarLong());
+            case ENUM: {
+                Class clazz = readClass();
+                String name = readString();
+                if (!clazz.isEnum()) {
+                    throw new CloudRuntimeException(clazz.getName() + " is not an enum");
+                }
+                return Enum.valueOf(clazz, name);
+            }
+            case BYTES: {
+                byte[] bytes = new byte[readLength()];
+                System.arraycopy(_bytes, _pos, bytes, 0, bytes.length);
+                _pos += bytes.length;
+                return bytes;
+            }
+            case ARRAY: {
+                Class<?> component = readClass();
+                int length = readLength();
+                Object array = Array.newInstance(component, length);
+                for (int i = 0; i < length; i++) {
+                    Object element = readValue();
+                    if (element != null || !component.isPrimitive()) {
+                        Array.set(array, i, convert(element, component, component));
+                    }
+                }
+                return array;
+            }
+            case LIST:
+            case SET: {
+                int size = readLength();
+                Collection collection = tag == LIST ? new ArrayList(size) : new LinkedHashSet(size);
+                for (int i = 0; i < size; i++) {
+                    collection.add(readValue());
+                }
+                return collection;
+            }
+            case MAP: {
+                int size = readLength();
+                Map map = new LinkedHashMap(size);
+                for (int i = 0; i < size; i++) {
+                    Object key = readValue();
+                    map.put(key, readValue());
+                }
+                return map;
+            }
+            case OBJECT:
+                return readObject();
+            default:
+                throw new CloudRuntimeException("Unknown tag " + tag + " at " + (_pos - 1));
+            }
+        }
+
+        Object readObject() {
+            RemoteSchema remote = readSchema();
+            Object object = remote._schema.newInstance();
+            for (Field field : remote._fields) {
+                Object value = readValue();
+                if (field == null) {
+                    continue;
+                }
+                Class<?> type = field.getType();
+                if (value == null && type.isPrimitive()) {
+                    continue;
+                }
+                try {
+                    field.set(object, convert(value, type, field.getGenericType()));
+                } catch (IllegalAccessException e) {
+                    throw new CloudRuntimeException("Unable to set " + field, e);
+                } catch (IllegalArgumentException e) {
+                    throw new CloudRuntimeException("Unable to set " + field + " to " + value.getClass().getName(), e);
+                }
+            }
+            return object;
+        }
+
+        /**
+         * Fits the decoded collections, arrays and numbers to the declared type.
+         * 
+         * @param genericType the declared type with its type arguments, used
+         * for the element type of EnumSet and the key type of EnumMap.
+         */
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Object convert(Object value, Class<?> type, Type genericType) {
+            if (value == null || type.isPrimitive() || type.isInstance(value)) {
+                return value;
+            }
+
+            if (value instanceof Number) {
+                Number number = (Number)value;
+                if (type == Long.class) {
+                    return number.longValue();
+                } else if (type == Integer.class) {
+                    return number.intValue();
+                } else if (type == Double.class) {
+                    return number.doubleValue();
+                } else if (type == Float.class) {
+                    return number.floatValue();
+                } else if (type == Short.class) {
+                    return number.shortValue();
+                } else if (type == Byte.class) {
+                    return number.byteValue();
+                }
+            } else if (value.getClass().isArray() && type.isArray()) {
+                Class<?> component = type.getComponentType();
+                int length = Array.getLength(value);
+                Object array = Array.newInstance(component, length);
+                for (int i = 0; i < length; i++) {
+                    Object element = Array.get(value, i);
+                    if (element != null || !component.isPrimitive()) {
+                        Array.set(array, i, convert(element, component, component));
+                    }
+                }
+                return array;
+            } else if (value instanceof Collection && Collection.class.isAssignableFrom(type)) {
+                Collection collection;
+                if (type == EnumSet.class) {
+                    collection = EnumSet.noneOf((Class)getTypeArgument(genericType, 0));
+                } else if (!type.isInterface() && !Modifier.isAbstract(type.getModifiers())) {
+                    collection = (Collection)newInstance(type);
+                } else if (type.isAssignableFrom(ArrayDeque.class) && Queue.class.isAssignableFrom(type)) {
+                    collection = new ArrayDeque();
+                } else if (type.isAssignableFrom(TreeSet.class) && SortedSet.class.isAssignableFrom(type)) {
+                    collection = new TreeSet();
+                } else if (type.isAssignableFrom(ArrayList.class)) {
+                    collection = new ArrayList();
+                } else if (type.isAssignableFrom(LinkedHashSet.class)) {
+                    collection = new LinkedHashSet();
+                } else {
+                    throw new CloudRuntimeException("Unable to create a " + type.getName());
+                }
+                collection.addAll((Collection)value);
+                return collection;
+            } else if (value instanceof Map && Map.class.isAssignableFrom(type)) {
+                Map map;
+                if (type == EnumMap.class) {
+                    map = new EnumMap((Class)getTypeArgument(genericType, 0));
+                } else if (!type.isInterface() && !Modifier.isAbstract(type.getModifiers())) {
+                    map = (Map)newInstance(type);
+                } else if (type.isAssignableFrom(TreeMap.class) && SortedMap.class.isAssignableFrom(type)) {
+                    map = new TreeMap();
+                } else if (type.isAssignableFrom(ConcurrentHashMap.class) && ConcurrentMap.class.isAssignableFrom(type)) {
+                    map = new ConcurrentHashMap();
+                } else if (type.isAssignableFrom(LinkedHashMap.class)) {
+                    map = new LinkedHashMap();
+                } else {
+                    throw new CloudRuntimeException("Unable to create a " + type.getName());
+                }
+                map.putAll((Map)value);
+                return map;
+            }
+            return value;
+        }
+
+        Class<?> getTypeArgument(Type genericType, int index) {
+            if (genericType instanceof ParameterizedType) {
+                Type argument = ((ParameterizedType)genericType).getActualTypeArguments()[index];
+                if (argument instanceof Class) {
+                    return (Class<?>)argument;
+                }
+            }
+            throw new CloudRuntimeException("Unable to find the element type of " + genericType);
+        }
+
+        Object newInstance(Class<?> type) {
+            try {
+                Constructor<?> constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+                return constructor.newInstance();
+            } catch (Exception e) {
+                throw new CloudRuntimeException("Unable to create " + type.getName(), e);
+            }
+        }
+    }
+}
@@ -66,6 +66,11 @@ import com.google.gson.stream.JsonReader;
  * 6. AgentId - 8 bytes;
  * 7. Data Package.
  * 
+ * The data package is the Gson encoding of the commands unless
+ * FLAG_BINARY is set, in which case it is encoded by BinaryCommandCodec.
+ * The binary encoding is only used on connections where both sides said
+ * they understand it during the StartupCommand exchange.
+ * 
  */
 public class Request {
     private static final Logger s_logger = Logger.getLogger(Request.class);
@@ -96,6 +101,7 @@ public class Request {
     protected static final short       FLAG_FROM_SERVER     = 0x20;
     protected static final short       FLAG_CONTROL         = 0x40;
     protected static final short       FLAG_COMPRESSED      = 0x80;
+    protected static final short       FLAG_BINARY          = 0x100;
 
 
     protected Version   _ver;
@@ -107,6 +113,7 @@ public class Request {
     protected long      _agentId;
     protected Command[] _cmds;
     protected String    _content;
+    protected byte[]    _binary;
     
     protected Request() {
     }
@@ -227,6 +234,9 @@ public class Request {
     }
 
     public Command[] getCommands() {
+        if (_cmds == null && _binary != null) {
+            _cmds = decodeContent();
+        }
         if (_cmds == null) {
             try {
                 StringReader reader = new StringReader(_content);
@@ -245,6 +255,32 @@ public class Request {
         return "Cmd ";
     }
 
+    /**
+     * Converts the content that came over the wire back to commands or answers.
+     */
+    protected Command[] decodeContent() {
+        if (_binary != null) {
+            return (Command[])BinaryCommandCodec.decode(_binary);
+        }
+        return s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
+    }
+
+    /**
+     * @return the binary encoding of the commands or null if they can only be sent as json.
+     */
+    protected byte[] getBinaryContent() {
+        if (_binary == null && _cmds != null) {
+            try {
+                _binary = BinaryCommandCodec.encode(_cmds);
+            } catch (IllegalArgumentException e) {
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Sending seq " + _seq + " as json: " + e.getMessage());
+                }
+            }
+        }
+        return _binary;
+    }
+
     protected ByteBuffer serializeHeader(final int contentSize) {
         final ByteBuffer buffer = ByteBuffer.allocate(40);
         buffer.put(getVersionInByte());
@@ -309,13 +345,33 @@ public class Request {
     }
     
     public ByteBuffer[] toBytes() {
+        return toBytes(0);
+    }
+
+    /**
+     * @param codecVersion version of BinaryCommandCodec the receiver understands, 0 for json only.
+     */
+    public ByteBuffer[] toBytes(int codecVersion) {
         final ByteBuffer[] buffers = new ByteBuffer[2];
         ByteBuffer tmp;
         
-        if (_content == null) {
-            _content = s_gson.toJson(_cmds, _cmds.getClass());
+        byte[] binary = null;
+        if (codecVersion >= BinaryCommandCodec.VERSION) {
+            binary = getBinaryContent();
+        }
+        if (binary != null) {
+            _flags |= FLAG_BINARY;
+            tmp = ByteBuffer.wrap(binary);
+        } else {
+            _flags &= ~FLAG_BINARY;
+            if (_content == null) {
+                if (_cmds == null) {
+                    _cmds = decodeContent();
+                }
+                _content = s_gson.toJson(_cmds, _cmds.getClass());
+            }
+            tmp = ByteBuffer.wrap(_content.getBytes());
         }
-        tmp = ByteBuffer.wrap(_content.getBytes());
         int capacity = tmp.capacity();
         /* Check if we need to compress the data */
         if (capacity >= 8192) {
@@ -383,7 +439,7 @@ public class Request {
         if (logContent) {
             if (_cmds == null) {
                 try {
-                    _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
+                    _cmds = decodeContent();
                 } catch (RuntimeException e) {
                     s_logger.error("Unable to convert to json: " + _content);
                     throw e;
@@ -405,7 +461,7 @@ public class Request {
             }
         } else {
             if (_cmds == null) {
-                _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
+                _cmds = decodeContent();
             }
             content.append("{ ");
             for (Command cmd : _cmds) {
@@ -479,6 +535,19 @@ public class Request {
             offset = 0;
         }
 
+        Request request;
+        if ((flags & FLAG_BINARY) != 0) {
+            byte[] binary = new byte[command.length - offset];
+            System.arraycopy(command, offset, binary, 0, binary.length);
+            if (isRequest) {
+                request = new Request(version, seq, agentId, mgmtId, via, flags, (String)null);
+            } else {
+                request = new Response(version, seq, agentId, mgmtId, via, flags, (String)null);
+            }
+            request._binary = binary;
+            return request;
+        }
+
         final String content = new String(command, offset, command.length - offset);
 
         if (isRequest) {
@@ -55,7 +55,7 @@ public class Response extends Request {
 
     public Answer[] getAnswers() {
         if (_cmds == null) {
-            _cmds = s_gson.fromJson(_content, Answer[].class);
+            _cmds = decodeContent();
         }
         return (Answer[])_cmds;
     }
@@ -20,6 +20,7 @@ import java.util.Date;
 import java.util.List;
 
 import com.cloud.event.EventVO;
+import com.cloud.utils.ActionDelegate;
 import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDao;
 import com.cloud.utils.db.SearchCriteria;
@@ -29,5 +30,7 @@ public interface EventDao extends GenericDao<EventVO, Long> {
 
     public List<EventVO> listOlderEvents(Date oldTime);
 
+    public int streamOlderEvents(Date oldTime, ActionDelegate<EventVO> delegate);
+
     EventVO findCompletedEvent(long startId);
 }
@@ -25,6 +25,7 @@ import org.apache.log4j.Logger;
 
 import com.cloud.event.Event.State;
 import com.cloud.event.EventVO;
+import com.cloud.utils.ActionDelegate;
 import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
@@ -55,6 +56,13 @@ public class EventDaoImpl extends GenericDaoBase<EventVO, Long> implements Event
         return listIncludingRemovedBy(sc, null);
         
     }
+
+    @Override
+    public int streamOlderEvents(Date oldTime, ActionDelegate<EventVO> delegate) {
+        SearchCriteria<EventVO> sc = createSearchCriteria();
+        sc.addAnd("createDate", SearchCriteria.Op.LT, oldTime);
+        return searchStreamIncludingRemoved(sc, 500, delegate);
+    }
     
     @Override
     public EventVO findCompletedEvent(long startId) {
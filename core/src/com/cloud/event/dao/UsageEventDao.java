@@ -21,6 +21,7 @@ import java.util.List;
 
 import com.cloud.event.UsageEventVO;
 import com.cloud.exception.UsageServerException;
+import com.cloud.utils.ActionDelegate;
 import com.cloud.utils.db.GenericDao;
 
 public interface UsageEventDao extends GenericDao<UsageEventVO, Long> {
@@ -31,6 +32,20 @@ public interface UsageEventDao extends GenericDao<UsageEventVO, Long> {
     
     List<UsageEventVO> getRecentEvents(Date endDate) throws UsageServerException;
 
+    /**
+     * Copies the events up to endDate that are not in the usage db yet, like
+     * getRecentEvents but without loading them.
+     */
+    void copyRecentEvents(Date endDate) throws UsageServerException;
+
+    UsageEventVO findOldestLatestEvent(Date endDate);
+
+    /**
+     * Goes through the events listLatestEvents would return a page at a time,
+     * ordered by id.
+     */
+    int streamLatestEvents(Date endDate, ActionDelegate<UsageEventVO> delegate);
+
     List<UsageEventVO> listDirectIpEvents(Date startDate, Date endDate, long zoneId);
 
 }
\ No newline at end of file
@@ -30,6 +30,7 @@ import com.cloud.dc.Vlan;
 import com.cloud.event.EventTypes;
 import com.cloud.event.UsageEventVO;
 import com.cloud.exception.UsageServerException;
+import com.cloud.utils.ActionDelegate;
 import com.cloud.utils.DateUtil;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.Filter;
@@ -83,9 +84,34 @@ public class UsageEventDaoImpl extends GenericDaoBase<UsageEventVO, Long> implem
         return listAll(filter);
     }
     
+    @Override
+    public UsageEventVO findOldestLatestEvent(Date endDate) {
+        Filter filter = new Filter(UsageEventVO.class, "createDate", Boolean.TRUE, 0L, 1L);
+        SearchCriteria<UsageEventVO> sc = latestEventsSearch.create();
+        sc.setParameters("processed", false);
+        sc.setParameters("enddate", endDate);
+        List<UsageEventVO> events = listBy(sc, filter);
+        return events.isEmpty() ? null : events.get(0);
+    }
+
+    @Override
+    public int streamLatestEvents(Date endDate, ActionDelegate<UsageEventVO> delegate) {
+        SearchCriteria<UsageEventVO> sc = latestEventsSearch.create();
+        sc.setParameters("processed", false);
+        sc.setParameters("enddate", endDate);
+        return searchStream(sc, 500, delegate);
+    }
+
     @Override
     @DB
     public synchronized List<UsageEventVO> getRecentEvents(Date endDate) throws UsageServerException {
+        copyRecentEvents(endDate);
+        return findRecentEvents(endDate);
+    }
+
+    @Override
+    @DB
+    public synchronized void copyRecentEvents(Date endDate) throws UsageServerException {
         long recentEventId = getMostRecentEventId();
         long maxEventId = getMaxEventId(endDate);
         Transaction txn = Transaction.open(Transaction.USAGE_DB);
@@ -108,7 +134,6 @@ public class UsageEventDaoImpl extends GenericDaoBase<UsageEventVO, Long> implem
             pstmt.setLong(i++, maxEventId);
             pstmt.executeUpdate();
             txn.commit();
-            return findRecentEvents(endDate);
         } catch (Exception ex) {
             txn.rollback();
             s_logger.error("error copying events from cloud db to usage db", ex);
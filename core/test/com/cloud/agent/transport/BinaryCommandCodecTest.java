@@ -0,0 +1,127 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.transport;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.cloud.agent.api.Command;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class BinaryCommandCodecTest extends TestCase {
+
+    public static class CollectionsCommand extends Command {
+        EnumSet<TimeUnit> units;
+        EnumSet<TimeUnit> noUnits;
+        EnumMap<TimeUnit, String> names;
+        SortedSet<String> sorted;
+        SortedMap<String, Long> sortedMap;
+        Queue<Long> queue;
+        Item[] items;
+
+        public CollectionsCommand() {
+        }
+
+        @Override
+        public boolean executeInSequence() {
+            return false;
+        }
+    }
+
+    public static class Item {
+        String name;
+
+        public Item() {
+        }
+    }
+
+    public static class PayloadCommand extends Command {
+        Object payload;
+
+        public PayloadCommand() {
+        }
+
+        @Override
+        public boolean executeInSequence() {
+            return false;
+        }
+    }
+
+    public static class Unregistered {
+        String name = "unregistered";
+
+        public Unregistered() {
+        }
+    }
+
+    public void testCollections() {
+        CollectionsCommand cmd = new CollectionsCommand();
+        cmd.units = EnumSet.of(TimeUnit.SECONDS, TimeUnit.MINUTES);
+        cmd.noUnits = EnumSet.noneOf(TimeUnit.class);
+        cmd.names = new EnumMap<TimeUnit, String>(TimeUnit.class);
+        cmd.names.put(TimeUnit.HOURS, "hours");
+        cmd.sorted = new java.util.TreeSet<String>();
+        cmd.sorted.add("b");
+        cmd.sorted.add("a");
+        cmd.sortedMap = new java.util.TreeMap<String, Long>();
+        cmd.sortedMap.put("one", 1L);
+        cmd.queue = new java.util.LinkedList<Long>();
+        cmd.queue.add(5L);
+        Item item = new Item();
+        item.name = "item";
+        cmd.items = new Item[] { item };
+
+        Command[] cmds = (Command[])BinaryCommandCodec.decode(BinaryCommandCodec.encode(new Command[] { cmd }));
+        CollectionsCommand decoded = (CollectionsCommand)cmds[0];
+        assertEquals(cmd.units, decoded.units);
+        assertTrue(decoded.noUnits.isEmpty());
+        assertEquals("hours", decoded.names.get(TimeUnit.HOURS));
+        assertEquals("a", decoded.sorted.first());
+        assertEquals(Long.valueOf(1), decoded.sortedMap.get("one"));
+        assertEquals(Long.valueOf(5), decoded.queue.peek());
+        assertEquals("item", decoded.items[0].name);
+    }
+
+    public void testUnregisteredTypeIsNotEncoded() {
+        PayloadCommand cmd = new PayloadCommand();
+        cmd.payload = new Unregistered();
+        try {
+            BinaryCommandCodec.encode(new Command[] { cmd });
+            fail("Unregistered types should fall back to json");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testUnregisteredTypeIsNotDecoded() {
+        BinaryCommandCodec.Encoder encoder = new BinaryCommandCodec.Encoder();
+        encoder.write(BinaryCommandCodec.VERSION);
+        encoder.write(BinaryCommandCodec.OBJECT);
+        encoder.writeSchema(new BinaryCommandCodec.Schema(Unregistered.class));
+        encoder.writeValue("unregistered");
+        try {
+            BinaryCommandCodec.decode(encoder.toByteArray());
+            fail("Unregistered types should not be created");
+        } catch (CloudRuntimeException e) {
+        }
+    }
+}
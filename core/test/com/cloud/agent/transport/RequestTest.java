@@ -185,6 +185,65 @@ public class RequestTest extends TestCase {
         logger.setLevel(level);
     }
 
+    public void testBinarySerDeser() {
+        s_logger.info("Testing the binary encoding");
+        GetHostStatsCommand cmd = new GetHostStatsCommand("hostguid", "hostname", 101);
+        cmd.setContextParam("key", "value");
+        Request sreq = new Request(2, 3, new Command[] { cmd }, true, true);
+        sreq.setSequence(892403718);
+
+        byte[] bytes = toBytes(sreq.toBytes(BinaryCommandCodec.VERSION));
+        assert (bytes[2] & (Request.FLAG_BINARY >> 8)) != 0 : "Should have been sent as binary";
+        assert Request.getSequence(bytes) == 892403718;
+        assert Request.getAgentId(bytes) == 2;
+
+        Request creq = null;
+        try {
+            creq = Request.parse(bytes);
+        } catch (ClassNotFoundException e) {
+            s_logger.error("Unable to parse bytes: ", e);
+        } catch (UnsupportedVersionException e) {
+            s_logger.error("Unable to parse bytes: ", e);
+        }
+        assert creq != null : "Couldn't get the request back";
+        compareRequest(creq, sreq);
+
+        GetHostStatsCommand ccmd = (GetHostStatsCommand)creq.getCommand();
+        assert ccmd.getHostGuid().equals("hostguid");
+        assert ccmd.getHostId() == 101;
+        assert "value".equals(ccmd.getContextParam("key"));
+
+        Answer ans = new Answer(ccmd, true, "No Problem");
+        Response cresp = new Response(creq, ans);
+        bytes = toBytes(cresp.toBytes(BinaryCommandCodec.VERSION));
+
+        Response sresp = null;
+        try {
+            sresp = Response.parse(bytes);
+        } catch (ClassNotFoundException e) {
+            s_logger.error("Unable to parse bytes: ", e);
+        } catch (UnsupportedVersionException e) {
+            s_logger.error("Unable to parse bytes: ", e);
+        }
+        assert sresp != null : "Couldn't get the response back";
+        compareRequest(cresp, sresp);
+        assert sresp.getAnswer().getResult();
+        assert sresp.getAnswer().getDetails().equals("No Problem");
+
+        // A request received as binary can still be sent on as json
+        bytes = toBytes(creq.toBytes());
+        assert (bytes[2] & (Request.FLAG_BINARY >> 8)) == 0;
+    }
+
+    protected byte[] toBytes(ByteBuffer[] buffers) {
+        final int len1 = buffers[0].remaining();
+        final int len2 = buffers[1].remaining();
+        final byte[] bytes = new byte[len1 + len2];
+        buffers[0].get(bytes, 0, len1);
+        buffers[1].get(bytes, len1, len2);
+        return bytes;
+    }
+
     protected void compareRequest(Request req1, Request req2) {
         assert req1.getSequence() == req2.getSequence();
         assert req1.getAgentId() == req2.getAgentId();
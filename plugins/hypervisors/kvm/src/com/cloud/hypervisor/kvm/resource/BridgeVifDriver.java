@@ -137,8 +137,7 @@ public class BridgeVifDriver extends VifDriverBase {
         String brName = "br" + pifName + "-"+ vnetId;
         String oldStyleBrName = "cloudVirBr" + vnetId;
 
-        String cmdout = Script.runSimpleBashScript("brctl show | grep " + oldStyleBrName);
-        if (cmdout != null && cmdout.contains(oldStyleBrName)) {
+        if (KVMNetworkProbe.isBridge(oldStyleBrName)) {
             s_logger.info("Using old style bridge name for vlan " + vnetId + " because existing bridge " + oldStyleBrName + " was found");
             brName = oldStyleBrName;
         }
@@ -206,15 +205,6 @@ public class BridgeVifDriver extends VifDriverBase {
     }
 
     private boolean isBridgeExists(String bridgeName) {
-        Script command = new Script("/bin/sh", _timeout);
-        command.add("-c");
-        command.add("brctl show|grep " + bridgeName);
-        final OutputInterpreter.OneLineParser parser = new OutputInterpreter.OneLineParser();
-        String result = command.execute(parser);
-        if (result != null || parser.getLine() == null) {
-            return false;
-        } else {
-            return true;
-        }
+        return KVMNetworkProbe.isBridge(bridgeName);
     }
 }
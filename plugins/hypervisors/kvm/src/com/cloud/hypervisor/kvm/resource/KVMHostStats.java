@@ -0,0 +1,130 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Reads host cpu, memory and nic counters straight from /proc and /sys instead of forking
+ * top/free/cat for every GetHostStatsCommand.
+ */
+public class KVMHostStats {
+    private final String _procPath;
+    private long _lastIdle;
+    private long _lastTotal;
+
+    public KVMHostStats() {
+        this("/proc");
+    }
+
+    KVMHostStats(String procPath) {
+        _procPath = procPath;
+    }
+
+    /**
+     * @return cpu utilization, in percent, since the previous call (since boot on the first call).
+     */
+    public synchronized double getCpuUtilization() throws IOException {
+        String line = readFirstLine(new File(_procPath, "stat"), "cpu ");
+        if (line == null) {
+            throw new IOException("No cpu line in " + _procPath + "/stat");
+        }
+
+        // cpu  user nice system idle iowait irq softirq steal [guest guest_nice]
+        String[] fields = line.trim().split("\\s+");
+        long total = 0;
+        for (int i = 1; i < fields.length && i <= 8; i++) {
+            total += Long.parseLong(fields[i]);
+        }
+        long idle = Long.parseLong(fields[4]);
+
+        long deltaTotal = total - _lastTotal;
+        long deltaIdle = idle - _lastIdle;
+        _lastTotal = total;
+        _lastIdle = idle;
+
+        if (deltaTotal <= 0) {
+            return 0;
+        }
+        return 100.0D * (deltaTotal - deltaIdle) / deltaTotal;
+    }
+
+    /**
+     * @return total memory and free memory (counting buffers and page cache as free), in KB.
+     */
+    public long[] getMemory() throws IOException {
+        long total = 0;
+        long free = 0;
+        BufferedReader reader = new BufferedReader(new FileReader(new File(_procPath, "meminfo")));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("MemTotal:")) {
+                    total = parseKB(line);
+                } else if (line.startsWith("MemFree:") || line.startsWith("Buffers:") || line.startsWith("Cached:")) {
+                    free += parseKB(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return new long[] { total, free };
+    }
+
+    /**
+     * @return bytes received and sent on the nic, or 0 for a counter that cannot be read.
+     */
+    public static double[] getNicStats(String nicName) {
+        File dir = new File("/sys/class/net/" + nicName + "/statistics");
+        return new double[] { readCounter(new File(dir, "rx_bytes")), readCounter(new File(dir, "tx_bytes")) };
+    }
+
+    private static long parseKB(String line) {
+        // "MemTotal:        8063904 kB"
+        String[] fields = line.trim().split("\\s+");
+        return Long.parseLong(fields[1]);
+    }
+
+    private static double readCounter(File file) {
+        try {
+            String line = readFirstLine(file, "");
+            return line == null ? 0 : Double.parseDouble(line.trim());
+        } catch (IOException e) {
+            return 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String readFirstLine(File file, String prefix) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(prefix)) {
+                    return line;
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bridge and vlan lookups read from sysfs and /proc/net/vlan, replacing the brctl/grep/awk
+ * pipelines that used to be forked for each of them.  Names are matched exactly, where the
+ * "brctl show | grep" versions also matched any bridge whose name contained the one asked for.
+ */
+public class KVMNetworkProbe {
+    private static final String SYS_CLASS_NET = "/sys/class/net";
+    private static final String PROC_NET_VLAN = "/proc/net/vlan";
+
+    public static boolean isBridge(String name) {
+        return name != null && new File(SYS_CLASS_NET + File.separator + name + File.separator + "bridge").isDirectory();
+    }
+
+    /**
+     * @return names of all bridges, sorted as brctl lists them.
+     */
+    public static List<String> getBridges() {
+        List<String> bridges = new ArrayList<String>();
+        for (String name : list(new File(SYS_CLASS_NET))) {
+            if (isBridge(name)) {
+                bridges.add(name);
+            }
+        }
+        return bridges;
+    }
+
+    /**
+     * @return the interfaces enslaved to the bridge, sorted; empty if it is not a bridge.
+     */
+    public static List<String> getBridgeInterfaces(String bridge) {
+        return list(new File(SYS_CLASS_NET + File.separator + bridge + File.separator + "brif"));
+    }
+
+    /**
+     * @return the device a vlan interface sits on, or null if the interface is not a vlan.
+     */
+    public static String getVlanDevice(String iface) {
+        File file = new File(PROC_NET_VLAN + File.separator + iface);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // "Device: eth0"
+                    if (line.startsWith("Device:")) {
+                        return line.substring("Device:".length()).trim();
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+        }
+        return null;
+    }
+
+    /**
+     * @return the first interface of the bridge, or the device under it if it is a vlan interface; null if the bridge has no interface.
+     */
+    public static String getPhysicalInterface(String bridge) {
+        List<String> ifaces = getBridgeInterfaces(bridge);
+        if (ifaces.isEmpty()) {
+            return null;
+        }
+
+        String pif = ifaces.get(0);
+        String device = getVlanDevice(pif);
+        return device != null ? device : pif;
+    }
+
+    /**
+     * @return the vlan id in the name of the first interface of the bridge ("eth0.100"), or null.
+     */
+    public static String getVlanId(String bridge) {
+        List<String> ifaces = getBridgeInterfaces(bridge);
+        if (ifaces.isEmpty()) {
+            return null;
+        }
+
+        String[] tokens = ifaces.get(0).split("\\.");
+        if (tokens.length < 2 || tokens[1].isEmpty()) {
+            return null;
+        }
+        return tokens[1];
+    }
+
+    private static List<String> list(File dir) {
+        String[] names = dir.list();
+        if (names == null) {
+            return new ArrayList<String>();
+        }
+        Arrays.sort(names);
+        return new ArrayList<String>(Arrays.asList(names));
+    }
+}
@@ -36,7 +36,6 @@ import java.text.MessageFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -48,7 +47,6 @@ import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -61,7 +59,6 @@ import org.apache.log4j.Logger;
 import org.libvirt.Connect;
 import org.libvirt.Domain;
 import org.libvirt.DomainInfo;
-import org.libvirt.DomainInterfaceStats;
 import org.libvirt.DomainSnapshot;
 import org.libvirt.LibvirtException;
 import org.libvirt.NodeInfo;
@@ -96,6 +93,8 @@ import com.cloud.agent.api.GetHostStatsAnswer;
 import com.cloud.agent.api.GetHostStatsCommand;
 import com.cloud.agent.api.GetStorageStatsAnswer;
 import com.cloud.agent.api.GetStorageStatsCommand;
+import com.cloud.agent.api.GetVmStatesAnswer;
+import com.cloud.agent.api.GetVmStatesCommand;
 import com.cloud.agent.api.GetVmStatsAnswer;
 import com.cloud.agent.api.GetVmStatsCommand;
 import com.cloud.agent.api.GetVncPortAnswer;
@@ -140,6 +139,7 @@ import com.cloud.agent.api.StopCommand;
 import com.cloud.agent.api.UnPlugNicAnswer;
 import com.cloud.agent.api.UnPlugNicCommand;
 import com.cloud.agent.api.UpgradeSnapshotCommand;
+import com.cloud.agent.api.VmStateReport;
 import com.cloud.agent.api.VmStatsEntry;
 import com.cloud.agent.api.check.CheckSshAnswer;
 import com.cloud.agent.api.check.CheckSshCommand;
@@ -217,6 +217,7 @@ import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.utils.script.OutputInterpreter;
 import com.cloud.utils.script.Script;
+import com.cloud.utils.script.ScriptShell;
 import com.cloud.vm.DiskProfile;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachine.State;
@@ -331,7 +332,8 @@ public class LibvirtComputingResource extends ServerResourceBase implements
     protected String _localStorageUUID;
     private Map <String, String> _pifs = new HashMap<String, String>();
     private Map<String, Map<String, String>> hostNetInfo = new HashMap<String, Map<String, String>>();
-    private final Map<String, vmStats> _vmStats = new ConcurrentHashMap<String, vmStats>();
+    private final LibvirtStatsSampler _statsSampler = new LibvirtStatsSampler();
+    private final KVMHostStats _hostStats = new KVMHostStats();
 
     protected boolean _disconnected = true;
     protected int _timeout;
@@ -355,6 +357,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements
     }
 
     protected HashMap<String, State> _vms = new HashMap<String, State>(20);
+    protected VmStateReport _reportedStates = new VmStateReport();
     protected List<String> _vmsKilled = new ArrayList<String>();
 
     private VirtualRoutingResource _virtRouterResource;
@@ -680,6 +683,12 @@ public class LibvirtComputingResource extends ServerResourceBase implements
 
         _storagePoolMgr = new KVMStoragePoolManager(_storage, _monitor);
 
+        value = (String) params.get("script.helper.shells");
+        ScriptShell.setPoolSize(NumbersUtil.parseInt(value, 0));
+
+        value = (String) params.get("vm.stats.sample.interval");
+        _statsSampler.start(NumbersUtil.parseInt(value, 30));
+
         _sysvmISOPath = (String) params.get("systemvm.iso.path");
         if (_sysvmISOPath == null) {
             String[] isoPaths = { "/usr/lib64/cloud/agent/vms/systemvm.iso",
@@ -780,9 +789,8 @@ public class LibvirtComputingResource extends ServerResourceBase implements
 
     private void getPifs() {
         /* gather all available bridges and find their pifs, so that we can match them against traffic labels later */
-        String cmdout = Script.runSimpleBashScript("brctl show | tail -n +2 | grep -v \"^\\s\"|awk '{print $1}'|sed '{:q;N;s/\\n/%/g;t q}'");
-        s_logger.debug("cmdout was " + cmdout);
-        List<String> bridges = Arrays.asList(cmdout.split("%"));
+        List<String> bridges = KVMNetworkProbe.getBridges();
+        s_logger.debug("bridges are " + bridges);
         for (String bridge : bridges) {
             s_logger.debug("looking for pif for bridge " + bridge);
             String pif = getPif(bridge);
@@ -798,14 +806,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements
     }
 
     private String getPif(String bridge) {
-        String pif = Script.runSimpleBashScript("brctl show | grep " + bridge + " | awk '{print $4}'");
-        String vlan = Script.runSimpleBashScript("ls /proc/net/vlan/" + pif);
-
-        if (vlan != null && !vlan.isEmpty()) {
-                pif = Script.runSimpleBashScript("grep ^Device\\: /proc/net/vlan/" + pif + " | awk {'print $2'}");
-        }
-
-        return pif;
+        return KVMNetworkProbe.getPhysicalInterface(bridge);
     }
 
     private boolean checkNetwork(String networkName) {
@@ -813,13 +814,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements
             return true;
         }
 
-        String name = Script.runSimpleBashScript("brctl show | grep "
-                + networkName + " | awk '{print $4}'");
-        if (name == null) {
-            return false;
-        } else {
-            return true;
-        }
+        return !KVMNetworkProbe.getBridgeInterfaces(networkName).isEmpty();
     }
 
     private String getVnetId(String vnetId) {
@@ -929,6 +924,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements
 
     @Override
     public boolean stop() {
+        _statsSampler.stop();
         try {
             Connect conn = LibvirtConnection.getConnection();
             conn.close();
@@ -968,6 +964,8 @@ public class LibvirtComputingResource extends ServerResourceBase implements
                 return execute((StopCommand) cmd);
             } else if (cmd instanceof GetVmStatsCommand) {
                 return execute((GetVmStatsCommand) cmd);
+            } else if (cmd instanceof GetVmStatesCommand) {
+                return execute((GetVmStatesCommand) cmd);
             } else if (cmd instanceof RebootRouterCommand) {
                 return execute((RebootRouterCommand) cmd);
             } else if (cmd instanceof RebootCommand) {
@@ -1299,21 +1297,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements
     }
 
     private String getVlanIdFromBridge(String brName) {
-        OutputInterpreter.OneLineParser vlanIdParser = new OutputInterpreter.OneLineParser();
-        final Script cmd = new Script("/bin/bash", s_logger);
-        cmd.add("-c");
-        cmd.add("vlanid=$(brctl show |grep " + brName
-                + " |awk '{print $4}' | cut -s -d. -f 2);echo $vlanid");
-        String result = cmd.execute(vlanIdParser);
-        if (result != null) {
-            return null;
-        }
-        String vlanId = vlanIdParser.getLine();
-        if (vlanId.equalsIgnoreCase("")) {
-            return null;
-        } else {
-            return vlanId;
-        }
+        return KVMNetworkProbe.getVlanId(brName);
     }
 
     private void VifHotPlug(Connect conn, String vmName, String vlanId,
@@ -1349,6 +1333,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements
                 nicnum++;
             }
             vm.attachDevice(_vifDriver.plug(nic, "Other PV (32-bit)").toString());
+            _statsSampler.invalidate(vmName);
             return new PlugNicAnswer(cmd, true, "success");
         } catch (Exception e) {
             String msg = " Plug Nic failed due to " + e.toString();
@@ -1368,6 +1353,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements
             for (InterfaceDef pluggedNic : pluggedNics) {
                 if (pluggedNic.getMacAddress().equalsIgnoreCase(nic.getMac())) {
                     vm.detachDevice(pluggedNic.toString());
+                    _statsSampler.invalidate(vmName);
                     return new UnPlugNicAnswer(cmd, true, "success");
                 }
             }
@@ -2489,48 +2475,21 @@ public class LibvirtComputingResource extends ServerResourceBase implements
     }
 
     private Answer execute(GetHostStatsCommand cmd) {
-        final Script cpuScript = new Script("/bin/bash", s_logger);
-        cpuScript.add("-c");
-        cpuScript
-                .add("idle=$(top -b -n 1|grep Cpu\\(s\\):|cut -d% -f4|cut -d, -f2);echo $idle");
-
-        final OutputInterpreter.OneLineParser parser = new OutputInterpreter.OneLineParser();
-        String result = cpuScript.execute(parser);
-        if (result != null) {
-            s_logger.debug("Unable to get the host CPU state: " + result);
-            return new Answer(cmd, false, result);
-        }
-        double cpuUtil = (100.0D - Double.parseDouble(parser.getLine()));
-
-        long freeMem = 0;
-        final Script memScript = new Script("/bin/bash", s_logger);
-        memScript.add("-c");
-        memScript
-                .add("freeMem=$(free|grep cache:|awk '{print $4}');echo $freeMem");
-        final OutputInterpreter.OneLineParser Memparser = new OutputInterpreter.OneLineParser();
-        result = memScript.execute(Memparser);
-        if (result != null) {
-            s_logger.debug("Unable to get the host Mem state: " + result);
-            return new Answer(cmd, false, result);
-        }
-        freeMem = Long.parseLong(Memparser.getLine());
-
-        Script totalMem = new Script("/bin/bash", s_logger);
-        totalMem.add("-c");
-        totalMem.add("free|grep Mem:|awk '{print $2}'");
-        final OutputInterpreter.OneLineParser totMemparser = new OutputInterpreter.OneLineParser();
-        result = totalMem.execute(totMemparser);
-        if (result != null) {
-            s_logger.debug("Unable to get the host Mem state: " + result);
-            return new Answer(cmd, false, result);
+        double cpuUtil;
+        long[] mem;
+        try {
+            cpuUtil = _hostStats.getCpuUtilization();
+            mem = _hostStats.getMemory();
+        } catch (Exception e) {
+            s_logger.debug("Unable to get the host stats: " + e.toString());
+            return new Answer(cmd, false, e.toString());
         }
-        long totMem = Long.parseLong(totMemparser.getLine());
 
         Pair<Double, Double> nicStats = getNicStats(_publicBridgeName);
 
         HostStatsEntry hostStats = new HostStatsEntry(cmd.getHostId(), cpuUtil,
                 nicStats.first() / 1000, nicStats.second() / 1000, "host",
-                totMem, freeMem, 0, 0);
+                mem[0], mem[1], 0, 0);
         return new GetHostStatsAnswer(cmd, hostStats);
     }
 
@@ -2629,19 +2588,25 @@ public class LibvirtComputingResource extends ServerResourceBase implements
         }
     }
 
+    protected GetVmStatesAnswer execute(GetVmStatesCommand cmd) {
+        synchronized (_reportedStates) {
+            HashMap<String, State> states;
+            synchronized (_vms) {
+                states = new HashMap<String, State>(_vms);
+            }
+            // start and stop update _vms without going through the pings, so
+            // the management server gets everything we know and both sides
+            // start over from it
+            _reportedStates.reset(states, _reportedStates.getSequence() + 1);
+            return new GetVmStatesAnswer(cmd, _reportedStates.getStates(),
+                    _reportedStates.getSequence());
+        }
+    }
+
     protected GetVmStatsAnswer execute(GetVmStatsCommand cmd) {
         List<String> vmNames = cmd.getVmNames();
         try {
-            HashMap<String, VmStatsEntry> vmStatsNameMap = new HashMap<String, VmStatsEntry>();
-            Connect conn = LibvirtConnection.getConnection();
-            for (String vmName : vmNames) {
-                VmStatsEntry statEntry = getVmStat(conn, vmName);
-                if (statEntry == null) {
-                    continue;
-                }
-
-                vmStatsNameMap.put(vmName, statEntry);
-            }
+            HashMap<String, VmStatsEntry> vmStatsNameMap = new HashMap<String, VmStatsEntry>(_statsSampler.getVmStats(vmNames));
             return new GetVmStatsAnswer(cmd, vmStatsNameMap);
         } catch (LibvirtException e) {
             s_logger.debug("Can't get vm stats: " + e.toString());
@@ -3264,16 +3229,23 @@ public class LibvirtComputingResource extends ServerResourceBase implements
 
     @Override
     public PingCommand getCurrentStatus(long id) {
-        final HashMap<String, State> newStates = sync();
-
-        if (!_can_bridge_firewall) {
-            return new PingRoutingCommand(com.cloud.host.Host.Type.Routing, id,
-                    newStates);
-        } else {
-            HashMap<String, Pair<Long, Long>> nwGrpStates = syncNetworkGroups(id);
-            return new PingRoutingWithNwGroupsCommand(getType(), id, newStates,
-                    nwGrpStates);
+        final PingRoutingCommand ping;
+        // the changes and the sequence and digest that cover them have to go out together
+        synchronized (_reportedStates) {
+            final HashMap<String, State> newStates = sync();
+            _reportedStates.next(newStates);
+
+            if (!_can_bridge_firewall) {
+                ping = new PingRoutingCommand(com.cloud.host.Host.Type.Routing,
+                        id, newStates);
+            } else {
+                HashMap<String, Pair<Long, Long>> nwGrpStates = syncNetworkGroups(id);
+                ping = new PingRoutingWithNwGroupsCommand(getType(), id,
+                        newStates, nwGrpStates);
+            }
+            ping.setStateReport(_reportedStates);
         }
+        return ping;
     }
 
     @Override
@@ -3297,9 +3269,12 @@ public class LibvirtComputingResource extends ServerResourceBase implements
     public StartupCommand[] initialize() {
         Map<String, State> changes = null;
 
-        synchronized (_vms) {
-            _vms.clear();
-            changes = sync();
+        synchronized (_reportedStates) {
+            synchronized (_vms) {
+                _vms.clear();
+                changes = sync();
+            }
+            _reportedStates.reset(changes, 0);
         }
 
         final List<Object> info = getHostInfo();
@@ -3689,7 +3664,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements
             cleanupVnet(conn, vnet);
         }
 
-        _vmStats.remove(vmName);
+        _statsSampler.forget(vmName);
     }
 
     protected String rebootVM(Connect conn, String vmName) {
@@ -4074,13 +4049,6 @@ public class LibvirtComputingResource extends ServerResourceBase implements
         return command.execute();
     }
 
-    private String executeBashScript(String script, OutputInterpreter parser) {
-        Script command = new Script("/bin/bash", _timeout, s_logger);
-        command.add("-c");
-        command.add(script);
-        return command.execute(parser);
-    }
-
     private void deletExitingLinkLocalRoutTable(String linkLocalBr) {
         Script command = new Script("/bin/bash", _timeout);
         command.add("-c");
@@ -4107,80 +4075,6 @@ public class LibvirtComputingResource extends ServerResourceBase implements
         }
     }
 
-    private class vmStats {
-        long _usedTime;
-        long _tx;
-        long _rx;
-        Calendar _timestamp;
-    }
-
-    private VmStatsEntry getVmStat(Connect conn, String vmName)
-            throws LibvirtException {
-        Domain dm = null;
-        try {
-            dm = getDomain(conn, vmName);
-            DomainInfo info = dm.getInfo();
-
-            VmStatsEntry stats = new VmStatsEntry();
-            stats.setNumCPUs(info.nrVirtCpu);
-            stats.setEntityType("vm");
-
-            /* get cpu utilization */
-            vmStats oldStats = null;
-
-            Calendar now = Calendar.getInstance();
-
-            oldStats = _vmStats.get(vmName);
-
-            long elapsedTime = 0;
-            if (oldStats != null) {
-                elapsedTime = now.getTimeInMillis()
-                        - oldStats._timestamp.getTimeInMillis();
-                double utilization = (info.cpuTime - oldStats._usedTime)
-                        / ((double) elapsedTime * 1000000);
-
-                NodeInfo node = conn.nodeInfo();
-                utilization = utilization / node.cpus;
-                if(utilization > 0){
-                	stats.setCPUUtilization(utilization * 100);
-                }
-            }
-
-            /* get network stats */
-
-            List<InterfaceDef> vifs = getInterfaces(conn, vmName);
-            long rx = 0;
-            long tx = 0;
-            for (InterfaceDef vif : vifs) {
-                DomainInterfaceStats ifStats = dm.interfaceStats(vif
-                        .getDevName());
-                rx += ifStats.rx_bytes;
-                tx += ifStats.tx_bytes;
-            }
-
-            if (oldStats != null) {
-                long deltarx = rx - oldStats._rx;
-                if (deltarx > 0)
-                    stats.setNetworkReadKBs(deltarx / 1000);
-                long deltatx = tx - oldStats._tx;
-                if (deltatx > 0)
-                    stats.setNetworkWriteKBs(deltatx / 1000);
-            }
-
-            vmStats newStat = new vmStats();
-            newStat._usedTime = info.cpuTime;
-            newStat._rx = rx;
-            newStat._tx = tx;
-            newStat._timestamp = now;
-            _vmStats.put(vmName, newStat);
-            return stats;
-        } finally {
-            if (dm != null) {
-                dm.free();
-            }
-        }
-    }
-
     private boolean can_bridge_firewall(String prvNic) {
         Script cmd = new Script(_securityGroupPath, _timeout, s_logger);
         cmd.add("can_bridge_firewall");
@@ -4384,23 +4278,8 @@ public class LibvirtComputingResource extends ServerResourceBase implements
     }
 
     private Pair<Double, Double> getNicStats(String nicName) {
-        double rx = 0.0;
-        OutputInterpreter.OneLineParser rxParser = new OutputInterpreter.OneLineParser();
-        String result = executeBashScript("cat /sys/class/net/" + nicName
-                + "/statistics/rx_bytes", rxParser);
-        if (result == null && rxParser.getLine() != null) {
-            rx = Double.parseDouble(rxParser.getLine());
-        }
-
-        double tx = 0.0;
-        OutputInterpreter.OneLineParser txParser = new OutputInterpreter.OneLineParser();
-        result = executeBashScript("cat /sys/class/net/" + nicName
-                + "/statistics/tx_bytes", txParser);
-        if (result == null && txParser.getLine() != null) {
-            tx = Double.parseDouble(txParser.getLine());
-        }
-
-        return new Pair<Double, Double>(rx, tx);
+        double[] stats = KVMHostStats.getNicStats(nicName);
+        return new Pair<Double, Double>(stats[0], stats[1]);
     }
 
     private Answer execute(NetworkRulesSystemVmCommand cmd) {
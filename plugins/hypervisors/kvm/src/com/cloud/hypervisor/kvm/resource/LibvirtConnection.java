@@ -26,7 +26,7 @@ public class LibvirtConnection {
     static private Connect _connection;
     static private String _hypervisorURI;
 
-    static public Connect getConnection() throws LibvirtException {
+    static synchronized public Connect getConnection() throws LibvirtException {
         if (_connection == null) {
             _connection = new Connect(_hypervisorURI, false);
         } else {
@@ -0,0 +1,245 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.DomainInfo;
+import org.libvirt.DomainInterfaceStats;
+import org.libvirt.LibvirtException;
+
+import com.cloud.agent.api.VmStatsEntry;
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.InterfaceDef;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Samples all running domains in one pass and keeps the result as a snapshot, so that
+ * GetVmStatsCommand is answered from memory.  Domain handles and vif names are cached by
+ * domain id and only looked up again when a domain shows up for the first time or has
+ * been invalidated (nic plug/unplug).  With an interval of 0 no thread is started and
+ * each request samples on the calling thread.
+ */
+public class LibvirtStatsSampler implements Runnable {
+    private static final Logger s_logger = Logger.getLogger(LibvirtStatsSampler.class);
+
+    private static class DomainEntry {
+        final Domain _domain;
+        final String _name;
+        final String[] _vifs;
+        long _cpuTime;
+        long _timestamp;
+
+        DomainEntry(Domain domain, String name, String[] vifs) {
+            _domain = domain;
+            _name = name;
+            _vifs = vifs;
+        }
+    }
+
+    private static class DomainSample {
+        int _numCpus;
+        double _cpuUtilization;
+        long _rx;
+        long _tx;
+    }
+
+    private final Map<Integer, DomainEntry> _domains = new HashMap<Integer, DomainEntry>();
+    private volatile Map<String, DomainSample> _snapshot = new HashMap<String, DomainSample>();
+    private final Map<String, long[]> _reported = new ConcurrentHashMap<String, long[]>(); // rx/tx at the last answer
+    private final Map<String, Boolean> _invalidated = new ConcurrentHashMap<String, Boolean>();
+    private ScheduledExecutorService _executor;
+    private volatile int _interval;
+
+    public synchronized void start(int intervalSeconds) {
+        _interval = intervalSeconds;
+        if (_interval > 0 && _executor == null) {
+            _executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("LibvirtStatsSampler"));
+            _executor.scheduleWithFixedDelay(this, 0, _interval, TimeUnit.SECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (_executor != null) {
+            _executor.shutdownNow();
+            _executor = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            sample();
+        } catch (Throwable th) {
+            s_logger.warn("Unable to sample vm stats", th);
+        }
+    }
+
+    /**
+     * @return stats of the named vms that were running at the last sample; the network figures
+     *         are the KB transferred since the previous answer for the same vm.
+     */
+    public Map<String, VmStatsEntry> getVmStats(List<String> vmNames) throws LibvirtException {
+        if (_interval <= 0) {
+            sample();
+        }
+
+        Map<String, DomainSample> snapshot = _snapshot;
+        HashMap<String, VmStatsEntry> vmStats = new HashMap<String, VmStatsEntry>();
+        for (String vmName : vmNames) {
+            DomainSample sample = snapshot.get(vmName);
+            if (sample == null) {
+                continue;
+            }
+
+            VmStatsEntry stats = new VmStatsEntry();
+            stats.setNumCPUs(sample._numCpus);
+            stats.setEntityType("vm");
+            if (sample._cpuUtilization > 0) {
+                stats.setCPUUtilization(sample._cpuUtilization);
+            }
+
+            long[] reported = _reported.put(vmName, new long[] { sample._rx, sample._tx });
+            if (reported != null) {
+                long deltarx = sample._rx - reported[0];
+                if (deltarx > 0) {
+                    stats.setNetworkReadKBs(deltarx / 1000);
+                }
+                long deltatx = sample._tx - reported[1];
+                if (deltatx > 0) {
+                    stats.setNetworkWriteKBs(deltatx / 1000);
+                }
+            }
+            vmStats.put(vmName, stats);
+        }
+        return vmStats;
+    }
+
+    /**
+     * Drops the cached handle and vif names of a vm, to be called when its devices change.
+     */
+    public void invalidate(String vmName) {
+        _invalidated.put(vmName, Boolean.TRUE);
+    }
+
+    /**
+     * Drops everything known about a vm that has been stopped or migrated away.
+     */
+    public void forget(String vmName) {
+        invalidate(vmName);
+        _reported.remove(vmName);
+    }
+
+    protected synchronized void sample() throws LibvirtException {
+        Connect conn = LibvirtConnection.getConnection();
+        int[] ids = conn.listDomains();
+        int cpus = conn.nodeInfo().cpus;
+        long now = System.currentTimeMillis();
+
+        HashMap<Integer, DomainEntry> running = new HashMap<Integer, DomainEntry>(ids.length * 2);
+        for (int id : ids) {
+            DomainEntry entry = _domains.remove(id);
+            if (entry != null && _invalidated.remove(entry._name) != null) {
+                free(entry);
+                entry = null;
+            }
+            if (entry == null) {
+                try {
+                    entry = lookup(conn, id);
+                } catch (LibvirtException e) {
+                    // the domain went away between listDomains and the lookup
+                    continue;
+                }
+            }
+            running.put(id, entry);
+        }
+
+        // whatever is left has stopped since the last cycle
+        for (DomainEntry entry : _domains.values()) {
+            free(entry);
+        }
+        _domains.clear();
+
+        HashMap<String, DomainSample> snapshot = new HashMap<String, DomainSample>(running.size() * 2);
+        for (Iterator<Map.Entry<Integer, DomainEntry>> it = running.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Integer, DomainEntry> e = it.next();
+            DomainEntry entry = e.getValue();
+            try {
+                DomainInfo info = entry._domain.getInfo();
+
+                DomainSample sample = new DomainSample();
+                sample._numCpus = info.nrVirtCpu;
+                if (entry._timestamp != 0 && now > entry._timestamp) {
+                    double utilization = (info.cpuTime - entry._cpuTime) / ((double) (now - entry._timestamp) * 1000000);
+                    sample._cpuUtilization = utilization / cpus * 100;
+                }
+                entry._cpuTime = info.cpuTime;
+                entry._timestamp = now;
+
+                for (String vif : entry._vifs) {
+                    DomainInterfaceStats ifStats = entry._domain.interfaceStats(vif);
+                    sample._rx += ifStats.rx_bytes;
+                    sample._tx += ifStats.tx_bytes;
+                }
+                snapshot.put(entry._name, sample);
+            } catch (LibvirtException ex) {
+                s_logger.debug("Unable to get stats of " + entry._name + ", will look it up again: " + ex.getMessage());
+                free(entry);
+                it.remove();
+            }
+        }
+
+        _domains.putAll(running);
+        _snapshot = snapshot;
+    }
+
+    private DomainEntry lookup(Connect conn, int id) throws LibvirtException {
+        Domain dm = conn.domainLookupByID(id);
+        try {
+            String name = dm.getName();
+            _invalidated.remove(name);
+
+            LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
+            parser.parseDomainXML(dm.getXMLDesc(0));
+            List<InterfaceDef> ifaces = parser.getInterfaces();
+            String[] vifs = new String[ifaces.size()];
+            for (int i = 0; i < vifs.length; i++) {
+                vifs[i] = ifaces.get(i).getDevName();
+            }
+            return new DomainEntry(dm, name, vifs);
+        } catch (LibvirtException e) {
+            dm.free();
+            throw e;
+        }
+    }
+
+    private void free(DomainEntry entry) {
+        try {
+            entry._domain.free();
+        } catch (LibvirtException e) {
+        }
+    }
+}
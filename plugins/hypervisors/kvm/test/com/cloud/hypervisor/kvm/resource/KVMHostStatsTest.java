@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.cloud.hypervisor.kvm.resource;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class KVMHostStatsTest extends TestCase {
+    private File _proc;
+
+    @Override
+    protected void setUp() throws Exception {
+        _proc = File.createTempFile("proc", "");
+        _proc.delete();
+        _proc.mkdir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File f : _proc.listFiles()) {
+            f.delete();
+        }
+        _proc.delete();
+    }
+
+    private void write(String name, String content) throws IOException {
+        FileWriter writer = new FileWriter(new File(_proc, name));
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    public void testCpuUtilizationBetweenCalls() throws Exception {
+        KVMHostStats stats = new KVMHostStats(_proc.getPath());
+
+        write("stat", "cpu  100 0 100 800 0 0 0 0 0 0\ncpu0 100 0 100 800 0 0 0 0 0 0\n");
+        assertEquals(20.0, stats.getCpuUtilization(), 0.001);
+
+        write("stat", "cpu  150 0 150 900 0 0 0 0 0 0\ncpu0 150 0 150 900 0 0 0 0 0 0\n");
+        assertEquals(50.0, stats.getCpuUtilization(), 0.001);
+
+        assertEquals(0.0, stats.getCpuUtilization(), 0.001);
+    }
+
+    public void testMemoryCountsCacheAsFree() throws Exception {
+        write("meminfo", "MemTotal:        8063904 kB\nMemFree:         1000000 kB\nBuffers:          200000 kB\n"
+                + "Cached:          3000000 kB\nSwapCached:            0 kB\n");
+
+        long[] mem = new KVMHostStats(_proc.getPath()).getMemory();
+        assertEquals(8063904, mem[0]);
+        assertEquals(4200000, mem[1]);
+    }
+}
@@ -23,14 +23,12 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.StringReader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -45,14 +43,9 @@ import java.util.UUID;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
-import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.apache.log4j.Logger;
 import org.apache.xmlrpc.XmlRpcException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 
 import com.cloud.agent.IAgentControl;
 import com.cloud.agent.api.Answer;
@@ -297,6 +290,16 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
     // Guest and Host Performance Statistics
     protected String _consolidationFunction = "AVERAGE";
     protected int _pollingIntervalInSeconds = 60;
+    protected boolean _rrdDeltaEnabled = true;
+    protected final RrdUpdatesParser _hostRrdParser = new RrdUpdatesParser();
+    protected final RrdUpdatesParser _vmRrdParser = new RrdUpdatesParser();
+
+    static final RrdUpdatesParser.ColumnFilter s_hostRrdColumns = new RrdUpdatesParser.ColumnFilter() {
+        @Override
+        public boolean accept(String type, String uuid, String param) {
+            return type.equalsIgnoreCase("host") && (param.contains("cpu") || param.contains("pif_eth0_") || param.contains("memory_"));
+        }
+    };
 
     //Hypervisor specific params with generic value, may need to be overridden for specific versions
     long _xs_memory_used = 128 * 1024 * 1024L; // xen hypervisor used 128 M
@@ -2104,78 +2107,36 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
     protected HostStatsEntry getHostStats(Connection conn, GetHostStatsCommand cmd, String hostGuid, long hostId) {
 
         HostStatsEntry hostStats = new HostStatsEntry(hostId, 0, 0, 0, "host", 0, 0, 0, 0);
-        Object[] rrdData = getRRDData(conn, 1); // call rrd method with 1 for host
-
-        if (rrdData == null) {
-            return null;
-        }
-
-        Integer numRows = (Integer) rrdData[0];
-        Integer numColumns = (Integer) rrdData[1];
-        Node legend = (Node) rrdData[2];
-        Node dataNode = (Node) rrdData[3];
-
-        NodeList legendChildren = legend.getChildNodes();
-        for (int col = 0; col < numColumns; col++) {
-
-            if (legendChildren == null || legendChildren.item(col) == null) {
-                continue;
-            }
-
-            String columnMetadata = getXMLNodeValue(legendChildren.item(col));
-
-            if (columnMetadata == null) {
-                continue;
-            }
-
-            String[] columnMetadataList = columnMetadata.split(":");
-
-            if (columnMetadataList.length != 4) {
-                continue;
+        synchronized (_hostRrdParser) {
+            if (!parseRrdUpdates(conn, _hostRrdParser, true, s_hostRrdColumns)) {
+                return null;
             }
 
-            String type = columnMetadataList[1];
-            String param = columnMetadataList[3];
-
-            if (type.equalsIgnoreCase("host")) {
+            for (int col = 0; col < _hostRrdParser.getColumnCount(); col++) {
+                String param = _hostRrdParser.getParam(col);
 
                 if (param.contains("pif_eth0_rx")) {
-                    hostStats.setNetworkReadKBs(getDataAverage(dataNode, col, numRows));
+                    hostStats.setNetworkReadKBs(_hostRrdParser.getAverage(col));
                 }
 
                 if (param.contains("pif_eth0_tx")) {
-                    hostStats.setNetworkWriteKBs(getDataAverage(dataNode, col, numRows));
+                    hostStats.setNetworkWriteKBs(_hostRrdParser.getAverage(col));
                 }
 
                 if (param.contains("memory_total_kib")) {
-                    hostStats.setTotalMemoryKBs(getDataAverage(dataNode, col, numRows));
+                    hostStats.setTotalMemoryKBs(_hostRrdParser.getAverage(col));
                 }
 
                 if (param.contains("memory_free_kib")) {
-                    hostStats.setFreeMemoryKBs(getDataAverage(dataNode, col, numRows));
+                    hostStats.setFreeMemoryKBs(_hostRrdParser.getAverage(col));
                 }
 
                 if (param.contains("cpu")) {
-                    // hostStats.setNumCpus(hostStats.getNumCpus() + 1);
-                    hostStats.setCpuUtilization(hostStats.getCpuUtilization() + getDataAverage(dataNode, col, numRows));
+                    hostStats.setCpuUtilization(hostStats.getCpuUtilization() + _hostRrdParser.getAverage(col));
                 }
-
-                /*
-                if (param.contains("loadavg")) {
-                    hostStats.setAverageLoad((hostStats.getAverageLoad() + getDataAverage(dataNode, col, numRows)));
-                }
-                 */
             }
         }
 
-        // add the host cpu utilization
-        /*
-        if (hostStats.getNumCpus() != 0) {
-            hostStats.setCpuUtilization(hostStats.getCpuUtilization() / hostStats.getNumCpus());
-            s_logger.debug("Host cpu utilization " + hostStats.getCpuUtilization());
-        }
-         */
-
         return hostStats;
     }
 
@@ -2218,61 +2179,37 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
     }
 
     protected HashMap<String, VmStatsEntry> getVmStats(Connection conn, GetVmStatsCommand cmd, List<String> vmUUIDs, String hostGuid) {
-        HashMap<String, VmStatsEntry> vmResponseMap = new HashMap<String, VmStatsEntry>();
+        final HashMap<String, VmStatsEntry> vmResponseMap = new HashMap<String, VmStatsEntry>();
 
         for (String vmUUID : vmUUIDs) {
             vmResponseMap.put(vmUUID, new VmStatsEntry(0, 0, 0, 0, "vm"));
         }
 
-        Object[] rrdData = getRRDData(conn, 2); // call rrddata with 2 for vm
-
-        if (rrdData == null) {
-            return null;
-        }
-
-        Integer numRows = (Integer) rrdData[0];
-        Integer numColumns = (Integer) rrdData[1];
-        Node legend = (Node) rrdData[2];
-        Node dataNode = (Node) rrdData[3];
-
-        NodeList legendChildren = legend.getChildNodes();
-        for (int col = 0; col < numColumns; col++) {
-
-            if (legendChildren == null || legendChildren.item(col) == null) {
-                continue;
-            }
-
-            String columnMetadata = getXMLNodeValue(legendChildren.item(col));
-
-            if (columnMetadata == null) {
-                continue;
+        RrdUpdatesParser.ColumnFilter filter = new RrdUpdatesParser.ColumnFilter() {
+            @Override
+            public boolean accept(String type, String uuid, String param) {
+                return type.equals("vm") && vmResponseMap.containsKey(uuid) && (param.contains("cpu") || param.startsWith("vif_"));
             }
+        };
 
-            String[] columnMetadataList = columnMetadata.split(":");
-
-            if (columnMetadataList.length != 4) {
-                continue;
+        synchronized (_vmRrdParser) {
+            if (!parseRrdUpdates(conn, _vmRrdParser, false, filter)) {
+                return null;
             }
 
-            String type = columnMetadataList[1];
-            String uuid = columnMetadataList[2];
-            String param = columnMetadataList[3];
-
-            if (type.equals("vm") && vmResponseMap.keySet().contains(uuid)) {
-                VmStatsEntry vmStatsAnswer = vmResponseMap.get(uuid);
-
-                vmStatsAnswer.setEntityType("vm");
+            for (int col = 0; col < _vmRrdParser.getColumnCount(); col++) {
+                VmStatsEntry vmStatsAnswer = vmResponseMap.get(_vmRrdParser.getUuid(col));
+                String param = _vmRrdParser.getParam(col);
 
                 if (param.contains("cpu")) {
                     vmStatsAnswer.setNumCPUs(vmStatsAnswer.getNumCPUs() + 1);
-                    vmStatsAnswer.setCPUUtilization(((vmStatsAnswer.getCPUUtilization() + getDataAverage(dataNode, col, numRows))));
+                    vmStatsAnswer.setCPUUtilization(vmStatsAnswer.getCPUUtilization() + _vmRrdParser.getAverage(col));
                 } else if (param.matches("vif_\\d_rx")) {
-                    vmStatsAnswer.setNetworkReadKBs(vmStatsAnswer.getNetworkReadKBs() + (getDataAverage(dataNode, col, numRows)/(8*2)));
+                    vmStatsAnswer.setNetworkReadKBs(vmStatsAnswer.getNetworkReadKBs() + (_vmRrdParser.getAverage(col)/(8*2)));
                 } else if (param.matches("vif_\\d_tx")) {
-                    vmStatsAnswer.setNetworkWriteKBs(vmStatsAnswer.getNetworkWriteKBs() + (getDataAverage(dataNode, col, numRows)/(8*2)));
+                    vmStatsAnswer.setNetworkWriteKBs(vmStatsAnswer.getNetworkWriteKBs() + (_vmRrdParser.getAverage(col)/(8*2)));
                 }
             }
-
         }
 
         for (String vmUUID : vmResponseMap.keySet()) {
@@ -2291,128 +2228,50 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         return vmResponseMap;
     }
 
-    protected Object[] getRRDData(Connection conn, int flag) {
-
-        /*
-         * Note: 1 => called from host, hence host stats 2 => called from vm, hence vm stats
-         */
-        String stats = "";
+    /**
+     * Fetches rrd_updates from the host and runs it through the parser.  In delta mode only the
+     * rows since the end of the previous document are requested (the last row of that document is
+     * included again so a poll that is faster than the step still sees a value); the first poll,
+     * or one that follows a long gap, asks the plugin for its default window.
+     *
+     * @return false if the stats could not be collected or parsed
+     */
+    protected boolean parseRrdUpdates(Connection conn, RrdUpdatesParser parser, boolean hostStats, RrdUpdatesParser.ColumnFilter filter) {
+        String startTime = "0";
+        if (_rrdDeltaEnabled && parser.getEnd() > 0
+                && System.currentTimeMillis() - parser.getParsedAt() < _pollingIntervalInSeconds * 1000L * 10) {
+            startTime = String.valueOf(parser.getEnd() - _pollingIntervalInSeconds);
+        }
 
+        String stats;
         try {
-            if (flag == 1) {
-                stats = getHostStatsRawXML(conn);
-            }
-            if (flag == 2) {
-                stats = getVmStatsRawXML(conn);
-            }
+            stats = hostStats ? getHostStatsRawXML(conn, startTime) : getVmStatsRawXML(conn, startTime);
         } catch (Exception e1) {
             s_logger.warn("Error whilst collecting raw stats from plugin: ", e1);
-            return null;
+            return false;
         }
 
-        // s_logger.debug("The raw xml stream is:"+stats);
-        // s_logger.debug("Length of raw xml is:"+stats.length());
-
         //stats are null when the host plugin call fails (host down state)
-        if(stats == null) {
-            return null;
+        if (stats == null) {
+            return false;
         }
 
-        StringReader statsReader = new StringReader(stats);
-        InputSource statsSource = new InputSource(statsReader);
-
-        Document doc = null;
         try {
-            doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(statsSource);
+            parser.parse(stats, filter);
         } catch (Exception e) {
-            s_logger.warn("Exception caught whilst processing the document via document factory:", e);
-            return null;
-        }
-
-        if(doc==null){
-            s_logger.warn("Null document found after tryinh to parse the stats source");
-            return null;
-        }
-
-        NodeList firstLevelChildren = doc.getChildNodes();
-        NodeList secondLevelChildren = (firstLevelChildren.item(0)).getChildNodes();
-        Node metaNode = secondLevelChildren.item(0);
-        Node dataNode = secondLevelChildren.item(1);
-
-        Integer numRows = 0;
-        Integer numColumns = 0;
-        Node legend = null;
-        NodeList metaNodeChildren = metaNode.getChildNodes();
-        for (int i = 0; i < metaNodeChildren.getLength(); i++) {
-            Node n = metaNodeChildren.item(i);
-            if (n.getNodeName().equals("rows")) {
-                numRows = Integer.valueOf(getXMLNodeValue(n));
-            } else if (n.getNodeName().equals("columns")) {
-                numColumns = Integer.valueOf(getXMLNodeValue(n));
-            } else if (n.getNodeName().equals("legend")) {
-                legend = n;
-            }
-        }
-
-        return new Object[] { numRows, numColumns, legend, dataNode };
-    }
-
-    protected String getXMLNodeValue(Node n) {
-        return n.getChildNodes().item(0).getNodeValue();
-    }
-
-    protected double getDataAverage(Node dataNode, int col, int numRows) {
-        double value = 0;
-        double dummy = 0;
-        int numRowsUsed = 0;
-        for (int row = 0; row < numRows; row++) {
-            Node data = dataNode.getChildNodes().item(numRows - 1 - row).getChildNodes().item(col + 1);
-            Double currentDataAsDouble = Double.valueOf(getXMLNodeValue(data));
-            if (!currentDataAsDouble.equals(Double.NaN)) {
-                numRowsUsed += 1;
-                value += currentDataAsDouble;
-            }
-        }
-
-        if(numRowsUsed == 0)
-        {
-            if((!Double.isInfinite(value))&&(!Double.isNaN(value)))
-            {
-                return value;
-            }
-            else
-            {
-                s_logger.warn("Found an invalid value (infinity/NaN) in getDataAverage(), numRows=0");
-                return dummy;
-            }
-        }
-        else
-        {
-            if((!Double.isInfinite(value/numRowsUsed))&&(!Double.isNaN(value/numRowsUsed)))
-            {
-                return (value/numRowsUsed);
-            }
-            else
-            {
-                s_logger.warn("Found an invalid value (infinity/NaN) in getDataAverage(), numRows>0");
-                return dummy;
-            }
+            parser.reset();
+            s_logger.warn("Exception caught whilst parsing the rrd_updates stream:", e);
+            return false;
         }
-
+        return true;
     }
 
-    protected String getHostStatsRawXML(Connection conn) {
-        Date currentDate = new Date();
-        String startTime = String.valueOf(currentDate.getTime() / 1000 - 1000);
-
+    protected String getHostStatsRawXML(Connection conn, String startTime) {
         return callHostPlugin(conn, "vmops", "gethostvmstats", "collectHostStats", String.valueOf("true"), "consolidationFunction", _consolidationFunction, "interval", String
                 .valueOf(_pollingIntervalInSeconds), "startTime", startTime);
     }
 
-    protected String getVmStatsRawXML(Connection conn) {
-        Date currentDate = new Date();
-        String startTime = String.valueOf(currentDate.getTime() / 1000 - 1000);
-
+    protected String getVmStatsRawXML(Connection conn, String startTime) {
         return callHostPlugin(conn, "vmops", "gethostvmstats", "collectHostStats", String.valueOf("false"), "consolidationFunction", _consolidationFunction, "interval", String
                 .valueOf(_pollingIntervalInSeconds), "startTime", startTime);
     }
@@ -5497,6 +5356,11 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
 
         _heartbeatInterval = NumbersUtil.parseInt((String) params.get("xen.heartbeat.interval"), 60);
 
+        String rrdDelta = (String) params.get("xen.stats.delta");
+        if (rrdDelta != null) {
+            _rrdDeltaEnabled = Boolean.parseBoolean(rrdDelta);
+        }
+
         String value = (String) params.get("wait");
         _wait = NumbersUtil.parseInt(value, 600);
 
@@ -0,0 +1,209 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the 
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.xen.resource;
+
+import java.io.StringReader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Streaming reader for the rrd_updates document returned by the gethostvmstats plugin.
+ * The legend is matched against a ColumnFilter as it is read, and the values of the
+ * selected columns are summed straight into primitive arrays, so the document is never
+ * held in memory.  The arrays are kept between calls; an instance is not thread safe.
+ */
+public class RrdUpdatesParser {
+    private static final Logger s_logger = Logger.getLogger(RrdUpdatesParser.class);
+
+    private static final XMLInputFactory s_factory = XMLInputFactory.newInstance();
+
+    public interface ColumnFilter {
+        /**
+         * @return true if the column described by the legend entry "cf:type:uuid:param" should be aggregated
+         */
+        boolean accept(String type, String uuid, String param);
+    }
+
+    private int[] _slots = new int[64]; // legend column => selected column, or -1
+    private int _legendColumns;
+
+    private String[] _types = new String[16];
+    private String[] _uuids = new String[16];
+    private String[] _params = new String[16];
+    private double[] _sums = new double[16];
+    private int[] _counts = new int[16];
+    private int _columns;
+
+    private int _rows;
+    private long _end;
+    private long _parsedAt;
+
+    public void parse(String xml, ColumnFilter filter) throws XMLStreamException {
+        reset();
+
+        XMLStreamReader reader = s_factory.createXMLStreamReader(new StringReader(xml));
+        try {
+            int column = 0;
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+
+                String name = reader.getLocalName();
+                if (name.equals("v")) {
+                    String text = reader.getElementText();
+                    if (column < _legendColumns && _slots[column] >= 0) {
+                        addValue(_slots[column], text);
+                    }
+                    column++;
+                } else if (name.equals("row")) {
+                    column = 0;
+                    _rows++;
+                } else if (name.equals("entry")) {
+                    addLegendEntry(reader.getElementText(), filter);
+                } else if (name.equals("end")) {
+                    _end = Long.parseLong(reader.getElementText().trim());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        _parsedAt = System.currentTimeMillis();
+    }
+
+    public void reset() {
+        _legendColumns = 0;
+        _columns = 0;
+        _rows = 0;
+        _end = 0;
+        _parsedAt = 0;
+    }
+
+    /**
+     * @return number of columns accepted by the filter in the last parse.
+     */
+    public int getColumnCount() {
+        return _columns;
+    }
+
+    public String getType(int column) {
+        return _types[column];
+    }
+
+    public String getUuid(int column) {
+        return _uuids[column];
+    }
+
+    public String getParam(int column) {
+        return _params[column];
+    }
+
+    /**
+     * @return average of the values of the column that are not NaN, or 0 if there is none.
+     */
+    public double getAverage(int column) {
+        if (_counts[column] == 0) {
+            return 0;
+        }
+
+        double average = _sums[column] / _counts[column];
+        if (Double.isInfinite(average) || Double.isNaN(average)) {
+            s_logger.warn("Found an invalid value (infinity/NaN) for " + _types[column] + ":" + _uuids[column] + ":" + _params[column]);
+            return 0;
+        }
+        return average;
+    }
+
+    public int getRowCount() {
+        return _rows;
+    }
+
+    /**
+     * @return the end time, in seconds on the host clock, of the last document parsed, or 0.
+     */
+    public long getEnd() {
+        return _end;
+    }
+
+    /**
+     * @return the local time, in milliseconds, at which the last document was parsed, or 0.
+     */
+    public long getParsedAt() {
+        return _parsedAt;
+    }
+
+    private void addLegendEntry(String entry, ColumnFilter filter) {
+        if (_legendColumns == _slots.length) {
+            int[] slots = new int[_slots.length * 2];
+            System.arraycopy(_slots, 0, slots, 0, _legendColumns);
+            _slots = slots;
+        }
+
+        int slot = -1;
+        String[] metadata = entry.split(":");
+        if (metadata.length == 4 && filter.accept(metadata[1], metadata[2], metadata[3])) {
+            if (_columns == _sums.length) {
+                grow(_columns * 2);
+            }
+            slot = _columns++;
+            _types[slot] = metadata[1];
+            _uuids[slot] = metadata[2];
+            _params[slot] = metadata[3];
+            _sums[slot] = 0;
+            _counts[slot] = 0;
+        }
+        _slots[_legendColumns++] = slot;
+    }
+
+    private void addValue(int slot, String text) {
+        double value;
+        try {
+            value = Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            return;
+        }
+
+        if (!Double.isNaN(value)) {
+            _sums[slot] += value;
+            _counts[slot]++;
+        }
+    }
+
+    private void grow(int size) {
+        String[] types = new String[size];
+        String[] uuids = new String[size];
+        String[] params = new String[size];
+        double[] sums = new double[size];
+        int[] counts = new int[size];
+        System.arraycopy(_types, 0, types, 0, _columns);
+        System.arraycopy(_uuids, 0, uuids, 0, _columns);
+        System.arraycopy(_params, 0, params, 0, _columns);
+        System.arraycopy(_sums, 0, sums, 0, _columns);
+        System.arraycopy(_counts, 0, counts, 0, _columns);
+        _types = types;
+        _uuids = uuids;
+        _params = params;
+        _sums = sums;
+        _counts = counts;
+    }
+}
@@ -0,0 +1,150 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.xen.resource;
+
+import java.io.StringReader;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+public class RrdUpdatesParserTest extends TestCase {
+    private static final String HOST = "0e2ca2e0-0a4b-4d4c-8b2c-1c2a8d5e9f31";
+    private static final String VM = "7b3a4d1e-5f6a-4c8b-9d0e-2f1a3b4c5d6e";
+
+    // rrd_updates as returned by gethostvmstats with the default window, newest row first
+    private static final String FULL =
+        "<xport><meta><start>1360000000</start><step>60</step><end>1360000240</end><rows>5</rows><columns>6</columns>"
+        + "<legend>"
+        + "<entry>AVERAGE:host:" + HOST + ":cpu0</entry>"
+        + "<entry>AVERAGE:host:" + HOST + ":memory_free_kib</entry>"
+        + "<entry>AVERAGE:host:" + HOST + ":pif_eth0_rx</entry>"
+        + "<entry>AVERAGE:vm:" + VM + ":cpu0</entry>"
+        + "<entry>AVERAGE:vm:" + VM + ":vif_0_rx</entry>"
+        + "<entry>AVERAGE:vm:" + VM + ":memory</entry>"
+        + "</legend></meta><data>"
+        + "<row><t>1360000240</t><v>0.0512</v><v>3.9521E6</v><v>2048.5</v><v>0.0213</v><v>1024.0</v><v>5.36870912E8</v></row>"
+        + "<row><t>1360000180</t><v>0.0487</v><v>3.9518E6</v><v>NaN</v><v>0.0198</v><v>896.25</v><v>5.36870912E8</v></row>"
+        + "<row><t>1360000120</t><v>0.1033</v><v>3.9507E6</v><v>1536.0</v><v>NaN</v><v>768.5</v><v>5.36870912E8</v></row>"
+        + "<row><t>1360000060</t><v>0.0421</v><v>3.9524E6</v><v>1792.75</v><v>0.0342</v><v>640.0</v><v>5.36870912E8</v></row>"
+        + "<row><t>1360000000</t><v>0.0399</v><v>3.9530E6</v><v>1280.0</v><v>0.0175</v><v>512.0</v><v>5.36870912E8</v></row>"
+        + "</data></xport>";
+
+    // the next poll with startTime set to the end of the previous document less one step
+    private static final String DELTA =
+        "<xport><meta><start>1360000180</start><step>60</step><end>1360000300</end><rows>2</rows><columns>6</columns>"
+        + "<legend>"
+        + "<entry>AVERAGE:host:" + HOST + ":cpu0</entry>"
+        + "<entry>AVERAGE:host:" + HOST + ":memory_free_kib</entry>"
+        + "<entry>AVERAGE:host:" + HOST + ":pif_eth0_rx</entry>"
+        + "<entry>AVERAGE:vm:" + VM + ":cpu0</entry>"
+        + "<entry>AVERAGE:vm:" + VM + ":vif_0_rx</entry>"
+        + "<entry>AVERAGE:vm:" + VM + ":memory</entry>"
+        + "</legend></meta><data>"
+        + "<row><t>1360000300</t><v>0.0623</v><v>3.9498E6</v><v>NaN</v><v>0.0251</v><v>1152.5</v><v>5.36870912E8</v></row>"
+        + "<row><t>1360000240</t><v>0.0512</v><v>3.9521E6</v><v>NaN</v><v>0.0213</v><v>1024.0</v><v>5.36870912E8</v></row>"
+        + "</data></xport>";
+
+    private static final RrdUpdatesParser.ColumnFilter VM_COLUMNS = new RrdUpdatesParser.ColumnFilter() {
+        @Override
+        public boolean accept(String type, String uuid, String param) {
+            return type.equals("vm") && uuid.equals(VM) && (param.contains("cpu") || param.startsWith("vif_"));
+        }
+    };
+
+    public void testFullDocument() throws Exception {
+        RrdUpdatesParser parser = new RrdUpdatesParser();
+        parser.parse(FULL, CitrixResourceBase.s_hostRrdColumns);
+
+        assertEquals(5, parser.getRowCount());
+        assertEquals(1360000240L, parser.getEnd());
+        assertTrue(parser.getParsedAt() > 0);
+        assertEquals(3, parser.getColumnCount());
+        assertColumn(parser, 0, "host", "cpu0");
+        assertColumn(parser, 1, "host", "memory_free_kib");
+        assertColumn(parser, 2, "host", "pif_eth0_rx");
+        assertAveragesAsBefore(FULL, parser, 0, 1, 2);
+        assertEquals((2048.5 + 1536.0 + 1792.75 + 1280.0) / 4, parser.getAverage(2), 0.0);
+    }
+
+    public void testDeltaDocument() throws Exception {
+        RrdUpdatesParser parser = new RrdUpdatesParser();
+        parser.parse(FULL, VM_COLUMNS);
+        assertEquals(2, parser.getColumnCount());
+        assertAveragesAsBefore(FULL, parser, 3, 4);
+
+        // the parser is reused for the next poll, nothing of the previous document is left
+        parser.parse(DELTA, VM_COLUMNS);
+        assertEquals(2, parser.getRowCount());
+        assertEquals(1360000300L, parser.getEnd());
+        assertEquals(2, parser.getColumnCount());
+        assertColumn(parser, 0, "vm", "cpu0");
+        assertColumn(parser, 1, "vm", "vif_0_rx");
+        assertAveragesAsBefore(DELTA, parser, 3, 4);
+        assertEquals((1152.5 + 1024.0) / 2, parser.getAverage(1), 0.0);
+
+        parser.parse(DELTA, CitrixResourceBase.s_hostRrdColumns);
+        assertEquals(0.0, parser.getAverage(2), 0.0);
+    }
+
+    private static void assertColumn(RrdUpdatesParser parser, int column, String type, String param) {
+        assertEquals(type, parser.getType(column));
+        assertEquals(type.equals("host") ? HOST : VM, parser.getUuid(column));
+        assertEquals(param, parser.getParam(column));
+    }
+
+    /**
+     * Compares the columns of the parser with the averages the DOM based getDataAverage() used to compute
+     * for the same legend columns.
+     */
+    private static void assertAveragesAsBefore(String xml, RrdUpdatesParser parser, int... legendColumns) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+        Node metaNode = doc.getChildNodes().item(0).getChildNodes().item(0);
+        Node dataNode = doc.getChildNodes().item(0).getChildNodes().item(1);
+        int numRows = 0;
+        NodeList metaNodeChildren = metaNode.getChildNodes();
+        for (int i = 0; i < metaNodeChildren.getLength(); i++) {
+            Node n = metaNodeChildren.item(i);
+            if (n.getNodeName().equals("rows")) {
+                numRows = Integer.valueOf(n.getChildNodes().item(0).getNodeValue());
+            }
+        }
+
+        for (int i = 0; i < legendColumns.length; i++) {
+            assertEquals(getDataAverage(dataNode, legendColumns[i], numRows), parser.getAverage(i), 1e-9);
+        }
+    }
+
+    private static double getDataAverage(Node dataNode, int col, int numRows) {
+        double value = 0;
+        int numRowsUsed = 0;
+        for (int row = 0; row < numRows; row++) {
+            Node data = dataNode.getChildNodes().item(numRows - 1 - row).getChildNodes().item(col + 1);
+            Double currentDataAsDouble = Double.valueOf(data.getChildNodes().item(0).getNodeValue());
+            if (!currentDataAsDouble.equals(Double.NaN)) {
+                numRowsUsed += 1;
+                value += currentDataAsDouble;
+            }
+        }
+        return numRowsUsed == 0 ? value : value / numRowsUsed;
+    }
+}
@@ -25,21 +25,22 @@ logging.basicConfig(filename='/tmp/xapilog',level=logging.DEBUG)
                       
 def get_stats(session, collect_host_stats, consolidation_function, interval, start_time):
   try:
-    
-    if collect_host_stats == "true" :
-    	url = "http://localhost/rrd_updates?"
-   	url += "session_id=" + session._session
-   	url += "&host=" + collect_host_stats
-    	url += "&cf=" + consolidation_function
-    	url += "&interval=" + str(interval)
-    	url += "&start=" + str(int(time.time())-100)
-    else :
-    	url = "http://localhost/rrd_updates?"
-   	url += "session_id=" + session._session
-   	url += "&host=" + collect_host_stats
-    	url += "&cf=" + consolidation_function
-    	url += "&interval=" + str(interval)
-    	url += "&start=" + str(int(time.time())-100)
+    # start_time is on the host clock, taken from the end of the previous
+    # rrd_updates document; 0 asks for the default window
+    try:
+      start = int(start_time)
+    except (TypeError, ValueError):
+      start = 0
+    now = int(time.time())
+    if start <= 0 or start > now :
+      start = now - 100
+
+    url = "http://localhost/rrd_updates?"
+    url += "session_id=" + session._session
+    url += "&host=" + collect_host_stats
+    url += "&cf=" + consolidation_function
+    url += "&interval=" + str(interval)
+    url += "&start=" + str(start)
 
     logging.debug("Calling URL: %s",url)
     sock = urllib.URLopener().open(url)
@@ -59,6 +59,7 @@ import com.cloud.agent.api.StartupRoutingCommand;
 import com.cloud.agent.api.StartupSecondaryStorageCommand;
 import com.cloud.agent.api.StartupStorageCommand;
 import com.cloud.agent.api.UnsupportedAnswer;
+import com.cloud.agent.transport.BinaryCommandCodec;
 import com.cloud.agent.transport.Request;
 import com.cloud.agent.transport.Response;
 import com.cloud.alert.AlertManager;
@@ -182,6 +183,7 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
     protected VolumeDao _volumeDao = null;
 
     protected int _port;
+    protected boolean _binaryCodecEnabled;
 
     @Inject
     protected HighAvailabilityManager _haMgr = null;
@@ -282,8 +284,15 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
         _connectExecutor.allowCoreThreadTimeOut(true);
  
         _connection = new NioServer("AgentManager", _port, workers + 10, this);
+        value = configs.get(Config.AgentBinaryCodecEnabled.key());
+        _binaryCodecEnabled = Boolean.parseBoolean(value);
 
-        s_logger.info("Listening on " + _port + " with " + workers + " workers");
+        int selectors = NumbersUtil.parseInt(configs.get(Config.AgentSelectorThreads.key()), 0);
+        if (selectors > 0) {
+            _connection.setSelectorThreads(selectors, NumbersUtil.parseInt(configs.get(Config.AgentHandshakeWorkers.key()), 4));
+        }
+
+        s_logger.info("Listening on " + _port + " with " + workers + " workers and " + selectors + " selector threads");
         return true;
     }
 
@@ -1191,10 +1200,15 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
     	//send startupanswer to agent in the very beginning, so agent can move on without waiting for the answer for an undetermined time, if we put this logic into another thread pool.
     	StartupAnswer[] answers = new StartupAnswer[cmds.length];
     	Command cmd;
+    	int codecVersion = 0;
     	for (int i = 0; i < cmds.length; i++) {
 			cmd = cmds[i];
 			if ((cmd instanceof StartupRoutingCommand) || (cmd instanceof StartupProxyCommand) || (cmd instanceof StartupSecondaryStorageCommand) || (cmd instanceof StartupStorageCommand)) {
 				answers[i] = new StartupAnswer((StartupCommand)cmds[i], 0, getPingInterval());
+				if (_binaryCodecEnabled) {
+				    codecVersion = Math.min(((StartupCommand)cmds[i]).getCodecVersion(), BinaryCommandCodec.VERSION);
+				    answers[i].setCodecVersion(codecVersion);
+				}
 				break;
 			}
 		}
@@ -1202,6 +1216,8 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
     	response = new Response(request, answers[0], _nodeId, -1); 
     	 try {
          	link.send(response.toBytes());
+         	// the startup answer itself goes out as json, everything after it may be binary
+         	link.setCodecVersion(codecVersion);
          } catch (ClosedChannelException e) {
          	s_logger.debug("Failed to send startupanswer: " + e.toString());
          }        
@@ -1339,7 +1355,7 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
                 }
             }
             try {
-                link.send(response.toBytes());
+                link.send(response.toBytes(link.getCodecVersion()));
             } catch (final ClosedChannelException e) {
                 s_logger.warn("Unable to send response because connection is closed: " + response);
             }
@@ -43,7 +43,7 @@ public class ConnectedAgentAttache extends AgentAttache {
     @Override
     public synchronized void send(Request req) throws AgentUnavailableException {
         try {
-            _link.send(req.toBytes());
+            _link.send(req.toBytes(_link.getCodecVersion()));
         } catch (ClosedChannelException e) {
             throw new AgentUnavailableException("Channel is closed", _id);
         }
@@ -26,6 +26,10 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.ejb.Local;
 import javax.mail.Authenticator;
@@ -73,8 +77,10 @@ import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.component.Inject;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.Transaction;
 import com.sun.mail.smtp.SMTPMessage;
 import com.sun.mail.smtp.SMTPSSLTransport;
 import com.sun.mail.smtp.SMTPTransport;
@@ -107,6 +113,7 @@ public class AlertManagerImpl implements AlertManager {
     @Inject private ConfigurationManager _configMgr;   
     
     private Timer _timer = null;
+    private ExecutorService _capacityCalculateExecutor;
     private float _cpuOverProvisioningFactor = 1;
     private long _capacityCheckPeriod = 60L * 60L * 1000L; // one hour by default
     private double _memoryCapacityThreshold = 0.75;
@@ -228,6 +235,12 @@ public class AlertManagerImpl implements AlertManager {
 
         _timer = new Timer("CapacityChecker");
 
+        int capacityCalculateWorkers = NumbersUtil.parseInt(configs.get(Config.CapacityCalculateWorkers.key()), 4);
+        if (capacityCalculateWorkers <= 0) {
+            capacityCalculateWorkers = 1;
+        }
+        _capacityCalculateExecutor = Executors.newFixedThreadPool(capacityCalculateWorkers, new NamedThreadFactory("CapacityCalculator"));
+
         return true;
     }
 
@@ -245,6 +258,7 @@ public class AlertManagerImpl implements AlertManager {
     @Override
     public boolean stop() {
         _timer.cancel();
+        _capacityCalculateExecutor.shutdownNow();
         return true;
     }
 
@@ -291,9 +305,26 @@ public class AlertManagerImpl implements AlertManager {
 	        // Calculate CPU and RAM capacities
 	        // 	get all hosts...even if they are not in 'UP' state
 	        List<HostVO> hosts = _resourceMgr.listAllNotInMaintenanceHostsInOneZone(Host.Type.Routing, null);	        	        
+	        Map<Long, List<HostVO>> hostsByCluster = new HashMap<Long, List<HostVO>>();
 	        for (HostVO host : hosts) {
-	        	_capacityMgr.updateCapacityForHost(host);
+	            List<HostVO> clusterHosts = hostsByCluster.get(host.getClusterId());
+	            if (clusterHosts == null) {
+	                clusterHosts = new ArrayList<HostVO>();
+	                hostsByCluster.put(host.getClusterId(), clusterHosts);
+	            }
+	            clusterHosts.add(host);
+	        }
+	        List<CapacityCalculateTask> tasks = new ArrayList<CapacityCalculateTask>();
+	        for (Map.Entry<Long, List<HostVO>> entry : hostsByCluster.entrySet()) {
+	            final List<HostVO> clusterHosts = entry.getValue();
+	            tasks.add(new CapacityCalculateTask("capacity of cluster " + entry.getKey()) {
+	                @Override
+	                protected void calculate() {
+	                    _capacityMgr.updateCapacityForHosts(clusterHosts);
+	                }
+	            });
 	        }
+	        runCapacityTasks(tasks);
 	        
 	        if (s_logger.isDebugEnabled()) {
 	        	s_logger.debug("Done executing cpu/ram capacity update");
@@ -301,14 +332,21 @@ public class AlertManagerImpl implements AlertManager {
 	        }
 	        // Calculate storage pool capacity
 	        List<StoragePoolVO> storagePools = _storagePoolDao.listAll();
-	        for (StoragePoolVO pool : storagePools) {
-	            long disk = _capacityMgr.getAllocatedPoolCapacity(pool, null);
-	            if (pool.isShared()){
-	            	_storageMgr.createCapacityEntry(pool, Capacity.CAPACITY_TYPE_STORAGE_ALLOCATED, disk);
-	            }else {
-	            	_storageMgr.createCapacityEntry(pool, Capacity.CAPACITY_TYPE_LOCAL_STORAGE, disk);
-	            }
+	        tasks = new ArrayList<CapacityCalculateTask>();
+	        for (final StoragePoolVO pool : storagePools) {
+	            tasks.add(new CapacityCalculateTask("capacity of storage pool " + pool.getId()) {
+	                @Override
+	                protected void calculate() {
+	                    long disk = _capacityMgr.getAllocatedPoolCapacity(pool, null);
+	                    if (pool.isShared()){
+	                    	_storageMgr.createCapacityEntry(pool, Capacity.CAPACITY_TYPE_STORAGE_ALLOCATED, disk);
+	                    }else {
+	                    	_storageMgr.createCapacityEntry(pool, Capacity.CAPACITY_TYPE_LOCAL_STORAGE, disk);
+	                    }
+	                }
+	            });
 	        }
+	        runCapacityTasks(tasks);
 	        
 	        if (s_logger.isDebugEnabled()) {
 	        	s_logger.debug("Done executing storage capacity update");
@@ -316,28 +354,34 @@ public class AlertManagerImpl implements AlertManager {
 	        }
 
         	List<DataCenterVO> datacenters = _dcDao.listAll();
-        	for (DataCenterVO datacenter : datacenters) {
-        		long dcId = datacenter.getId();
+        	tasks = new ArrayList<CapacityCalculateTask>();
+        	for (final DataCenterVO datacenter : datacenters) {
+        		final long dcId = datacenter.getId();
 		
 		        //NOTE
 		        //What happens if we have multiple vlans? Dashboard currently shows stats 
 		        //with no filter based on a vlan
 		        //ideal way would be to remove out the vlan param, and filter only on dcId
 		        //implementing the same
-        		
-            	// Calculate new Public IP capacity for Virtual Network
-        		if (datacenter.getNetworkType() == NetworkType.Advanced){        			
-        			createOrUpdateIpCapacity(dcId, null, CapacityVO.CAPACITY_TYPE_VIRTUAL_NETWORK_PUBLIC_IP, datacenter.getAllocationState());
-        		}
-                
-            	// Calculate new Public IP capacity for Direct Attached Network
-		        createOrUpdateIpCapacity(dcId, null, CapacityVO.CAPACITY_TYPE_DIRECT_ATTACHED_PUBLIC_IP, datacenter.getAllocationState());
-                
-                if (datacenter.getNetworkType() == NetworkType.Advanced){
-                	//Calculate VLAN's capacity
-                	createOrUpdateVlanCapacity(dcId, datacenter.getAllocationState());
-                }
+        		tasks.add(new CapacityCalculateTask("ip and vlan capacity of zone " + dcId) {
+        		    @Override
+        		    protected void calculate() {
+        		        // Calculate new Public IP capacity for Virtual Network
+        		        if (datacenter.getNetworkType() == NetworkType.Advanced){
+        		            createOrUpdateIpCapacity(dcId, null, CapacityVO.CAPACITY_TYPE_VIRTUAL_NETWORK_PUBLIC_IP, datacenter.getAllocationState());
+        		        }
+
+        		        // Calculate new Public IP capacity for Direct Attached Network
+        		        createOrUpdateIpCapacity(dcId, null, CapacityVO.CAPACITY_TYPE_DIRECT_ATTACHED_PUBLIC_IP, datacenter.getAllocationState());
+
+        		        if (datacenter.getNetworkType() == NetworkType.Advanced){
+        		            //Calculate VLAN's capacity
+        		            createOrUpdateVlanCapacity(dcId, datacenter.getAllocationState());
+        		        }
+        		    }
+        		});
 		    }        
+        	runCapacityTasks(tasks);
         	
         	if (s_logger.isDebugEnabled()) {
 	        	s_logger.debug("Done capacity updates for public ip and Vlans");
@@ -346,12 +390,19 @@ public class AlertManagerImpl implements AlertManager {
         	
 	        // Calculate new Private IP capacity
 	        List<HostPodVO> pods = _podDao.listAll();
-	        for (HostPodVO pod : pods) {
-	            long podId = pod.getId();
-	            long dcId = pod.getDataCenterId();
-
-	            createOrUpdateIpCapacity(dcId, podId, CapacityVO.CAPACITY_TYPE_PRIVATE_IP, _configMgr.findPodAllocationState(pod));
+	        tasks = new ArrayList<CapacityCalculateTask>();
+	        for (final HostPodVO pod : pods) {
+	            final long podId = pod.getId();
+	            final long dcId = pod.getDataCenterId();
+
+	            tasks.add(new CapacityCalculateTask("private ip capacity of pod " + podId) {
+	                @Override
+	                protected void calculate() {
+	                    createOrUpdateIpCapacity(dcId, podId, CapacityVO.CAPACITY_TYPE_PRIVATE_IP, _configMgr.findPodAllocationState(pod));
+	                }
+	            });
 	        }
+	        runCapacityTasks(tasks);
 	        
 	        if (s_logger.isDebugEnabled()) {
 	        	s_logger.debug("Done executing capacity updates for private ip");
@@ -365,6 +416,43 @@ public class AlertManagerImpl implements AlertManager {
     
 
     
+    /**
+     * Runs the capacity calculations on the worker pool and waits for all of them to finish.
+     */
+    private void runCapacityTasks(List<CapacityCalculateTask> tasks) throws InterruptedException {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        _capacityCalculateExecutor.invokeAll(tasks);
+    }
+
+    abstract class CapacityCalculateTask implements Callable<Void> {
+        private final String _scope;
+
+        CapacityCalculateTask(String scope) {
+            _scope = scope;
+        }
+
+        protected abstract void calculate();
+
+        @Override
+        public Void call() {
+            long startTime = System.currentTimeMillis();
+            Transaction txn = Transaction.open("CapacityCalculate");
+            try {
+                calculate();
+            } catch (Throwable t) {
+                s_logger.error("Caught exception in calculating " + _scope, t);
+            } finally {
+                txn.close();
+            }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Calculated " + _scope + " in " + (System.currentTimeMillis() - startTime) + " ms");
+            }
+            return null;
+        }
+    }
+
     private void createOrUpdateVlanCapacity(long dcId, AllocationState capacityState) {
     	
     	SearchCriteria<CapacityVO> capacitySC = _capacityDao.createSearchCriteria();
@@ -457,77 +545,144 @@ public class AlertManagerImpl implements AlertManager {
             return;
         }
         
-        //Get all datacenters, pods and clusters in the system.
+        long startTime = System.currentTimeMillis();
+        //Get all datacenters and clusters in the system.
         List<DataCenterVO> dataCenterList = _dcDao.listAll();
         List<ClusterVO> clusterList = _clusterDao.listAll();
-        List<HostPodVO> podList = _podDao.listAll();
-        //Get capacity types at different levels
-        List<Short> dataCenterCapacityTypes = getCapacityTypesAtZoneLevel();         
-        List<Short> podCapacityTypes = getCapacityTypesAtPodLevel();        
-        List<Short> clusterCapacityTypes = getCapacityTypesAtClusterLevel();        
         
-        // Generate Alerts for Zone Level capacities
-        for(DataCenterVO dc : dataCenterList){
-        	for (Short capacityType : dataCenterCapacityTypes){
-        		List<SummedCapacity> capacity = new ArrayList<SummedCapacity>();
-        		capacity = _capacityDao.findCapacityBy(capacityType.intValue(), dc.getId(), null, null);
-        		
-        		if (capacityType == Capacity.CAPACITY_TYPE_SECONDARY_STORAGE){
-        			capacity.add(getUsedStats(capacityType, dc.getId(), null, null));
-        		}
-        		if (capacity == null || capacity.size() == 0){
-        			continue;
-        		}
-        		double totalCapacity = capacity.get(0).getTotalCapacity(); 
-                double usedCapacity =  capacity.get(0).getUsedCapacity();
-                if (totalCapacity != 0 && usedCapacity/totalCapacity > _capacityTypeThresholdMap.get(capacityType)){
-                	generateEmailAlert(dc, null, null, totalCapacity, usedCapacity, capacityType);
+        // Generate Alerts for Zone and Pod Level capacities, one task per zone. Each zone task also
+        // loads the capacities of all its clusters so that the cluster tasks don't query them one by one
+        final Map<Long, Map<Long, Map<Short, SummedCapacity>>> clusterCapacitiesByZone = new ConcurrentHashMap<Long, Map<Long, Map<Short, SummedCapacity>>>();
+        List<CapacityCalculateTask> tasks = new ArrayList<CapacityCalculateTask>();
+        for (final DataCenterVO dc : dataCenterList) {
+            tasks.add(new CapacityCalculateTask("alerts of zone " + dc.getId()) {
+                @Override
+                protected void calculate() {
+                    clusterCapacitiesByZone.put(dc.getId(), checkZoneAndPodCapacities(dc));
                 }
-        	}
+            });
         }
         
-        // Generate Alerts for Pod Level capacities
-        for( HostPodVO pod : podList){
-        	for (Short capacityType : podCapacityTypes){
-        		List<SummedCapacity> capacity = _capacityDao.findCapacityBy(capacityType.intValue(), pod.getDataCenterId(), pod.getId(), null);
-        		if (capacity == null || capacity.size() == 0){
-        			continue;
-        		}
-        		double totalCapacity = capacity.get(0).getTotalCapacity(); 
-                double usedCapacity =  capacity.get(0).getUsedCapacity();
-                if (totalCapacity != 0 && usedCapacity/totalCapacity > _capacityTypeThresholdMap.get(capacityType)){
-                	generateEmailAlert(ApiDBUtils.findZoneById(pod.getDataCenterId()), pod, null, 
-                			totalCapacity, usedCapacity, capacityType);
+        // Generate Alerts for Cluster Level capacities, one task per cluster
+        final float cpuOverProvFactor = ApiDBUtils.getCpuOverprovisioningFactor();
+        List<CapacityCalculateTask> clusterTasks = new ArrayList<CapacityCalculateTask>();
+        for (final ClusterVO cluster : clusterList) {
+            clusterTasks.add(new CapacityCalculateTask("alerts of cluster " + cluster.getId()) {
+                @Override
+                protected void calculate() {
+                    Map<Long, Map<Short, SummedCapacity>> zoneClusters = clusterCapacitiesByZone.get(cluster.getDataCenterId());
+                    if (zoneClusters == null) {
+                        // the zone task failed, it has already been logged
+                        return;
+                    }
+                    Map<Short, SummedCapacity> capacities = zoneClusters.get(cluster.getId());
+                    if (capacities == null) {
+                        capacities = new HashMap<Short, SummedCapacity>();
+                    }
+                    checkClusterCapacities(cluster, capacities, cpuOverProvFactor);
                 }
-        	}
+            });
         }
         
-        // Generate Alerts for Cluster Level capacities
-        for( ClusterVO cluster : clusterList){
-        	for (Short capacityType : clusterCapacityTypes){
-        		List<SummedCapacity> capacity = new ArrayList<SummedCapacity>();
-        		float overProvFactor = 1f;
-        		capacity = _capacityDao.findCapacityBy(capacityType.intValue(), cluster.getDataCenterId(), null, cluster.getId());
-        		
-        		if (capacityType == Capacity.CAPACITY_TYPE_STORAGE){
-        			capacity.add(getUsedStats(capacityType, cluster.getDataCenterId(), cluster.getPodId(), cluster.getId()));
-        		}
-        		if (capacity == null || capacity.size() == 0){
-        			continue;
-        		}        		
-        		if (capacityType == Capacity.CAPACITY_TYPE_CPU){
-        			overProvFactor = ApiDBUtils.getCpuOverprovisioningFactor();
-        		}
-        		
-        		double totalCapacity = capacity.get(0).getTotalCapacity() * overProvFactor; 
-                double usedCapacity =  capacity.get(0).getUsedCapacity() + capacity.get(0).getReservedCapacity();
+        try {
+            runCapacityTasks(tasks);
+            runCapacityTasks(clusterTasks);
+        } catch (InterruptedException e) {
+            s_logger.warn("Interrupted while checking capacities for alerts");
+            Thread.currentThread().interrupt();
+            return;
+        }
+        
+        long elapsed = System.currentTimeMillis() - startTime;
+        if (elapsed > _capacityCheckPeriod) {
+            s_logger.warn("Checking capacities of " + dataCenterList.size() + " zones and " + clusterList.size() + " clusters took " + elapsed
+                    + " ms, longer than the capacity check period of " + _capacityCheckPeriod + " ms");
+        } else if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Checked capacities of " + dataCenterList.size() + " zones and " + clusterList.size() + " clusters in " + elapsed + " ms");
+        }
+    }
+    
+    /**
+     * Checks the zone and pod level capacities of a zone and returns the summed capacities of its clusters,
+     * keyed by cluster id and capacity type.
+     */
+    private Map<Long, Map<Short, SummedCapacity>> checkZoneAndPodCapacities(DataCenterVO dc) {
+        Map<Short, SummedCapacity> zoneCapacities = new HashMap<Short, SummedCapacity>();
+        for (SummedCapacity capacity : _capacityDao.findCapacityInZoneGroupedBy(dc.getId(), 1)) {
+            zoneCapacities.put(capacity.getCapacityType(), capacity);
+        }
+        for (Short capacityType : getCapacityTypesAtZoneLevel()) {
+            SummedCapacity capacity = zoneCapacities.get(capacityType);
+            if (capacity == null && capacityType == Capacity.CAPACITY_TYPE_SECONDARY_STORAGE) {
+                capacity = getUsedStats(capacityType, dc.getId(), null, null);
+            }
+            if (capacity == null) {
+                continue;
+            }
+            double totalCapacity = capacity.getTotalCapacity();
+            double usedCapacity = capacity.getUsedCapacity();
+            if (totalCapacity != 0 && usedCapacity/totalCapacity > _capacityTypeThresholdMap.get(capacityType)){
+                generateEmailAlert(dc, null, null, totalCapacity, usedCapacity, capacityType);
+            }
+        }
+        
+        Map<Long, Map<Short, SummedCapacity>> podCapacities = groupCapacitiesByScope(_capacityDao.findCapacityInZoneGroupedBy(dc.getId(), 2), false);
+        for (HostPodVO pod : _podDao.listByDataCenterId(dc.getId())) {
+            Map<Short, SummedCapacity> capacities = podCapacities.get(pod.getId());
+            if (capacities == null) {
+                continue;
+            }
+            for (Short capacityType : getCapacityTypesAtPodLevel()) {
+                SummedCapacity capacity = capacities.get(capacityType);
+                if (capacity == null) {
+                    continue;
+                }
+                double totalCapacity = capacity.getTotalCapacity();
+                double usedCapacity = capacity.getUsedCapacity();
                 if (totalCapacity != 0 && usedCapacity/totalCapacity > _capacityTypeThresholdMap.get(capacityType)){
-                	generateEmailAlert(ApiDBUtils.findZoneById(cluster.getDataCenterId()), ApiDBUtils.findPodById(cluster.getPodId()), cluster,
-                			totalCapacity, usedCapacity, capacityType);
+                    generateEmailAlert(dc, pod, null, totalCapacity, usedCapacity, capacityType);
                 }
-        	}
+            }
         }
         
+        return groupCapacitiesByScope(_capacityDao.findCapacityInZoneGroupedBy(dc.getId(), 3), true);
+    }
+    
+    private void checkClusterCapacities(ClusterVO cluster, Map<Short, SummedCapacity> capacities, float cpuOverProvFactor) {
+        for (Short capacityType : getCapacityTypesAtClusterLevel()) {
+            SummedCapacity capacity = capacities.get(capacityType);
+            if (capacity == null && capacityType == Capacity.CAPACITY_TYPE_STORAGE) {
+                capacity = getUsedStats(capacityType, cluster.getDataCenterId(), cluster.getPodId(), cluster.getId());
+            }
+            if (capacity == null) {
+                continue;
+            }
+            float overProvFactor = 1f;
+            if (capacityType == Capacity.CAPACITY_TYPE_CPU){
+                overProvFactor = cpuOverProvFactor;
+            }
+            
+            double totalCapacity = capacity.getTotalCapacity() * overProvFactor;
+            double usedCapacity = capacity.getUsedCapacity() + capacity.getReservedCapacity();
+            if (totalCapacity != 0 && usedCapacity/totalCapacity > _capacityTypeThresholdMap.get(capacityType)){
+                generateEmailAlert(ApiDBUtils.findZoneById(cluster.getDataCenterId()), ApiDBUtils.findPodById(cluster.getPodId()), cluster,
+                        totalCapacity, usedCapacity, capacityType);
+            }
+        }
+    }
+    
+    private Map<Long, Map<Short, SummedCapacity>> groupCapacitiesByScope(List<SummedCapacity> summedCapacities, boolean byCluster) {
+        Map<Long, Map<Short, SummedCapacity>> grouped = new HashMap<Long, Map<Short, SummedCapacity>>();
+        for (SummedCapacity capacity : summedCapacities) {
+            Long scopeId = byCluster ? capacity.getClusterId() : capacity.getPodId();
+            Map<Short, SummedCapacity> capacities = grouped.get(scopeId);
+            if (capacities == null) {
+                capacities = new HashMap<Short, SummedCapacity>();
+                grouped.put(scopeId, capacities);
+            }
+            capacities.put(capacity.getCapacityType(), capacity);
+        }
+        return grouped;
     }
     
     private SummedCapacity getUsedStats(short capacityType, long zoneId, Long podId, Long clusterId){
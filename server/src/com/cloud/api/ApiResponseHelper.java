@@ -94,6 +94,7 @@ import com.cloud.api.response.Site2SiteVpnGatewayResponse;
 import com.cloud.api.response.SnapshotPolicyResponse;
 import com.cloud.api.response.SnapshotResponse;
 import com.cloud.api.response.StaticRouteResponse;
+import com.cloud.api.response.StatsSampleResponse;
 import com.cloud.api.response.StorageNetworkIpRangeResponse;
 import com.cloud.api.response.StoragePoolResponse;
 import com.cloud.api.response.SwiftResponse;
@@ -186,6 +187,7 @@ import com.cloud.projects.ProjectInvitation;
 import com.cloud.server.Criteria;
 import com.cloud.server.ResourceTag;
 import com.cloud.server.ResourceTag.TaggedResourceType;
+import com.cloud.server.StatsHistory;
 import com.cloud.storage.DiskOfferingVO;
 import com.cloud.storage.GuestOS;
 import com.cloud.storage.GuestOSCategoryVO;
@@ -4026,4 +4028,45 @@ public class ApiResponseHelper implements ResponseGenerator {
         response.setObjectName("vpnconnection");
         return response;
     }
+
+    @Override
+    public List<StatsSampleResponse> createStatsSampleResponses(StatsHistory history) {
+        List<StatsSampleResponse> responses = new ArrayList<StatsSampleResponse>();
+        if (history == null) {
+            return responses;
+        }
+
+        DecimalFormat decimalFormat = new DecimalFormat("#.##");
+        StatsHistory.Metric[] metrics = history.getMetrics();
+        for (int i = 0; i < history.getSampleCount(); i++) {
+            StatsSampleResponse response = new StatsSampleResponse();
+            response.setDate(new Date(history.getTime(i)));
+            for (int m = 0; m < metrics.length; m++) {
+                double value = history.getValue(i, m);
+                if (Double.isNaN(value)) {
+                    continue;
+                }
+                switch (metrics[m]) {
+                case CpuUtilization:
+                    response.setCpuUsed(decimalFormat.format(value) + "%");
+                    break;
+                case NetworkReadKBs:
+                    response.setNetworkKbsRead((long)value);
+                    break;
+                case NetworkWriteKBs:
+                    response.setNetworkKbsWrite((long)value);
+                    break;
+                case UsedMemoryKBs:
+                    response.setMemoryUsed((long)value);
+                    break;
+                case BytesUsed:
+                    response.setBytesUsed((long)value);
+                    break;
+                }
+            }
+            response.setObjectName("stats");
+            responses.add(response);
+        }
+        return responses;
+    }
 }
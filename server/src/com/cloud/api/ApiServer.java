@@ -29,6 +29,8 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.text.DateFormat;
 import java.text.ParseException;
@@ -44,7 +46,7 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -146,7 +148,10 @@ public class ApiServer implements HttpRequestHandler {
     private static List<String> s_pluggableServiceCommands = null;
     private static final DateFormat _dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
 
-    private static ExecutorService _executor = new ThreadPoolExecutor(10, 150, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("ApiServer"));
+    // with an unbounded queue the pool would never grow past its core size, and a few queryAsyncJobResult
+    // calls waiting for their jobs would hold up everything else.  Once all threads are busy the listener
+    // handles the connection itself, which stops it from accepting more until a thread frees up.
+    private static ExecutorService _executor = new ThreadPoolExecutor(10, 150, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new NamedThreadFactory("ApiServer"), new ThreadPoolExecutor.CallerRunsPolicy());
 
     static {
         s_userCommands = new ArrayList<String>();
@@ -745,19 +750,7 @@ public class ApiServer implements HttpRequestHandler {
                 return false;
             }
 
-            unsignedRequest = unsignedRequest.toLowerCase();
-
-            Mac mac = Mac.getInstance("HmacSHA1");
-            SecretKeySpec keySpec = new SecretKeySpec(secretKey.getBytes(), "HmacSHA1");
-            mac.init(keySpec);
-            mac.update(unsignedRequest.getBytes());
-            byte[] encryptedBytes = mac.doFinal();
-            String computedSignature = Base64.encodeBase64String(encryptedBytes);
-            boolean equalSig = signature.equals(computedSignature);
-            if (!equalSig) {
-                s_logger.info("User signature: " + signature + " is not equaled to computed signature: " + computedSignature);
-            }
-            return equalSig;
+            return verifySignature(unsignedRequest, signature, secretKey);
         } catch (Exception ex) {
             if (ex instanceof ServerApiException && ((ServerApiException) ex).getErrorCode() == BaseCmd.UNSUPPORTED_ACTION_ERROR) {
                 throw (ServerApiException) ex;
@@ -767,6 +760,26 @@ public class ApiServer implements HttpRequestHandler {
         return false;
     }
     
+    /**
+     * Checks the signature of a request against the HMAC-SHA1 of its sorted,
+     * url encoded parameters.
+     */
+    public static boolean verifySignature(String unsignedRequest, String signature, String secretKey) throws NoSuchAlgorithmException, InvalidKeyException {
+        unsignedRequest = unsignedRequest.toLowerCase();
+
+        Mac mac = Mac.getInstance("HmacSHA1");
+        SecretKeySpec keySpec = new SecretKeySpec(secretKey.getBytes(), "HmacSHA1");
+        mac.init(keySpec);
+        mac.update(unsignedRequest.getBytes());
+        byte[] encryptedBytes = mac.doFinal();
+        String computedSignature = Base64.encodeBase64String(encryptedBytes);
+        boolean equalSig = signature.equals(computedSignature);
+        if (!equalSig) {
+            s_logger.info("User signature: " + signature + " is not equaled to computed signature: " + computedSignature);
+        }
+        return equalSig;
+    }
+
     public Long fetchDomainId(String domainUUID){
         ComponentLocator locator = ComponentLocator.getLocator(ManagementServer.Name);
         IdentityDao identityDao = locator.getDao(IdentityDao.class);
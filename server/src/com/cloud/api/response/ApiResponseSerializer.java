@@ -77,6 +77,10 @@ public class ApiResponseSerializer {
                 boolean nonZeroCount = (count != null && count.longValue() != 0);
                 if (nonZeroCount) {
                     sb.append("{ \"").append(ApiConstants.COUNT).append("\":").append(count);
+                    String nextPageToken = ((ListResponse) result).getNextPageToken();
+                    if (nextPageToken != null) {
+                        sb.append(" ,\"").append(ApiConstants.NEXT_PAGE_TOKEN).append("\":\"").append(nextPageToken).append("\"");
+                    }
                 }
                 
                 if ((responses != null) && !responses.isEmpty()) {
@@ -136,6 +140,11 @@ public class ApiResponseSerializer {
             if (count != null && count != 0) {
                 sb.append("<").append(ApiConstants.COUNT).append(">").append(((ListResponse) result).getCount()).
                 append("</").append(ApiConstants.COUNT).append(">");
+                String nextPageToken = ((ListResponse) result).getNextPageToken();
+                if (nextPageToken != null) {
+                    sb.append("<").append(ApiConstants.NEXT_PAGE_TOKEN).append(">").append(nextPageToken).
+                    append("</").append(ApiConstants.NEXT_PAGE_TOKEN).append(">");
+                }
             }
             List<? extends ResponseObject> responses = ((ListResponse) result).getResponses();
             if ((responses != null) && !responses.isEmpty()) {
@@ -48,4 +48,10 @@ public interface AsyncJobManager extends Manager {
      * @return an async-call result object
      */
     public AsyncJob queryAsyncJobResult(QueryAsyncJobResultCmd cmd);
+
+    /**
+     * Called when a peer management server reports that it has completed a job.
+     * @param jobId id of the completed job
+     */
+    public void onAsyncJobCompletedOnPeer(long jobId);
 }
@@ -20,11 +20,18 @@ package com.cloud.async;
 import java.io.File;
 import java.io.FileInputStream;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
@@ -37,6 +44,8 @@ import javax.naming.ConfigurationException;
 import org.apache.log4j.Logger;
 import org.apache.log4j.NDC;
 
+import com.cloud.agent.api.AsyncJobCompletedCommand;
+import com.cloud.agent.api.Command;
 import com.cloud.api.ApiDispatcher;
 import com.cloud.api.ApiGsonHelper;
 import com.cloud.api.ApiSerializerHelper;
@@ -59,6 +68,7 @@ import com.cloud.user.AccountManager;
 import com.cloud.user.User;
 import com.cloud.user.UserContext;
 import com.cloud.user.dao.AccountDao;
+import com.cloud.utils.ActionDelegate;
 import com.cloud.utils.DateUtil;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.PropertiesUtil;
@@ -82,6 +92,10 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     private static final int MAX_ONETIME_SCHEDULE_SIZE = 50;
     private static final int HEARTBEAT_INTERVAL = 2000;
     private static final int GC_INTERVAL = 10000;				// 10 seconds
+    private static final int POLL_FLUSH_INTERVAL = 5000;
+    private static final int MAX_ONETIME_POLL_FLUSH_SIZE = 500;
+    private static final long COMPLETED_JOB_STATUS_TTL = 600000;     // 10 minutes
+    private static final long IN_PROGRESS_JOB_STATUS_TTL = 10000;    // 10 seconds
     
     private String _name;
     
@@ -93,6 +107,14 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     private AsyncJobDao _jobDao;
     private long _jobExpireSeconds = 86400;                 // 1 day
     private long _jobCancelThresholdSeconds = 3600;         // 1 hour (for cancelling the jobs blocking other jobs)
+    private int _jobQueryMaxWaitSeconds = 30;
+
+    // status of the jobs updated or completed on this management server, saves pollers a trip to the DB
+    private final Map<Long, JobStatusEntry> _jobStatus = new ConcurrentHashMap<Long, JobStatusEntry>();
+    // callers of queryAsyncJobResult waiting for a job to complete, guarded by itself
+    private final Map<Long, JobWaiter> _jobWaiters = new HashMap<Long, JobWaiter>();
+    // jobs polled since the last flush, their last_polled column is updated in batch
+    private final Set<Long> _polledJobs = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
     
     private ApiDispatcher _dispatcher;
 
@@ -185,6 +207,16 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     		job.setLastUpdated(DateUtil.currentGMTTime());
     		_jobDao.update(jobId, job);
     		txt.commit();
+
+    		// if the completion is nested in an outer transaction, it may still be rolled back.  Waiters
+    		// here and on the peers are only told about it once the outer transaction commits.
+    		final AsyncJobVO completedJob = job;
+    		txt.registerCommitTask(new Runnable() {
+    		    @Override
+    		    public void run() {
+    		        onAsyncJobCompleted(completedJob);
+    		    }
+    		});
     	} catch(Exception e) {
     		s_logger.error("Unexpected exception while completing async job-" + jobId, e);
     		txt.rollback();
@@ -218,6 +250,14 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
             job.setLastUpdated(DateUtil.currentGMTTime());
             _jobDao.update(jobId, job);
             txt.commit();
+
+            final AsyncJobVO updatedJob = job;
+            txt.registerCommitTask(new Runnable() {
+                @Override
+                public void run() {
+                    _jobStatus.put(updatedJob.getId(), new JobStatusEntry(updatedJob));
+                }
+            });
         } catch(Exception e) {
             s_logger.error("Unexpected exception while updating async job-" + jobId + " status: ", e);
             txt.rollback();
@@ -292,7 +332,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     public AsyncJob queryAsyncJobResult(QueryAsyncJobResultCmd cmd) {
         Account caller = UserContext.current().getCaller();
 
-        AsyncJobVO job = _jobDao.findById(cmd.getId());
+        AsyncJob job = findAsyncJob(cmd.getId());
         if (job == null) {
             throw new InvalidParameterValueException("Unable to find a job by id " + cmd.getId());
         }
@@ -310,9 +350,126 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
             _accountMgr.checkAccess(caller, null, true, jobOwner);
         }
         
-        //poll the job
-        queryAsyncJobResult(cmd.getId());
-        return _jobDao.findById(cmd.getId());
+        if (job.getStatus() == AsyncJobResult.STATUS_IN_PROGRESS) {
+            int wait = Math.min(cmd.getWait(), _jobQueryMaxWaitSeconds);
+            if (wait > 0 && waitAsyncJobCompletion(job.getId(), wait * 1000L)) {
+                AsyncJob completedJob = findAsyncJob(job.getId());
+                if (completedJob != null) {
+                    job = completedJob;
+                }
+            }
+
+            if (job.getStatus() == AsyncJobResult.STATUS_IN_PROGRESS) {
+                _polledJobs.add(job.getId());
+            }
+        }
+        return job;
+    }
+
+    /**
+     * @return the job as last updated on this management server if it's still
+     * fresh in the status registry, otherwise the job from the DB.
+     */
+    protected AsyncJob findAsyncJob(long jobId) {
+        JobStatusEntry entry = _jobStatus.get(jobId);
+        if (entry != null && !entry.isExpired(System.currentTimeMillis())) {
+            return entry.job;
+        }
+        return _jobDao.findById(jobId);
+    }
+
+    /**
+     * Waits for a job to be completed on this or a peer management server.
+     * @return true if the job completed within the timeout.
+     */
+    protected boolean waitAsyncJobCompletion(long jobId, long timeoutMs) {
+        JobWaiter waiter;
+        synchronized (_jobWaiters) {
+            waiter = _jobWaiters.get(jobId);
+            if (waiter == null) {
+                waiter = new JobWaiter();
+                _jobWaiters.put(jobId, waiter);
+            }
+            waiter.count++;
+        }
+
+        try {
+            // the job may have completed before the waiter was registered, in which case
+            // nobody is going to wake it up
+            AsyncJob job = findAsyncJob(jobId);
+            if (job == null || job.getStatus() != AsyncJobResult.STATUS_IN_PROGRESS) {
+                return true;
+            }
+            return waiter.latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            s_logger.debug("Interrupted while waiting for job-" + jobId + " to complete");
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            synchronized (_jobWaiters) {
+                if (--waiter.count == 0 && _jobWaiters.get(jobId) == waiter) {
+                    _jobWaiters.remove(jobId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called once the completion of the job is committed.
+     */
+    protected void onAsyncJobCompleted(AsyncJobVO job) {
+        _jobStatus.put(job.getId(), new JobStatusEntry(job));
+        wakeupJobWaiters(job.getId());
+
+        if (_clusterMgr != null) {
+            try {
+                _clusterMgr.broadcast(0, new Command[] { new AsyncJobCompletedCommand(job.getId(), job.getStatus()) });
+            } catch (Exception e) {
+                s_logger.warn("Unable to notify peers of the completion of job-" + job.getId(), e);
+            }
+        }
+    }
+
+    @Override
+    public void onAsyncJobCompletedOnPeer(long jobId) {
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("Job-" + jobId + " completed on a peer management server");
+        }
+
+        _jobStatus.remove(jobId);
+        wakeupJobWaiters(jobId);
+    }
+
+    private void wakeupJobWaiters(long jobId) {
+        JobWaiter waiter;
+        synchronized (_jobWaiters) {
+            waiter = _jobWaiters.remove(jobId);
+        }
+        if (waiter != null) {
+            waiter.latch.countDown();
+        }
+    }
+
+    private static AsyncJobResult toJobResult(AsyncJobVO job) {
+        AsyncJobResult jobResult = new AsyncJobResult(job.getId());
+        jobResult.setCmdOriginator(job.getCmdOriginator());
+        jobResult.setJobStatus(job.getStatus());
+        jobResult.setProcessStatus(job.getProcessStatus());
+        jobResult.setResult(job.getResult());
+        jobResult.setResultCode(job.getResultCode());
+        jobResult.setUuid(job.getUuid());
+        return jobResult;
+    }
+
+    private static AsyncJobResult copyOf(AsyncJobResult result) {
+        AsyncJobResult jobResult = new AsyncJobResult(result.getJobId());
+        jobResult.setCmdOriginator(result.getCmdOriginator());
+        jobResult.setJobStatus(result.getJobStatus());
+        jobResult.setProcessStatus(result.getProcessStatus());
+        jobResult.setResult(result.getResult());
+        jobResult.setResultCode(result.getResultCode());
+        jobResult.setUuid(result.getUuid());
+        return jobResult;
     }
 
     @Override @DB
@@ -321,6 +478,14 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
             s_logger.trace("Query async-job status, job-" + jobId);
         }
     	
+    	JobStatusEntry entry = _jobStatus.get(jobId);
+    	if (entry != null && !entry.isExpired(System.currentTimeMillis())) {
+    	    if (entry.result.getJobStatus() == AsyncJobResult.STATUS_IN_PROGRESS) {
+    	        _polledJobs.add(jobId);
+    	    }
+    	    return copyOf(entry.result);
+    	}
+
     	Transaction txt = Transaction.currentTxn();
     	AsyncJobResult jobResult = new AsyncJobResult(jobId);
     	
@@ -328,12 +493,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     		txt.start();
     		AsyncJobVO job = _jobDao.findById(jobId);
     		if(job != null) {
-    			jobResult.setCmdOriginator(job.getCmdOriginator());
-    			jobResult.setJobStatus(job.getStatus());
-    			jobResult.setProcessStatus(job.getProcessStatus());
-    			jobResult.setResult(job.getResult());
-    			jobResult.setResultCode(job.getResultCode());
-    			jobResult.setUuid(job.getUuid());
+    			jobResult = toJobResult(job);
     			
     			if(job.getStatus() == AsyncJobResult.STATUS_SUCCEEDED ||
     				job.getStatus() == AsyncJobResult.STATUS_FAILED) {
@@ -342,8 +502,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
                         s_logger.debug("Async job-" + jobId + " completed");
                     }
     			} else {
-    				job.setLastPolled(DateUtil.currentGMTTime());
-    				_jobDao.update(jobId, job);
+    				_polledJobs.add(jobId);
     			}
     		} else {
     	    	if(s_logger.isDebugEnabled()) {
@@ -593,11 +752,53 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 		};
 	}
 	
+	private Runnable getPollFlushTask() {
+		return new Runnable() {
+			@Override
+            public void run() {
+				try {
+					flushPolledJobs();
+				} catch(Throwable e) {
+					s_logger.error("Unexpected exception when updating last polled time of async jobs, ", e);
+				} finally {
+					StackMaid.current().exitCleanup();
+				}
+			}
+		};
+	}
+
+	protected void flushPolledJobs() {
+		Date now = DateUtil.currentGMTTime();
+		List<Long> jobIds = new ArrayList<Long>();
+		Iterator<Long> it = _polledJobs.iterator();
+		while (it.hasNext()) {
+			jobIds.add(it.next());
+			it.remove();
+
+			if (jobIds.size() == MAX_ONETIME_POLL_FLUSH_SIZE || !it.hasNext()) {
+				_jobDao.updateLastPolled(jobIds, now);
+				jobIds.clear();
+			}
+		}
+	}
+
+	private void expireJobStatus() {
+		long now = System.currentTimeMillis();
+		Iterator<JobStatusEntry> it = _jobStatus.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().isExpired(now)) {
+				it.remove();
+			}
+		}
+	}
+
 	@DB
 	private Runnable getGCTask() {
 		return new Runnable() {
 			@Override
             public void run() {
+                expireJobStatus();
+
                 GlobalLock scanLock = GlobalLock.getInternLock("AsyncJobManagerGC");
                 try {
                     if(scanLock.lock(ACQUIRE_GLOBAL_LOCK_TIMEOUT_FOR_COOPERATION)) {
@@ -618,13 +819,22 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 
                     Date cutTime = new Date(DateUtil.currentGMTTime().getTime() - _jobExpireSeconds*1000);
 
-                    // limit to 100 jobs per turn, this gives cleanup throughput as 600 jobs per minute
-                    // hopefully this will be fast enough to balance potential growth of job table
-                    List<AsyncJobVO> l = _jobDao.getExpiredJobs(cutTime, 100);
-                    if(l != null && l.size() > 0) {
-                        for(AsyncJobVO job : l) {
-                            expungeAsyncJob(job);
+                    // read a page at a time and expunge in batches, so a backlog of
+                    // expired jobs is cleared in one turn without holding it in memory
+                    final List<Long> expired = new ArrayList<Long>();
+                    int count = _jobDao.streamExpiredJobs(cutTime, new ActionDelegate<AsyncJobVO>() {
+                        @Override
+                        public void action(AsyncJobVO job) {
+                            expired.add(job.getId());
+                            if (expired.size() >= 500) {
+                                expungeAsyncJobs(expired);
+                                expired.clear();
+                            }
                         }
+                    });
+                    expungeAsyncJobs(expired);
+                    if (count > 0 && s_logger.isDebugEnabled()) {
+                        s_logger.debug("Expunged " + count + " expired async-jobs");
                     }
 
                     // forcefully cancel blocking queue items if they've been staying there for too long
@@ -654,12 +864,18 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     }
     
     @DB
-    protected void expungeAsyncJob(AsyncJobVO job) {
+    protected void expungeAsyncJobs(List<Long> jobIds) {
+        if (jobIds.isEmpty()) {
+            return;
+        }
+
         Transaction txn = Transaction.currentTxn();
         txn.start();
-        _jobDao.expunge(job.getId());
-        //purge corresponding sync queue item
-        _queueMgr.purgeAsyncJobQueueItemId(job.getId());
+        _jobDao.expungeBatch(jobIds);
+        //purge corresponding sync queue items
+        for (Long jobId : jobIds) {
+            _queueMgr.purgeAsyncJobQueueItemId(jobId);
+        }
         txn.commit();
     }
 
@@ -710,6 +926,9 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
                 configDao.getValue(Config.JobCancelThresholdMinutes.key()), 60);
         _jobCancelThresholdSeconds *= 60;
 
+        _jobQueryMaxWaitSeconds = NumbersUtil.parseInt(
+                configDao.getValue(Config.JobQueryMaxWaitSeconds.key()), 30);
+
         _accountDao = locator.getDao(AccountDao.class);
         if (_accountDao == null) {
             throw new ConfigurationException("Unable to get " + AccountDao.class.getName());
@@ -798,6 +1017,8 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
                 HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
         _heartbeatScheduler.scheduleAtFixedRate(getGCTask(), GC_INTERVAL,
                 GC_INTERVAL, TimeUnit.MILLISECONDS);
+        _heartbeatScheduler.scheduleAtFixedRate(getPollFlushTask(), POLL_FLUSH_INTERVAL,
+                POLL_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
 
         return true;
     }
@@ -817,6 +1038,11 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     public boolean stop() {
     	_heartbeatScheduler.shutdown();
     	_executor.shutdown();
+    	try {
+    	    flushPolledJobs();
+    	} catch(Throwable e) {
+    	    s_logger.warn("Unable to update last polled time of async jobs on shutdown", e);
+    	}
         return true;
     }
     
@@ -824,4 +1050,26 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     public String getName() {
     	return _name;
     }
+
+    private static class JobStatusEntry {
+        final AsyncJobVO job;
+        final AsyncJobResult result;
+        final long timestamp;
+
+        JobStatusEntry(AsyncJobVO job) {
+            this.job = job;
+            this.result = toJobResult(job);
+            this.timestamp = System.currentTimeMillis();
+        }
+
+        boolean isExpired(long now) {
+            long ttl = result.getJobStatus() == AsyncJobResult.STATUS_IN_PROGRESS ? IN_PROGRESS_JOB_STATUS_TTL : COMPLETED_JOB_STATUS_TTL;
+            return now - timestamp > ttl;
+        }
+    }
+
+    private static class JobWaiter {
+        final CountDownLatch latch = new CountDownLatch(1);
+        int count;
+    }
 }
@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -28,6 +29,10 @@ import org.apache.log4j.Logger;
 
 import com.cloud.async.dao.SyncQueueDao;
 import com.cloud.async.dao.SyncQueueItemDao;
+import com.cloud.cluster.ClusterManager;
+import com.cloud.cluster.ClusterManagerListener;
+import com.cloud.cluster.ManagementServerHostVO;
+import com.cloud.cluster.dao.ManagementServerHostDao;
 import com.cloud.utils.DateUtil;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.db.DB;
@@ -36,13 +41,23 @@ import com.cloud.utils.exception.CloudRuntimeException;
 
 
 @Local(value={SyncQueueManager.class})
-public class SyncQueueManagerImpl implements SyncQueueManager {
+public class SyncQueueManagerImpl implements SyncQueueManager, ClusterManagerListener {
     public static final Logger s_logger = Logger.getLogger(SyncQueueManagerImpl.class.getName());
     
     private String _name;
     
     private SyncQueueDao _syncQueueDao;
     private SyncQueueItemDao _syncQueueItemDao;
+    private ManagementServerHostDao _mshostDao;
+    private ClusterManager _clusterMgr;
+
+    // live management servers, dequeueFromAny only picks up the queues of its own shard so that
+    // management servers don't compete for the same rows
+    private final TreeSet<Long> _activeNodes = new TreeSet<Long>();
+    private Long _selfNodeId;
+    // set once this server is isolated, the cluster manager doesn't tell about the peers that are still
+    // around when it rejoins, so the nodes are re-read from the heartbeats instead
+    private boolean _rebuildActiveNodes;
 
     @Override
     @DB
@@ -84,43 +99,25 @@ public class SyncQueueManagerImpl implements SyncQueueManager {
     	try {
     		txt.start();
     		
-    		SyncQueueVO queueVO = _syncQueueDao.lockRow(queueId, true);
-    		if(queueVO == null) {
-    			s_logger.error("Sync queue(id: " + queueId + ") does not exist");
+    		SyncQueueItemVO itemVO = _syncQueueItemDao.getNextQueueItem(queueId);
+    		if(itemVO == null) {
+    			if(s_logger.isDebugEnabled())
+    				s_logger.debug("Sync queue (" + queueId + ") is currently empty");
     			txt.commit();
     			return null;
     		}
-    		
-    		if(queueReadyToProcess(queueVO)) {
-    			SyncQueueItemVO itemVO = _syncQueueItemDao.getNextQueueItem(queueVO.getId());
-    			if(itemVO != null) {
-	    			Long processNumber = queueVO.getLastProcessNumber();
-	    			if(processNumber == null)
-	    				processNumber = new Long(1);
-	    			else
-	    				processNumber = processNumber + 1;
-	    			Date dt = DateUtil.currentGMTTime();
-	    			queueVO.setLastProcessNumber(processNumber);
-	    			queueVO.setLastUpdated(dt);
-	    			queueVO.setQueueSize(queueVO.getQueueSize() + 1);
-	    			_syncQueueDao.update(queueVO.getId(), queueVO);
-	    			
-	    			itemVO.setLastProcessMsid(msid);
-	    			itemVO.setLastProcessNumber(processNumber);
-	    			itemVO.setLastProcessTime(dt);
-	    			_syncQueueItemDao.update(itemVO.getId(), itemVO);
-	    			
-	        		txt.commit();
-	    			return itemVO;
-    			} else {
-        			if(s_logger.isDebugEnabled())
-        				s_logger.debug("Sync queue (" + queueId + ") is currently empty");
-    			}
-    		} else {
-    			if(s_logger.isDebugEnabled())
-    				s_logger.debug("There is a pending process in sync queue(id: " + queueId + ")");
-    		}
+
+    		List<SyncQueueItemVO> l = new ArrayList<SyncQueueItemVO>();
+    		l.add(itemVO);
+    		l = _syncQueueItemDao.claimQueueItems(l, msid);
     		txt.commit();
+
+    		if(l.size() > 0) {
+    			return l.get(0);
+    		}
+
+    		if(s_logger.isDebugEnabled())
+    			s_logger.debug("There is a pending process in sync queue(id: " + queueId + ")");
     	} catch(Exception e) {
     		s_logger.error("Unexpected exception: ", e);
     		txt.rollback();
@@ -132,39 +129,24 @@ public class SyncQueueManagerImpl implements SyncQueueManager {
     @Override
     @DB
     public List<SyncQueueItemVO> dequeueFromAny(Long msid, int maxItems) {
-    	
-    	List<SyncQueueItemVO> resultList = new ArrayList<SyncQueueItemVO>();
+    	int shardCount = 1;
+    	int shardIndex = 0;
+    	if (isRebuildingActiveNodes()) {
+    	    rebuildActiveNodes();
+    	}
+    	synchronized(_activeNodes) {
+    		if(_selfNodeId != null && _activeNodes.contains(_selfNodeId)) {
+    			shardCount = _activeNodes.size();
+    			shardIndex = _activeNodes.headSet(_selfNodeId).size();
+    		}
+    	}
+
     	Transaction txt = Transaction.currentTxn();
     	try {
     		txt.start();
     		
-    		List<SyncQueueItemVO> l = _syncQueueItemDao.getNextQueueItems(maxItems);
-    		if(l != null && l.size() > 0) {
-    			for(SyncQueueItemVO item : l) {
-    				SyncQueueVO queueVO = _syncQueueDao.lockRow(item.getQueueId(), true);
-	    			SyncQueueItemVO itemVO = _syncQueueItemDao.lockRow(item.getId(), true);
-    				if(queueReadyToProcess(queueVO) && itemVO.getLastProcessNumber() == null) {
-		    			Long processNumber = queueVO.getLastProcessNumber();
-		    			if(processNumber == null)
-		    				processNumber = new Long(1);
-		    			else
-		    				processNumber = processNumber + 1;
-		    			
-		    			Date dt = DateUtil.currentGMTTime();
-		    			queueVO.setLastProcessNumber(processNumber);
-		    			queueVO.setLastUpdated(dt);
-	                    queueVO.setQueueSize(queueVO.getQueueSize() + 1);
-		    			_syncQueueDao.update(queueVO.getId(), queueVO);
-		    			
-		    			itemVO.setLastProcessMsid(msid);
-		    			itemVO.setLastProcessNumber(processNumber);
-		    			itemVO.setLastProcessTime(dt);
-		    			_syncQueueItemDao.update(item.getId(), itemVO);
-		    			
-		    			resultList.add(item);
-    				}
-    			}
-    		}
+    		List<SyncQueueItemVO> l = _syncQueueItemDao.getNextQueueItems(maxItems, shardCount, shardIndex);
+    		List<SyncQueueItemVO> resultList = _syncQueueItemDao.claimQueueItems(l, msid);
     		txt.commit();
     		return resultList;
     	} catch(Exception e) {
@@ -183,17 +165,11 @@ public class SyncQueueManagerImpl implements SyncQueueManager {
     		
 			SyncQueueItemVO itemVO = _syncQueueItemDao.findById(queueItemId);
 			if(itemVO != null) {
-				SyncQueueVO queueVO = _syncQueueDao.lockRow(itemVO.getQueueId(), true);
-				
 				_syncQueueItemDao.expunge(itemVO.getId());
 				
 				//if item is active, reset queue information
 				if (itemVO.getLastProcessMsid() != null) {
-				    queueVO.setLastUpdated(DateUtil.currentGMTTime());
-	                //decrement the count
-	                assert (queueVO.getQueueSize() > 0) : "Count reduce happens when it's already <= 0!";
-	                queueVO.setQueueSize(queueVO.getQueueSize() - 1);
-	                _syncQueueDao.update(queueVO.getId(), queueVO);
+				    _syncQueueDao.releaseQueueSlot(itemVO.getQueueId());
 				}
 			}
     		txt.commit();
@@ -212,15 +188,17 @@ public class SyncQueueManagerImpl implements SyncQueueManager {
     		
 			SyncQueueItemVO itemVO = _syncQueueItemDao.findById(queueItemId);
 			if(itemVO != null) {
-				SyncQueueVO queueVO = _syncQueueDao.lockRow(itemVO.getQueueId(), true);
-			
+				boolean active = itemVO.getLastProcessMsid() != null;
+
 				itemVO.setLastProcessMsid(null);
 				itemVO.setLastProcessNumber(null);
 				itemVO.setLastProcessTime(null);
 				_syncQueueItemDao.update(queueItemId, itemVO);
 				
-				queueVO.setLastUpdated(DateUtil.currentGMTTime());
-				_syncQueueDao.update(queueVO.getId(), queueVO);
+				// give back the slot the item took when it was dequeued
+				if (active) {
+				    _syncQueueDao.releaseQueueSlot(itemVO.getQueueId());
+				}
 			}
     		txt.commit();
     	} catch(Exception e) {
@@ -255,10 +233,81 @@ public class SyncQueueManagerImpl implements SyncQueueManager {
 			throw new ConfigurationException("Unable to get "
 					+ SyncQueueDao.class.getName());
 		}
+
+		_mshostDao = locator.getDao(ManagementServerHostDao.class);
+		if (_mshostDao == null) {
+			throw new ConfigurationException("Unable to get "
+					+ ManagementServerHostDao.class.getName());
+		}
+
+		_clusterMgr = locator.getManager(ClusterManager.class);
+		if (_clusterMgr != null) {
+		    _clusterMgr.registerListener(this);
+		}
     	
     	return true;
     }
     
+    @Override
+    public void onManagementNodeJoined(List<ManagementServerHostVO> nodeList, long selfNodeId) {
+        synchronized(_activeNodes) {
+            _selfNodeId = selfNodeId;
+            for (ManagementServerHostVO node : nodeList) {
+                _activeNodes.add(node.getId());
+            }
+        }
+    }
+
+    @Override
+    public void onManagementNodeLeft(List<ManagementServerHostVO> nodeList, long selfNodeId) {
+        synchronized(_activeNodes) {
+            for (ManagementServerHostVO node : nodeList) {
+                _activeNodes.remove(node.getId());
+            }
+        }
+    }
+
+    @Override
+    public void onManagementNodeIsolated() {
+        // fall back to scanning every queue, claims are safe against other management servers anyway
+        synchronized(_activeNodes) {
+            _activeNodes.clear();
+            _rebuildActiveNodes = _clusterMgr != null;
+        }
+    }
+
+    private boolean isRebuildingActiveNodes() {
+        synchronized(_activeNodes) {
+            return _rebuildActiveNodes;
+        }
+    }
+
+    /**
+     * Re-reads the live management servers from their heartbeats after an isolation.  Until this
+     * server's own heartbeat shows up again every queue is scanned.
+     */
+    protected void rebuildActiveNodes() {
+        List<ManagementServerHostVO> nodes;
+        try {
+            Date cutTime = DateUtil.currentGMTTime();
+            nodes = _mshostDao.getActiveList(new Date(cutTime.getTime() - _clusterMgr.getHeartbeatThreshold()));
+        } catch (Exception e) {
+            s_logger.debug("Unable to read the management server heartbeats, will try again: " + e.getMessage());
+            return;
+        }
+
+        synchronized(_activeNodes) {
+            _activeNodes.clear();
+            for (ManagementServerHostVO node : nodes) {
+                _activeNodes.add(node.getId());
+            }
+            _rebuildActiveNodes = _selfNodeId == null || !_activeNodes.contains(_selfNodeId);
+            if (!_rebuildActiveNodes && s_logger.isDebugEnabled()) {
+                s_logger.debug("Rejoined with " + _activeNodes.size() + " active management servers");
+            }
+        }
+    }
+
     @Override
     public boolean start() {
         return true;
@@ -274,10 +323,6 @@ public class SyncQueueManagerImpl implements SyncQueueManager {
     	return _name;
     }
     
-    private boolean queueReadyToProcess(SyncQueueVO queueVO) {
-        return queueVO.getQueueSize() < queueVO.getQueueSizeLimit();
-    }
-    
     @Override
     public void purgeAsyncJobQueueItemId(long asyncJobId) {
         Long itemId = _syncQueueItemDao.getQueueItemIdByContentIdAndType(asyncJobId, SyncQueueItem.AsyncJobContentType);
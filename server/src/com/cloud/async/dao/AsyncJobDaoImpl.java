@@ -28,6 +28,7 @@ import org.apache.log4j.Logger;
 import com.cloud.async.AsyncJob;
 import com.cloud.async.AsyncJobResult;
 import com.cloud.async.AsyncJobVO;
+import com.cloud.utils.ActionDelegate;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDaoBase;
@@ -42,6 +43,7 @@ public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements
 	private final SearchBuilder<AsyncJobVO> pendingAsyncJobSearch;	
 	private final SearchBuilder<AsyncJobVO> pendingAsyncJobsSearch;	
 	private final SearchBuilder<AsyncJobVO> expiringAsyncJobSearch;		
+	private final SearchBuilder<AsyncJobVO> pollingAsyncJobsSearch;
 	
 	public AsyncJobDaoImpl() {
 		pendingAsyncJobSearch = createSearchBuilder();
@@ -66,6 +68,11 @@ public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements
 		expiringAsyncJobSearch.and("created", expiringAsyncJobSearch.entity().getCreated(), 
 			SearchCriteria.Op.LTEQ);
 		expiringAsyncJobSearch.done();
+
+		pollingAsyncJobsSearch = createSearchBuilder();
+		pollingAsyncJobsSearch.and("ids", pollingAsyncJobsSearch.entity().getId(), SearchCriteria.Op.IN);
+		pollingAsyncJobsSearch.and("status", pollingAsyncJobsSearch.entity().getStatus(), SearchCriteria.Op.EQ);
+		pollingAsyncJobsSearch.done();
 	}
 	
 	public AsyncJobVO findInstancePendingAsyncJob(String instanceType, long instanceId) {
@@ -104,6 +111,23 @@ public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements
 		return listIncludingRemovedBy(sc, filter);
 	}
 
+	@Override
+	public int streamExpiredJobs(Date cutTime, ActionDelegate<AsyncJobVO> delegate) {
+		SearchCriteria<AsyncJobVO> sc = expiringAsyncJobSearch.create();
+		sc.setParameters("created", cutTime);
+		return searchStreamIncludingRemoved(sc, 500, delegate);
+	}
+
+	public void updateLastPolled(List<Long> jobIds, Date lastPolled) {
+		SearchCriteria<AsyncJobVO> sc = pollingAsyncJobsSearch.create();
+		sc.setParameters("ids", jobIds.toArray());
+		sc.setParameters("status", AsyncJobResult.STATUS_IN_PROGRESS);
+
+		AsyncJobVO job = createForUpdate();
+		job.setLastPolled(lastPolled);
+		update(job, sc);
+	}
+
 	@DB
 	public void resetJobProcess(long msid, int jobResultCode, String jobResultMessage) {
 		String sql = "UPDATE async_job SET job_status=" + AsyncJobResult.STATUS_FAILED + ", job_result_code=" + jobResultCode 
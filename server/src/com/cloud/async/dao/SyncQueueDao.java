@@ -22,4 +22,5 @@ import com.cloud.utils.db.GenericDao;
 public interface SyncQueueDao extends GenericDao<SyncQueueVO, Long>{
 	public void ensureQueue(String syncObjType, long syncObjId);
 	public SyncQueueVO find(String syncObjType, long syncObjId);
+	public void releaseQueueSlot(long queueId);
 }
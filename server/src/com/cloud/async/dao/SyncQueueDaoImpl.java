@@ -32,6 +32,7 @@ import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Local(value = { SyncQueueDao.class })
 public class SyncQueueDaoImpl extends GenericDaoBase<SyncQueueVO, Long> implements SyncQueueDao {
@@ -61,6 +62,22 @@ public class SyncQueueDaoImpl extends GenericDaoBase<SyncQueueVO, Long> implemen
         }
     }
 
+    @Override
+    public void releaseQueueSlot(long queueId) {
+        String sql = "UPDATE sync_queue SET queue_size=queue_size-1, last_updated=? WHERE id=? AND queue_size > 0";
+
+        Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt.setString(1, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), DateUtil.currentGMTTime()));
+            pstmt.setLong(2, queueId);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to release a slot of sync queue " + queueId, e);
+        }
+    }
+
     @Override
     public SyncQueueVO find(String syncObjType, long syncObjId) {
         SearchCriteria<SyncQueueVO> sc = TypeIdSearch.create();
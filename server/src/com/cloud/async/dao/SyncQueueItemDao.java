@@ -24,6 +24,19 @@ import com.cloud.utils.db.GenericDao;
 public interface SyncQueueItemDao extends GenericDao<SyncQueueItemVO, Long> {
 	public SyncQueueItemVO getNextQueueItem(long queueId);
 	public List<SyncQueueItemVO> getNextQueueItems(int maxItems);
+
+	/**
+	 * Same as getNextQueueItems(maxItems) but only looks at the queues whose id falls into the given shard.
+	 */
+	public List<SyncQueueItemVO> getNextQueueItems(int maxItems, int shardCount, int shardIndex);
+
+	/**
+	 * Marks the items as being processed by the management server and takes a slot in their queues, as long as
+	 * the item is not being processed already and its queue has room.  Items are claimed with conditional
+	 * updates sent in one batch, no row is locked ahead of time.
+	 * @return the items that have been claimed.
+	 */
+	public List<SyncQueueItemVO> claimQueueItems(List<SyncQueueItemVO> items, long msid);
 	public List<SyncQueueItemVO> getActiveQueueItems(Long msid, boolean exclusive);
 	public List<SyncQueueItemVO> getBlockedQueueItems(long thresholdMs, boolean exclusive);
 	public Long getQueueItemIdByContentIdAndType(long contentId, String contentType);
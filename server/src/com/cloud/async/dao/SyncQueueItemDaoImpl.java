@@ -20,6 +20,7 @@ package com.cloud.async.dao;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -38,6 +39,7 @@ import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.Transaction;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Local(value = { SyncQueueItemDao.class })
 public class SyncQueueItemDaoImpl extends GenericDaoBase<SyncQueueItemVO, Long> implements SyncQueueItemDao {
@@ -75,11 +77,17 @@ public class SyncQueueItemDaoImpl extends GenericDaoBase<SyncQueueItemVO, Long>
 
     @Override
     public List<SyncQueueItemVO> getNextQueueItems(int maxItems) {
+        return getNextQueueItems(maxItems, 1, 0);
+    }
+
+    @Override
+    public List<SyncQueueItemVO> getNextQueueItems(int maxItems, int shardCount, int shardIndex) {
         List<SyncQueueItemVO> l = new ArrayList<SyncQueueItemVO>();
         
         String sql = "SELECT i.id, i.queue_id, i.content_type, i.content_id, i.created " +
                      " FROM sync_queue AS q JOIN sync_queue_item AS i ON q.id = i.queue_id " +
                      " WHERE q.queue_size < q.queue_size_limit AND i.queue_proc_number IS NULL " +
+                     (shardCount > 1 ? " AND q.id % ? = ? " : "") +
                      " GROUP BY q.id " +
                      " ORDER BY i.id " +
                      " LIMIT 0, ?";
@@ -88,7 +96,12 @@ public class SyncQueueItemDaoImpl extends GenericDaoBase<SyncQueueItemVO, Long>
         PreparedStatement pstmt = null;
         try {
             pstmt = txn.prepareAutoCloseStatement(sql);
-            pstmt.setInt(1, maxItems);
+            int i = 1;
+            if (shardCount > 1) {
+                pstmt.setInt(i++, shardCount);
+                pstmt.setInt(i++, shardIndex);
+            }
+            pstmt.setInt(i++, maxItems);
             ResultSet rs = pstmt.executeQuery();
             while(rs.next()) {
                 SyncQueueItemVO item = new SyncQueueItemVO();
@@ -107,6 +120,55 @@ public class SyncQueueItemDaoImpl extends GenericDaoBase<SyncQueueItemVO, Long>
         return l;
     }
 
+    @Override
+    public List<SyncQueueItemVO> claimQueueItems(List<SyncQueueItemVO> items, long msid) {
+        List<SyncQueueItemVO> claimed = new ArrayList<SyncQueueItemVO>();
+        if (items.isEmpty()) {
+            return claimed;
+        }
+
+        // MySQL does not define the order in which the two rows are updated, so the process number given to
+        // the item may be one off from the one recorded in the queue.  It only needs to be non null here.
+        String sql = "UPDATE sync_queue AS q JOIN sync_queue_item AS i ON q.id = i.queue_id " +
+                     " SET q.queue_proc_number = IFNULL(q.queue_proc_number, 0) + 1, q.queue_size = q.queue_size + 1, q.last_updated = ?, " +
+                     " i.queue_proc_number = IFNULL(q.queue_proc_number, 0) + 1, i.queue_proc_msid = ?, i.queue_proc_time = ? " +
+                     " WHERE i.id = ? AND i.queue_proc_number IS NULL AND q.queue_size < q.queue_size_limit";
+
+        Date dt = DateUtil.currentGMTTime();
+        String dtString = DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), dt);
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql);
+            for (SyncQueueItemVO item : items) {
+                pstmt.setString(1, dtString);
+                pstmt.setLong(2, msid);
+                pstmt.setString(3, dtString);
+                pstmt.setLong(4, item.getId());
+                pstmt.addBatch();
+            }
+
+            int[] rows = pstmt.executeBatch();
+            for (int i = 0; i < rows.length; i++) {
+                SyncQueueItemVO item = items.get(i);
+                if (rows[i] == Statement.SUCCESS_NO_INFO) {
+                    SyncQueueItemVO current = findById(item.getId());
+                    if (current == null || current.getLastProcessMsid() == null || current.getLastProcessMsid() != msid) {
+                        continue;
+                    }
+                } else if (rows[i] <= 0) {
+                    continue;
+                }
+
+                item.setLastProcessMsid(msid);
+                item.setLastProcessTime(dt);
+                claimed.add(item);
+            }
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to claim sync queue items", e);
+        }
+        return claimed;
+    }
+
     @Override
     public List<SyncQueueItemVO> getActiveQueueItems(Long msid, boolean exclusive) {
         SearchBuilder<SyncQueueItemVO> sb = createSearchBuilder();
@@ -16,6 +16,8 @@
 // under the License.
 package com.cloud.capacity;
 
+import java.util.List;
+
 import com.cloud.host.HostVO;
 import com.cloud.storage.StoragePoolVO;
 import com.cloud.storage.VMTemplateVO;
@@ -41,6 +43,12 @@ public interface CapacityManager extends Manager {
     boolean checkIfHostHasCapacity(long hostId, Integer cpu, long ram, boolean checkFromReservedCapacity, float cpuOverprovisioningFactor, boolean considerReservedCapacity);
     
 	void updateCapacityForHost(HostVO host);
+	
+	/**
+	 * Recalibrates the cpu/memory capacity of a set of hosts, loading their VMs and capacity rows in bulk.
+	 * @param hosts hosts to recalibrate, typically all the hosts of one cluster
+	 */
+	void updateCapacityForHosts(List<HostVO> hosts);
     
 	/**
      * @param pool storage pool
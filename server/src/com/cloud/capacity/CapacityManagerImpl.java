@@ -17,6 +17,7 @@
 package com.cloud.capacity;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -221,8 +222,10 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
                     + "; new used: " + capacityMemory.getUsedCapacity() + ",reserved:" + capacityMemory.getReservedCapacity()
                     + "; movedfromreserved: " + moveFromReserved + ",moveToReservered" + moveToReservered);
 
-            _capacityDao.update(capacityCpu.getId(), capacityCpu);
-            _capacityDao.update(capacityMemory.getId(), capacityMemory);
+            Map<Long, CapacityVO> capacities = new HashMap<Long, CapacityVO>();
+            capacities.put(capacityCpu.getId(), capacityCpu);
+            capacities.put(capacityMemory.getId(), capacityMemory);
+            _capacityDao.updateBatch(capacities);
             txn.commit();
             return true;
         } catch (Exception e) {
@@ -311,8 +314,10 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
                     + ", total: " + totalMem + "; new used: " + capacityMem.getUsedCapacity() + ", reserved: " + capacityMem.getReservedCapacity()
                     + "; requested mem: " + ram + ",alloc_from_last:" + fromLastHost);
 
-            _capacityDao.update(capacityCpu.getId(), capacityCpu);
-            _capacityDao.update(capacityMem.getId(), capacityMem);
+            Map<Long, CapacityVO> capacities = new HashMap<Long, CapacityVO>();
+            capacities.put(capacityCpu.getId(), capacityCpu);
+            capacities.put(capacityMem.getId(), capacityMem);
+            _capacityDao.updateBatch(capacities);
             txn.commit();
         } catch (Exception e) {
             txn.rollback();
@@ -489,113 +494,171 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
     }
     
     
-    @DB
     @Override
 	public void updateCapacityForHost(HostVO host){
+        List<HostVO> hosts = new ArrayList<HostVO>(1);
+        hosts.add(host);
+        updateCapacityForHosts(hosts);
+    }
+
+    @DB
+    @Override
+    public void updateCapacityForHosts(List<HostVO> hosts) {
+        if (hosts.isEmpty()) {
+            return;
+        }
+
     	// prepare the service offerings
         List<ServiceOfferingVO> offerings = _offeringsDao.listAllIncludingRemoved();
         Map<Long, ServiceOfferingVO> offeringsMap = new HashMap<Long, ServiceOfferingVO>();
         for (ServiceOfferingVO offering : offerings) {
             offeringsMap.put(offering.getId(), offering);
         }
-        
-        long usedCpu = 0;
-        long usedMemory = 0;
-        long reservedMemory = 0;
-        long reservedCpu = 0;
 
-        List<VMInstanceVO> vms = _vmDao.listUpByHostId(host.getId());
-        if (s_logger.isDebugEnabled()) {
-            s_logger.debug("Found " + vms.size() + " VMs on host " + host.getId());
+        List<Long> hostIds = new ArrayList<Long>(hosts.size());
+        for (HostVO host : hosts) {
+            hostIds.add(host.getId());
         }
 
-        for (VMInstanceVO vm : vms) {
-            ServiceOffering so = offeringsMap.get(vm.getServiceOfferingId());
-            usedMemory += so.getRamSize() * 1024L * 1024L;
-            usedCpu += so.getCpu() * so.getSpeed();
+        // load the VMs and capacity rows of all the hosts at once instead of host by host
+        Map<Long, List<VMInstanceVO>> vmsByHost = groupByHost(_vmDao.listUpByHostIds(hostIds), false);
+        Map<Long, List<VMInstanceVO>> vmsByLastHost = groupByHost(_vmDao.listByLastHostIds(hostIds), true);
+        Map<Long, CapacityVO> cpuCaps = new HashMap<Long, CapacityVO>();
+        Map<Long, CapacityVO> memCaps = new HashMap<Long, CapacityVO>();
+        for (CapacityVO cap : _capacityDao.listByHostIdsAndTypes(hostIds, CapacityVO.CAPACITY_TYPE_CPU, CapacityVO.CAPACITY_TYPE_MEMORY)) {
+            if (cap.getCapacityType() == CapacityVO.CAPACITY_TYPE_CPU) {
+                cpuCaps.put(cap.getHostOrPoolId(), cap);
+            } else {
+                memCaps.put(cap.getHostOrPoolId(), cap);
+            }
         }
 
-        List<VMInstanceVO> vmsByLastHostId = _vmDao.listByLastHostId(host.getId());
-        if (s_logger.isDebugEnabled()) {
-            s_logger.debug("Found " + vmsByLastHostId.size() + " VM, not running on host " + host.getId());
-        }
-        for (VMInstanceVO vm : vmsByLastHostId) {
-            long secondsSinceLastUpdate = (DateUtil.currentGMTTime().getTime() - vm.getUpdateTime().getTime()) / 1000;
-            if (secondsSinceLastUpdate < _vmCapacityReleaseInterval) {
+        Map<Long, CapacityVO> calibrated = new HashMap<Long, CapacityVO>();
+        for (HostVO host : hosts) {
+            long usedCpu = 0;
+            long usedMemory = 0;
+            long reservedMemory = 0;
+            long reservedCpu = 0;
+
+            List<VMInstanceVO> vms = vmsByHost.get(host.getId());
+            if (vms == null) {
+                vms = new ArrayList<VMInstanceVO>();
+            }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Found " + vms.size() + " VMs on host " + host.getId());
+            }
+
+            for (VMInstanceVO vm : vms) {
                 ServiceOffering so = offeringsMap.get(vm.getServiceOfferingId());
-                reservedMemory += so.getRamSize() * 1024L * 1024L;
-                reservedCpu += so.getCpu() * so.getSpeed();
+                usedMemory += so.getRamSize() * 1024L * 1024L;
+                usedCpu += so.getCpu() * so.getSpeed();
+            }
+
+            List<VMInstanceVO> vmsByLastHostId = vmsByLastHost.get(host.getId());
+            if (vmsByLastHostId == null) {
+                vmsByLastHostId = new ArrayList<VMInstanceVO>();
+            }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Found " + vmsByLastHostId.size() + " VM, not running on host " + host.getId());
+            }
+            for (VMInstanceVO vm : vmsByLastHostId) {
+                long secondsSinceLastUpdate = (DateUtil.currentGMTTime().getTime() - vm.getUpdateTime().getTime()) / 1000;
+                if (secondsSinceLastUpdate < _vmCapacityReleaseInterval) {
+                    ServiceOffering so = offeringsMap.get(vm.getServiceOfferingId());
+                    reservedMemory += so.getRamSize() * 1024L * 1024L;
+                    reservedCpu += so.getCpu() * so.getSpeed();
+                }
+            }
+
+            CapacityVO cpuCap = cpuCaps.get(host.getId());
+            CapacityVO memCap = memCaps.get(host.getId());
+
+            if (cpuCap != null && memCap != null){
+            	if (cpuCap.getUsedCapacity() == usedCpu && cpuCap.getReservedCapacity() == reservedCpu) {
+            		s_logger.debug("No need to calibrate cpu capacity, host:" + host.getId() + " usedCpu: " + cpuCap.getUsedCapacity()
+            				+ " reservedCpu: " + cpuCap.getReservedCapacity());
+            	} else if (cpuCap.getReservedCapacity() != reservedCpu) {
+            		s_logger.debug("Calibrate reserved cpu for host: " + host.getId() + " old reservedCpu:" + cpuCap.getReservedCapacity()
+            				+ " new reservedCpu:" + reservedCpu);
+            		cpuCap.setReservedCapacity(reservedCpu);
+            		calibrated.put(cpuCap.getId(), cpuCap);
+            	} else if (cpuCap.getUsedCapacity() != usedCpu) {
+            		s_logger.debug("Calibrate used cpu for host: " + host.getId() + " old usedCpu:" + cpuCap.getUsedCapacity() + " new usedCpu:"
+            				+ usedCpu);
+            		cpuCap.setUsedCapacity(usedCpu);
+            		calibrated.put(cpuCap.getId(), cpuCap);
+            	}
+
+                if (memCap.getUsedCapacity() == usedMemory && memCap.getReservedCapacity() == reservedMemory) {
+                    s_logger.debug("No need to calibrate memory capacity, host:" + host.getId() + " usedMem: " + memCap.getUsedCapacity()
+                            + " reservedMem: " + memCap.getReservedCapacity());
+                } else if (memCap.getReservedCapacity() != reservedMemory) {
+                    s_logger.debug("Calibrate reserved memory for host: " + host.getId() + " old reservedMem:" + memCap.getReservedCapacity()
+                            + " new reservedMem:" + reservedMemory);
+                    memCap.setReservedCapacity(reservedMemory);
+                    calibrated.put(memCap.getId(), memCap);
+                } else if (memCap.getUsedCapacity() != usedMemory) {
+                    /*
+                     * Didn't calibrate for used memory, because VMs can be in state(starting/migrating) that I don't know on which host they are
+                     * allocated
+                     */
+                    s_logger.debug("Calibrate used memory for host: " + host.getId() + " old usedMem: " + memCap.getUsedCapacity()
+                            + " new usedMem: " + usedMemory);
+                    memCap.setUsedCapacity(usedMemory);
+                    calibrated.put(memCap.getId(), memCap);
+                }
+            }else {
+            	Transaction txn = Transaction.currentTxn();
+                CapacityState capacityState = _configMgr.findClusterAllocationState(ApiDBUtils.findClusterById(host.getClusterId())) == AllocationState.Disabled ?
+                							  CapacityState.Disabled : CapacityState.Enabled;
+            	List<CapacityVO> capacities = new ArrayList<CapacityVO>(2);
+            	txn.start();
+            	CapacityVO capacity = new CapacityVO(host.getId(),
+                        host.getDataCenterId(), host.getPodId(), host.getClusterId(), usedMemory,
+                        host.getTotalMemory(),
+                        CapacityVO.CAPACITY_TYPE_MEMORY);
+                capacity.setReservedCapacity(reservedMemory);
+                capacity.setCapacityState(capacityState);
+                capacities.add(capacity);
+
+                capacity = new CapacityVO(
+                        host.getId(),
+                        host.getDataCenterId(),
+                        host.getPodId(), 
+                        host.getClusterId(),
+                        usedCpu,
+                        (long)(host.getCpus().longValue() * host.getSpeed().longValue()),
+                        CapacityVO.CAPACITY_TYPE_CPU);
+                capacity.setReservedCapacity(reservedCpu);
+                capacity.setCapacityState(capacityState);
+                capacities.add(capacity);
+                _capacityDao.persistBatch(capacities);
+                txn.commit();
             }
         }
 
-        CapacityVO cpuCap = _capacityDao.findByHostIdType(host.getId(), CapacityVO.CAPACITY_TYPE_CPU);
-        CapacityVO memCap = _capacityDao.findByHostIdType(host.getId(), CapacityVO.CAPACITY_TYPE_MEMORY);
-
-        if (cpuCap != null && memCap != null){
-        	if (cpuCap.getUsedCapacity() == usedCpu && cpuCap.getReservedCapacity() == reservedCpu) {
-        		s_logger.debug("No need to calibrate cpu capacity, host:" + host.getId() + " usedCpu: " + cpuCap.getUsedCapacity()
-        				+ " reservedCpu: " + cpuCap.getReservedCapacity());
-        	} else if (cpuCap.getReservedCapacity() != reservedCpu) {
-        		s_logger.debug("Calibrate reserved cpu for host: " + host.getId() + " old reservedCpu:" + cpuCap.getReservedCapacity()
-        				+ " new reservedCpu:" + reservedCpu);
-        		cpuCap.setReservedCapacity(reservedCpu);
-        	} else if (cpuCap.getUsedCapacity() != usedCpu) {
-        		s_logger.debug("Calibrate used cpu for host: " + host.getId() + " old usedCpu:" + cpuCap.getUsedCapacity() + " new usedCpu:"
-        				+ usedCpu);
-        		cpuCap.setUsedCapacity(usedCpu);
-        	}
-	
-	        if (memCap.getUsedCapacity() == usedMemory && memCap.getReservedCapacity() == reservedMemory) {
-	            s_logger.debug("No need to calibrate memory capacity, host:" + host.getId() + " usedMem: " + memCap.getUsedCapacity()
-	                    + " reservedMem: " + memCap.getReservedCapacity());
-	        } else if (memCap.getReservedCapacity() != reservedMemory) {
-	            s_logger.debug("Calibrate reserved memory for host: " + host.getId() + " old reservedMem:" + memCap.getReservedCapacity()
-	                    + " new reservedMem:" + reservedMemory);
-	            memCap.setReservedCapacity(reservedMemory);
-	        } else if (memCap.getUsedCapacity() != usedMemory) {
-	            /*
-	             * Didn't calibrate for used memory, because VMs can be in state(starting/migrating) that I don't know on which host they are
-	             * allocated
-	             */
-	            s_logger.debug("Calibrate used memory for host: " + host.getId() + " old usedMem: " + memCap.getUsedCapacity()
-	                    + " new usedMem: " + usedMemory);
-	            memCap.setUsedCapacity(usedMemory);
-	        }
-	
-	        try {
-	            _capacityDao.update(cpuCap.getId(), cpuCap);
-	            _capacityDao.update(memCap.getId(), memCap);
-	        } catch (Exception e) {
-	        	s_logger.error("Caught exception while updating cpu/memory capacity for the host " +host.getId(), e);
-	        }
-        }else {
-        	Transaction txn = Transaction.currentTxn();
-            CapacityState capacityState = _configMgr.findClusterAllocationState(ApiDBUtils.findClusterById(host.getClusterId())) == AllocationState.Disabled ?
-            							  CapacityState.Disabled : CapacityState.Enabled;
-        	txn.start();
-        	CapacityVO capacity = new CapacityVO(host.getId(),
-                    host.getDataCenterId(), host.getPodId(), host.getClusterId(), usedMemory,
-                    host.getTotalMemory(),
-                    CapacityVO.CAPACITY_TYPE_MEMORY);
-            capacity.setReservedCapacity(reservedMemory);
-            capacity.setCapacityState(capacityState);
-            _capacityDao.persist(capacity);
-        	
-            capacity = new CapacityVO(
-                    host.getId(),
-                    host.getDataCenterId(),
-                    host.getPodId(), 
-                    host.getClusterId(),
-                    usedCpu,
-                    (long)(host.getCpus().longValue() * host.getSpeed().longValue()),
-                    CapacityVO.CAPACITY_TYPE_CPU);
-            capacity.setReservedCapacity(reservedCpu);
-            capacity.setCapacityState(capacityState);
-            _capacityDao.persist(capacity);
-            txn.commit();
-            
+        // only the rows that actually drifted are written back, in one batch
+        if (!calibrated.isEmpty()) {
+            try {
+                _capacityDao.updateBatch(calibrated);
+            } catch (Exception e) {
+                s_logger.error("Caught exception while updating cpu/memory capacity for the hosts " + hostIds, e);
+            }
         }
-        
+    }
+
+    private Map<Long, List<VMInstanceVO>> groupByHost(List<VMInstanceVO> vms, boolean byLastHost) {
+        Map<Long, List<VMInstanceVO>> grouped = new HashMap<Long, List<VMInstanceVO>>();
+        for (VMInstanceVO vm : vms) {
+            Long hostId = byLastHost ? vm.getLastHostId() : vm.getHostId();
+            List<VMInstanceVO> list = grouped.get(hostId);
+            if (list == null) {
+                list = new ArrayList<VMInstanceVO>();
+                grouped.put(hostId, list);
+            }
+            list.add(vm);
+        }
+        return grouped;
     }
     
     @Override
@@ -26,6 +26,7 @@ import com.cloud.utils.db.GenericDao;
 
 public interface CapacityDao extends GenericDao<CapacityVO, Long> {
 	CapacityVO findByHostIdType(Long hostId, short capacityType);
+	List<CapacityVO> listByHostIdsAndTypes(List<Long> hostIds, short... capacityTypes);
 	List<Long> listClustersInZoneOrPodByHostCapacities(long id, int requiredCpu, long requiredRam, short capacityTypeForOrdering, boolean isZone, float cpuOverprovisioningFactor);
 	List<Long> listHostsWithEnoughCapacity(int requiredCpu, long requiredRam, Long clusterId, String hostType, float cpuOverprovisioningFactor);	
 	boolean removeBy(Short capacityType, Long zoneId, Long podId, Long clusterId, Long hostId);
@@ -33,6 +34,11 @@ public interface CapacityDao extends GenericDao<CapacityVO, Long> {
 	List<SummedCapacity> findNonSharedStorageForClusterPodZone(Long zoneId,Long podId, Long clusterId);
 	Pair<List<Long>, Map<Long, Double>> orderClustersByAggregateCapacity(long id, short capacityType, boolean isZone, float cpuOverprovisioningFactor);
 	List<SummedCapacity> findCapacityBy(Integer capacityType, Long zoneId, Long podId, Long clusterId);
+	/**
+	 * Sums the capacities of a zone in one query, one row per capacity type and scope.
+	 * @param level 1 to group by zone, 2 by pod, 3 by cluster
+	 */
+	List<SummedCapacity> findCapacityInZoneGroupedBy(long zoneId, int level);
 	
     List<Long> listPodsByHostCapacities(long zoneId, int requiredCpu, long requiredRam, short capacityType, float cpuOverprovisioningFactor);
     Pair<List<Long>, Map<Long, Double>> orderPodsByAggregateCapacity(long zoneId, short capacityType, float cpuOverprovisioningFactor);
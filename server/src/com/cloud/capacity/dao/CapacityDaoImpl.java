@@ -60,9 +60,13 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
     private static final String LIST_CLUSTERSINZONE_BY_HOST_CAPACITIES_PART3 = " AND capacity_type = ? AND ((total_capacity * ?) - used_capacity + reserved_capacity) >= ?) ";
     
     private final SearchBuilder<CapacityVO> _hostIdTypeSearch;
+    private final SearchBuilder<CapacityVO> _hostIdsTypesSearch;
 	private final SearchBuilder<CapacityVO> _hostOrPoolIdSearch;
     protected GenericSearchBuilder<CapacityVO, SummedCapacity> SummedCapacitySearch;
 	private SearchBuilder<CapacityVO> _allFieldsSearch;
+    private final GenericSearchBuilder<CapacityVO, SummedCapacity> _zoneSummedByTypeSearch;
+    private final GenericSearchBuilder<CapacityVO, SummedCapacity> _zoneSummedByPodTypeSearch;
+    private final GenericSearchBuilder<CapacityVO, SummedCapacity> _zoneSummedByClusterTypeSearch;
     protected final StoragePoolDaoImpl _storagePoolDao = ComponentLocator.inject(StoragePoolDaoImpl.class);
 
 	
@@ -123,6 +127,11 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
     	_hostIdTypeSearch.and("type", _hostIdTypeSearch.entity().getCapacityType(), SearchCriteria.Op.EQ);
     	_hostIdTypeSearch.done();
     	
+    	_hostIdsTypesSearch = createSearchBuilder();
+    	_hostIdsTypesSearch.and("hostIds", _hostIdsTypesSearch.entity().getHostOrPoolId(), SearchCriteria.Op.IN);
+    	_hostIdsTypesSearch.and("types", _hostIdsTypesSearch.entity().getCapacityType(), SearchCriteria.Op.IN);
+    	_hostIdsTypesSearch.done();
+    	
     	_hostOrPoolIdSearch = createSearchBuilder();
     	_hostOrPoolIdSearch.and("hostId", _hostOrPoolIdSearch.entity().getHostOrPoolId(), SearchCriteria.Op.EQ);
     	_hostOrPoolIdSearch.done();
@@ -137,6 +146,37 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
     	_allFieldsSearch.and("capacityState", _allFieldsSearch.entity().getCapacityState(), SearchCriteria.Op.EQ);
     	
     	_allFieldsSearch.done();
+    	
+    	_zoneSummedByTypeSearch = createZoneSummedCapacitySearch(false, false);
+    	_zoneSummedByPodTypeSearch = createZoneSummedCapacitySearch(true, false);
+    	_zoneSummedByClusterTypeSearch = createZoneSummedCapacitySearch(false, true);
+    }
+    
+    private GenericSearchBuilder<CapacityVO, SummedCapacity> createZoneSummedCapacitySearch(boolean byPod, boolean byCluster) {
+        GenericSearchBuilder<CapacityVO, SummedCapacity> sb = createSearchBuilder(SummedCapacity.class);
+        sb.select("dcId", Func.NATIVE, sb.entity().getDataCenterId());
+        if (byPod || byCluster) {
+            sb.select("podId", Func.NATIVE, sb.entity().getPodId());
+        }
+        if (byCluster) {
+            sb.select("clusterId", Func.NATIVE, sb.entity().getClusterId());
+        }
+        sb.select("sumUsed", Func.SUM, sb.entity().getUsedCapacity());
+        sb.select("sumReserved", Func.SUM, sb.entity().getReservedCapacity());
+        sb.select("sumTotal", Func.SUM, sb.entity().getTotalCapacity());
+        sb.select("capacityType", Func.NATIVE, sb.entity().getCapacityType());
+        sb.and("dcId", sb.entity().getDataCenterId(), Op.EQ);
+        if (byCluster) {
+            sb.and("clusterId", sb.entity().getClusterId(), Op.NNULL);
+            sb.groupBy(sb.entity().getClusterId(), sb.entity().getCapacityType());
+        } else if (byPod) {
+            sb.and("podId", sb.entity().getPodId(), Op.NNULL);
+            sb.groupBy(sb.entity().getPodId(), sb.entity().getCapacityType());
+        } else {
+            sb.groupBy(sb.entity().getCapacityType());
+        }
+        sb.done();
+        return sb;
     }
           
     @Override
@@ -357,6 +397,27 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
     	
     }
     
+    @Override
+    public List<SummedCapacity> findCapacityInZoneGroupedBy(long zoneId, int level) {
+        GenericSearchBuilder<CapacityVO, SummedCapacity> sb;
+        switch (level) {
+            case 1:
+                sb = _zoneSummedByTypeSearch;
+                break;
+            case 2:
+                sb = _zoneSummedByPodTypeSearch;
+                break;
+            case 3:
+                sb = _zoneSummedByClusterTypeSearch;
+                break;
+            default:
+                throw new CloudRuntimeException("Unsupported capacity grouping level " + level);
+        }
+        SearchCriteria<SummedCapacity> sc = sb.create();
+        sc.setParameters("dcId", zoneId);
+        return customSearchIncludingRemoved(sc, null);
+    }
+    
     public void updateAllocated(Long hostId, long allocatedAmount, short capacityType, boolean add) {
         Transaction txn = Transaction.currentTxn();
         PreparedStatement pstmt = null;
@@ -389,6 +450,21 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
     	return findOneBy(sc);
     }  
     
+    @Override
+    public List<CapacityVO> listByHostIdsAndTypes(List<Long> hostIds, short... capacityTypes) {
+        if (hostIds == null || hostIds.isEmpty() || capacityTypes.length == 0) {
+            return new ArrayList<CapacityVO>();
+        }
+        Short[] types = new Short[capacityTypes.length];
+        for (int i = 0; i < capacityTypes.length; i++) {
+            types[i] = capacityTypes[i];
+        }
+        SearchCriteria<CapacityVO> sc = _hostIdsTypesSearch.create();
+        sc.setParameters("hostIds", hostIds.toArray());
+        sc.setParameters("types", (Object[])types);
+        return listBy(sc);
+    }
+    
     @Override
     public List<Long> listClustersInZoneOrPodByHostCapacities(long id, int requiredCpu, long requiredRam, short capacityTypeForOrdering, boolean isZone, float cpuOverprovisioningFactor){
     	Transaction txn = Transaction.currentTxn();
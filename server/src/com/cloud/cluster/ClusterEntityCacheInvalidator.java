@@ -0,0 +1,79 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.InvalidateEntityCacheCommand;
+import com.cloud.utils.db.EntityCacheInvalidator;
+
+/**
+ * Sends the invalidations of the coherent dao caches to the other
+ * management servers in the cluster.  Peers that miss an invalidation
+ * while they are unreachable fall back to the time to live of the cache.
+ */
+public class ClusterEntityCacheInvalidator implements EntityCacheInvalidator, ClusterManagerListener {
+    private static final Logger s_logger = Logger.getLogger(ClusterEntityCacheInvalidator.class);
+
+    private final ClusterManager _clusterMgr;
+    private final Map<Long, String> _peers = new ConcurrentHashMap<Long, String>();
+
+    public ClusterEntityCacheInvalidator(ClusterManager clusterMgr) {
+        _clusterMgr = clusterMgr;
+    }
+
+    @Override
+    public void invalidate(String cacheName, String[] ids) {
+        if (_peers.isEmpty()) {
+            return;
+        }
+
+        Command[] cmds = new Command[] { new InvalidateEntityCacheCommand(cacheName, ids) };
+        for (String peerName : _peers.values()) {
+            try {
+                _clusterMgr.executeAsync(peerName, 0, cmds, false);
+            } catch (Exception e) {
+                s_logger.warn("Unable to send cache invalidation for " + cacheName + " to " + peerName, e);
+            }
+        }
+    }
+
+    @Override
+    public void onManagementNodeJoined(List<ManagementServerHostVO> nodeList, long selfNodeId) {
+        for (ManagementServerHostVO node : nodeList) {
+            if (node.getId() != selfNodeId) {
+                _peers.put(node.getId(), Long.toString(node.getMsid()));
+            }
+        }
+    }
+
+    @Override
+    public void onManagementNodeLeft(List<ManagementServerHostVO> nodeList, long selfNodeId) {
+        for (ManagementServerHostVO node : nodeList) {
+            _peers.remove(node.getId());
+        }
+    }
+
+    @Override
+    public void onManagementNodeIsolated() {
+    }
+}
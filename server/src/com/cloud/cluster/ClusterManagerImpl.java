@@ -37,6 +37,7 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -48,12 +49,17 @@ import org.apache.log4j.Logger;
 import com.cloud.agent.AgentManager;
 import com.cloud.agent.AgentManager.OnError;
 import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.AsyncJobCompletedCommand;
 import com.cloud.agent.api.ChangeAgentAnswer;
 import com.cloud.agent.api.ChangeAgentCommand;
 import com.cloud.agent.api.Command;
+import com.cloud.agent.api.InvalidateEntityCacheCommand;
 import com.cloud.agent.api.PropagateResourceEventCommand;
+import com.cloud.agent.api.ReleaseLockLeaseCommand;
+import com.cloud.agent.api.SecurityGroupWorkCommand;
 import com.cloud.agent.api.TransferAgentCommand;
 import com.cloud.agent.manager.Commands;
+import com.cloud.async.AsyncJobManager;
 import com.cloud.cluster.agentlb.dao.HostTransferMapDao;
 import com.cloud.cluster.dao.ManagementServerHostDao;
 import com.cloud.cluster.dao.ManagementServerHostPeerDao;
@@ -65,6 +71,7 @@ import com.cloud.host.Host;
 import com.cloud.host.HostVO;
 import com.cloud.host.Status.Event;
 import com.cloud.host.dao.HostDao;
+import com.cloud.network.security.SecurityGroupManager;
 import com.cloud.resource.ResourceManager;
 import com.cloud.resource.ResourceState;
 import com.cloud.serializer.GsonHelper;
@@ -78,6 +85,9 @@ import com.cloud.utils.component.Inject;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.ConnectionConcierge;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.GenericDaoBase;
+import com.cloud.utils.db.GlobalLock;
+import com.cloud.utils.db.Merovingian2;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.SearchCriteria2;
 import com.cloud.utils.db.SearchCriteriaService;
@@ -110,6 +120,8 @@ public class ClusterManagerImpl implements ClusterManager {
     private ClusteredAgentRebalanceService _rebalanceService;
     @Inject
     private ResourceManager _resourceMgr;
+    private AsyncJobManager _asyncJobMgr;
+    private SecurityGroupManager _securityGroupMgr;
 
     private final ScheduledExecutorService _heartbeatScheduler = Executors.newScheduledThreadPool(1, new NamedThreadFactory("Cluster-Heartbeat"));
     private final ExecutorService _notificationExecutor = Executors.newFixedThreadPool(1, new NamedThreadFactory("Cluster-Notification"));
@@ -141,9 +153,10 @@ public class ClusterManagerImpl implements ClusterManager {
     private boolean _agentLBEnabled = false;
     private double _connectedAgentsThreshold = 0.7;
     private static boolean _agentLbHappened = false;
+    private int _requestTimeoutSeconds = 300;
     
-    private List<ClusterServicePdu> _clusterPduOutgoingQueue = new ArrayList<ClusterServicePdu>();
-    private List<ClusterServicePdu> _clusterPduIncomingQueue = new ArrayList<ClusterServicePdu>();
+    private final LinkedBlockingQueue<ClusterServicePdu> _clusterPduOutgoingQueue = new LinkedBlockingQueue<ClusterServicePdu>();
+    private final LinkedBlockingQueue<ClusterServicePdu> _clusterPduIncomingQueue = new LinkedBlockingQueue<ClusterServicePdu>();
     private Map<Long, ClusterServiceRequestPdu> _outgoingPdusWaitingForAck = new HashMap<Long, ClusterServiceRequestPdu>();
     
     public ClusterManagerImpl() {
@@ -191,55 +204,35 @@ public class ClusterManagerImpl implements ClusterManager {
         for(ClusterServiceRequestPdu pdu : candidates) {
             s_logger.warn("Cancel cluster request PDU to peer: " + strPeer + ", pdu: " + _gson.toJson(pdu));
             synchronized(pdu) {
+                // an empty result tells the waiting caller there is no answer
+                pdu.setResponseResult("");
                 pdu.notifyAll();
             }
         }
     }
     
     private void addOutgoingClusterPdu(ClusterServicePdu pdu) {
-    	synchronized(_clusterPduOutgoingQueue) {
-    		_clusterPduOutgoingQueue.add(pdu);
-    		_clusterPduOutgoingQueue.notifyAll();
-    	}
+        _clusterPduOutgoingQueue.offer(pdu);
     }
     
     private ClusterServicePdu popOutgoingClusterPdu(long timeoutMs) {
-    	synchronized(_clusterPduOutgoingQueue) {
-    		try {
-				_clusterPduOutgoingQueue.wait(timeoutMs);
-			} catch (InterruptedException e) {
-			}
-			
-			if(_clusterPduOutgoingQueue.size() > 0) {
-				ClusterServicePdu pdu = _clusterPduOutgoingQueue.get(0);
-				_clusterPduOutgoingQueue.remove(0);
-				return pdu;
-			}
-    	}
-    	return null;
+        try {
+            return _clusterPduOutgoingQueue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            return null;
+        }
     }
 
     private void addIncomingClusterPdu(ClusterServicePdu pdu) {
-    	synchronized(_clusterPduIncomingQueue) {
-    		_clusterPduIncomingQueue.add(pdu);
-    		_clusterPduIncomingQueue.notifyAll();
-    	}
+        _clusterPduIncomingQueue.offer(pdu);
     }
     
     private ClusterServicePdu popIncomingClusterPdu(long timeoutMs) {
-    	synchronized(_clusterPduIncomingQueue) {
-    		try {
-    			_clusterPduIncomingQueue.wait(timeoutMs);
-			} catch (InterruptedException e) {
-			}
-			
-			if(_clusterPduIncomingQueue.size() > 0) {
-				ClusterServicePdu pdu = _clusterPduIncomingQueue.get(0);
-				_clusterPduIncomingQueue.remove(0);
-				return pdu;
-			}
-    	}
-    	return null;
+        try {
+            return _clusterPduIncomingQueue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            return null;
+        }
     }
     
     private Runnable getClusterPduSendingTask() {
@@ -318,8 +311,8 @@ public class ClusterManagerImpl implements ClusterManager {
 		                if(pdu.getPduType() == ClusterServicePdu.PDU_TYPE_RESPONSE) {
 		                    ClusterServiceRequestPdu requestPdu = popRequestPdu(pdu.getAckSequenceId());
 		                    if(requestPdu != null) {
-		                        requestPdu.setResponseResult(pdu.getJsonPackage());
 		                        synchronized(requestPdu) {
+		                            requestPdu.setResponseResult(pdu.getJsonPackage() != null ? pdu.getJsonPackage() : "");
 		                            requestPdu.notifyAll();
 		                        }
 		                    } else {
@@ -424,6 +417,43 @@ public class ClusterManagerImpl implements ClusterManager {
         	Answer[] answers = new Answer[1];
         	answers[0] = new Answer(cmd, result, null);
         	return _gson.toJson(answers);
+        } else if (cmds.length == 1 && cmds[0] instanceof InvalidateEntityCacheCommand) {
+            InvalidateEntityCacheCommand cmd = (InvalidateEntityCacheCommand)cmds[0];
+            GenericDaoBase.invalidateCacheFromPeer(cmd.getCacheName(), cmd.getIds());
+
+            Answer[] answers = new Answer[1];
+            answers[0] = new Answer(cmd, true, null);
+            return _gson.toJson(answers);
+        } else if (cmds.length == 1 && cmds[0] instanceof AsyncJobCompletedCommand) {
+            AsyncJobCompletedCommand cmd = (AsyncJobCompletedCommand)cmds[0];
+            if (_asyncJobMgr != null) {
+                _asyncJobMgr.onAsyncJobCompletedOnPeer(cmd.getJobId());
+            }
+
+            Answer[] answers = new Answer[1];
+            answers[0] = new Answer(cmd, true, null);
+            return _gson.toJson(answers);
+        } else if (cmds.length == 1 && cmds[0] instanceof ReleaseLockLeaseCommand) {
+            ReleaseLockLeaseCommand cmd = (ReleaseLockLeaseCommand)cmds[0];
+            Merovingian2 lockMaster = Merovingian2.getLockMaster();
+            if (lockMaster != null) {
+                lockMaster.releaseLeaseForPeer(cmd.getKey());
+            }
+
+            Answer[] answers = new Answer[1];
+            answers[0] = new Answer(cmd, true, null);
+            return _gson.toJson(answers);
+        } else if (cmds.length > 0 && cmds[0] instanceof SecurityGroupWorkCommand) {
+            // rule index changes from a peer come batched, several commands in one pdu
+            Answer[] answers = new Answer[cmds.length];
+            for (int i = 0; i < cmds.length; i++) {
+                SecurityGroupWorkCommand cmd = (SecurityGroupWorkCommand)cmds[i];
+                if (_securityGroupMgr != null) {
+                    _securityGroupMgr.onSecurityGroupWorkFromPeer(cmd);
+                }
+                answers[i] = new Answer(cmd, true, null);
+            }
+            return _gson.toJson(answers);
         }
 
         try {
@@ -561,11 +591,24 @@ public class ClusterManagerImpl implements ClusterManager {
         addOutgoingClusterPdu(pdu);
         
         synchronized(pdu) {
-            try {
-                pdu.wait();
-            } catch (InterruptedException e) {
+            // the answer may come back before we get here, so only wait while there is none
+            long deadline = System.currentTimeMillis() + _requestTimeoutSeconds * 1000L;
+            while(pdu.getResponseResult() == null) {
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0) {
+                    s_logger.warn("Timed out waiting for the answer of peer " + strPeer + " to pdu seq: " + pdu.getSequenceId());
+                    break;
+                }
+                try {
+                    pdu.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
             }
         }
+        // a late answer has nobody left to wait for it
+        popRequestPdu(pdu.getSequenceId());
 
         if(s_logger.isDebugEnabled()) {
             s_logger.debug(getSelfPeerName() + " -> " + strPeer + "." + agentId + " completed. result: " +
@@ -660,6 +703,7 @@ public class ClusterManagerImpl implements ClusterManager {
             if(s_logger.isDebugEnabled())
                 s_logger.debug("Leaving node, IP: " + mshost.getServiceIP() + ", msid: " + mshost.getMsid());
             cancelClusterRequestToPeer(String.valueOf(mshost.getMsid()));
+            invalidatePeerService(String.valueOf(mshost.getMsid()));
         }
 
         synchronized(_listeners) {
@@ -711,6 +755,7 @@ public class ClusterManagerImpl implements ClusterManager {
                 _clusterPeers.remove(strPeer);
             }
         }
+        _currentServiceAdapter.invalidatePeerService(strPeer);
     }
 
     private Runnable getHeartbeatTask() {
@@ -1256,6 +1301,10 @@ public class ClusterManagerImpl implements ClusterManager {
             throw new ConfigurationException("Unable to get " + AgentManager.class.getName());
         }
 
+        // not every server flavor runs async jobs
+        _asyncJobMgr = locator.getManager(AsyncJobManager.class);
+        _securityGroupMgr = locator.getManager(SecurityGroupManager.class);
+
         _mshostDao = locator.getDao(ManagementServerHostDao.class);
         if (_mshostDao == null) {
             throw new ConfigurationException("Unable to get " + ManagementServerHostDao.class.getName());
@@ -1336,6 +1385,7 @@ public class ClusterManagerImpl implements ClusterManager {
         }
 
         _agentLBEnabled = Boolean.valueOf(configDao.getValue(Config.AgentLbEnable.key()));
+        _requestTimeoutSeconds = NumbersUtil.parseInt(configs.get(Config.ClusterMessageTimeOutSeconds.key()), 300);
         
         String connectedAgentsThreshold = configs.get("agent.load.threshold");
         
@@ -1343,7 +1393,15 @@ public class ClusterManagerImpl implements ClusterManager {
             _connectedAgentsThreshold = Double.parseDouble(connectedAgentsThreshold);
         }
 
-        this.registerListener(new LockMasterListener(_msId));
+        int lockLeaseTime = NumbersUtil.parseInt(configs.get(Config.LockLeaseTime.key()), 60);
+        this.registerListener(new LockMasterListener(_msId, this, lockLeaseTime));
+        if (Boolean.parseBoolean(configs.get(Config.LockGlobalUseOpLock.key()))) {
+            GlobalLock.setLockMaster(Merovingian2.getLockMaster());
+        }
+
+        ClusterEntityCacheInvalidator cacheInvalidator = new ClusterEntityCacheInvalidator(this);
+        this.registerListener(cacheInvalidator);
+        GenericDaoBase.setCacheInvalidator(cacheInvalidator);
 
         checkConflicts();
 
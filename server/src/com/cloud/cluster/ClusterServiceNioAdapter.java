@@ -0,0 +1,162 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.nio.channels.ClosedChannelException;
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.ejb.Local;
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.mgmt.JmxUtil;
+import com.cloud.utils.nio.HandlerFactory;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.NioServer;
+import com.cloud.utils.nio.Task;
+
+/**
+ * Delivers cluster PDUs over one persistent connection per peer.  The connection listens next to the cluster
+ * servlet, which keeps running for peers that cannot be reached over it.
+ */
+@Local(value={ClusterServiceAdapter.class})
+public class ClusterServiceNioAdapter extends ClusterServiceServletAdapter implements HandlerFactory {
+    private static final Logger s_logger = Logger.getLogger(ClusterServiceNioAdapter.class);
+
+    // peers find the channel port from the servlet port they publish in the mshost table
+    public static final int CHANNEL_PORT_OFFSET = 1;
+    private static final int MAX_PDUS_IN_FLIGHT = 1000;
+
+    private final ConcurrentMap<String, ClusterServicePeerChannel> _channels = new ConcurrentHashMap<String, ClusterServicePeerChannel>();
+    private final ExecutorService _channelExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("Cluster-Channel"));
+    private NioServer _server;
+
+    @Override
+    public ClusterService getPeerService(String strPeer) throws RemoteException {
+        ClusterService servletService = super.getPeerService(strPeer);
+        if (servletService == null) {
+            return null;
+        }
+
+        ClusterServicePeerChannel channel = _channels.get(strPeer);
+        if (channel != null) {
+            return channel;
+        }
+
+        ManagementServerHostVO mshost = _mshostDao.findByMsid(Long.parseLong(strPeer));
+        if (mshost == null) {
+            return servletService;
+        }
+        channel = new ClusterServicePeerChannel(strPeer, mshost.getServiceIP(), mshost.getServicePort() + CHANNEL_PORT_OFFSET, servletService,
+                _channelExecutor, _clusterRequestTimeoutSeconds, MAX_PDUS_IN_FLIGHT);
+        ClusterServicePeerChannel existing = _channels.putIfAbsent(strPeer, channel);
+        if (existing != null) {
+            return existing;
+        }
+
+        try {
+            JmxUtil.registerMBean("ClusterPeerChannel", "Peer " + strPeer, new StandardMBean(channel, ClusterServicePeerChannelMBean.class));
+        } catch (Exception e) {
+            s_logger.warn("Unable to register cluster channel to peer " + strPeer + " for JMX", e);
+        }
+        return channel;
+    }
+
+    @Override
+    public boolean start() {
+        super.start();
+
+        int port = getServicePort() + CHANNEL_PORT_OFFSET;
+        // a single handler thread keeps the PDUs from every connection in the order they arrived
+        _server = new NioServer("ClusterService-Channel", port, 1, this);
+        _server.start();
+        if (!_server.isStartup()) {
+            s_logger.warn("Unable to listen for cluster channels on port " + port + ", peers will use the cluster servlet");
+        }
+        return true;
+    }
+
+    @Override
+    public void invalidatePeerService(String strPeer) {
+        ClusterServicePeerChannel channel = _channels.remove(strPeer);
+        if (channel != null) {
+            closeChannel(channel);
+        }
+    }
+
+    private void closeChannel(ClusterServicePeerChannel channel) {
+        channel.close();
+        try {
+            JmxUtil.unregisterMBean("ClusterPeerChannel", "Peer " + channel.getPeer());
+        } catch (Exception e) {
+            s_logger.debug("Unable to unregister cluster channel to peer " + channel.getPeer() + " from JMX: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean stop() {
+        for (ClusterServicePeerChannel channel : _channels.values()) {
+            closeChannel(channel);
+        }
+        _channels.clear();
+        if (_server != null) {
+            _server.stop();
+        }
+        _channelExecutor.shutdown();
+        return super.stop();
+    }
+
+    @Override
+    public Task create(Task.Type type, Link link, byte[] data) {
+        return new IncomingTask(type, link, data);
+    }
+
+    private class IncomingTask extends Task {
+        IncomingTask(Task.Type type, Link link, byte[] data) {
+            super(type, link, data);
+        }
+
+        @Override
+        protected void doTask(Task task) throws Exception {
+            if (task.getType() != Task.Type.DATA) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Cluster channel " + task.getType() + " from " + task.getLink().getSocketAddress());
+                }
+                return;
+            }
+
+            ClusterServicePduFrame frame = ClusterServicePduFrame.decode(task.getData());
+            if (frame.getType() != ClusterServicePduFrame.TYPE_PDUS) {
+                return;
+            }
+            for (ClusterServicePdu pdu : frame.getPdus()) {
+                _manager.OnReceiveClusterServicePdu(pdu);
+            }
+            try {
+                task.getLink().send(ClusterServicePduFrame.ack(frame.getFrameId(), frame.getCount()).encode());
+            } catch (ClosedChannelException e) {
+                s_logger.debug("Unable to acknowledge cluster frame " + frame.getFrameId() + ", the connection is closed");
+            }
+        }
+    }
+}
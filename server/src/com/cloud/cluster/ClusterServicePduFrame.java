@@ -0,0 +1,159 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Binary frame carried over the persistent channel between management servers: either a batch of PDUs
+ * or the acknowledgement of such a batch.  The Link underneath adds the length header and splits and
+ * reassembles frames that do not fit in one packet.
+ */
+public class ClusterServicePduFrame {
+    public static final byte TYPE_PDUS = 1;
+    public static final byte TYPE_ACK = 2;
+
+    private static final byte VERSION = 1;
+
+    private final byte _type;
+    private final long _frameId;
+    private final List<ClusterServicePdu> _pdus;
+    private final int _count;
+
+    private ClusterServicePduFrame(byte type, long frameId, List<ClusterServicePdu> pdus, int count) {
+        _type = type;
+        _frameId = frameId;
+        _pdus = pdus;
+        _count = count;
+    }
+
+    public static ClusterServicePduFrame pdus(long frameId, List<ClusterServicePdu> pdus) {
+        return new ClusterServicePduFrame(TYPE_PDUS, frameId, pdus, pdus.size());
+    }
+
+    public static ClusterServicePduFrame ack(long frameId, int count) {
+        return new ClusterServicePduFrame(TYPE_ACK, frameId, null, count);
+    }
+
+    public byte getType() {
+        return _type;
+    }
+
+    public long getFrameId() {
+        return _frameId;
+    }
+
+    /**
+     * @return the PDUs of a TYPE_PDUS frame, null for an acknowledgement
+     */
+    public List<ClusterServicePdu> getPdus() {
+        return _pdus;
+    }
+
+    /**
+     * @return number of PDUs carried or acknowledged
+     */
+    public int getCount() {
+        return _count;
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(_type == TYPE_PDUS ? 512 * _count : 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            out.writeByte(_type);
+            out.writeLong(_frameId);
+            out.writeInt(_count);
+            if (_type == TYPE_PDUS) {
+                for (ClusterServicePdu pdu : _pdus) {
+                    out.writeLong(pdu.getSequenceId());
+                    out.writeLong(pdu.getAckSequenceId());
+                    out.writeInt(pdu.getPduType());
+                    writeString(out, pdu.getSourcePeer());
+                    writeString(out, pdu.getDestPeer());
+                    out.writeLong(pdu.getAgentId());
+                    out.writeBoolean(pdu.isStopOnError());
+                    writeString(out, pdu.getJsonPackage());
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to encode cluster frame " + _frameId, e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static ClusterServicePduFrame decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported cluster frame version " + version);
+        }
+        byte type = in.readByte();
+        long frameId = in.readLong();
+        int count = in.readInt();
+        if (type == TYPE_ACK) {
+            return ack(frameId, count);
+        } else if (type != TYPE_PDUS) {
+            throw new IOException("Unknown cluster frame type " + type);
+        }
+
+        List<ClusterServicePdu> pdus = new ArrayList<ClusterServicePdu>(count);
+        for (int i = 0; i < count; i++) {
+            ClusterServicePdu pdu = new ClusterServicePdu();
+            pdu.setSequenceId(in.readLong());
+            pdu.setAckSequenceId(in.readLong());
+            pdu.setPduType(in.readInt());
+            pdu.setSourcePeer(readString(in));
+            pdu.setDestPeer(readString(in));
+            pdu.setAgentId(in.readLong());
+            pdu.setStopOnError(in.readBoolean());
+            pdu.setJsonPackage(readString(in));
+            pdus.add(pdu);
+        }
+        return pdus(frameId, pdus);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
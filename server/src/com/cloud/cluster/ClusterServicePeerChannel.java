@@ -0,0 +1,416 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.nio.channels.ClosedChannelException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.nio.HandlerFactory;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.NioClient;
+import com.cloud.utils.nio.Task;
+
+/**
+ * Cluster service of one peer over a persistent connection.  PDUs queued while a frame is being written
+ * go out together in the next frame, and the peer acknowledges every frame so that the number of PDUs
+ * in flight stays bounded.  Until the connection is up, and for the PDUs that could not be written
+ * before it went down, the servlet service of the peer is used instead.
+ */
+public class ClusterServicePeerChannel implements ClusterService, HandlerFactory, ClusterServicePeerChannelMBean {
+    private static final Logger s_logger = Logger.getLogger(ClusterServicePeerChannel.class);
+
+    private static final int MAX_PDUS_PER_FRAME = 256;
+    private static final long RECONNECT_INTERVAL_MS = 60000;
+
+    private final String _peer;
+    private final String _host;
+    private final int _port;
+    private final ClusterService _fallback;
+    private final ExecutorService _executor;
+    private final int _requestTimeoutSeconds;
+    private final int _maxPdusInFlight;
+
+    private final ConcurrentLinkedQueue<ClusterServicePdu> _pending = new ConcurrentLinkedQueue<ClusterServicePdu>();
+    private final Map<Long, SentFrame> _unacked = new ConcurrentHashMap<Long, SentFrame>();
+    private final Semaphore _window;
+    private final AtomicBoolean _flushScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean _connecting = new AtomicBoolean(false);
+    private volatile long _lastConnectAttempt = 0;
+    private volatile boolean _closed = false;
+
+    private NioClient _client;
+    private volatile Link _link;
+
+    private final AtomicLong _nextFrameId = new AtomicLong(0);
+    private final AtomicLong _pdusSent = new AtomicLong(0);
+    private final AtomicLong _framesSent = new AtomicLong(0);
+    private final AtomicLong _fallbackPdus = new AtomicLong(0);
+    private final AtomicLong _framesAcked = new AtomicLong(0);
+    private final AtomicLong _totalAckLatency = new AtomicLong(0);
+    private final AtomicLong _maxAckLatency = new AtomicLong(0);
+
+    private static class SentFrame {
+        final long sentAt;
+        final List<ClusterServicePdu> pdus;
+
+        SentFrame(long sentAt, List<ClusterServicePdu> pdus) {
+            this.sentAt = sentAt;
+            this.pdus = pdus;
+        }
+    }
+
+    public ClusterServicePeerChannel(String peer, String host, int port, ClusterService fallback, ExecutorService executor,
+            int requestTimeoutSeconds, int maxPdusInFlight) {
+        _peer = peer;
+        _host = host;
+        _port = port;
+        _fallback = fallback;
+        _executor = executor;
+        _requestTimeoutSeconds = requestTimeoutSeconds;
+        _maxPdusInFlight = maxPdusInFlight;
+        _window = new Semaphore(maxPdusInFlight);
+    }
+
+    @Override
+    public String execute(ClusterServicePdu pdu) throws RemoteException {
+        if (_link == null || _closed) {
+            connect();
+            _fallbackPdus.incrementAndGet();
+            return _fallback.execute(pdu);
+        }
+
+        try {
+            // backpressure: wait for the peer to catch up instead of queueing without bound
+            if (!_window.tryAcquire(_requestTimeoutSeconds, TimeUnit.SECONDS)) {
+                s_logger.warn("Timed out waiting for peer " + _peer + " to acknowledge " + _maxPdusInFlight + " PDUs, pdu seq: " + pdu.getSequenceId());
+                return null;
+            }
+        } catch (InterruptedException e) {
+            return null;
+        }
+        _pending.offer(pdu);
+        if (_flushScheduled.compareAndSet(false, true)) {
+            _executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        }
+        return "true";
+    }
+
+    @Override
+    public boolean ping(String callingPeer) throws RemoteException {
+        return _fallback.ping(callingPeer);
+    }
+
+    private void flush() {
+        while (true) {
+            List<ClusterServicePdu> pdus = new ArrayList<ClusterServicePdu>();
+            ClusterServicePdu pdu;
+            while ((pdu = _pending.poll()) != null) {
+                pdus.add(pdu);
+                if (pdus.size() == MAX_PDUS_PER_FRAME) {
+                    send(pdus);
+                    pdus = new ArrayList<ClusterServicePdu>();
+                }
+            }
+            if (!pdus.isEmpty()) {
+                send(pdus);
+            }
+
+            _flushScheduled.set(false);
+            if (_pending.isEmpty() || !_flushScheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private void send(List<ClusterServicePdu> pdus) {
+        Link link = _link;
+        if (link != null) {
+            long frameId = _nextFrameId.incrementAndGet();
+            _unacked.put(frameId, new SentFrame(System.currentTimeMillis(), pdus));
+            // disconnected() may have drained _unacked just before the put, nobody would ever ack or fail the frame then
+            if (_link != link) {
+                if (_unacked.remove(frameId) == null) {
+                    // drained right after the put after all, its PDUs have been failed already
+                    return;
+                }
+            } else {
+                try {
+                    link.send(ClusterServicePduFrame.pdus(frameId, pdus).encode());
+                    _framesSent.incrementAndGet();
+                    _pdusSent.addAndGet(pdus.size());
+                    return;
+                } catch (ClosedChannelException e) {
+                    boolean failed = _unacked.remove(frameId) == null;
+                    disconnected(link);
+                    if (failed) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        // these never made it onto the connection, so they can go through the servlet without being delivered twice
+        _window.release(pdus.size());
+        for (ClusterServicePdu pdu : pdus) {
+            _fallbackPdus.incrementAndGet();
+            try {
+                if (!"true".equals(_fallback.execute(pdu))) {
+                    s_logger.warn("Unable to deliver PDU to peer " + _peer + ", pdu seq: " + pdu.getSequenceId());
+                }
+            } catch (RemoteException e) {
+                s_logger.warn("Unable to deliver PDU to peer " + _peer + ", pdu seq: " + pdu.getSequenceId() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Opens the connection in the background; PDUs keep going through the servlet until it is up.
+     */
+    private void connect() {
+        long now = System.currentTimeMillis();
+        if (_closed || now - _lastConnectAttempt < RECONNECT_INTERVAL_MS || !_connecting.compareAndSet(false, true)) {
+            return;
+        }
+        _lastConnectAttempt = now;
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    NioClient client = new NioClient("ClusterPeer-" + _peer, _host, _port, 1, ClusterServicePeerChannel.this);
+                    client.start();
+                    if (!client.isStartup()) {
+                        s_logger.info("Unable to connect to peer " + _peer + " at " + _host + ":" + _port + ", using the cluster servlet for now");
+                        client.stop();
+                        return;
+                    }
+                    synchronized (ClusterServicePeerChannel.this) {
+                        if (!_closed) {
+                            _client = client;
+                            client = null;
+                        }
+                    }
+                    if (client != null) {
+                        client.stop();
+                    }
+                } catch (Throwable e) {
+                    s_logger.warn("Unable to connect to peer " + _peer + " at " + _host + ":" + _port, e);
+                } finally {
+                    _connecting.set(false);
+                }
+            }
+        });
+    }
+
+    private void connected(Link link) {
+        synchronized (this) {
+            if (_closed) {
+                link.close();
+                return;
+            }
+            _link = link;
+        }
+        s_logger.info("Connected to peer " + _peer + " at " + _host + ":" + _port);
+    }
+
+    private void disconnected(Link link) {
+        NioClient client;
+        synchronized (this) {
+            if (_link != link) {
+                return;
+            }
+            _link = null;
+            client = _client;
+            _client = null;
+        }
+
+        int lost = 0;
+        List<ClusterServiceRequestPdu> requests = new ArrayList<ClusterServiceRequestPdu>();
+        Iterator<SentFrame> it = _unacked.values().iterator();
+        while (it.hasNext()) {
+            for (ClusterServicePdu pdu : it.next().pdus) {
+                if (pdu instanceof ClusterServiceRequestPdu) {
+                    requests.add((ClusterServiceRequestPdu)pdu);
+                }
+                lost++;
+            }
+            it.remove();
+        }
+        _window.release(lost);
+        if (lost > 0) {
+            s_logger.warn("Connection to peer " + _peer + " closed with " + lost + " PDUs not acknowledged, they may not have been delivered");
+        } else {
+            s_logger.info("Connection to peer " + _peer + " closed");
+        }
+
+        // nobody will answer the requests the peer never acknowledged, fail them instead of leaving the callers waiting
+        for (ClusterServiceRequestPdu request : requests) {
+            synchronized (request) {
+                if (request.getResponseResult() == null) {
+                    request.setResponseResult("");
+                }
+                request.notifyAll();
+            }
+        }
+        if (client != null) {
+            client.stop();
+        }
+    }
+
+    private void acked(long frameId) {
+        SentFrame frame = _unacked.remove(frameId);
+        if (frame == null) {
+            return;
+        }
+        _window.release(frame.pdus.size());
+        long latency = System.currentTimeMillis() - frame.sentAt;
+        _framesAcked.incrementAndGet();
+        _totalAckLatency.addAndGet(latency);
+        long max = _maxAckLatency.get();
+        while (latency > max && !_maxAckLatency.compareAndSet(max, latency)) {
+            max = _maxAckLatency.get();
+        }
+    }
+
+    /**
+     * Closes the connection for good, PDUs still handed to this channel go through the servlet.
+     */
+    public void close() {
+        NioClient client = null;
+        synchronized (this) {
+            _closed = true;
+            if (_link == null) {
+                // not connected yet, there is only the client to stop
+                client = _client;
+                _client = null;
+            }
+        }
+        Link link = _link;
+        if (link != null) {
+            link.close();
+            disconnected(link);
+        } else if (client != null) {
+            client.stop();
+        }
+    }
+
+    @Override
+    public Task create(Task.Type type, Link link, byte[] data) {
+        return new ChannelTask(type, link, data);
+    }
+
+    private class ChannelTask extends Task {
+        ChannelTask(Task.Type type, Link link, byte[] data) {
+            super(type, link, data);
+        }
+
+        @Override
+        protected void doTask(Task task) throws Exception {
+            switch (task.getType()) {
+            case CONNECT:
+                connected(task.getLink());
+                break;
+            case DATA:
+                ClusterServicePduFrame frame = ClusterServicePduFrame.decode(task.getData());
+                if (frame.getType() == ClusterServicePduFrame.TYPE_ACK) {
+                    acked(frame.getFrameId());
+                }
+                break;
+            case DISCONNECT:
+                disconnected(task.getLink());
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    @Override
+    public String getPeer() {
+        return _peer;
+    }
+
+    @Override
+    public String getEndpoint() {
+        return _host + ":" + _port;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return _link != null;
+    }
+
+    @Override
+    public long getPdusSent() {
+        return _pdusSent.get();
+    }
+
+    @Override
+    public long getFramesSent() {
+        return _framesSent.get();
+    }
+
+    @Override
+    public long getFallbackPdus() {
+        return _fallbackPdus.get();
+    }
+
+    @Override
+    public int getPdusInFlight() {
+        return _maxPdusInFlight - _window.availablePermits();
+    }
+
+    @Override
+    public long getFramesAcked() {
+        return _framesAcked.get();
+    }
+
+    @Override
+    public long getAverageAckLatencyMs() {
+        long acked = _framesAcked.get();
+        return acked == 0 ? 0 : _totalAckLatency.get() / acked;
+    }
+
+    @Override
+    public long getMaxAckLatencyMs() {
+        return _maxAckLatency.get();
+    }
+
+    @Override
+    public void resetLatency() {
+        _framesAcked.set(0);
+        _totalAckLatency.set(0);
+        _maxAckLatency.set(0);
+    }
+}
@@ -43,9 +43,9 @@ public class ClusterServiceServletAdapter implements ClusterServiceAdapter {
     private static final int DEFAULT_SERVICE_PORT = 9090;
     private static final int DEFAULT_REQUEST_TIMEOUT = 300;			// 300 seconds
     
-    private ClusterManager _manager;
+    protected ClusterManager _manager;
     
-    private ManagementServerHostDao _mshostDao;
+    protected ManagementServerHostDao _mshostDao;
     
     private ConfigurationDao _configDao;
     
@@ -54,7 +54,7 @@ public class ClusterServiceServletAdapter implements ClusterServiceAdapter {
     private String _name;
     private int _clusterServicePort = DEFAULT_SERVICE_PORT;
     
-    private int _clusterRequestTimeoutSeconds = DEFAULT_REQUEST_TIMEOUT;
+    protected int _clusterRequestTimeoutSeconds = DEFAULT_REQUEST_TIMEOUT;
     
     @Override
 	public ClusterService getPeerService(String strPeer) throws RemoteException {
@@ -94,6 +94,11 @@ public class ClusterServiceServletAdapter implements ClusterServiceAdapter {
 	public int getServicePort() {
     	return _clusterServicePort;
     }
+
+    @Override
+    public void invalidatePeerService(String strPeer) {
+        // every call builds its own servlet client, there is nothing kept per peer
+    }
     
     private String composeEndpointName(String nodeIP, int port) {
     	StringBuffer sb = new StringBuffer();
@@ -128,7 +133,7 @@ public class ClusterServiceServletAdapter implements ClusterServiceAdapter {
     	return true;
     }
     
-    private void init() throws ConfigurationException {
+    protected void init() throws ConfigurationException {
     	if(_mshostDao != null)
     		return;
     	
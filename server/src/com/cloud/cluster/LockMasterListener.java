@@ -18,19 +18,45 @@ package com.cloud.cluster;
 
 import java.util.List;
 
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.ReleaseLockLeaseCommand;
+import com.cloud.utils.db.LockLeaseRouter;
 import com.cloud.utils.db.Merovingian2;
 
 /**
  * when a management server is down.
  *
+ * It also routes the requests to release a lock to the management server
+ * that owns it.
  */
-public class LockMasterListener implements ClusterManagerListener {
+public class LockMasterListener implements ClusterManagerListener, LockLeaseRouter {
+    private static final Logger s_logger = Logger.getLogger(LockMasterListener.class);
+
     Merovingian2 _lockMaster;
+    ClusterManager _clusterMgr;
     
     public LockMasterListener(long msId) {
         _lockMaster = Merovingian2.createLockMaster(msId);
     }
 
+    public LockMasterListener(long msId, ClusterManager clusterMgr, int leaseTime) {
+        this(msId);
+        _clusterMgr = clusterMgr;
+        _lockMaster.setLeaseTime(leaseTime);
+        _lockMaster.setLeaseRouter(this);
+    }
+
+    @Override
+    public void requestRelease(long ownerMsId, String key) {
+        try {
+            _clusterMgr.executeAsync(Long.toString(ownerMsId), 0, new Command[] { new ReleaseLockLeaseCommand(key) }, false);
+        } catch (Exception e) {
+            s_logger.warn("Unable to ask " + ownerMsId + " to release lck-" + key, e);
+        }
+    }
+
     @Override
     public void onManagementNodeJoined(List<ManagementServerHostVO> nodeList, long selfNodeId) {
     }
@@ -44,6 +70,8 @@ public class LockMasterListener implements ClusterManagerListener {
 
     @Override
     public void onManagementNodeIsolated() {
+        // the peers delete the rows of an isolated server, none of its leases can be trusted any more
+        _lockMaster.dropLeases();
     }
 
 }
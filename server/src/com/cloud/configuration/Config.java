@@ -47,6 +47,7 @@ public enum Config {
 	AlertSMTPUsername("Alert", ManagementServer.class, String.class, "alert.smtp.username", null, "Username for SMTP authentication (applies only if alert.smtp.useAuth is true).", null),
 	AlertWait("Alert", AgentManager.class, Integer.class, "alert.wait", null, "Seconds to wait before alerting on a disconnected agent", null),
 	CapacityCheckPeriod("Alert", ManagementServer.class, Integer.class, "capacity.check.period", "300000", "The interval in milliseconds between capacity checks", null),
+	CapacityCalculateWorkers("Alert", ManagementServer.class, Integer.class, "capacity.calculate.workers", "4", "Number of threads used to recalculate host, storage and ip capacities; the work is partitioned per cluster, storage pool, zone and pod", null),
 	StorageAllocatedCapacityThreshold("Alert", ManagementServer.class, Float.class, "cluster.storage.allocated.capacity.notificationthreshold", "0.75", "Percentage (as a value between 0 and 1) of allocated storage utilization above which alerts will be sent about low storage available.", null),
 	StorageCapacityThreshold("Alert", ManagementServer.class, Float.class, "cluster.storage.capacity.notificationthreshold", "0.75", "Percentage (as a value between 0 and 1) of storage utilization above which alerts will be sent about low storage available.", null),
 	CPUCapacityThreshold("Alert", ManagementServer.class, Float.class, "cluster.cpu.allocated.capacity.notificationthreshold", "0.75", "Percentage (as a value between 0 and 1) of cpu utilization above which alerts will be sent about low cpu available.", null),
@@ -101,7 +102,10 @@ public enum Config {
 	SecurityGroupWorkCleanupInterval("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.cleanup.interval", "120", "Time interval (seconds) in which finished work is cleaned up from the work table", null),
 	SecurityGroupWorkerThreads("Network", ManagementServer.class, Integer.class, "network.securitygroups.workers.pool.size", "50", "Number of worker threads processing the security group update work queue", null),
 	SecurityGroupWorkGlobalLockTimeout("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.lock.timeout", "300", "Lock wait timeout (seconds) while updating the security group work queue", null),
+	SecurityGroupRuleIndexTtl("Network", ManagementServer.class, Integer.class, "network.securitygroups.ruleindex.ttl", "0", "Seconds the rules and running members of a security group are kept in memory to compute vm rulesets before being reloaded; changes made through this management server are applied immediately, changes made through the other management servers only once reloaded. 0 reads them from the database for every ruleset", null),
 	SecurityGroupWorkPerAgentMaxQueueSize("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.per.agent.queue.size", "100", "The number of outstanding security group work items that can be queued to a host. If exceeded, work items will get dropped to conserve memory. Security Group Sync will take care of ensuring that the host gets updated eventually", null),
+	SecurityGroupWorkQueue("Network", ManagementServer.class, String.class, "network.securitygroups.work.queue", "local", "Where the security group update work is queued: local queues it on the management server that scheduled it, clustered queues it on the management server that owns the host of the vm", "local,clustered"),
+	SecurityGroupWorkBatchSize("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.batch.size", "20", "The maximum number of security group work items a worker takes at once; the rulesets for the vms on the same host are sent to it in one request", null),
 	
 	SecurityGroupDefaultAdding("Network", ManagementServer.class, Boolean.class, "network.securitygroups.defaultadding", "true", "If true, the user VM would be added to the default security group by default", null),
 	
@@ -139,6 +143,7 @@ public enum Config {
 	// Advanced
     JobExpireMinutes("Advanced", ManagementServer.class, String.class, "job.expire.minutes", "1440", "Time (in minutes) for async-jobs to be kept in system", null),
     JobCancelThresholdMinutes("Advanced", ManagementServer.class, String.class, "job.cancel.threshold.minutes", "60", "Time (in minutes) for async-jobs to be forcely cancelled if it has been in process for long", null),
+    JobQueryMaxWaitSeconds("Advanced", ManagementServer.class, Integer.class, "job.query.max.wait.seconds", "30", "Maximum time (in seconds) a queryAsyncJobResult call may wait for an unfinished job to complete", null),
     SwiftEnable("Advanced", ManagementServer.class, Boolean.class, "swift.enable", "false", "enable swift ", null),
 	
 	EventPurgeInterval("Advanced", ManagementServer.class, Integer.class, "event.purge.interval", "86400", "The interval (in seconds) to wait before running the event purge thread", null),
@@ -148,6 +153,9 @@ public enum Config {
 	ExpungeDelay("Advanced", UserVmManager.class, Integer.class, "expunge.delay", "86400", "Determines how long (in seconds) to wait before actually expunging destroyed vm. The default value = the default value of expunge.interval", null),
 	ExpungeInterval("Advanced", UserVmManager.class, Integer.class, "expunge.interval", "86400", "The interval (in seconds) to wait before running the expunge thread.", null),
 	ExpungeWorkers("Advanced", UserVmManager.class, Integer.class, "expunge.workers",  "1", "Number of workers performing expunge ", null),
+	VmBulkDeployMaxCount("Advanced", UserVmManager.class, Integer.class, "vm.bulk.deploy.max", "100", "Maximum number of vms that can be requested in one deployVirtualMachines call", null),
+	VmBulkDeployWorkers("Advanced", UserVmManager.class, Integer.class, "vm.bulk.deploy.workers", "8", "Number of threads starting vms of deployVirtualMachines calls", null),
+	VmBulkDeployHostConcurrency("Advanced", UserVmManager.class, Integer.class, "vm.bulk.deploy.host.concurrency", "4", "Maximum number of vms of one deployVirtualMachines call that are started on the same host at a time", null),
 	ExtractURLCleanUpInterval("Advanced", ManagementServer.class, Integer.class, "extract.url.cleanup.interval",  "7200", "The interval (in seconds) to wait before cleaning up the extract URL's ", null),
 	DisableExtraction("Advanced", ManagementServer.class, Boolean.class, "disable.extraction",  "false", "Flag for disabling extraction of template, isos and volumes", null),
 	ExtractURLExpirationInterval("Advanced", ManagementServer.class, Integer.class, "extract.url.expiration.interval",  "14400", "The life of an extract URL after which it is deleted ", null),
@@ -177,6 +185,9 @@ public enum Config {
 	MigrateWait("Advanced", AgentManager.class, Integer.class, "migratewait", "3600", "Time (in seconds) to wait for VM migrate finish", null),
 	Workers("Advanced", AgentManager.class, Integer.class, "workers", "5", "Number of worker threads.", null),
 	HAWorkers("Advanced", AgentManager.class, Integer.class, "ha.workers", "5", "Number of ha worker threads.", null),
+	AgentSelectorThreads("Advanced", AgentManager.class, Integer.class, "agent.selector.threads", "0", "Number of selector threads reading and writing agent connections; 0 uses a single selector thread for accepts, handshakes and I/O.", null),
+	AgentBinaryCodecEnabled("Advanced", AgentManager.class, Boolean.class, "agent.binary.codec.enabled", "false", "Use the compact binary encoding instead of json with agents that support it.", null),
+	AgentHandshakeWorkers("Advanced", AgentManager.class, Integer.class, "agent.handshake.workers", "4", "Number of threads doing the SSL handshake of new agent connections when agent.selector.threads is greater than 0.", null),
 	MountParent("Advanced", ManagementServer.class, String.class, "mount.parent", "/var/lib/cloud/management/mnt", "The mount point on the Management Server for Secondary Storage.", null),
 //	UpgradeURL("Advanced", ManagementServer.class, String.class, "upgrade.url", "http://example.com:8080/client/agent/update.zip", "The upgrade URL is the URL of the management server that agents will connect to in order to automatically upgrade.", null),
 	SystemVMUseLocalStorage("Advanced", ManagementServer.class, Boolean.class, "system.vm.use.local.storage", "false", "Indicates whether to use local storage pools or shared storage pools for system VMs.", null),
@@ -208,12 +219,16 @@ public enum Config {
 	NetworkGcInterval("Advanced", ManagementServer.class, Integer.class, "network.gc.interval", "600", "Seconds to wait before checking for networks to shutdown", null),	
 	CapacitySkipcountingHours("Advanced", ManagementServer.class, Integer.class, "capacity.skipcounting.hours", "3600", "Time (in seconds) to wait before release VM's cpu and memory when VM in stopped state", null),
 	VmStatsInterval("Advanced", ManagementServer.class, Integer.class, "vm.stats.interval", "60000", "The interval (in milliseconds) when vm stats are retrieved from agents.", null),
+	StatsHistoryResolution("Advanced", ManagementServer.class, Integer.class, "stats.history.resolution", "60000", "The minimum time (in milliseconds) between two vm, host or volume stats samples kept in memory for listStatsHistory.", null),
+	StatsHistorySize("Advanced", ManagementServer.class, Integer.class, "stats.history.size", "60", "The number of vm, host and volume stats samples kept in memory for listStatsHistory.", null),
+	StatsOutstandingRequests("Advanced", ManagementServer.class, Integer.class, "stats.outstanding.requests", "100", "The maximum number of host and vm stats requests waiting for an answer from the agents at the same time.", null),
 	VmTransitionWaitInterval("Advanced", ManagementServer.class, Integer.class, "vm.tranisition.wait.interval", "3600", "Time (in seconds) to wait before taking over a VM in transition state", null),
 	VmDestroyForcestop("Advanced", ManagementServer.class, Boolean.class, "vm.destroy.forcestop", "false", "On destroy, force-stop takes this value ", null),
 	
 	ControlCidr("Advanced", ManagementServer.class, String.class, "control.cidr", "169.254.0.0/16", "Changes the cidr for the control network traffic.  Defaults to using link local.  Must be unique within pods", null),
 	ControlGateway("Advanced", ManagementServer.class, String.class, "control.gateway", "169.254.0.1", "gateway for the control network traffic", null),
 	HostCapacityTypeToOrderClusters("Advanced", ManagementServer.class, String.class, "host.capacityType.to.order.clusters", "CPU", "The host capacity type (CPU or RAM) is used by deployment planner to order clusters during VM resource allocation", "CPU,RAM"),
+	PlannerCapacitySnapshotTtl("Advanced", ManagementServer.class, Integer.class, "planner.capacity.snapshot.ttl", "5", "Seconds the deployment planner reuses a snapshot of the host capacities of a zone to order clusters and pods; 0 queries op_host_capacity for every deployment", null),
 	ApplyAllocationAlgorithmToPods("Advanced", ManagementServer.class, Boolean.class, "apply.allocation.algorithm.to.pods", "false", "If true, deployment planner applies the allocation heuristics at pods first in the given datacenter during VM resource allocation", "true,false"),
 	VmUserDispersionWeight("Advanced", ManagementServer.class, Float.class, "vm.user.dispersion.weight", "1", "Weight for user dispersion heuristic (as a value between 0 and 1) applied to resource allocation during vm deployment. Weight for capacity heuristic will be (1 - weight of user dispersion)", null),
     VmAllocationAlgorithm("Advanced", ManagementServer.class, String.class, "vm.allocation.algorithm", "random", "'random', 'firstfit', 'userdispersing', 'userconcentratedpod_random', 'userconcentratedpod_firstfit' : Order in which hosts within a cluster will be considered for VM/volume allocation.", null),
@@ -310,6 +325,8 @@ public enum Config {
 	
 	//disabling lb as cluster sync does not work with distributed cluster
 	AgentLbEnable("Advanced", ManagementServer.class, Boolean.class, "agent.lb.enabled", "false", "If agent load balancing enabled in cluster setup", null),
+	LockLeaseTime("Advanced", ManagementServer.class, Integer.class, "lock.lease.time", "60", "Time (in seconds) a management server keeps a released global lock so it can take it again without going to the database, 0 to release it right away", null),
+	LockGlobalUseOpLock("Advanced", ManagementServer.class, Boolean.class, "lock.global.use.op_lock", "false", "If global locks are kept in op_lock as leases instead of MySQL GET_LOCK(), must be the same on all management servers and they must be restarted together to change it", null),
 	SubDomainNetworkAccess("Advanced", NetworkManager.class, Boolean.class, "allow.subdomain.network.access", "true", "Allow subdomains to use networks dedicated to their parent domain(s)", null),
 	UseExternalDnsServers("Advanced", NetworkManager.class, Boolean.class, "use.external.dns", "false", "Bypass internal dns, use exetrnal dns1 and dns2", null),
 	EncodeApiResponse("Advanced", ManagementServer.class, Boolean.class, "encode.api.response", "false", "Do URL encoding for the api response, false by default", null),
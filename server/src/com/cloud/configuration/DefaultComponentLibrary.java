@@ -213,18 +213,23 @@ public class DefaultComponentLibrary extends ComponentLibraryBase implements Com
         addDao("VMTemplateZoneDao", VMTemplateZoneDaoImpl.class);
         addDao("VMTemplateDetailsDao", VMTemplateDetailsDaoImpl.class);
         addDao("DomainRouterDao", DomainRouterDaoImpl.class);
-        addDao("HostDao", HostDaoImpl.class);
+        ComponentInfo<? extends GenericDao<?, ? extends Serializable>> info = addDao("HostDao", HostDaoImpl.class);
+        info.addParameter("cache.size", "5000");
+        info.addParameter("cache.time.to.live", "300");
+        info.addParameter("cache.coherent", "true");
         addDao("VMInstanceDao", VMInstanceDaoImpl.class);
         addDao("UserVmDao", UserVmDaoImpl.class);
-        ComponentInfo<? extends GenericDao<?, ? extends Serializable>> info = addDao("ServiceOfferingDao", ServiceOfferingDaoImpl.class);
+        info = addDao("ServiceOfferingDao", ServiceOfferingDaoImpl.class);
         info.addParameter("cache.size", "50");
         info.addParameter("cache.time.to.live", "600");
+        info.addParameter("cache.coherent", "true");
         info = addDao("DiskOfferingDao", DiskOfferingDaoImpl.class);
         info.addParameter("cache.size", "50");
         info.addParameter("cache.time.to.live", "600");
         info = addDao("DataCenterDao", DataCenterDaoImpl.class);
         info.addParameter("cache.size", "50");
         info.addParameter("cache.time.to.live", "600");
+        info.addParameter("cache.coherent", "true");
         info = addDao("HostPodDao", HostPodDaoImpl.class);
         info.addParameter("cache.size", "50");
         info.addParameter("cache.time.to.live", "600");
@@ -239,6 +244,7 @@ public class DefaultComponentLibrary extends ComponentLibraryBase implements Com
         info = addDao("UserDao", UserDaoImpl.class);
         info.addParameter("cache.size", "5000");
         info.addParameter("cache.time.to.live", "300");
+        info.addParameter("cache.coherent", "true");
         addDao("UserStatisticsDao", UserStatisticsDaoImpl.class);
         addDao("UserStatsLogDao", UserStatsLogDaoImpl.class);
         addDao("FirewallRulesDao", FirewallRulesDaoImpl.class);
@@ -263,7 +269,10 @@ public class DefaultComponentLibrary extends ComponentLibraryBase implements Com
         addDao("AlertDao", AlertDaoImpl.class);
         addDao("CapacityDao", CapacityDaoImpl.class);
         addDao("DomainDao", DomainDaoImpl.class);
-        addDao("AccountDao", AccountDaoImpl.class);
+        info = addDao("AccountDao", AccountDaoImpl.class);
+        info.addParameter("cache.size", "5000");
+        info.addParameter("cache.time.to.live", "300");
+        info.addParameter("cache.coherent", "true");
         addDao("ResourceLimitDao", ResourceLimitDaoImpl.class);
         addDao("ResourceCountDao", ResourceCountDaoImpl.class);
         addDao("UserAccountDao", UserAccountDaoImpl.class);
@@ -30,7 +30,6 @@ import javax.naming.ConfigurationException;
 import org.apache.log4j.Logger;
 
 import com.cloud.agent.manager.allocator.HostAllocator;
-import com.cloud.api.ApiDBUtils;
 import com.cloud.capacity.Capacity;
 import com.cloud.capacity.CapacityManager;
 import com.cloud.capacity.CapacityVO;
@@ -109,6 +108,14 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
     @Inject(adapter=HostAllocator.class)
     protected Adapters<HostAllocator> _hostAllocators;
     protected String _allocationAlgorithm = "random";
+    protected PlannerCapacityIndex _capacityIndex;
+
+    private static final long CONFIG_REFRESH_INTERVAL = 30L * 1000L;
+    private volatile long _configRefreshed = 0;
+    private volatile float _cpuOverprovisioningFactor = 1;
+    private volatile short _capacityTypeToOrder = CapacityVO.CAPACITY_TYPE_CPU;
+    private volatile boolean _applyAllocationAtPods = false;
+    private volatile Map<Short, Float> _capacityThresholdMap = new HashMap<Short, Float>();
 
 
     @Override
@@ -130,8 +137,8 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         int cpu_requested = offering.getCpu() * offering.getSpeed();
         long ram_requested = offering.getRamSize() * 1024L * 1024L;
 
-        String opFactor = _configDao.getValue(Config.CPUOverprovisioningFactor.key());
-        float cpuOverprovisioningFactor = NumbersUtil.parseFloat(opFactor, 1);
+        refreshConfig();
+        float cpuOverprovisioningFactor = _cpuOverprovisioningFactor;
 
 
         if (s_logger.isDebugEnabled()) {
@@ -272,8 +279,7 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         } else {
             s_logger.debug("Searching all possible resources under this Zone: "+ plan.getDataCenterId());
             
-            boolean applyAllocationAtPods = Boolean.parseBoolean(_configDao.getValue(Config.ApplyAllocationAlgorithmToPods.key()));
-            if(applyAllocationAtPods){
+            if(_applyAllocationAtPods){
                 //start scan at all pods under this zone.
                 return scanPodsForDestination(vmProfile, plan, avoid);
             }else{
@@ -289,8 +295,7 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         ServiceOffering offering = vmProfile.getServiceOffering();
         int requiredCpu = offering.getCpu() * offering.getSpeed();
         long requiredRam = offering.getRamSize() * 1024L * 1024L;
-        String opFactor = _configDao.getValue(Config.CPUOverprovisioningFactor.key());
-        float cpuOverprovisioningFactor = NumbersUtil.parseFloat(opFactor, 1);
+        float cpuOverprovisioningFactor = _cpuOverprovisioningFactor;
         
         //list pods under this zone by cpu and ram capacity
         List<Long> prioritizedPodIds = new ArrayList<Long>();
@@ -352,8 +357,7 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         DataCenter dc = _dcDao.findById(vm.getDataCenterIdToDeployIn());
         int requiredCpu = offering.getCpu() * offering.getSpeed();
         long requiredRam = offering.getRamSize() * 1024L * 1024L;
-        String opFactor = _configDao.getValue(Config.CPUOverprovisioningFactor.key());
-        float cpuOverprovisioningFactor = NumbersUtil.parseFloat(opFactor, 1);
+        float cpuOverprovisioningFactor = _cpuOverprovisioningFactor;
         
         //list clusters under this zone by cpu and ram capacity
         Pair<List<Long>, Map<Long, Double>> clusterCapacityInfo = listClustersByCapacity(id, requiredCpu, requiredRam, avoid, isZone, cpuOverprovisioningFactor);
@@ -437,9 +441,28 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
     }    
     
     private Map<Short,Float> getCapacityThresholdMap(){
-    	// Lets build this real time so that the admin wont have to restart MS if he changes these values
+    	return _capacityThresholdMap;
+    }
+
+    /**
+     * Reloads the planner settings at most every CONFIG_REFRESH_INTERVAL instead of reading them for every
+     * deployment, the admin still doesn't have to restart MS if he changes these values
+     */
+    protected void refreshConfig(){
+        long now = System.currentTimeMillis();
+        if (now - _configRefreshed < CONFIG_REFRESH_INTERVAL) {
+            return;
+        }
+
+        String opFactor = _configDao.getValue(Config.CPUOverprovisioningFactor.key());
+        _cpuOverprovisioningFactor = NumbersUtil.parseFloat(opFactor, 1);
+
+        String capacityTypeToOrder = _configDao.getValue(Config.HostCapacityTypeToOrderClusters.key());
+        _capacityTypeToOrder = "RAM".equalsIgnoreCase(capacityTypeToOrder) ? CapacityVO.CAPACITY_TYPE_MEMORY : CapacityVO.CAPACITY_TYPE_CPU;
+
+        _applyAllocationAtPods = Boolean.parseBoolean(_configDao.getValue(Config.ApplyAllocationAlgorithmToPods.key()));
+
     	Map<Short,Float> disableThresholdMap = new HashMap<Short, Float>();
-    	
     	String cpuDisableThresholdString = _configDao.getValue(Config.CPUCapacityDisableThreshold.key());
         float cpuDisableThreshold = NumbersUtil.parseFloat(cpuDisableThresholdString, 0.85F);
         disableThresholdMap.put(Capacity.CAPACITY_TYPE_CPU, cpuDisableThreshold);
@@ -447,8 +470,9 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         String memoryDisableThresholdString = _configDao.getValue(Config.MemoryCapacityDisableThreshold.key());
         float memoryDisableThreshold = NumbersUtil.parseFloat(memoryDisableThresholdString, 0.85F);
         disableThresholdMap.put(Capacity.CAPACITY_TYPE_MEMORY, memoryDisableThreshold);
-        
-    	return disableThresholdMap;
+        _capacityThresholdMap = disableThresholdMap;
+
+        _configRefreshed = now;
     }
 
     private List<Short> getCapacitiesForCheckingThreshold(){
@@ -469,6 +493,7 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         long ram_requested = offering.getRamSize() * 1024L * 1024L;
     	
         // 	For each capacity get the cluster list crossing the threshold and remove it from the clusterList that will be used for vm allocation.
+        // 	The thresholds are always checked against the live capacity, not the capacity snapshot the clusters were ordered by.
         for(short capacity : capacityList){
         	
         	if (clusterListForVmAllocation == null || clusterListForVmAllocation.size() == 0){
@@ -477,7 +502,7 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
            	
            	if (capacity == Capacity.CAPACITY_TYPE_CPU){
            		clustersCrossingThreshold = _capacityDao.listClustersCrossingThreshold(Capacity.CAPACITY_TYPE_CPU, plan.getDataCenterId(),
-           				capacityThresholdMap.get(capacity), cpu_requested, ApiDBUtils.getCpuOverprovisioningFactor());
+           				capacityThresholdMap.get(capacity), cpu_requested, _cpuOverprovisioningFactor);
            	}else{
            		clustersCrossingThreshold = _capacityDao.listClustersCrossingThreshold(capacity, plan.getDataCenterId(),
            				capacityThresholdMap.get(capacity), ram_requested, 1.0f);//Mem overprov not supported yet
@@ -526,6 +551,7 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
                 if (vmProfile.getHypervisorType() == HypervisorType.BareMetal) {
                     Pod pod = _podDao.findById(clusterVO.getPodId());
                     DeployDestination dest =  new DeployDestination(dc, pod, clusterVO, suitableHosts.get(0));
+                    reserveInCapacityIndex(plan.getDataCenterId(), suitableHosts.get(0).getId(), vmProfile);
                     return dest;
                 }
 
@@ -547,6 +573,7 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
                         }
                         DeployDestination dest =  new DeployDestination(dc, pod, clusterVO, host, storageVolMap );
                         s_logger.debug("Returning Deployment Destination: "+ dest);
+                        reserveInCapacityIndex(plan.getDataCenterId(), host.getId(), vmProfile);
                         return dest;
                     }
                 }else{
@@ -561,6 +588,13 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         return null;
     }
 
+    private void reserveInCapacityIndex(long zoneId, long hostId, VirtualMachineProfile<? extends VirtualMachine> vmProfile){
+        if (_capacityIndex.isEnabled()) {
+            ServiceOffering offering = vmProfile.getServiceOffering();
+            _capacityIndex.reserve(zoneId, hostId, offering.getCpu() * offering.getSpeed(), offering.getRamSize() * 1024L * 1024L);
+        }
+    }
+
 
     protected Pair<List<Long>, Map<Long, Double>> listClustersByCapacity(long id, int requiredCpu, long requiredRam, ExcludeList avoid, boolean isZone, float cpuOverprovisioningFactor){
         //look at the aggregate available cpu and ram per cluster
@@ -570,20 +604,30 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Listing clusters in order of aggregate capacity, that have (atleast one host with) enough CPU and RAM capacity under this "+(isZone ? "Zone: " : "Pod: " )+id);
         }
-        String capacityTypeToOrder = _configDao.getValue(Config.HostCapacityTypeToOrderClusters.key());
-        short capacityType = CapacityVO.CAPACITY_TYPE_CPU;
-        if("RAM".equalsIgnoreCase(capacityTypeToOrder)){
-            capacityType = CapacityVO.CAPACITY_TYPE_MEMORY;
-        }
+        short capacityType = _capacityTypeToOrder;
 
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("CPUOverprovisioningFactor considered: " + cpuOverprovisioningFactor);
         }
-        List<Long> clusterIdswithEnoughCapacity = _capacityDao.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, capacityType, isZone, cpuOverprovisioningFactor);
+        List<Long> clusterIdswithEnoughCapacity = null;
+        Pair<List<Long>, Map<Long, Double>> result = null;
+        if (_capacityIndex.isEnabled()) {
+            long zoneId = isZone ? id : _podDao.findById(id).getDataCenterId();
+            Long podId = isZone ? null : id;
+            clusterIdswithEnoughCapacity = _capacityIndex.listClustersWithEnoughCapacity(zoneId, podId, requiredCpu, requiredRam, cpuOverprovisioningFactor);
+            if (!clusterIdswithEnoughCapacity.isEmpty()) {
+                result = _capacityIndex.orderClustersByAggregateCapacity(zoneId, podId, capacityType, cpuOverprovisioningFactor);
+            } else if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Capacity snapshot has no cluster with enough capacity, checking the database");
+            }
+        }
+        if (result == null) {
+            clusterIdswithEnoughCapacity = _capacityDao.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, capacityType, isZone, cpuOverprovisioningFactor);
+            result = _capacityDao.orderClustersByAggregateCapacity(id, capacityType, isZone, cpuOverprovisioningFactor);
+        }
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("ClusterId List having enough CPU and RAM capacity: " + clusterIdswithEnoughCapacity);
         }
-        Pair<List<Long>, Map<Long, Double>> result = _capacityDao.orderClustersByAggregateCapacity(id, capacityType, isZone, cpuOverprovisioningFactor);
         List<Long> clusterIdsOrderedByAggregateCapacity = result.first();
         //only keep the clusters that have enough capacity to host this VM
         if (s_logger.isTraceEnabled()) {
@@ -607,20 +651,28 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Listing pods in order of aggregate capacity, that have (atleast one host with) enough CPU and RAM capacity under this Zone: "+zoneId);
         }
-        String capacityTypeToOrder = _configDao.getValue(Config.HostCapacityTypeToOrderClusters.key());
-        short capacityType = CapacityVO.CAPACITY_TYPE_CPU;
-        if("RAM".equalsIgnoreCase(capacityTypeToOrder)){
-            capacityType = CapacityVO.CAPACITY_TYPE_MEMORY;
-        }
+        short capacityType = _capacityTypeToOrder;
 
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("CPUOverprovisioningFactor considered: " + cpuOverprovisioningFactor);
         }
-        List<Long> podIdswithEnoughCapacity = _capacityDao.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam, capacityType, cpuOverprovisioningFactor);
+        List<Long> podIdswithEnoughCapacity = null;
+        Pair<List<Long>, Map<Long, Double>> result = null;
+        if (_capacityIndex.isEnabled()) {
+            podIdswithEnoughCapacity = _capacityIndex.listPodsWithEnoughCapacity(zoneId, requiredCpu, requiredRam, cpuOverprovisioningFactor);
+            if (!podIdswithEnoughCapacity.isEmpty()) {
+                result = _capacityIndex.orderPodsByAggregateCapacity(zoneId, capacityType, cpuOverprovisioningFactor);
+            } else if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Capacity snapshot has no pod with enough capacity, checking the database");
+            }
+        }
+        if (result == null) {
+            podIdswithEnoughCapacity = _capacityDao.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam, capacityType, cpuOverprovisioningFactor);
+            result = _capacityDao.orderPodsByAggregateCapacity(zoneId, capacityType, cpuOverprovisioningFactor);
+        }
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("PodId List having enough CPU and RAM capacity: " + podIdswithEnoughCapacity);
         }
-        Pair<List<Long>, Map<Long, Double>> result = _capacityDao.orderPodsByAggregateCapacity(zoneId, capacityType, cpuOverprovisioningFactor);
         List<Long> podIdsOrderedByAggregateCapacity = result.first();
         //only keep the clusters that have enough capacity to host this VM
         if (s_logger.isTraceEnabled()) {
@@ -874,6 +926,8 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
         super.configure(name, params);
         _allocationAlgorithm = _configDao.getValue(Config.VmAllocationAlgorithm.key());
+        int capacityIndexTtl = NumbersUtil.parseInt(_configDao.getValue(Config.PlannerCapacitySnapshotTtl.key()), 5);
+        _capacityIndex = new PlannerCapacityIndex(_capacityDao, _clusterDao, _podDao, capacityIndexTtl * 1000L);
         return true;
     }    
 
@@ -0,0 +1,300 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.capacity.dao.CapacityDao;
+import com.cloud.dc.ClusterVO;
+import com.cloud.dc.HostPodVO;
+import com.cloud.dc.dao.ClusterDao;
+import com.cloud.dc.dao.HostPodDao;
+import com.cloud.utils.Pair;
+import com.cloud.utils.db.SearchCriteria;
+
+/**
+ * Snapshot of the host cpu and memory capacities of a zone, used by the planners to list and order
+ * clusters and pods without running the capacity queries of CapacityDao for every deployment.
+ *
+ * A zone is loaded with one query and reused until the ttl expires. Capacity handed out by this
+ * planner in the meantime is applied to the snapshot with reserve(), capacity changes made by other
+ * management servers show up on the next reload. The snapshot only decides the order in which
+ * clusters are tried; the disable thresholds and the host allocators still check against the
+ * database, and the planner falls back to the database queries when the snapshot finds no candidate.
+ */
+public class PlannerCapacityIndex {
+    private static final Logger s_logger = Logger.getLogger(PlannerCapacityIndex.class);
+
+    private final CapacityDao _capacityDao;
+    private final ClusterDao _clusterDao;
+    private final HostPodDao _podDao;
+    private final long _ttl;
+    private final Map<Long, ZoneCapacity> _zones = new ConcurrentHashMap<Long, ZoneCapacity>();
+
+    public PlannerCapacityIndex(CapacityDao capacityDao, ClusterDao clusterDao, HostPodDao podDao, long ttl) {
+        _capacityDao = capacityDao;
+        _clusterDao = clusterDao;
+        _podDao = podDao;
+        _ttl = ttl;
+    }
+
+    public boolean isEnabled() {
+        return _ttl > 0;
+    }
+
+    /**
+     * Clusters of the zone, or of the pod if podId is set, having a host with enough free cpu and a host with
+     * enough free memory. Same semantics as CapacityDao.listClustersInZoneOrPodByHostCapacities.
+     */
+    public List<Long> listClustersWithEnoughCapacity(long zoneId, Long podId, int requiredCpu, long requiredRam, float cpuOverprovisioningFactor) {
+        ZoneCapacity zone = getZone(zoneId);
+        synchronized (zone) {
+            Set<Long> withCpu = new HashSet<Long>();
+            Set<Long> withRam = new HashSet<Long>();
+            for (HostCapacity host : zone.hosts.values()) {
+                if (host.clusterId == null || !zone.clusterIds.contains(host.clusterId) || (podId != null && !podId.equals(host.podId))) {
+                    continue;
+                }
+                if (host.cpu != null && host.cpu.free(cpuOverprovisioningFactor) >= requiredCpu) {
+                    withCpu.add(host.clusterId);
+                }
+                if (host.memory != null && host.memory.free(1) >= requiredRam) {
+                    withRam.add(host.clusterId);
+                }
+            }
+            withCpu.retainAll(withRam);
+            return new ArrayList<Long>(withCpu);
+        }
+    }
+
+    /**
+     * Pods of the zone having a host with enough free cpu and a host with enough free memory.
+     * Same semantics as CapacityDao.listPodsByHostCapacities.
+     */
+    public List<Long> listPodsWithEnoughCapacity(long zoneId, int requiredCpu, long requiredRam, float cpuOverprovisioningFactor) {
+        ZoneCapacity zone = getZone(zoneId);
+        synchronized (zone) {
+            Set<Long> withCpu = new HashSet<Long>();
+            Set<Long> withRam = new HashSet<Long>();
+            for (HostCapacity host : zone.hosts.values()) {
+                if (host.podId == null || !zone.podIds.contains(host.podId)) {
+                    continue;
+                }
+                if (host.cpu != null && host.cpu.free(cpuOverprovisioningFactor) >= requiredCpu) {
+                    withCpu.add(host.podId);
+                }
+                if (host.memory != null && host.memory.free(1) >= requiredRam) {
+                    withRam.add(host.podId);
+                }
+            }
+            withCpu.retainAll(withRam);
+            return new ArrayList<Long>(withCpu);
+        }
+    }
+
+    /**
+     * Clusters of the zone, or of the pod if podId is set, ordered by ascending ratio of allocated to total capacity.
+     * Same semantics as CapacityDao.orderClustersByAggregateCapacity.
+     */
+    public Pair<List<Long>, Map<Long, Double>> orderClustersByAggregateCapacity(long zoneId, Long podId, short capacityType, float cpuOverprovisioningFactor) {
+        ZoneCapacity zone = getZone(zoneId);
+        synchronized (zone) {
+            Map<Long, long[]> sums = new HashMap<Long, long[]>();
+            for (HostCapacity host : zone.hosts.values()) {
+                if (podId != null && !podId.equals(host.podId)) {
+                    continue;
+                }
+                sum(sums, host.clusterId, host.get(capacityType));
+            }
+            return orderByRatio(sums, capacityType == Capacity.CAPACITY_TYPE_CPU ? cpuOverprovisioningFactor : 1);
+        }
+    }
+
+    /**
+     * Pods of the zone ordered by ascending ratio of allocated to total capacity.
+     * Same semantics as CapacityDao.orderPodsByAggregateCapacity.
+     */
+    public Pair<List<Long>, Map<Long, Double>> orderPodsByAggregateCapacity(long zoneId, short capacityType, float cpuOverprovisioningFactor) {
+        ZoneCapacity zone = getZone(zoneId);
+        synchronized (zone) {
+            Map<Long, long[]> sums = new HashMap<Long, long[]>();
+            for (HostCapacity host : zone.hosts.values()) {
+                sum(sums, host.podId, host.get(capacityType));
+            }
+            return orderByRatio(sums, capacityType == Capacity.CAPACITY_TYPE_CPU ? cpuOverprovisioningFactor : 1);
+        }
+    }
+
+    /**
+     * Applies capacity handed out by this planner to the snapshot so that the following deployments
+     * see it before the next reload.
+     */
+    public void reserve(long zoneId, long hostId, int cpu, long ram) {
+        ZoneCapacity zone = _zones.get(zoneId);
+        if (zone == null) {
+            return;
+        }
+        synchronized (zone) {
+            HostCapacity host = zone.hosts.get(hostId);
+            if (host == null) {
+                return;
+            }
+            if (host.cpu != null) {
+                host.cpu.used += cpu;
+            }
+            if (host.memory != null) {
+                host.memory.used += ram;
+            }
+        }
+    }
+
+    public void invalidate(long zoneId) {
+        _zones.remove(zoneId);
+    }
+
+    protected ZoneCapacity getZone(long zoneId) {
+        long now = System.currentTimeMillis();
+        ZoneCapacity zone = _zones.get(zoneId);
+        if (zone == null || now - zone.loaded > _ttl) {
+            zone = load(zoneId, now);
+            _zones.put(zoneId, zone);
+        }
+        return zone;
+    }
+
+    private ZoneCapacity load(long zoneId, long now) {
+        ZoneCapacity zone = new ZoneCapacity(now);
+
+        SearchCriteria<CapacityVO> sc = _capacityDao.createSearchCriteria();
+        sc.addAnd("dataCenterId", SearchCriteria.Op.EQ, zoneId);
+        sc.addAnd("capacityType", SearchCriteria.Op.IN, Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY);
+        List<CapacityVO> capacities = _capacityDao.search(sc, null);
+        for (CapacityVO capacity : capacities) {
+            if (capacity.getHostOrPoolId() == null) {
+                continue;
+            }
+            HostCapacity host = zone.hosts.get(capacity.getHostOrPoolId());
+            if (host == null) {
+                host = new HostCapacity(capacity.getClusterId(), capacity.getPodId());
+                zone.hosts.put(capacity.getHostOrPoolId(), host);
+            }
+            HostCapacity.Entry entry = new HostCapacity.Entry(capacity.getUsedCapacity(), capacity.getReservedCapacity(), capacity.getTotalCapacity());
+            if (capacity.getCapacityType() == Capacity.CAPACITY_TYPE_CPU) {
+                host.cpu = entry;
+            } else {
+                host.memory = entry;
+            }
+        }
+        for (ClusterVO cluster : _clusterDao.listByZoneId(zoneId)) {
+            zone.clusterIds.add(cluster.getId());
+        }
+        for (HostPodVO pod : _podDao.listByDataCenterId(zoneId)) {
+            zone.podIds.add(pod.getId());
+        }
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Loaded capacities of " + zone.hosts.size() + " hosts in zone " + zoneId + " in " + (System.currentTimeMillis() - now) + " ms");
+        }
+        return zone;
+    }
+
+    private static void sum(Map<Long, long[]> sums, Long id, HostCapacity.Entry entry) {
+        if (id == null || entry == null) {
+            return;
+        }
+        long[] sum = sums.get(id);
+        if (sum == null) {
+            sum = new long[2];
+            sums.put(id, sum);
+        }
+        sum[0] += entry.used + entry.reserved;
+        sum[1] += entry.total;
+    }
+
+    private static Pair<List<Long>, Map<Long, Double>> orderByRatio(Map<Long, long[]> sums, float factor) {
+        final Map<Long, Double> ratios = new HashMap<Long, Double>();
+        for (Map.Entry<Long, long[]> entry : sums.entrySet()) {
+            long[] sum = entry.getValue();
+            ratios.put(entry.getKey(), sum[1] == 0 ? 0 : sum[0] / (sum[1] * (double)factor));
+        }
+        List<Long> ids = new ArrayList<Long>(ratios.keySet());
+        Collections.sort(ids, new Comparator<Long>() {
+            @Override
+            public int compare(Long id1, Long id2) {
+                int result = ratios.get(id1).compareTo(ratios.get(id2));
+                return result != 0 ? result : id1.compareTo(id2);
+            }
+        });
+        return new Pair<List<Long>, Map<Long, Double>>(ids, ratios);
+    }
+
+    protected static class ZoneCapacity {
+        final long loaded;
+        final Map<Long, HostCapacity> hosts = new HashMap<Long, HostCapacity>();
+        final Set<Long> clusterIds = new HashSet<Long>();
+        final Set<Long> podIds = new HashSet<Long>();
+
+        ZoneCapacity(long loaded) {
+            this.loaded = loaded;
+        }
+    }
+
+    protected static class HostCapacity {
+        final Long clusterId;
+        final Long podId;
+        Entry cpu;
+        Entry memory;
+
+        HostCapacity(Long clusterId, Long podId) {
+            this.clusterId = clusterId;
+            this.podId = podId;
+        }
+
+        Entry get(short capacityType) {
+            return capacityType == Capacity.CAPACITY_TYPE_CPU ? cpu : memory;
+        }
+
+        static class Entry {
+            long used;
+            final long reserved;
+            final long total;
+
+            Entry(long used, long reserved, long total) {
+                this.used = used;
+                this.reserved = reserved;
+                this.total = total;
+            }
+
+            // matches ((total_capacity * factor) - used_capacity + reserved_capacity) of the capacity queries
+            long free(float factor) {
+                return (long)(total * factor) - used + reserved;
+            }
+        }
+    }
+}
@@ -17,14 +17,18 @@
 package com.cloud.ha;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -69,6 +73,7 @@ import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.component.Inject;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachine.State;
@@ -103,7 +108,8 @@ public class HighAvailabilityManagerImpl implements HighAvailabilityManager, Clu
     protected static final Logger s_logger = Logger.getLogger(HighAvailabilityManagerImpl.class);
     String _name;
     WorkerThread[] _workers;
-    boolean _stopped;
+    DispatcherThread _dispatcher;
+    volatile boolean _stopped;
     long _timeToSleep;
     @Inject
     HighAvailabilityDao _haDao;
@@ -152,6 +158,11 @@ public class HighAvailabilityManagerImpl implements HighAvailabilityManager, Clu
     boolean _forceHA;
     String _haTag = null;
 
+    // work items taken from the DB by the dispatcher, waiting for a free worker
+    final PriorityBlockingQueue<HaWorkVO> _workQueue = new PriorityBlockingQueue<HaWorkVO>(11, new WorkComparator());
+    final AtomicInteger _busyWorkers = new AtomicInteger(0);
+    final ConcurrentHashMap<Long, HostRestartStats> _hostRestartStats = new ConcurrentHashMap<Long, HostRestartStats>();
+
     protected HighAvailabilityManagerImpl() {
     }
 
@@ -250,8 +261,8 @@ public class HighAvailabilityManagerImpl implements HighAvailabilityManager, Clu
     }
 
     protected void wakeupWorkers() {
-        for (WorkerThread worker : _workers) {
-            worker.wakup();
+        if (_dispatcher != null) {
+            _dispatcher.wakeup();
         }
     }
 
@@ -710,6 +721,7 @@ public class HighAvailabilityManagerImpl implements HighAvailabilityManager, Clu
         for (int i = 0; i < _workers.length; i++) {
             _workers[i] = new WorkerThread("HA-Worker-" + i);
         }
+        _dispatcher = new DispatcherThread("HA-Dispatcher");
 
         value = params.get("force.ha");
         _forceHA = Boolean.parseBoolean(value);
@@ -766,6 +778,13 @@ public class HighAvailabilityManagerImpl implements HighAvailabilityManager, Clu
         for (final WorkerThread thread : _workers) {
             thread.start();
         }
+        _dispatcher.start();
+
+        try {
+            JmxUtil.registerMBean("HighAvailabilityManager", _name, new HighAvailabilityManagerMBeanImpl(this));
+        } catch (Exception e) {
+            s_logger.warn("Unable to register HA manager into JMX monitoring", e);
+        }
 
         _executor.scheduleAtFixedRate(new CleanupTask(), _timeBetweenCleanups, _timeBetweenCleanups, TimeUnit.SECONDS);
 
@@ -777,9 +796,18 @@ public class HighAvailabilityManagerImpl implements HighAvailabilityManager, Clu
         _stopped = true;
 
         wakeupWorkers();
+        for (final WorkerThread thread : _workers) {
+            thread.interrupt();
+        }
 
         _executor.shutdown();
 
+        try {
+            JmxUtil.unregisterMBean("HighAvailabilityManager", _name);
+        } catch (Exception e) {
+            s_logger.warn("Unable to unregister HA manager from JMX monitoring", e);
+        }
+
         return true;
     }
 
@@ -798,6 +826,64 @@ public class HighAvailabilityManagerImpl implements HighAvailabilityManager, Clu
         }
     }
 
+    /**
+     * Takes work items from the DB in bulk, as many as there are idle workers, and hands them to the
+     * workers through an in-memory priority queue.  It sleeps until work is scheduled or a worker
+     * becomes idle, falling back to checking the DB every time.to.sleep seconds for work scheduled by
+     * other management servers or rescheduled to a later time.
+     */
+    protected class DispatcherThread extends Thread {
+        private boolean _wakeupPending;
+
+        public DispatcherThread(String name) {
+            super(name);
+        }
+
+        @Override
+        public void run() {
+            s_logger.info("Starting to dispatch work");
+            while (!_stopped) {
+                try {
+                    int idle = _workers.length - _busyWorkers.get() - _workQueue.size();
+                    if (idle > 0) {
+                        s_logger.trace("Checking the database");
+                        List<HaWorkVO> works = _haDao.take(_serverId, idle);
+                        if (works.size() > 0) {
+                            if (s_logger.isDebugEnabled()) {
+                                s_logger.debug("Dispatching " + works.size() + " work items");
+                            }
+                            _workQueue.addAll(works);
+                            continue;
+                        }
+                    }
+
+                    synchronized (this) {
+                        if (!_wakeupPending && !_stopped) {
+                            wait(_timeToSleep);
+                        }
+                        _wakeupPending = false;
+                    }
+                } catch (final InterruptedException e) {
+                    s_logger.info("Interrupted");
+                } catch (final Throwable th) {
+                    s_logger.error("Caught this throwable, ", th);
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                    }
+                } finally {
+                    StackMaid.current().exitCleanup();
+                }
+            }
+            s_logger.info("Time to go home!");
+        }
+
+        public synchronized void wakeup() {
+            _wakeupPending = true;
+            notifyAll();
+        }
+    }
+
     protected class WorkerThread extends Thread {
         public WorkerThread(String name) {
             super(name);
@@ -809,20 +895,17 @@ public class HighAvailabilityManagerImpl implements HighAvailabilityManager, Clu
             while (!_stopped) {
                 HaWorkVO work = null;
                 try {
-                    s_logger.trace("Checking the database");
-                    work = _haDao.take(_serverId);
+                    try {
+                        work = _workQueue.poll(_timeToSleep, TimeUnit.MILLISECONDS);
+                    } catch (final InterruptedException e) {
+                        s_logger.info("Interrupted");
+                        continue;
+                    }
                     if (work == null) {
-                        try {
-                            synchronized (this) {
-                                wait(_timeToSleep);
-                            }
-                            continue;
-                        } catch (final InterruptedException e) {
-                            s_logger.info("Interrupted");
-                            continue;
-                        }
+                        continue;
                     }
 
+                    _busyWorkers.incrementAndGet();
                     NDC.push("work-" + work.getId());
                     s_logger.info("Processing " + work);
 
@@ -845,6 +928,9 @@ public class HighAvailabilityManagerImpl implements HighAvailabilityManager, Clu
                         if (nextTime == null) {
                             s_logger.info("Completed " + work);
                             work.setStep(Step.Done);
+                            if (wt == WorkType.HA) {
+                                recordRestart(work, true);
+                            }
                         } else {
                             s_logger.info("Rescheduling " + work + " to try again at " + new Date(nextTime << 10));
                             work.setTimeToTry(nextTime);
@@ -854,6 +940,9 @@ public class HighAvailabilityManagerImpl implements HighAvailabilityManager, Clu
                     } catch (Exception e) {
                         s_logger.error("Terminating " + work, e);
                         work.setStep(Step.Error);
+                        if (work.getWorkType() == WorkType.HA) {
+                            recordRestart(work, false);
+                        }
                     }
                     _haDao.update(work.getId(), work);
                 } catch (final Throwable th) {
@@ -862,14 +951,141 @@ public class HighAvailabilityManagerImpl implements HighAvailabilityManager, Clu
                     StackMaid.current().exitCleanup();
                     if (work != null) {
                         NDC.pop();
+                        _busyWorkers.decrementAndGet();
+                        wakeupWorkers();
                     }
                 }
             }
             s_logger.info("Time to go home!");
         }
+    }
 
-        public synchronized void wakup() {
-            notifyAll();
+    /**
+     * Orders the work items that are due: restarts go first, then the network appliances and system
+     * vms that other vms depend on, then the items that have been waiting the longest.
+     */
+    protected static class WorkComparator implements Comparator<HaWorkVO> {
+        @Override
+        public int compare(HaWorkVO w1, HaWorkVO w2) {
+            int result = getWorkTypeRank(w1.getWorkType()) - getWorkTypeRank(w2.getWorkType());
+            if (result != 0) {
+                return result;
+            }
+
+            result = getVmTypeRank(w1.getType()) - getVmTypeRank(w2.getType());
+            if (result != 0) {
+                return result;
+            }
+
+            if (w1.getTimeToTry() != w2.getTimeToTry()) {
+                return w1.getTimeToTry() < w2.getTimeToTry() ? -1 : 1;
+            }
+            return w1.getId().compareTo(w2.getId());
+        }
+
+        private static int getWorkTypeRank(WorkType type) {
+            switch (type) {
+            case HA:
+                return 0;
+            case Stop:
+            case CheckStop:
+            case ForceStop:
+                return 1;
+            case Migration:
+                return 2;
+            default:
+                return 3;
+            }
+        }
+
+        private static int getVmTypeRank(VirtualMachine.Type type) {
+            switch (type) {
+            case DomainRouter:
+            case ElasticIpVm:
+            case ElasticLoadBalancerVm:
+                return 0;
+            case ConsoleProxy:
+            case SecondaryStorageVm:
+                return 1;
+            default:
+                return 2;
+            }
+        }
+    }
+
+    protected void recordRestart(HaWorkVO work, boolean success) {
+        HostRestartStats stats = _hostRestartStats.get(work.getHostId());
+        if (stats == null) {
+            stats = new HostRestartStats(work.getHostId());
+            HostRestartStats existing = _hostRestartStats.putIfAbsent(work.getHostId(), stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+
+        long latency = work.getCreated() != null ? System.currentTimeMillis() - work.getCreated().getTime() : 0;
+        stats.record(latency, success);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Restart of vm " + work.getInstanceId() + " from host " + work.getHostId() + " took " + latency + "ms, " + stats);
+        }
+    }
+
+    int getWorkerCount() {
+        return _workers.length;
+    }
+
+    int getBusyWorkerCount() {
+        return _busyWorkers.get();
+    }
+
+    int getQueuedWorkCount() {
+        return _workQueue.size();
+    }
+
+    String[] getHostRestartStats() {
+        List<String> l = new ArrayList<String>();
+        for (HostRestartStats stats : _hostRestartStats.values()) {
+            l.add(stats.toString());
+        }
+        return l.toArray(new String[l.size()]);
+    }
+
+    /**
+     * Restart latency, from the time the HA work was scheduled to the time the vm was restarted,
+     * of the vms that were running on a failed host.
+     */
+    protected static class HostRestartStats {
+        final long _hostId;
+        int _restarted;
+        int _failed;
+        long _totalLatency;
+        long _maxLatency;
+        long _lastCompleted;
+
+        HostRestartStats(long hostId) {
+            _hostId = hostId;
+        }
+
+        synchronized void record(long latency, boolean success) {
+            if (success) {
+                _restarted++;
+                _totalLatency += latency;
+                _maxLatency = Math.max(_maxLatency, latency);
+            } else {
+                _failed++;
+            }
+            _lastCompleted = System.currentTimeMillis();
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder sb = new StringBuilder("host-").append(_hostId);
+            sb.append(": restarted=").append(_restarted);
+            sb.append(", failed=").append(_failed);
+            sb.append(", avgLatencyMs=").append(_restarted == 0 ? 0 : _totalLatency / _restarted);
+            sb.append(", maxLatencyMs=").append(_maxLatency);
+            sb.append(", lastCompleted=").append(new Date(_lastCompleted));
+            return sb.toString();
         }
     }
 
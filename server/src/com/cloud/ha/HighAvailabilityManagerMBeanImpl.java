@@ -0,0 +1,49 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import javax.management.StandardMBean;
+
+public class HighAvailabilityManagerMBeanImpl extends StandardMBean implements HighAvailabilityManagerMBean {
+    private final HighAvailabilityManagerImpl _haMgr;
+
+    public HighAvailabilityManagerMBeanImpl(HighAvailabilityManagerImpl haMgr) {
+        super(HighAvailabilityManagerMBean.class, false);
+
+        _haMgr = haMgr;
+    }
+
+    @Override
+    public int getWorkerCount() {
+        return _haMgr.getWorkerCount();
+    }
+
+    @Override
+    public int getBusyWorkerCount() {
+        return _haMgr.getBusyWorkerCount();
+    }
+
+    @Override
+    public int getQueuedWorkCount() {
+        return _haMgr.getQueuedWorkCount();
+    }
+
+    @Override
+    public String[] getHostRestartStats() {
+        return _haMgr.getHostRestartStats();
+    }
+}
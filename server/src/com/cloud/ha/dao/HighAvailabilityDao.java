@@ -32,6 +32,15 @@ public interface HighAvailabilityDao extends GenericDao<HaWorkVO, Long> {
      */
     HaWorkVO take(long serverId);
 
+    /**
+     * Takes up to max available HA work items in one transaction.
+     * 
+     * @param serverId server that is taking them.
+     * @param max maximum number of work items to take.
+     * @return work items taken; empty list if none.
+     */
+    List<HaWorkVO> take(long serverId, int max);
+
     /**
      * Finds all the work items related to this instance.
      * 
@@ -17,7 +17,9 @@
 package com.cloud.ha.dao;
 
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.ejb.Local;
 
@@ -129,29 +131,38 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
 
     @Override
     public HaWorkVO take(final long serverId) {
+        final List<HaWorkVO> works = take(serverId, 1);
+        return works.size() == 0 ? null : works.get(0);
+    }
+
+    @Override
+    public List<HaWorkVO> take(final long serverId, final int max) {
         final Transaction txn = Transaction.currentTxn();
         try {
             final SearchCriteria<HaWorkVO> sc = TBASearch.create();
             sc.setParameters("time", System.currentTimeMillis() >> 10);
 
-            final Filter filter = new Filter(HaWorkVO.class, null, true, 0l, 1l);
+            final Filter filter = new Filter(HaWorkVO.class, "timeToTry", true, 0l, (long)max);
 
             txn.start();
             final List<HaWorkVO> vos = lockRows(sc, filter, true);
             if (vos.size() == 0) {
                 txn.commit();
-                return null;
+                return vos;
             }
 
-            final HaWorkVO work = vos.get(0);
-            work.setServerId(serverId);
-            work.setDateTaken(new Date());
-
-            update(work.getId(), work);
+            final Date taken = new Date();
+            final Map<Long, HaWorkVO> works = new HashMap<Long, HaWorkVO>();
+            for (final HaWorkVO work : vos) {
+                work.setServerId(serverId);
+                work.setDateTaken(taken);
+                works.put(work.getId(), work);
+            }
+            updateBatch(works);
 
             txn.commit();
 
-            return work;
+            return vos;
 
         } catch (final Throwable e) {
             throw new CloudRuntimeException("Unable to execute take", e);
@@ -895,16 +895,20 @@ public class VirtualNetworkApplianceManagerImpl implements VirtualNetworkApplian
                         //get all stats with delta > 0
                         List<UserStatisticsVO> updatedStats = _statsDao.listUpdatedStats();
                         Date updatedTime = new Date();
+                        Map<Long, UserStatisticsVO> aggStats = new HashMap<Long, UserStatisticsVO>();
+                        List<UserStatsLogVO> statsLogs = new ArrayList<UserStatsLogVO>();
                         for(UserStatisticsVO stat : updatedStats){
                             //update agg bytes                    
                             stat.setAggBytesReceived(stat.getCurrentBytesReceived() + stat.getNetBytesReceived());
                             stat.setAggBytesSent(stat.getCurrentBytesSent() + stat.getNetBytesSent());
-                            _userStatsDao.update(stat.getId(), stat);
+                            aggStats.put(stat.getId(), stat);
                             //insert into op_user_stats_log
                             UserStatsLogVO statsLog = new UserStatsLogVO(stat.getId(), stat.getNetBytesReceived(), stat.getNetBytesSent(), stat.getCurrentBytesReceived(), 
                                                                          stat.getCurrentBytesSent(), stat.getAggBytesReceived(), stat.getAggBytesSent(), updatedTime);
-                            _userStatsLogDao.persist(statsLog);
+                            statsLogs.add(statsLog);
                         }
+                        _userStatsDao.updateBatch(aggStats);
+                        _userStatsLogDao.persistBatch(statsLogs);
                         s_logger.debug("Successfully updated aggregate network stats");
                         txn.commit();
                     } catch (Exception e){
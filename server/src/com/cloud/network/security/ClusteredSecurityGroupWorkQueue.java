@@ -0,0 +1,275 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.SecurityGroupWorkCommand;
+import com.cloud.cluster.ClusterManager;
+import com.cloud.network.security.LocalSecurityGroupWorkQueue.LocalSecurityGroupWork;
+import com.cloud.network.security.SecurityGroupWork.Step;
+import com.cloud.vm.UserVmVO;
+import com.cloud.vm.dao.UserVmDao;
+
+/**
+ * Security Group Work Queue partitioned across the management servers by host ownership:
+ * work for a vm is queued on the management server that owns the host the vm runs on, and
+ * the work for one host is handed out together so that it can go to the host in one request.
+ *
+ */
+public class ClusteredSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
+    protected static Logger s_logger = Logger.getLogger(ClusteredSecurityGroupWorkQueue.class);
+
+    private final UserVmDao _userVmDao;
+    private final ClusterManager _clusterMgr;
+
+    // host id -> work for the vms on that host, hosts in the order they are served
+    private final LinkedHashMap<Long, LinkedList<SecurityGroupWork>> _workByHost = new LinkedHashMap<Long, LinkedList<SecurityGroupWork>>();
+    private final Set<Long> _queuedVms = new HashSet<Long>();
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _notEmpty = _lock.newCondition();
+    private final AtomicInteger _count = new AtomicInteger(0);
+    private final AtomicLong _forwardedCount = new AtomicLong(0);
+
+    public ClusteredSecurityGroupWorkQueue(UserVmDao userVmDao, ClusterManager clusterMgr) {
+        _userVmDao = userVmDao;
+        _clusterMgr = clusterMgr;
+    }
+
+    @Override
+    public void submitWorkForVm(long vmId, long sequenceNumber) {
+        Set<Long> vmIds = new HashSet<Long>(1);
+        vmIds.add(vmId);
+        submitWork(vmIds, sequenceNumber);
+    }
+
+    @Override
+    public int submitWorkForVms(Set<Long> vmIds) {
+        return submitWork(vmIds, null);
+    }
+
+    /**
+     * Queues work that another management server routed here because this server owns the hosts
+     * @param vmIds vms to update
+     * @param hostIds host of the vm at the same position in vmIds
+     * @return number of new work items
+     */
+    public int submitWorkFromPeer(long[] vmIds, long[] hostIds) {
+        Map<Long, Long> vms = new HashMap<Long, Long>(vmIds.length);
+        for (int i = 0; i < vmIds.length; i++) {
+            vms.put(vmIds[i], hostIds[i]);
+        }
+        return addLocalWork(vms, null);
+    }
+
+    protected int submitWork(Set<Long> vmIds, Long sequenceNumber) {
+        if (vmIds.isEmpty()) {
+            return 0;
+        }
+
+        Map<Long, Long> localVms = new HashMap<Long, Long>();
+        Map<String, Map<Long, Long>> peerVms = new HashMap<String, Map<Long, Long>>();
+        Map<Long, String> peerByHost = new HashMap<Long, String>();
+        for (UserVmVO vm : _userVmDao.listByIds(vmIds)) {
+            Long hostId = vm.getHostId();
+            if (hostId == null) {
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("No security group work queued for vm " + vm.getId() + ": it is not on a host");
+                }
+                continue;
+            }
+
+            String peer;
+            if (peerByHost.containsKey(hostId)) {
+                peer = peerByHost.get(hostId);
+            } else {
+                peer = _clusterMgr.getPeerName(hostId);
+                peerByHost.put(hostId, peer);
+            }
+
+            if (peer == null) {
+                localVms.put(vm.getId(), hostId);
+            } else {
+                Map<Long, Long> vms = peerVms.get(peer);
+                if (vms == null) {
+                    vms = new HashMap<Long, Long>();
+                    peerVms.put(peer, vms);
+                }
+                vms.put(vm.getId(), hostId);
+            }
+        }
+
+        for (Map.Entry<String, Map<Long, Long>> entry : peerVms.entrySet()) {
+            forwardWork(entry.getKey(), entry.getValue());
+        }
+        return addLocalWork(localVms, sequenceNumber);
+    }
+
+    protected void forwardWork(String peer, Map<Long, Long> vms) {
+        long[] vmIds = new long[vms.size()];
+        long[] hostIds = new long[vms.size()];
+        int i = 0;
+        for (Map.Entry<Long, Long> entry : vms.entrySet()) {
+            vmIds[i] = entry.getKey();
+            hostIds[i] = entry.getValue();
+            i++;
+        }
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Forwarding security group work for " + vmIds.length + " vms to management server " + peer);
+        }
+        try {
+            _clusterMgr.executeAsync(peer, 0, new Command[] { new SecurityGroupWorkCommand(vmIds, hostIds) }, false);
+            _forwardedCount.addAndGet(vmIds.length);
+        } catch (Exception e) {
+            s_logger.warn("Unable to forward security group work to management server " + peer + ", queueing it here", e);
+            addLocalWork(vms, null);
+        }
+    }
+
+    private int addLocalWork(Map<Long, Long> vms, Long sequenceNumber) {
+        if (vms.isEmpty()) {
+            return 0;
+        }
+
+        int newWork = 0;
+        _lock.lock();
+        try {
+            for (Map.Entry<Long, Long> entry : vms.entrySet()) {
+                if (!_queuedVms.add(entry.getKey())) {
+                    continue;
+                }
+                LinkedList<SecurityGroupWork> hostWork = _workByHost.get(entry.getValue());
+                if (hostWork == null) {
+                    hostWork = new LinkedList<SecurityGroupWork>();
+                    _workByHost.put(entry.getValue(), hostWork);
+                }
+                hostWork.add(new LocalSecurityGroupWork(entry.getKey(), sequenceNumber, Step.Scheduled));
+                newWork++;
+            }
+            if (newWork > 0) {
+                _count.addAndGet(newWork);
+                _notEmpty.signal();
+            }
+        } finally {
+            _lock.unlock();
+        }
+        return newWork;
+    }
+
+    /**
+     * Takes up to numberOfWorkItems work items, all of them for vms on the same host.  A host that
+     * still has work left afterwards goes behind the other hosts that are waiting.
+     */
+    @Override
+    public List<SecurityGroupWork> getWork(int numberOfWorkItems) throws InterruptedException {
+        List<SecurityGroupWork> work = new ArrayList<SecurityGroupWork>(numberOfWorkItems);
+        _lock.lock();
+        try {
+            while (_count.get() == 0) {
+                _notEmpty.await();
+            }
+
+            Iterator<Map.Entry<Long, LinkedList<SecurityGroupWork>>> iter = _workByHost.entrySet().iterator();
+            Map.Entry<Long, LinkedList<SecurityGroupWork>> entry = iter.next();
+            Long hostId = entry.getKey();
+            LinkedList<SecurityGroupWork> hostWork = entry.getValue();
+            iter.remove();
+
+            while (work.size() < numberOfWorkItems && !hostWork.isEmpty()) {
+                SecurityGroupWork w = hostWork.removeFirst();
+                w.setStep(Step.Processing);
+                _queuedVms.remove(w.getInstanceId());
+                work.add(w);
+            }
+            if (!hostWork.isEmpty()) {
+                _workByHost.put(hostId, hostWork);
+            }
+            if (_count.addAndGet(-work.size()) > 0) {
+                _notEmpty.signal();
+            }
+        } finally {
+            _lock.unlock();
+        }
+        return work;
+    }
+
+    @Override
+    public int size() {
+        return _count.get();
+    }
+
+    @Override
+    public void clear() {
+        _lock.lock();
+        try {
+            _workByHost.clear();
+            _queuedVms.clear();
+            _count.set(0);
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Long> getVmsInQueue() {
+        List<Long> vmIds = new ArrayList<Long>();
+        _lock.lock();
+        try {
+            for (LinkedList<SecurityGroupWork> hostWork : _workByHost.values()) {
+                for (SecurityGroupWork work : hostWork) {
+                    vmIds.add(work.getInstanceId());
+                }
+            }
+        } finally {
+            _lock.unlock();
+        }
+        return vmIds;
+    }
+
+    public int getHostsInQueue() {
+        _lock.lock();
+        try {
+            return _workByHost.size();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of work items routed to other management servers since startup
+     */
+    public long getForwardedCount() {
+        return _forwardedCount.get();
+    }
+}
@@ -49,11 +49,20 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
         Long _logSequenceNumber;
         Long _instanceId;
         Step _step;
+        long _queuedAt;
         
         public LocalSecurityGroupWork(Long instanceId, Long logSequence, Step step){
             this._instanceId = instanceId;
             this._logSequenceNumber = logSequence;
             this._step = step;
+            this._queuedAt = System.currentTimeMillis();
+        }
+        
+        /**
+         * @return when the work was queued on this management server, in milliseconds
+         */
+        public long getQueuedAt() {
+            return _queuedAt;
         }
         
         @Override
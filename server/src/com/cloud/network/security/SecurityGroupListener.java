@@ -86,6 +86,7 @@ public class SecurityGroupListener implements Listener {
     @Override
     public boolean processAnswers(long agentId, long seq, Answer[] answers) {
         List<Long> affectedVms = new ArrayList<Long>();
+        List<Long> resyncVms = new ArrayList<Long>();
         int commandNum = 0;
         for (Answer ans: answers) {
             if (ans instanceof SecurityGroupRuleAnswer) {
@@ -94,12 +95,18 @@ public class SecurityGroupListener implements Listener {
                     s_logger.debug("Successfully programmed rule " + ruleAnswer.toString() + " into host " + agentId);
                     _workDao.updateStep(ruleAnswer.getVmId(), ruleAnswer.getLogSequenceNumber(), Step.Done);
                     recordSuccess(ruleAnswer.getVmId());
+                    _securityGroupManager.handleRulesetAnswer(ruleAnswer.getVmId(), true);
                 } else {
                     _workDao.updateStep(ruleAnswer.getVmId(), ruleAnswer.getLogSequenceNumber(), Step.Error);;
+                    _securityGroupManager.handleRulesetAnswer(ruleAnswer.getVmId(), false);
                     s_logger.debug("Failed to program rule " + ruleAnswer.toString() + " into host " + agentId 
                             +" due to " + ruleAnswer.getDetails()
                             +" and updated  jobs");
-                    if (ruleAnswer.getReason() == FailureReason.CANNOT_BRIDGE_FIREWALL) {
+                    if (ruleAnswer.getReason() == FailureReason.BASE_SIGNATURE_MISMATCH) {
+                        // not a programming failure: the host lost track of the ruleset the diff was built on, the full one is sent right away
+                        s_logger.debug("Resending the full ruleset for vm " + ruleAnswer.getVmId() + " since host " + agentId + " does not have the base of the diff");
+                        resyncVms.add(ruleAnswer.getVmId());
+                    } else if (ruleAnswer.getReason() == FailureReason.CANNOT_BRIDGE_FIREWALL) {
                         s_logger.debug("Not retrying security group rules for vm " + ruleAnswer.getVmId() + " on failure since host " + agentId + " cannot do bridge firewalling");
                     } else if (ruleAnswer.getReason() == FailureReason.PROGRAMMING_FAILED){
                         if (checkShouldRetryOnFailure(ruleAnswer.getVmId())) {
@@ -111,14 +118,19 @@ public class SecurityGroupListener implements Listener {
                     }
                 }
                 commandNum++;
-                if (_workTracker != null)
-                    _workTracker.processAnswers(agentId, seq, answers);
             }
         }
+        // the rulesets for a host go out in one request, so one request's worth of answers is acked at once
+        if (commandNum > 0 && _workTracker != null) {
+            _workTracker.processAnswers(agentId, seq, answers);
+        }
 
         if (affectedVms.size() > 0) {
             _securityGroupManager.scheduleRulesetUpdateToHosts(affectedVms, false, new Long(10 * 1000l));
         }
+        if (resyncVms.size() > 0) {
+            _securityGroupManager.scheduleRulesetUpdateToHosts(resyncVms, false, null);
+        }
 
         return true;
     }
@@ -177,6 +189,7 @@ public class SecurityGroupListener implements Listener {
             if (_workTracker != null) {
                 _workTracker.processConnect(host.getId());
             }
+            _securityGroupManager.handleHostConnected(host.getId(), (StartupRoutingCommand)cmd);
         }
     }
 
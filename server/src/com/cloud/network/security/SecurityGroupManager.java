@@ -19,6 +19,7 @@ package com.cloud.network.security;
 import java.util.HashMap;
 import java.util.List;
 
+import com.cloud.agent.api.SecurityGroupWorkCommand;
 import com.cloud.utils.Pair;
 
 
@@ -54,4 +55,9 @@ public interface SecurityGroupManager {
     SecurityGroup getSecurityGroup(String name, long accountId);
     
     boolean isVmMappedToDefaultSecurityGroup(long vmId);
+
+    /**
+     * Handles work or a rule index change forwarded by another management server
+     */
+    void onSecurityGroupWorkFromPeer(SecurityGroupWorkCommand cmd);
 }
@@ -43,6 +43,8 @@ import com.cloud.agent.AgentManager;
 import com.cloud.agent.api.NetworkRulesSystemVmCommand;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
+import com.cloud.agent.api.SecurityGroupWorkCommand;
+import com.cloud.agent.api.StartupRoutingCommand;
 import com.cloud.agent.manager.Commands;
 import com.cloud.api.commands.AuthorizeSecurityGroupEgressCmd;
 import com.cloud.api.commands.AuthorizeSecurityGroupIngressCmd;
@@ -500,23 +502,40 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
     }
 
     protected SecurityGroupRulesCmd generateRulesetCmd(String vmName, String guestIp, String guestMac, Long vmId, String signature, long seqnum, Map<PortAndProto, Set<String>> ingressRules, Map<PortAndProto, Set<String>> egressRules) {
-        List<IpPortAndProto> ingressResult = new ArrayList<IpPortAndProto>();
-        List<IpPortAndProto> egressResult = new ArrayList<IpPortAndProto>();
-        for (PortAndProto pAp : ingressRules.keySet()) {
-            Set<String> cidrs = ingressRules.get(pAp);
-            if (cidrs.size() > 0) {
-                IpPortAndProto ipPortAndProto = new SecurityGroupRulesCmd.IpPortAndProto(pAp.getProto(), pAp.getStartPort(), pAp.getEndPort(), cidrs.toArray(new String[cidrs.size()]));
-                ingressResult.add(ipPortAndProto);
-            }
-        }
-        for (PortAndProto pAp : egressRules.keySet()) {
-            Set<String> cidrs = egressRules.get(pAp);
+        return new SecurityGroupRulesCmd(guestIp, guestMac, vmName, vmId, signature, seqnum, toIpPortAndProto(ingressRules), toIpPortAndProto(egressRules));
+    }
+
+    protected IpPortAndProto[] toIpPortAndProto(Map<PortAndProto, Set<String>> rules) {
+        List<IpPortAndProto> result = new ArrayList<IpPortAndProto>();
+        for (PortAndProto pAp : rules.keySet()) {
+            Set<String> cidrs = rules.get(pAp);
             if (cidrs.size() > 0) {
                 IpPortAndProto ipPortAndProto = new SecurityGroupRulesCmd.IpPortAndProto(pAp.getProto(), pAp.getStartPort(), pAp.getEndPort(), cidrs.toArray(new String[cidrs.size()]));
-                egressResult.add(ipPortAndProto);
+                result.add(ipPortAndProto);
             }
         }
-        return new SecurityGroupRulesCmd(guestIp, guestMac, vmName, vmId, signature, seqnum, ingressResult.toArray(new IpPortAndProto[ingressResult.size()]), egressResult.toArray(new IpPortAndProto[egressResult.size()]));
+        return result.toArray(new IpPortAndProto[result.size()]);
+    }
+
+    /**
+     * Called after rules were authorized in or revoked from a security group.
+     */
+    protected void handleRulesChanged(long securityGroupId) {
+    }
+
+    /**
+     * Called after a vm was added to or removed from security groups.
+     */
+    protected void handleVmGroupsChanged(long userVmId) {
+    }
+
+    /**
+     * Called by the answer listener for every ruleset update a host answered.
+     */
+    protected void handleRulesetAnswer(long userVmId, boolean result) {
+    }
+
+    protected void handleHostConnected(long hostId, StartupRoutingCommand cmd) {
     }
 
     protected void handleVmStopped(VMInstanceVO vm) {
@@ -737,6 +756,7 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
                 s_logger.debug("Added " + newRules.size() + " rules to security group " + securityGroup.getName());
             }
             txn.commit();
+            handleRulesChanged(securityGroup.getId());
             final ArrayList<Long> affectedVms = new ArrayList<Long>();
             affectedVms.addAll(_securityGroupVMMapDao.listVmIdsBySecurityGroup(securityGroup.getId()));
             scheduleRulesetUpdateToHosts(affectedVms, true, null);
@@ -802,6 +822,7 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
 
             _securityGroupRuleDao.remove(id);
             s_logger.debug("revokeSecurityGroupRule succeeded for security rule id: " + id);
+            handleRulesChanged(groupHandle.getId());
 
             final ArrayList<Long> affectedVms = new ArrayList<Long>();
             affectedVms.addAll(_securityGroupVMMapDao.listVmIdsBySecurityGroup(groupHandle.getId()));
@@ -1015,6 +1036,7 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
                     }
                 }
                 txn.commit();
+                handleVmGroupsChanged(userVmId);
                 return true;
             } finally {
                 if (userVm != null) {
@@ -1045,6 +1067,7 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
         s_logger.info("Disassociated " + n + " network groups " + " from uservm " + userVmId);
         _userVMDao.releaseFromLockTable(userVmId);
         txn.commit();
+        handleVmGroupsChanged(userVmId);
         s_logger.debug("Security group mappings are removed successfully for vm id=" + userVmId);
     }
 
@@ -1360,4 +1383,17 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
             return true;
         }
     }
+
+    @Override
+    public void onSecurityGroupWorkFromPeer(SecurityGroupWorkCommand cmd) {
+        // this implementation has no rule index, only the work a peer forwards for our hosts needs handling
+        if (cmd.getType() != SecurityGroupWorkCommand.Type.Work) {
+            return;
+        }
+        List<Long> affectedVms = new ArrayList<Long>(cmd.getIds().length);
+        for (long vmId : cmd.getIds()) {
+            affectedVms.add(vmId);
+        }
+        scheduleRulesetUpdateToHosts(affectedVms, false, null);
+    }
 }
@@ -16,27 +16,44 @@
 // under the License.
 package com.cloud.network.security;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
 
+import com.cloud.agent.AgentManager.OnError;
+import com.cloud.agent.api.Command;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupWorkCommand;
+import com.cloud.agent.api.StartupRoutingCommand;
 import com.cloud.agent.manager.Commands;
+import com.cloud.cluster.ClusterManager;
 import com.cloud.configuration.Config;
 import com.cloud.exception.AgentUnavailableException;
+import com.cloud.network.security.LocalSecurityGroupWorkQueue.LocalSecurityGroupWork;
+import com.cloud.network.security.SecurityGroupRuleIndex.Ruleset;
+import com.cloud.network.security.SecurityGroupRuleIndex.SentRuleset;
 import com.cloud.network.security.SecurityGroupWork.Step;
 import com.cloud.uservm.UserVm;
 import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.Pair;
 import com.cloud.utils.Profiler;
+import com.cloud.utils.component.Inject;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
+import com.cloud.vm.UserVmVO;
+import com.cloud.vm.VMInstanceVO;
+import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachine.State;
 import com.cloud.network.security.SecurityRule.SecurityRuleType;
 
@@ -49,6 +66,14 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
     SecurityGroupWorkQueue _workQueue = new LocalSecurityGroupWorkQueue();
     SecurityGroupWorkTracker _workTracker;
     SecurityManagerMBeanImpl _mBean;
+    SecurityGroupRuleIndex _ruleIndex;
+    int _workBatchSize = 20;
+    boolean _clusteredQueue = false;
+    @Inject
+    ClusterManager _clusterMgr;
+    // rule index changes waiting to be broadcast to the peers, in the order they were made here
+    private final List<Pair<SecurityGroupWorkCommand.Type, Long>> _peerNotifications = new ArrayList<Pair<SecurityGroupWorkCommand.Type, Long>>();
+    private static final long PEER_NOTIFICATION_INTERVAL_MS = 500;
     
     WorkerThread[] _workers;
     private Set<Long> _disabledVms = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
@@ -121,15 +146,30 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
         for (final WorkerThread thread : _workers) {
             thread.start();
         }
+        if (_clusteredQueue && _ruleIndex != null) {
+            _executorPool.scheduleWithFixedDelay(new PeerNotificationTask(), PEER_NOTIFICATION_INTERVAL_MS, PEER_NOTIFICATION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
         return true;
     }
 
+    protected class PeerNotificationTask implements Runnable {
+        @Override
+        public void run() {
+            try {
+                flushPeerNotifications();
+            } catch (Throwable th) {
+                s_logger.warn("Security Group Mgr v2: unable to notify peers of rule index changes", th);
+            }
+        }
+    }
+
     @Override
     public void work() {
         s_logger.trace("Checking the work queue");
         List<SecurityGroupWork> workItems;
         try {
-            workItems = _workQueue.getWork(1);
+            workItems = _workQueue.getWork(_workBatchSize);
+            List<SecurityGroupWork> readyItems = new ArrayList<SecurityGroupWork>(workItems.size());
             for (SecurityGroupWork work: workItems) {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Processing " + work.getInstanceId());
@@ -142,56 +182,317 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
                         continue;
                     }
                     work.setLogsequenceNumber(rulesetLog.getLogsequence());
-                    sendRulesetUpdates(work);
-                    _mBean.logUpdateDetails(work.getInstanceId(), work.getLogsequenceNumber());
+                    readyItems.add(work);
                 }catch (Exception e) {
                     s_logger.error("Problem during SG work " + work, e);
                     work.setStep(Step.Error);
                 }
             }
+            if (readyItems.isEmpty()) {
+                return;
+            }
+            try {
+                sendRulesetUpdates(readyItems);
+                for (SecurityGroupWork work : readyItems) {
+                    if (work.getStep() != Step.Error) {
+                        _mBean.logUpdateDetails(work.getInstanceId(), work.getLogsequenceNumber());
+                    }
+                }
+            } catch (Exception e) {
+                s_logger.error("Problem during SG work for " + readyItems.size() + " vms", e);
+                for (SecurityGroupWork work : readyItems) {
+                    work.setStep(Step.Error);
+                }
+            }
         } catch (InterruptedException e1) {
            s_logger.warn("SG work: caught InterruptException", e1);
         }
     }
     
     public void sendRulesetUpdates(SecurityGroupWork work){
-        Long userVmId = work.getInstanceId();
-        UserVm vm = _userVMDao.findById(userVmId);
+        sendRulesetUpdates(Collections.singletonList(work));
+    }
 
-        if (vm != null && vm.getState() == State.Running) {
+    /**
+     * Sends the rulesets of the vms in one request per host
+     */
+    public void sendRulesetUpdates(List<SecurityGroupWork> workItems) {
+        Map<Long, SecurityGroupWork> workByVm = new HashMap<Long, SecurityGroupWork>(workItems.size());
+        for (SecurityGroupWork work : workItems) {
+            workByVm.put(work.getInstanceId(), work);
+        }
+
+        Map<Long, List<SecurityGroupRulesCmd>> cmdsByHost = new HashMap<Long, List<SecurityGroupRulesCmd>>();
+        Map<Long, Ruleset> rulesets = new HashMap<Long, Ruleset>();
+        for (UserVmVO vm : _userVMDao.listByIds(workByVm.keySet())) {
+            SecurityGroupWork work = workByVm.remove(vm.getId());
+            if (vm.getState() != State.Running) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("No rules sent to vm " + vm + "state=" + vm.getState());
+                }
+                continue;
+            }
             if (s_logger.isTraceEnabled()) { 
-                s_logger.trace("SecurityGroupManager v2: found vm, " + userVmId + " state=" + vm.getState());
+                s_logger.trace("SecurityGroupManager v2: found vm, " + vm.getId() + " state=" + vm.getState());
             }
-            Map<PortAndProto, Set<String>> ingressRules = generateRulesForVM(userVmId, SecurityRuleType.IngressRule);
-            Map<PortAndProto, Set<String>> egressRules = generateRulesForVM(userVmId, SecurityRuleType.EgressRule);
             Long agentId = vm.getHostId();
-            if (agentId != null) {
-                SecurityGroupRulesCmd cmd = generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), 
-                        vm.getPrivateMacAddress(), vm.getId(), null, 
-                        work.getLogsequenceNumber(), ingressRules, egressRules);
-                cmd.setMsId(_serverId);
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("SecurityGroupManager v2: sending ruleset update for vm " + vm.getInstanceName() + 
-                                   ":ingress num rules=" + cmd.getIngressRuleSet().length + ":egress num rules=" + cmd.getEgressRuleSet().length + " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" + cmd.getSignature());
+            if (agentId == null) {
+                continue;
+            }
+
+            SecurityGroupRulesCmd cmd = null;
+            // a vm whose ruleset can't be built fails on its own, the rest of the batch is still sent
+            try {
+                if (_ruleIndex != null) {
+                    Ruleset ruleset = _ruleIndex.getRuleset(vm.getId());
+                    cmd = generateRulesetCmd(vm, agentId, ruleset, work.getLogsequenceNumber());
+                    rulesets.put(vm.getId(), ruleset);
+                } else {
+                    Map<PortAndProto, Set<String>> ingressRules = generateRulesForVM(vm.getId(), SecurityRuleType.IngressRule);
+                    Map<PortAndProto, Set<String>> egressRules = generateRulesForVM(vm.getId(), SecurityRuleType.EgressRule);
+                    cmd = generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), 
+                            vm.getPrivateMacAddress(), vm.getId(), null, 
+                            work.getLogsequenceNumber(), ingressRules, egressRules);
                 }
-                Commands cmds = new Commands(cmd);
-                try {
-                    _agentMgr.send(agentId, cmds, _answerListener);
-                    if (s_logger.isTraceEnabled()) {
-                        s_logger.trace("SecurityGroupManager v2: sent ruleset updates for " + vm.getInstanceName() + " curr queue size=" + _workQueue.size());
+            } catch (Exception e) {
+                s_logger.error("Problem during SG work " + work, e);
+                work.setStep(Step.Error);
+                continue;
+            }
+            cmd.setMsId(_serverId);
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("SecurityGroupManager v2: sending ruleset " + (cmd.isDelta() ? "diff" : "update") + " for vm " + vm.getInstanceName() + 
+                               ":ingress num rules=" + cmd.getIngressRuleSet().length + ":egress num rules=" + cmd.getEgressRuleSet().length + " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" + cmd.getSignature());
+            }
+            List<SecurityGroupRulesCmd> hostCmds = cmdsByHost.get(agentId);
+            if (hostCmds == null) {
+                hostCmds = new ArrayList<SecurityGroupRulesCmd>();
+                cmdsByHost.put(agentId, hostCmds);
+            }
+            hostCmds.add(cmd);
+            if (work instanceof LocalSecurityGroupWork) {
+                _mBean.logUpdateSent(vm.getId(), ((LocalSecurityGroupWork)work).getQueuedAt());
+            }
+        }
+        if (s_logger.isDebugEnabled()) {
+            for (Long userVmId : workByVm.keySet()) {
+                s_logger.debug("Could not find vm: No rules sent to vm " + userVmId );
+            }
+        }
+
+        for (Map.Entry<Long, List<SecurityGroupRulesCmd>> entry : cmdsByHost.entrySet()) {
+            Long agentId = entry.getKey();
+            // each ruleset is answered on its own, so one vm failing does not hold back the others
+            Commands cmds = new Commands(OnError.Continue);
+            for (SecurityGroupRulesCmd cmd : entry.getValue()) {
+                cmds.addCommand(cmd);
+            }
+            try {
+                _agentMgr.send(agentId, cmds, _answerListener);
+                for (SecurityGroupRulesCmd cmd : entry.getValue()) {
+                    Ruleset ruleset = rulesets.get(cmd.getVmId());
+                    if (ruleset != null) {
+                        _ruleIndex.rulesetSent(cmd.getVmId(), agentId, ruleset);
+                    }
+                }
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("SecurityGroupManager v2: sent " + cmds.size() + " ruleset updates to host " + agentId + " curr queue size=" + _workQueue.size());
+                }
+            } catch (AgentUnavailableException e) {
+                s_logger.debug("Unable to send updates for " + cmds.size() + " vms (agentid=" + agentId + ")");
+                _workTracker.handleException(agentId);
+                for (SecurityGroupRulesCmd cmd : entry.getValue()) {
+                    _mBean.logUpdateAnswered(cmd.getVmId(), false);
+                    if (rulesets.containsKey(cmd.getVmId())) {
+                        _ruleIndex.rulesetFailed(cmd.getVmId());
                     }
-                } catch (AgentUnavailableException e) {
-                    s_logger.debug("Unable to send updates for vm: " + userVmId + "(agentid=" + agentId + ")");
-                    _workTracker.handleException(agentId);
                 }
             }
-        } else {
-            if (s_logger.isDebugEnabled()) {
-                if (vm != null)
-                    s_logger.debug("No rules sent to vm " + vm + "state=" + vm.getState());
-                else
-                    s_logger.debug("Could not find vm: No rules sent to vm " + userVmId );
+        }
+    }
+
+    /**
+     * Builds the update from the indexed ruleset: only the cidrs that changed since the last ruleset sent to the same
+     * host when the host can apply a diff, the full ruleset otherwise.
+     */
+    protected SecurityGroupRulesCmd generateRulesetCmd(UserVm vm, long agentId, Ruleset ruleset, long seqnum) {
+        SecurityGroupRulesCmd fullCmd = null;
+        if (ruleset.getSignature() == null) {
+            fullCmd = generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), vm.getPrivateMacAddress(), vm.getId(), null, seqnum,
+                    ruleset.getIngress(), ruleset.getEgress());
+            ruleset.setSignature(fullCmd.getSignature());
+        }
+
+        SentRuleset sent = _ruleIndex.supportsDelta(agentId) ? _ruleIndex.getSentRuleset(vm.getId(), agentId) : null;
+        if (sent == null) {
+            if (fullCmd == null) {
+                fullCmd = generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), vm.getPrivateMacAddress(), vm.getId(), ruleset.getSignature(), seqnum,
+                        ruleset.getIngress(), ruleset.getEgress());
             }
+            return fullCmd;
+        }
+
+        Ruleset base = sent.getRuleset();
+        return new SecurityGroupRulesCmd(vm.getPrivateIpAddress(), vm.getPrivateMacAddress(), vm.getInstanceName(), vm.getId(), ruleset.getSignature(),
+                base.getSignature(), seqnum,
+                toIpPortAndProto(SecurityGroupRuleIndex.subtract(ruleset.getIngress(), base.getIngress())),
+                toIpPortAndProto(SecurityGroupRuleIndex.subtract(ruleset.getEgress(), base.getEgress())),
+                toIpPortAndProto(SecurityGroupRuleIndex.subtract(base.getIngress(), ruleset.getIngress())),
+                toIpPortAndProto(SecurityGroupRuleIndex.subtract(base.getEgress(), ruleset.getEgress())));
+    }
+
+    @Override
+    public void handleVmStarted(VMInstanceVO vm) {
+        if (_ruleIndex != null && vm.getType() == VirtualMachine.Type.User) {
+            _ruleIndex.vmStarted(vm.getId());
+            notifyPeers(SecurityGroupWorkCommand.Type.VmStarted, vm.getId());
+        }
+        super.handleVmStarted(vm);
+    }
+
+    @Override
+    protected void handleVmStopped(VMInstanceVO vm) {
+        if (_ruleIndex != null && vm.getType() == VirtualMachine.Type.User) {
+            _ruleIndex.vmStopped(vm.getId());
+            notifyPeers(SecurityGroupWorkCommand.Type.VmStopped, vm.getId());
+        }
+        super.handleVmStopped(vm);
+    }
+
+    @Override
+    protected void handleRulesChanged(long securityGroupId) {
+        if (_ruleIndex != null) {
+            _ruleIndex.rulesChanged(securityGroupId);
+            notifyPeers(SecurityGroupWorkCommand.Type.RulesChanged, securityGroupId);
+        }
+    }
+
+    @Override
+    protected void handleVmGroupsChanged(long userVmId) {
+        if (_ruleIndex != null) {
+            _ruleIndex.vmGroupsChanged(userVmId);
+            notifyPeers(SecurityGroupWorkCommand.Type.VmGroupsChanged, userVmId);
+        }
+    }
+
+    /**
+     * With the clustered queue the rulesets for a vm are computed by the management server owning its host, so
+     * the rule index of every other management server has to see the changes made here as well.
+     */
+    protected void notifyPeers(SecurityGroupWorkCommand.Type type, long id) {
+        if (_clusteredQueue) {
+            synchronized (_peerNotifications) {
+                _peerNotifications.add(new Pair<SecurityGroupWorkCommand.Type, Long>(type, id));
+            }
+        }
+    }
+
+    /**
+     * Sends the changes queued by notifyPeers in a single broadcast. Consecutive changes of the same type share one
+     * command, the commands keep the order of the changes so that a vm stopped and started again ends up started.
+     */
+    protected void flushPeerNotifications() {
+        List<Pair<SecurityGroupWorkCommand.Type, Long>> notifications;
+        synchronized (_peerNotifications) {
+            if (_peerNotifications.isEmpty()) {
+                return;
+            }
+            notifications = new ArrayList<Pair<SecurityGroupWorkCommand.Type, Long>>(_peerNotifications);
+            _peerNotifications.clear();
+        }
+
+        List<Command> cmds = new ArrayList<Command>();
+        SecurityGroupWorkCommand.Type type = null;
+        Set<Long> ids = new LinkedHashSet<Long>();
+        for (Pair<SecurityGroupWorkCommand.Type, Long> notification : notifications) {
+            if (notification.first() != type && !ids.isEmpty()) {
+                cmds.add(new SecurityGroupWorkCommand(type, toArray(new ArrayList<Long>(ids))));
+                ids.clear();
+            }
+            type = notification.first();
+            ids.add(notification.second());
+        }
+        cmds.add(new SecurityGroupWorkCommand(type, toArray(new ArrayList<Long>(ids))));
+        _clusterMgr.broadcast(0, cmds.toArray(new Command[cmds.size()]));
+    }
+
+    @Override
+    public void onSecurityGroupWorkFromPeer(SecurityGroupWorkCommand cmd) {
+        long[] ids = cmd.getIds();
+        if (cmd.getType() == SecurityGroupWorkCommand.Type.Work) {
+            if (_schedulerDisabled) {
+                s_logger.debug("Security Group Mgr v2: scheduler disabled, dropping work for " + ids.length + " vms from a peer");
+                return;
+            }
+            if (_workQueue instanceof ClusteredSecurityGroupWorkQueue) {
+                long[] hostIds = cmd.getHostIds();
+                List<Long> vmIds = new ArrayList<Long>(ids.length);
+                List<Long> vmHostIds = new ArrayList<Long>(ids.length);
+                for (int i = 0; i < ids.length; i++) {
+                    if (!_disabledVms.contains(ids[i])) {
+                        vmIds.add(ids[i]);
+                        vmHostIds.add(hostIds[i]);
+                    }
+                }
+                int newJobs = ((ClusteredSecurityGroupWorkQueue)_workQueue).submitWorkFromPeer(toArray(vmIds), toArray(vmHostIds));
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Security Group Mgr v2: queued work for " + vmIds.size() + " vms from a peer, num new jobs=" + newJobs);
+                }
+            } else {
+                Set<Long> workItems = new TreeSet<Long>();
+                for (long id : ids) {
+                    workItems.add(id);
+                }
+                workItems.removeAll(_disabledVms);
+                _workQueue.submitWorkForVms(workItems);
+            }
+            return;
+        }
+
+        if (_ruleIndex == null) {
+            return;
+        }
+        for (long id : ids) {
+            switch (cmd.getType()) {
+            case VmStarted:
+                _ruleIndex.vmStarted(id);
+                break;
+            case VmStopped:
+                _ruleIndex.vmStopped(id);
+                break;
+            case VmGroupsChanged:
+                _ruleIndex.vmGroupsChanged(id);
+                break;
+            case RulesChanged:
+                _ruleIndex.rulesChanged(id);
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    private static long[] toArray(List<Long> values) {
+        long[] result = new long[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+
+    @Override
+    protected void handleRulesetAnswer(long userVmId, boolean result) {
+        _mBean.logUpdateAnswered(userVmId, result);
+        if (_ruleIndex != null && !result) {
+            _ruleIndex.rulesetFailed(userVmId);
+        }
+    }
+
+    @Override
+    protected void handleHostConnected(long hostId, StartupRoutingCommand cmd) {
+        if (_ruleIndex != null) {
+            Map<String, String> details = cmd.getHostDetails();
+            _ruleIndex.hostConnected(hostId, details != null && Boolean.parseBoolean(details.get(SecurityGroupRulesCmd.DELTA_CAPABLE)));
         }
     }
 
@@ -264,6 +565,19 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
         int bufferLength = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkPerAgentMaxQueueSize.key()), 100);
         _workTracker =  new SecurityGroupWorkTracker(_agentMgr, _answerListener, bufferLength);
         _answerListener.setWorkDispatcher(_workTracker);
+        int ruleIndexTtl = NumbersUtil.parseInt(configs.get(Config.SecurityGroupRuleIndexTtl.key()), 0);
+        if (ruleIndexTtl > 0) {
+            _ruleIndex = new SecurityGroupRuleIndex(_securityGroupVMMapDao, _securityGroupRuleDao, _networkMgr, ruleIndexTtl * 1000L);
+        }
+        _workBatchSize = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkBatchSize.key()), 20);
+        if (_workBatchSize < 1) {
+            _workBatchSize = 1;
+        }
+        if ("clustered".equalsIgnoreCase(configs.get(Config.SecurityGroupWorkQueue.key()))) {
+            _workQueue = new ClusteredSecurityGroupWorkQueue(_userVMDao, _clusterMgr);
+            _clusteredQueue = true;
+        }
+        s_logger.info("Security Group Mgr v2: " + (_clusteredQueue ? "clustered" : "local") + " work queue, batch size=" + _workBatchSize);
         return result;
     }
 
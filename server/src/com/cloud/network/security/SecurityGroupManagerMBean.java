@@ -43,6 +43,16 @@ public interface SecurityGroupManagerMBean {
     
     List<Long> getVmsInQueue();
     
+    long getWorkForwardedToPeers();
+    
+    long getUpdatesAcked();
+    
+    long getAverageUpdateLatencyMs();
+    
+    long getMaxUpdateLatencyMs();
+    
+    void resetUpdateLatency();
+    
     void scheduleRulesetUpdateForVm(Long vmId);
     
     void tryRulesetUpdateForVmBypassSchedulerVeryDangerous(Long vmId, Long seqno);
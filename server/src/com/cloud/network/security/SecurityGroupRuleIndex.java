@@ -0,0 +1,427 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.network.NetworkManager;
+import com.cloud.network.security.SecurityGroupManagerImpl.CidrComparator;
+import com.cloud.network.security.SecurityGroupManagerImpl.PortAndProto;
+import com.cloud.network.security.SecurityRule.SecurityRuleType;
+import com.cloud.network.security.dao.SecurityGroupRuleDao;
+import com.cloud.network.security.dao.SecurityGroupVMMapDao;
+import com.cloud.vm.Nic;
+import com.cloud.vm.VirtualMachine.State;
+
+/**
+ * In-memory index of security group rules and running members, used to compute the ruleset of a vm without reading
+ * the group map, the rules and every allowed instance from the database for each affected vm.
+ *
+ * Entries are loaded on first use and then kept up to date from the vm start/stop, membership and rule events seen by
+ * this management server; changes made through other management servers are only picked up once an entry is older
+ * than the ttl, which is why the index is off unless a ttl is configured. Entries are never modified in place, a change replaces them, so a computed ruleset stays valid for as long
+ * as every entry it was computed from is still current.
+ *
+ * The index also remembers the last ruleset sent for each vm so that hosts that can apply a diff are only sent the
+ * cidrs that changed.
+ */
+public class SecurityGroupRuleIndex {
+    protected static final Logger s_logger = Logger.getLogger(SecurityGroupRuleIndex.class);
+
+    private final SecurityGroupVMMapDao _vmMapDao;
+    private final SecurityGroupRuleDao _ruleDao;
+    private final NetworkManager _networkMgr;
+    private final long _ttlMs;
+
+    private final Map<Long, VmGroups> _vmGroups = new ConcurrentHashMap<Long, VmGroups>();
+    private final Map<Long, GroupRules> _groupRules = new ConcurrentHashMap<Long, GroupRules>();
+    private final Map<Long, GroupMembers> _groupMembers = new ConcurrentHashMap<Long, GroupMembers>();
+    private final Map<Long, Ruleset> _rulesets = new ConcurrentHashMap<Long, Ruleset>();
+    private final Map<Long, SentRuleset> _sentRulesets = new ConcurrentHashMap<Long, SentRuleset>();
+    private final Set<Long> _deltaCapableHosts = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    // bumped by every event; an entry loaded while an event was being applied is used but not cached
+    private final AtomicLong _changes = new AtomicLong();
+
+    private static abstract class Entry {
+        final long _key;
+        final long _loadedAt;
+
+        Entry(long key, long loadedAt) {
+            _key = key;
+            _loadedAt = loadedAt;
+        }
+    }
+
+    private static class VmGroups extends Entry {
+        final Set<Long> _groupIds;
+
+        VmGroups(long vmId, long loadedAt, Set<Long> groupIds) {
+            super(vmId, loadedAt);
+            _groupIds = groupIds;
+        }
+    }
+
+    private static class GroupRules extends Entry {
+        final List<SecurityGroupRuleVO> _ingress;
+        final List<SecurityGroupRuleVO> _egress;
+
+        GroupRules(long groupId, long loadedAt, List<SecurityGroupRuleVO> ingress, List<SecurityGroupRuleVO> egress) {
+            super(groupId, loadedAt);
+            _ingress = ingress;
+            _egress = egress;
+        }
+
+        List<SecurityGroupRuleVO> getRules(SecurityRuleType type) {
+            return type == SecurityRuleType.IngressRule ? _ingress : _egress;
+        }
+    }
+
+    private static class GroupMembers extends Entry {
+        final Map<Long, Set<String>> _cidrsByVm;
+
+        GroupMembers(long groupId, long loadedAt, Map<Long, Set<String>> cidrsByVm) {
+            super(groupId, loadedAt);
+            _cidrsByVm = cidrsByVm;
+        }
+    }
+
+    public static class Ruleset {
+        final Map<PortAndProto, Set<String>> _ingress;
+        final Map<PortAndProto, Set<String>> _egress;
+        final List<Entry> _dependencies;
+        volatile String _signature;
+
+        Ruleset(Map<PortAndProto, Set<String>> ingress, Map<PortAndProto, Set<String>> egress, List<Entry> dependencies) {
+            _ingress = ingress;
+            _egress = egress;
+            _dependencies = dependencies;
+        }
+
+        public Map<PortAndProto, Set<String>> getIngress() {
+            return _ingress;
+        }
+
+        public Map<PortAndProto, Set<String>> getEgress() {
+            return _egress;
+        }
+
+        public String getSignature() {
+            return _signature;
+        }
+
+        public void setSignature(String signature) {
+            _signature = signature;
+        }
+    }
+
+    public static class SentRuleset {
+        final long _hostId;
+        final Ruleset _ruleset;
+
+        SentRuleset(long hostId, Ruleset ruleset) {
+            _hostId = hostId;
+            _ruleset = ruleset;
+        }
+
+        public long getHostId() {
+            return _hostId;
+        }
+
+        public Ruleset getRuleset() {
+            return _ruleset;
+        }
+    }
+
+    public SecurityGroupRuleIndex(SecurityGroupVMMapDao vmMapDao, SecurityGroupRuleDao ruleDao, NetworkManager networkMgr, long ttlMs) {
+        _vmMapDao = vmMapDao;
+        _ruleDao = ruleDao;
+        _networkMgr = networkMgr;
+        _ttlMs = ttlMs;
+    }
+
+    /**
+     * @return the ruleset of the vm, recomputed only if a group, rule or member it depends on has changed.
+     */
+    public Ruleset getRuleset(long vmId) {
+        Ruleset ruleset = _rulesets.get(vmId);
+        if (ruleset != null && isCurrent(ruleset)) {
+            return ruleset;
+        }
+
+        long changes = _changes.get();
+        List<Entry> dependencies = new ArrayList<Entry>();
+        VmGroups vmGroups = getVmGroups(vmId);
+        dependencies.add(vmGroups);
+        Map<PortAndProto, Set<String>> ingress = generateRules(vmGroups, SecurityRuleType.IngressRule, dependencies);
+        Map<PortAndProto, Set<String>> egress = generateRules(vmGroups, SecurityRuleType.EgressRule, dependencies);
+        ruleset = new Ruleset(ingress, egress, dependencies);
+        if (_changes.get() == changes) {
+            _rulesets.put(vmId, ruleset);
+        }
+        return ruleset;
+    }
+
+    private Map<PortAndProto, Set<String>> generateRules(VmGroups vmGroups, SecurityRuleType type, List<Entry> dependencies) {
+        Map<PortAndProto, Set<String>> allowed = new TreeMap<PortAndProto, Set<String>>();
+        for (Long groupId : vmGroups._groupIds) {
+            GroupRules rules = getGroupRules(groupId);
+            dependencies.add(rules);
+            for (SecurityGroupRuleVO rule : rules.getRules(type)) {
+                PortAndProto portAndProto = new PortAndProto(rule.getProtocol(), rule.getStartPort(), rule.getEndPort());
+                Set<String> cidrs = allowed.get(portAndProto);
+                if (cidrs == null) {
+                    cidrs = new TreeSet<String>(new CidrComparator());
+                }
+                if (rule.getAllowedNetworkId() != null) {
+                    GroupMembers members = getGroupMembers(rule.getAllowedNetworkId());
+                    dependencies.add(members);
+                    for (Set<String> memberCidrs : members._cidrsByVm.values()) {
+                        cidrs.addAll(memberCidrs);
+                    }
+                } else if (rule.getAllowedSourceIpCidr() != null) {
+                    cidrs.add(rule.getAllowedSourceIpCidr());
+                }
+                if (cidrs.size() > 0) {
+                    allowed.put(portAndProto, cidrs);
+                }
+            }
+        }
+        return allowed;
+    }
+
+    private boolean isCurrent(Ruleset ruleset) {
+        long now = System.currentTimeMillis();
+        for (Entry entry : ruleset._dependencies) {
+            if (isExpired(entry, now) || getCurrentEntry(entry) != entry) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Entry getCurrentEntry(Entry entry) {
+        if (entry instanceof VmGroups) {
+            return _vmGroups.get(entry._key);
+        } else if (entry instanceof GroupRules) {
+            return _groupRules.get(entry._key);
+        }
+        return _groupMembers.get(entry._key);
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry._loadedAt >= _ttlMs;
+    }
+
+    private VmGroups getVmGroups(long vmId) {
+        VmGroups entry = _vmGroups.get(vmId);
+        if (entry != null && !isExpired(entry, System.currentTimeMillis())) {
+            return entry;
+        }
+        long changes = _changes.get();
+        entry = loadVmGroups(vmId, _vmMapDao.listByInstanceId(vmId));
+        if (_changes.get() == changes) {
+            _vmGroups.put(vmId, entry);
+        }
+        return entry;
+    }
+
+    private VmGroups loadVmGroups(long vmId, List<SecurityGroupVMMapVO> mappings) {
+        Set<Long> groupIds = new TreeSet<Long>();
+        for (SecurityGroupVMMapVO mapping : mappings) {
+            groupIds.add(mapping.getSecurityGroupId());
+        }
+        return new VmGroups(vmId, System.currentTimeMillis(), groupIds);
+    }
+
+    private GroupRules getGroupRules(long groupId) {
+        GroupRules entry = _groupRules.get(groupId);
+        if (entry != null && !isExpired(entry, System.currentTimeMillis())) {
+            return entry;
+        }
+        long changes = _changes.get();
+        entry = new GroupRules(groupId, System.currentTimeMillis(), _ruleDao.listBySecurityGroupId(groupId, SecurityRuleType.IngressRule),
+                _ruleDao.listBySecurityGroupId(groupId, SecurityRuleType.EgressRule));
+        if (_changes.get() == changes) {
+            _groupRules.put(groupId, entry);
+        }
+        return entry;
+    }
+
+    private GroupMembers getGroupMembers(long groupId) {
+        GroupMembers entry = _groupMembers.get(groupId);
+        if (entry != null && !isExpired(entry, System.currentTimeMillis())) {
+            return entry;
+        }
+        long changes = _changes.get();
+        Map<Long, Set<String>> cidrsByVm = new HashMap<Long, Set<String>>();
+        for (SecurityGroupVMMapVO mapping : _vmMapDao.listBySecurityGroup(groupId, State.Running)) {
+            Set<String> cidrs = getCidrs(mapping.getInstanceId());
+            if (cidrs != null) {
+                cidrsByVm.put(mapping.getInstanceId(), cidrs);
+            }
+        }
+        entry = new GroupMembers(groupId, System.currentTimeMillis(), cidrsByVm);
+        if (_changes.get() == changes) {
+            _groupMembers.put(groupId, entry);
+        }
+        return entry;
+    }
+
+    private Set<String> getCidrs(long vmId) {
+        Nic defaultNic = _networkMgr.getDefaultNic(vmId);
+        if (defaultNic == null || defaultNic.getIp4Address() == null) {
+            return null;
+        }
+        return Collections.singleton(defaultNic.getIp4Address() + "/32");
+    }
+
+    /**
+     * Adds the ips of a vm that just started to the groups it is a member of.
+     */
+    public void vmStarted(long vmId) {
+        _changes.incrementAndGet();
+        List<SecurityGroupVMMapVO> mappings = _vmMapDao.listByInstanceId(vmId);
+        _vmGroups.put(vmId, loadVmGroups(vmId, mappings));
+        _sentRulesets.remove(vmId);
+
+        Set<String> cidrs = getCidrs(vmId);
+        for (SecurityGroupVMMapVO mapping : mappings) {
+            updateMembers(mapping.getSecurityGroupId(), vmId, cidrs);
+        }
+    }
+
+    /**
+     * Removes the ips of a vm that stopped from every group it was a member of.
+     */
+    public void vmStopped(long vmId) {
+        _changes.incrementAndGet();
+        _rulesets.remove(vmId);
+        _sentRulesets.remove(vmId);
+        for (Map.Entry<Long, GroupMembers> entry : _groupMembers.entrySet()) {
+            if (entry.getValue()._cidrsByVm.containsKey(vmId)) {
+                updateMembers(entry.getKey(), vmId, null);
+            }
+        }
+    }
+
+    private synchronized void updateMembers(long groupId, long vmId, Set<String> cidrs) {
+        GroupMembers current = _groupMembers.get(groupId);
+        if (current == null) {
+            return;
+        }
+        Map<Long, Set<String>> cidrsByVm = new HashMap<Long, Set<String>>(current._cidrsByVm);
+        if (cidrs == null || cidrs.isEmpty()) {
+            cidrsByVm.remove(vmId);
+        } else {
+            cidrsByVm.put(vmId, cidrs);
+        }
+        _groupMembers.put(groupId, new GroupMembers(groupId, current._loadedAt, cidrsByVm));
+    }
+
+    /**
+     * Called after a vm was added to or removed from security groups.
+     */
+    public void vmGroupsChanged(long vmId) {
+        _changes.incrementAndGet();
+        Set<Long> groupIds = new HashSet<Long>();
+        VmGroups previous = _vmGroups.remove(vmId);
+        if (previous != null) {
+            groupIds.addAll(previous._groupIds);
+        }
+        for (SecurityGroupVMMapVO mapping : _vmMapDao.listByInstanceId(vmId)) {
+            groupIds.add(mapping.getSecurityGroupId());
+        }
+        for (Long groupId : groupIds) {
+            _groupMembers.remove(groupId);
+        }
+    }
+
+    /**
+     * Called after rules were authorized in or revoked from a security group.
+     */
+    public void rulesChanged(long groupId) {
+        _changes.incrementAndGet();
+        _groupRules.remove(groupId);
+    }
+
+    public void hostConnected(long hostId, boolean supportsDelta) {
+        if (supportsDelta) {
+            _deltaCapableHosts.add(hostId);
+        } else {
+            _deltaCapableHosts.remove(hostId);
+        }
+    }
+
+    public boolean supportsDelta(long hostId) {
+        return _deltaCapableHosts.contains(hostId);
+    }
+
+    public void rulesetSent(long vmId, long hostId, Ruleset ruleset) {
+        _sentRulesets.put(vmId, new SentRuleset(hostId, ruleset));
+    }
+
+    /**
+     * Forgets what was sent for a vm so that the next update carries its full ruleset.
+     */
+    public void rulesetFailed(long vmId) {
+        _sentRulesets.remove(vmId);
+    }
+
+    /**
+     * @return the last ruleset sent for the vm to the given host, or null if the next update has to be a full one.
+     */
+    public SentRuleset getSentRuleset(long vmId, long hostId) {
+        SentRuleset sent = _sentRulesets.get(vmId);
+        if (sent == null || sent._hostId != hostId || sent._ruleset.getSignature() == null) {
+            return null;
+        }
+        return sent;
+    }
+
+    /**
+     * @return the cidrs of <code>rules</code> that are not in <code>base</code>, per port and protocol.
+     */
+    public static Map<PortAndProto, Set<String>> subtract(Map<PortAndProto, Set<String>> rules, Map<PortAndProto, Set<String>> base) {
+        Map<PortAndProto, Set<String>> result = new TreeMap<PortAndProto, Set<String>>();
+        for (Map.Entry<PortAndProto, Set<String>> entry : rules.entrySet()) {
+            Set<String> baseCidrs = base.get(entry.getKey());
+            Set<String> cidrs = new TreeSet<String>(new CidrComparator());
+            for (String cidr : entry.getValue()) {
+                if (baseCidrs == null || !baseCidrs.contains(cidr)) {
+                    cidrs.add(cidr);
+                }
+            }
+            if (cidrs.size() > 0) {
+                result.put(entry.getKey(), cidrs);
+            }
+        }
+        return result;
+    }
+}
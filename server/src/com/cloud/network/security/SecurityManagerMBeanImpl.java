@@ -22,6 +22,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.StandardMBean;
 
@@ -38,6 +39,11 @@ public class SecurityManagerMBeanImpl extends StandardMBean implements SecurityG
     //keep track of last scheduled, last update sent and last seqno sent per vm. Make it available over JMX
     Map<Long, Date> _scheduleTimestamps = new ConcurrentHashMap<Long, Date>(4000, 100, 64);
     Map<Long, Date> _updateTimestamps = new ConcurrentHashMap<Long, Date>(4000, 100, 64);
+    //when the last update sent to a vm was queued, until the host answers it
+    Map<Long, Long> _updateQueuedAt = new ConcurrentHashMap<Long, Long>(4000, 100, 64);
+    AtomicLong _updatesAcked = new AtomicLong(0);
+    AtomicLong _totalUpdateLatency = new AtomicLong(0);
+    AtomicLong _maxUpdateLatency = new AtomicLong(0);
     
     
     protected SecurityManagerMBeanImpl(SecurityGroupManagerImpl2 securityGroupManager) {
@@ -70,6 +76,24 @@ public class SecurityManagerMBeanImpl extends StandardMBean implements SecurityG
         }
     }
     
+    public void logUpdateSent(long vmId, long queuedAt) {
+        _updateQueuedAt.put(vmId, queuedAt);
+    }
+    
+    public void logUpdateAnswered(long vmId, boolean result) {
+        Long queuedAt = _updateQueuedAt.remove(vmId);
+        if (queuedAt == null || !result) {
+            return;
+        }
+        long latency = System.currentTimeMillis() - queuedAt;
+        _updatesAcked.incrementAndGet();
+        _totalUpdateLatency.addAndGet(latency);
+        long max = _maxUpdateLatency.get();
+        while (latency > max && !_maxUpdateLatency.compareAndSet(max, latency)) {
+            max = _maxUpdateLatency.get();
+        }
+    }
+    
     @Override
     public void enableUpdateMonitor(boolean enable) {
         _monitoringEnabled = enable;
@@ -95,6 +119,38 @@ public class SecurityManagerMBeanImpl extends StandardMBean implements SecurityG
     public List<Long> getVmsInQueue() {
         return _sgMgr.getWorkQueue().getVmsInQueue();
     }
+    
+    @Override
+    public long getWorkForwardedToPeers() {
+        SecurityGroupWorkQueue queue = _sgMgr.getWorkQueue();
+        if (queue instanceof ClusteredSecurityGroupWorkQueue) {
+            return ((ClusteredSecurityGroupWorkQueue)queue).getForwardedCount();
+        }
+        return 0;
+    }
+    
+    @Override
+    public long getUpdatesAcked() {
+        return _updatesAcked.get();
+    }
+    
+    @Override
+    public long getAverageUpdateLatencyMs() {
+        long acked = _updatesAcked.get();
+        return acked == 0 ? 0 : _totalUpdateLatency.get() / acked;
+    }
+    
+    @Override
+    public long getMaxUpdateLatencyMs() {
+        return _maxUpdateLatency.get();
+    }
+    
+    @Override
+    public void resetUpdateLatency() {
+        _updatesAcked.set(0);
+        _totalUpdateLatency.set(0);
+        _maxUpdateLatency.set(0);
+    }
 
 
 
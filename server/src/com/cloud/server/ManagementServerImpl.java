@@ -80,6 +80,7 @@ import com.cloud.api.commands.ListPublicIpAddressesCmd;
 import com.cloud.api.commands.ListRoutersCmd;
 import com.cloud.api.commands.ListSSHKeyPairsCmd;
 import com.cloud.api.commands.ListServiceOfferingsCmd;
+import com.cloud.api.commands.ListStatsHistoryCmd;
 import com.cloud.api.commands.ListStoragePoolsCmd;
 import com.cloud.api.commands.ListSystemVMsCmd;
 import com.cloud.api.commands.ListTemplatesCmd;
@@ -222,6 +223,7 @@ import com.cloud.user.UserVO;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.SSHKeyPairDao;
 import com.cloud.user.dao.UserDao;
+import com.cloud.utils.ActionDelegate;
 import com.cloud.utils.EnumUtils;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
@@ -1530,6 +1532,14 @@ public class ManagementServerImpl implements ManagementServer {
         ListProjectResourcesCriteria listProjectResourcesCriteria = domainIdRecursiveListProject.third();
 
         Filter searchFilter = new Filter(EventVO.class, "createDate", false, cmd.getStartIndex(), cmd.getPageSizeVal());
+        if (cmd.getStartId() != null) {
+            // paged by nextpagetoken, which is the id of the last event, so the order is by id as well;
+            // 0 asks for the first page
+            searchFilter = new Filter(EventVO.class, "id", false, cmd.getStartIndex(), cmd.getPageSizeVal());
+            if (cmd.getStartId() > 0) {
+                searchFilter.setStartAfter(EventVO.class, "id", false, cmd.getStartId());
+            }
+        }
         SearchBuilder<EventVO> sb = _eventDao.createSearchBuilder();
 
         sb.and("accountIdIN", sb.entity().getAccountId(), SearchCriteria.Op.IN);
@@ -1657,6 +1667,9 @@ public class ManagementServerImpl implements ManagementServer {
         Boolean isRecursive = domainIdRecursiveListProject.second();
         ListProjectResourcesCriteria listProjectResourcesCriteria = domainIdRecursiveListProject.third();
         Filter searchFilter = new Filter(DomainRouterVO.class, "id", true, cmd.getStartIndex(), cmd.getPageSizeVal());
+        if (cmd.getStartId() != null) {
+            searchFilter.setStartAfter(DomainRouterVO.class, "id", true, cmd.getStartId());
+        }
         SearchBuilder<DomainRouterVO> sb = _routerDao.createSearchBuilder();
         _accountMgr.buildACLSearchBuilder(sb, domainId, isRecursive, permittedAccounts, listProjectResourcesCriteria);
 
@@ -2135,6 +2148,43 @@ public class ManagementServerImpl implements ManagementServer {
         return new Pair<List<? extends Alert>, Integer>(result.first(), result.second());
     }
 
+    @Override
+    public StatsHistory listStatsHistory(ListStatsHistoryCmd cmd) {
+        Account caller = UserContext.current().getCaller();
+        Long vmId = cmd.getVirtualMachineId();
+        Long hostId = cmd.getHostId();
+        Long volumeId = cmd.getVolumeId();
+
+        int ids = (vmId != null ? 1 : 0) + (hostId != null ? 1 : 0) + (volumeId != null ? 1 : 0);
+        if (ids != 1) {
+            throw new InvalidParameterValueException("Specify exactly one of virtualmachineid, hostid and volumeid");
+        }
+
+        if (vmId != null) {
+            VMInstanceVO vm = _vmInstanceDao.findById(vmId);
+            if (vm == null) {
+                throw new InvalidParameterValueException("unable to find a virtual machine with specified id");
+            }
+            _accountMgr.checkAccess(caller, null, true, vm);
+            return _statsCollector.getVmStatsHistory(vmId);
+        } else if (hostId != null) {
+            if (caller.getType() != Account.ACCOUNT_TYPE_ADMIN) {
+                throw new PermissionDeniedException("Only root admin can list the statistics of a host");
+            }
+            if (_hostDao.findById(hostId) == null) {
+                throw new InvalidParameterValueException("unable to find a host with specified id");
+            }
+            return _statsCollector.getHostStatsHistory(hostId);
+        } else {
+            VolumeVO volume = _volumeDao.findById(volumeId);
+            if (volume == null) {
+                throw new InvalidParameterValueException("unable to find a volume with specified id");
+            }
+            _accountMgr.checkAccess(caller, null, true, volume);
+            return _statsCollector.getVolumeStatsHistory(volumeId);
+        }
+    }
+
     @Override
     public List<CapacityVO> listTopConsumedResources(ListCapacityCmd cmd) {
 
@@ -2482,11 +2532,21 @@ public class ManagementServerImpl implements ManagementServer {
                     purgeCal.add(Calendar.DAY_OF_YEAR, -_purgeDelay);
                     Date purgeTime = purgeCal.getTime();
                     s_logger.debug("Deleting events older than: " + purgeTime.toString());
-                    List<EventVO> oldEvents = _eventDao.listOlderEvents(purgeTime);
-                    s_logger.debug("Found " + oldEvents.size() + " events to be purged");
-                    for (EventVO event : oldEvents) {
-                        _eventDao.expunge(event.getId());
+                    final List<Long> purgeIds = new ArrayList<Long>();
+                    int purged = _eventDao.streamOlderEvents(purgeTime, new ActionDelegate<EventVO>() {
+                        @Override
+                        public void action(EventVO event) {
+                            purgeIds.add(event.getId());
+                            if (purgeIds.size() >= 500) {
+                                _eventDao.expungeBatch(purgeIds);
+                                purgeIds.clear();
+                            }
+                        }
+                    });
+                    if (!purgeIds.isEmpty()) {
+                        _eventDao.expungeBatch(purgeIds);
                     }
+                    s_logger.debug("Purged " + purged + " events");
                 } catch (Exception e) {
                     s_logger.error("Exception ", e);
                 } finally {
@@ -2582,6 +2642,9 @@ public class ManagementServerImpl implements ManagementServer {
         ListProjectResourcesCriteria listProjectResourcesCriteria = domainIdRecursiveListProject.third();
 
         Filter searchFilter = new Filter(AsyncJobVO.class, "id", true, cmd.getStartIndex(), cmd.getPageSizeVal());
+        if (cmd.getStartId() != null) {
+            searchFilter.setStartAfter(AsyncJobVO.class, "id", true, cmd.getStartId());
+        }
         SearchBuilder<AsyncJobVO> sb = _jobDao.createSearchBuilder();
         sb.and("accountIdIN", sb.entity().getAccountId(), SearchCriteria.Op.IN);
         SearchBuilder<AccountVO> accountSearch = null;
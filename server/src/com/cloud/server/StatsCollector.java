@@ -18,6 +18,7 @@ package com.cloud.server;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -25,17 +26,27 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import com.cloud.resource.ResourceManager;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
 
 import com.cloud.agent.AgentManager;
 import com.cloud.agent.AgentManager.OnError;
+import com.cloud.agent.Listener;
+import com.cloud.agent.api.AgentControlAnswer;
+import com.cloud.agent.api.AgentControlCommand;
 import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
 import com.cloud.agent.api.GetFileStatsCommand;
+import com.cloud.agent.api.GetHostStatsAnswer;
+import com.cloud.agent.api.GetHostStatsCommand;
 import com.cloud.agent.api.GetStorageStatsCommand;
-import com.cloud.agent.api.HostStatsEntry;
+import com.cloud.agent.api.GetVmStatsAnswer;
+import com.cloud.agent.api.GetVmStatsCommand;
+import com.cloud.agent.api.StartupCommand;
+import com.cloud.agent.api.UnsupportedAnswer;
 import com.cloud.agent.api.VmStatsEntry;
 import com.cloud.agent.manager.Commands;
 import com.cloud.exception.AgentUnavailableException;
@@ -60,7 +71,6 @@ import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.SearchCriteria;
-import com.cloud.vm.UserVmManager;
 import com.cloud.vm.UserVmVO;
 import com.cloud.vm.VmStats;
 import com.cloud.vm.dao.UserVmDao;
@@ -76,7 +86,6 @@ public class StatsCollector {
 
 	private ScheduledExecutorService _executor = null;
 	private final AgentManager _agentMgr;
-	private final UserVmManager _userVmMgr;
 	private final HostDao _hostDao;
 	private final UserVmDao _userVmDao;
 	private final VolumeDao _volsDao;
@@ -84,18 +93,29 @@ public class StatsCollector {
 	private final StorageManager _storageManager;
     private final StoragePoolHostDao _storagePoolHostDao;
     private final SecondaryStorageVmManager _ssvmMgr;
-    private final ResourceManager _resourceMgr;
 
-	private ConcurrentHashMap<Long, HostStats> _hostStats = new ConcurrentHashMap<Long, HostStats>();
+	private final ConcurrentHashMap<Long, HostStats> _hostStats = new ConcurrentHashMap<Long, HostStats>();
 	private final ConcurrentHashMap<Long, VmStats> _VmStats = new ConcurrentHashMap<Long, VmStats>();
 	private ConcurrentHashMap<Long, VolumeStats> _volumeStats = new ConcurrentHashMap<Long, VolumeStats>();
 	private ConcurrentHashMap<Long, StorageStats> _storageStats = new ConcurrentHashMap<Long, StorageStats>();
 	private ConcurrentHashMap<Long, StorageStats> _storagePoolStats = new ConcurrentHashMap<Long, StorageStats>();
+
+	private static final StatsHistory.Metric[] VM_METRICS = { StatsHistory.Metric.CpuUtilization, StatsHistory.Metric.NetworkReadKBs, StatsHistory.Metric.NetworkWriteKBs };
+	private static final StatsHistory.Metric[] HOST_METRICS = { StatsHistory.Metric.CpuUtilization, StatsHistory.Metric.UsedMemoryKBs, StatsHistory.Metric.NetworkReadKBs, StatsHistory.Metric.NetworkWriteKBs };
+	private static final StatsHistory.Metric[] VOLUME_METRICS = { StatsHistory.Metric.BytesUsed };
+	private static final int HOSTS_PER_QUERY = 100;
+
+	private final ConcurrentHashMap<Long, StatsTimeSeries> _vmHistory = new ConcurrentHashMap<Long, StatsTimeSeries>();
+	private final ConcurrentHashMap<Long, StatsTimeSeries> _hostHistory = new ConcurrentHashMap<Long, StatsTimeSeries>();
+	private final ConcurrentHashMap<Long, StatsTimeSeries> _volumeHistory = new ConcurrentHashMap<Long, StatsTimeSeries>();
+	private final Semaphore _outstandingRequests;
 	
 	long hostStatsInterval = -1L;
 	long hostAndVmStatsInterval = -1L;
 	long storageStatsInterval = -1L;
 	long volumeStatsInterval = -1L;
+	long historyResolution = 60000L;
+	int historySize = 60;
 
 	//private final GlobalLock m_capacityCheckLock = GlobalLock.getInternLock("capacity.check");
 
@@ -112,7 +132,6 @@ public class StatsCollector {
 	private StatsCollector(Map<String, String> configs) {
 		ComponentLocator locator = ComponentLocator.getLocator(ManagementServer.Name);
 		_agentMgr = locator.getManager(AgentManager.class);
-		_userVmMgr = locator.getManager(UserVmManager.class);
 		_ssvmMgr = locator.getManager(SecondaryStorageVmManager.class);
 		_hostDao = locator.getDao(HostDao.class);
 		_userVmDao = locator.getDao(UserVmDao.class);
@@ -120,7 +139,6 @@ public class StatsCollector {
 		_storagePoolDao = locator.getDao(StoragePoolDao.class);
 		_storageManager = locator.getManager(StorageManager.class);
         _storagePoolHostDao  = locator.getDao(StoragePoolHostDao.class);
-        _resourceMgr = locator.getManager(ResourceManager.class);
 
 		_executor = Executors.newScheduledThreadPool(3, new NamedThreadFactory("StatsCollector"));
 
@@ -128,6 +146,13 @@ public class StatsCollector {
 		 hostAndVmStatsInterval = NumbersUtil.parseLong(configs.get("vm.stats.interval"), 60000L);
 		 storageStatsInterval = NumbersUtil.parseLong(configs.get("storage.stats.interval"), 60000L);
 		 volumeStatsInterval = NumbersUtil.parseLong(configs.get("volume.stats.interval"), -1L);
+		 historyResolution = NumbersUtil.parseLong(configs.get("stats.history.resolution"), 60000L);
+		 historySize = NumbersUtil.parseInt(configs.get("stats.history.size"), 60);
+		 if (historySize < 1) {
+		     s_logger.warn("stats.history.size must be at least 1, keeping one sample instead of " + historySize);
+		     historySize = 1;
+		 }
+		 _outstandingRequests = new Semaphore(NumbersUtil.parseInt(configs.get("stats.outstanding.requests"), 100));
 
 		 if (hostStatsInterval > 0) {
 		     _executor.scheduleWithFixedDelay(new HostCollector(), 15000L, hostStatsInterval, TimeUnit.MILLISECONDS);
@@ -167,21 +192,22 @@ public class StatsCollector {
 		        sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.ExternalFirewall.toString());
 		        sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.ExternalLoadBalancer.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.L2Networking.toString());
-				ConcurrentHashMap<Long, HostStats> hostStats = new ConcurrentHashMap<Long, HostStats>();
 				List<HostVO> hosts = _hostDao.search(sc, null);
-				for (HostVO host : hosts)
-				{
-				    HostStatsEntry stats = (HostStatsEntry) _resourceMgr.getHostStatistics(host.getId());
-				    if (stats != null)
-				    {
-                        hostStats.put(host.getId(), stats);
-				    }
-				    else
-				    {
-				        s_logger.warn("Received invalid host stats for host: " + host.getId());
-				    }
+
+				// answers come back on the agent manager threads and are stored as they arrive
+				Set<Long> hostIds = new HashSet<Long>();
+				for (HostVO host : hosts) {
+					hostIds.add(host.getId());
+				}
+				_hostStats.keySet().retainAll(hostIds);
+
+				for (HostVO host : hosts) {
+					GetHostStatsCommand cmd = new GetHostStatsCommand(host.getGuid(), host.getName(), host.getId());
+					if (!sendStatsRequest(host.getId(), cmd, new HostStatsListener(hostStatsInterval))) {
+						break;
+					}
 				}
-				_hostStats = hostStats;
+				expireHistory(_hostHistory);
 			}
 			catch (Throwable t)
 			{
@@ -189,6 +215,28 @@ public class StatsCollector {
 			}
 		}
 	}
+
+	class HostStatsListener extends StatsListener {
+		HostStatsListener(long interval) {
+			super(interval);
+		}
+
+		@Override
+		protected void processAnswer(long hostId, Answer answer) {
+			if (answer instanceof UnsupportedAnswer) {
+				return;
+			}
+			if (!answer.getResult() || !(answer instanceof GetHostStatsAnswer) || ((GetHostStatsAnswer)answer).getHostStats() == null) {
+				s_logger.warn("Received invalid host stats for host: " + hostId);
+				return;
+			}
+
+			HostStats stats = ((GetHostStatsAnswer)answer).getHostStats();
+			_hostStats.put(hostId, stats);
+			getHistory(_hostHistory, hostId, HOST_METRICS).add(System.currentTimeMillis(),
+					stats.getCpuUtilization(), stats.getUsedMemory(), stats.getNetworkReadKBs(), stats.getNetworkWriteKBs());
+		}
+	}
 	
 	class VmStatsCollector implements Runnable {
 		@Override
@@ -206,50 +254,35 @@ public class StatsCollector {
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.TrafficMonitor.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.SecondaryStorageVM.toString());
 				List<HostVO> hosts = _hostDao.search(sc, null);
+				// expired before the requests go out, a run that gives up early must not keep stale vms forever
+				expireHistory(_vmHistory);
 				
-				for (HostVO host : hosts) {
-					List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
-					List<Long> vmIds = new ArrayList<Long>();
-					
-					for (UserVmVO vm : vms) {
-						vmIds.add(vm.getId());
+				// the running vms are loaded for a batch of hosts at a time, the requests for one batch are
+				// in flight while the next one is loaded
+				for (int start = 0; start < hosts.size(); start += HOSTS_PER_QUERY) {
+					List<HostVO> batch = hosts.subList(start, Math.min(start + HOSTS_PER_QUERY, hosts.size()));
+					Map<Long, List<UserVmVO>> vmsByHost = new HashMap<Long, List<UserVmVO>>();
+					for (HostVO host : batch) {
+						vmsByHost.put(host.getId(), new ArrayList<UserVmVO>());
+					}
+					for (UserVmVO vm : _userVmDao.listRunningByHostIds(vmsByHost.keySet())) {
+						vmsByHost.get(vm.getHostId()).add(vm);
 					}
-					
-					try
-					{
-							HashMap<Long, VmStatsEntry> vmStatsById = _userVmMgr.getVirtualMachineStatistics(host.getId(), host.getName(), vmIds);
-							
-							if(vmStatsById != null)
-							{
-								VmStatsEntry statsInMemory = null;
-								
-								Set<Long> vmIdSet = vmStatsById.keySet();
-								for(Long vmId : vmIdSet)
-								{
-									VmStatsEntry statsForCurrentIteration = vmStatsById.get(vmId);
-									statsInMemory = (VmStatsEntry) _VmStats.get(vmId);
-									
-									if(statsInMemory == null)
-									{
-										//no stats exist for this vm, directly persist
-										_VmStats.put(vmId, statsForCurrentIteration);
-									}
-									else
-									{
-										//update each field
-										statsInMemory.setCPUUtilization(statsForCurrentIteration.getCPUUtilization());
-										statsInMemory.setNumCPUs(statsForCurrentIteration.getNumCPUs());
-										statsInMemory.setNetworkReadKBs(statsInMemory.getNetworkReadKBs() + statsForCurrentIteration.getNetworkReadKBs());
-										statsInMemory.setNetworkWriteKBs(statsInMemory.getNetworkWriteKBs() + statsForCurrentIteration.getNetworkWriteKBs());
-										
-										_VmStats.put(vmId, statsInMemory);
-									}
-								}
-							}
-							
-					} catch (Exception e) {
-						s_logger.debug("Failed to get VM stats for host with ID: " + host.getId());
-						continue;
+
+					for (HostVO host : batch) {
+						List<UserVmVO> vms = vmsByHost.get(host.getId());
+						if (vms.isEmpty()) {
+							continue;
+						}
+
+						Map<String, Long> vmIdsByName = new HashMap<String, Long>();
+						for (UserVmVO vm : vms) {
+							vmIdsByName.put(vm.getInstanceName(), vm.getId());
+						}
+						GetVmStatsCommand cmd = new GetVmStatsCommand(new ArrayList<String>(vmIdsByName.keySet()), host.getGuid(), host.getName());
+						if (!sendStatsRequest(host.getId(), cmd, new VmStatsListener(hostAndVmStatsInterval, vmIdsByName))) {
+							return;
+						}
 					}
 				}
 				
@@ -259,10 +292,193 @@ public class StatsCollector {
 		}
 	}
 
+	class VmStatsListener extends StatsListener {
+		private final Map<String, Long> _vmIdsByName;
+
+		VmStatsListener(long interval, Map<String, Long> vmIdsByName) {
+			super(interval);
+			_vmIdsByName = vmIdsByName;
+		}
+
+		@Override
+		protected void processAnswer(long hostId, Answer answer) {
+			HashMap<String, VmStatsEntry> vmStatsByName = null;
+			if (answer.getResult() && answer instanceof GetVmStatsAnswer) {
+				vmStatsByName = ((GetVmStatsAnswer)answer).getVmStatsMap();
+			}
+			if (vmStatsByName == null) {
+				s_logger.debug("Failed to get VM stats for host with ID: " + hostId);
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+			for (Map.Entry<String, VmStatsEntry> entry : vmStatsByName.entrySet()) {
+				Long vmId = _vmIdsByName.get(entry.getKey());
+				if (vmId == null) {
+					continue;
+				}
+
+				VmStatsEntry statsForCurrentIteration = entry.getValue();
+				VmStatsEntry statsInMemory = (VmStatsEntry) _VmStats.get(vmId);
+				if (statsInMemory == null) {
+					//no stats exist for this vm, directly persist
+					_VmStats.put(vmId, statsForCurrentIteration);
+				} else {
+					//update each field
+					statsInMemory.setCPUUtilization(statsForCurrentIteration.getCPUUtilization());
+					statsInMemory.setNumCPUs(statsForCurrentIteration.getNumCPUs());
+					statsInMemory.setNetworkReadKBs(statsInMemory.getNetworkReadKBs() + statsForCurrentIteration.getNetworkReadKBs());
+					statsInMemory.setNetworkWriteKBs(statsInMemory.getNetworkWriteKBs() + statsForCurrentIteration.getNetworkWriteKBs());
+				}
+
+				getHistory(_vmHistory, vmId, VM_METRICS).add(now, statsForCurrentIteration.getCPUUtilization(),
+						statsForCurrentIteration.getNetworkReadKBs(), statsForCurrentIteration.getNetworkWriteKBs());
+			}
+		}
+	}
+
+	/**
+	 * Sends a stats request without waiting for the answer.  The number of requests in flight is bounded, the
+	 * caller blocks for at most the collection interval when all the slots are taken.
+	 * 
+	 * @return false if no slot freed up in time and the collection cycle should stop.
+	 */
+	protected boolean sendStatsRequest(long hostId, Command cmd, StatsListener listener) throws InterruptedException {
+		if (!_outstandingRequests.tryAcquire(listener.getTimeout(), TimeUnit.SECONDS)) {
+			s_logger.warn("Too many stats requests are still outstanding, skipping the rest of this collection cycle");
+			return false;
+		}
+
+		try {
+			_agentMgr.send(hostId, new Commands(cmd), listener);
+		} catch (AgentUnavailableException e) {
+			s_logger.debug("Unable to send " + cmd.getClass().getSimpleName() + " to host " + hostId + ": " + e.getMessage());
+			listener.done();
+		} catch (RuntimeException e) {
+			listener.done();
+			throw e;
+		}
+		return true;
+	}
+
+	/**
+	 * One shot listener for a stats request.  The slot taken by the request is released exactly once, when the
+	 * answer comes back, the request times out or the host disconnects.
+	 */
+	abstract class StatsListener implements Listener {
+		private final AtomicBoolean _done = new AtomicBoolean(false);
+		private final int _timeout;
+
+		StatsListener(long interval) {
+			_timeout = (int)Math.max(interval / 1000, 1);
+		}
+
+		protected abstract void processAnswer(long hostId, Answer answer);
+
+		protected void done() {
+			if (_done.compareAndSet(false, true)) {
+				_outstandingRequests.release();
+			}
+		}
+
+		@Override
+		public boolean isRecurring() {
+			return false;
+		}
+
+		@Override
+		public boolean processAnswers(long agentId, long seq, Answer[] answers) {
+			try {
+				if (answers != null && answers.length > 0 && answers[0] != null) {
+					processAnswer(agentId, answers[0]);
+				}
+			} catch (Throwable t) {
+				s_logger.warn("Unable to process stats from host " + agentId, t);
+			} finally {
+				done();
+			}
+			return true;
+		}
+
+		@Override
+		public boolean processCommands(long agentId, long seq, Command[] commands) {
+			return false;
+		}
+
+		@Override
+		public AgentControlAnswer processControlCommand(long agentId, AgentControlCommand cmd) {
+			return null;
+		}
+
+		@Override
+		public void processConnect(HostVO host, StartupCommand cmd, boolean forRebalance) {
+		}
+
+		@Override
+		public boolean processDisconnect(long agentId, Status state) {
+			done();
+			return true;
+		}
+
+		@Override
+		public int getTimeout() {
+			return _timeout;
+		}
+
+		@Override
+		public boolean processTimeout(long agentId, long seq) {
+			s_logger.debug("Timed out waiting for stats from host " + agentId);
+			done();
+			return true;
+		}
+	}
+
+	protected StatsTimeSeries getHistory(ConcurrentHashMap<Long, StatsTimeSeries> histories, long id, StatsHistory.Metric[] metrics) {
+		StatsTimeSeries history = histories.get(id);
+		if (history == null) {
+			history = new StatsTimeSeries(metrics, historyResolution, historySize);
+			StatsTimeSeries existing = histories.putIfAbsent(id, history);
+			if (existing != null) {
+				history = existing;
+			}
+		}
+		return history;
+	}
+
+	/**
+	 * Drops the series of the entities that have had no sample for the whole window, e.g. vms that were stopped.
+	 */
+	protected void expireHistory(ConcurrentHashMap<Long, StatsTimeSeries> histories) {
+		long cutoff = System.currentTimeMillis() - historyResolution * historySize;
+		for (Iterator<StatsTimeSeries> it = histories.values().iterator(); it.hasNext();) {
+			if (it.next().getLastTime() < cutoff) {
+				it.remove();
+			}
+		}
+	}
+
 	public VmStats getVmStats(long id) {
 		return _VmStats.get(id);
 	}
 
+	/**
+	 * @return a copy of the samples kept for the vm, or null if there are none.
+	 */
+	public StatsHistory getVmStatsHistory(long id) {
+		StatsTimeSeries history = _vmHistory.get(id);
+		return history != null ? history.snapshot() : null;
+	}
+
+	public StatsHistory getHostStatsHistory(long hostId) {
+		StatsTimeSeries history = _hostHistory.get(hostId);
+		return history != null ? history.snapshot() : null;
+	}
+
+	public StatsHistory getVolumeStatsHistory(long id) {
+		StatsTimeSeries history = _volumeHistory.get(id);
+		return history != null ? history.snapshot() : null;
+	}
+
 	class StorageCollector implements Runnable {
 		@Override
         public void run() {
@@ -380,11 +596,13 @@ public class StatsCollector {
 	    					Answer[] answers = _agentMgr.send(poolhost.getHostId(), commands);
 	    					if (answers != null) {
 	    					    long totalBytes = 0L;
+	    					    long now = System.currentTimeMillis();
 	    						for (int i = 0; i < answers.length; i++) {
 	    							if (answers[i].getResult()) {
 	    							    VolumeStats vStats = (VolumeStats)answers[i];
 	    								volumeStats.put(volumeIdArray[i], vStats);
 	    								totalBytes += vStats.getBytesUsed();
+	    								getHistory(_volumeHistory, volumeIdArray[i], VOLUME_METRICS).add(now, vStats.getBytesUsed());
 	    							}
 	    						}
 	    						break;
@@ -395,6 +613,7 @@ public class StatsCollector {
 
 				// We replace the existing volumeStats so that it does not grow with no bounds
 				_volumeStats = volumeStats;
+				expireHistory(_volumeHistory);
 			} catch (AgentUnavailableException e) {
 			    s_logger.debug(e.getMessage());
 			} catch (Throwable t) {
@@ -0,0 +1,121 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size ring buffer of statistics samples of one vm, host or volume.
+ * Values are kept as doubles in one array, a row of metrics per sample, so
+ * that the memory used does not depend on how long the entity is tracked.
+ * A sample that falls in the same resolution slot as the latest one
+ * replaces it.
+ */
+public class StatsTimeSeries implements StatsHistory {
+    private final Metric[] _metrics;
+    private final long _resolution;
+    private final long[] _times;
+    private final double[] _values;
+    private int _head;    // slot the next sample goes to
+    private int _count;
+
+    public StatsTimeSeries(Metric[] metrics, long resolution, int capacity) {
+        _metrics = metrics;
+        _resolution = Math.max(resolution, 1);
+        capacity = Math.max(capacity, 1);
+        _times = new long[capacity];
+        _values = new double[capacity * metrics.length];
+    }
+
+    public synchronized void add(long time, double... values) {
+        assert values.length == _metrics.length;
+        int capacity = _times.length;
+        int slot = _head;
+        if (_count > 0) {
+            int last = (_head + capacity - 1) % capacity;
+            if (time / _resolution == _times[last] / _resolution) {
+                slot = last;
+            } else if (time < _times[last]) {
+                return;
+            }
+        }
+
+        _times[slot] = time;
+        for (int i = 0; i < values.length; i++) {
+            _values[slot * _metrics.length + i] = values[i];
+        }
+        if (slot == _head) {
+            _head = (_head + 1) % capacity;
+            if (_count < capacity) {
+                _count++;
+            }
+        }
+    }
+
+    public synchronized long getLastTime() {
+        return _count > 0 ? _times[(_head + _times.length - 1) % _times.length] : 0;
+    }
+
+    /**
+     * @return a copy of the samples in time order that is not affected by later additions.
+     */
+    public synchronized StatsTimeSeries snapshot() {
+        StatsTimeSeries copy = new StatsTimeSeries(_metrics, _resolution, _count);
+        int capacity = _times.length;
+        int first = (_head + capacity - _count) % capacity;
+        for (int i = 0; i < _count; i++) {
+            int slot = (first + i) % capacity;
+            copy._times[i] = _times[slot];
+            System.arraycopy(_values, slot * _metrics.length, copy._values, i * _metrics.length, _metrics.length);
+        }
+        copy._count = _count;
+        return copy;
+    }
+
+    @Override
+    public long getResolution() {
+        return _resolution;
+    }
+
+    @Override
+    public Metric[] getMetrics() {
+        return Arrays.copyOf(_metrics, _metrics.length);
+    }
+
+    @Override
+    public synchronized int getSampleCount() {
+        return _count;
+    }
+
+    @Override
+    public synchronized long getTime(int sample) {
+        return _times[slot(sample)];
+    }
+
+    @Override
+    public synchronized double getValue(int sample, int metric) {
+        return _values[slot(sample) * _metrics.length + metric];
+    }
+
+    private int slot(int sample) {
+        if (sample < 0 || sample >= _count) {
+            throw new IndexOutOfBoundsException("Sample " + sample + " of " + _count);
+        }
+        int capacity = _times.length;
+        return (_head + capacity - _count + sample) % capacity;
+    }
+}
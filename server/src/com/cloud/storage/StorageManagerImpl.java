@@ -3870,6 +3870,14 @@ public class StorageManagerImpl implements StorageManager, Manager, ClusterManag
         Boolean isRecursive = domainIdRecursiveListProject.second();
         ListProjectResourcesCriteria listProjectResourcesCriteria = domainIdRecursiveListProject.third();
         Filter searchFilter = new Filter(VolumeVO.class, "created", false, cmd.getStartIndex(), cmd.getPageSizeVal());
+        if (cmd.getStartId() != null) {
+            // paged by nextpagetoken, which is the id of the last volume, so the order is by id as well;
+            // 0 asks for the first page
+            searchFilter = new Filter(VolumeVO.class, "id", false, cmd.getStartIndex(), cmd.getPageSizeVal());
+            if (cmd.getStartId() > 0) {
+                searchFilter.setStartAfter(VolumeVO.class, "id", false, cmd.getStartId());
+            }
+        }
 
         // hack for now, this should be done better but due to needing a join I opted to
         // do this quickly and worry about making it pretty later
@@ -17,15 +17,22 @@
 package com.cloud.vm;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import javax.ejb.Local;
@@ -65,6 +72,7 @@ import com.cloud.api.commands.CreateTemplateCmd;
 import com.cloud.api.commands.CreateVMGroupCmd;
 import com.cloud.api.commands.DeleteVMGroupCmd;
 import com.cloud.api.commands.DeployVMCmd;
+import com.cloud.api.commands.DeployVMsCmd;
 import com.cloud.api.commands.DestroyVMCmd;
 import com.cloud.api.commands.DetachVolumeCmd;
 import com.cloud.api.commands.ListVMsCmd;
@@ -93,6 +101,7 @@ import com.cloud.dc.dao.DataCenterDao;
 import com.cloud.dc.dao.HostPodDao;
 import com.cloud.deploy.DataCenterDeployment;
 import com.cloud.deploy.DeployDestination;
+import com.cloud.deploy.DeploymentPlanner.ExcludeList;
 import com.cloud.domain.DomainVO;
 import com.cloud.domain.dao.DomainDao;
 import com.cloud.event.ActionEvent;
@@ -365,6 +374,9 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
     VpcManager _vpcMgr;
 
     protected ScheduledExecutorService _executor = null;
+    protected ExecutorService _deployExecutor = null;
+    protected int _bulkDeployMaxCount;
+    protected int _bulkDeployHostConcurrency;
     protected int _expungeInterval;
     protected int _expungeDelay;
 
@@ -1167,6 +1179,11 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
         }
         _executor = Executors.newScheduledThreadPool(wrks, new NamedThreadFactory("UserVm-Scavenger"));
 
+        _bulkDeployMaxCount = NumbersUtil.parseInt(_configDao.getValue(Config.VmBulkDeployMaxCount.key()), 100);
+        int deployWorkers = NumbersUtil.parseInt(_configDao.getValue(Config.VmBulkDeployWorkers.key()), 8);
+        _deployExecutor = Executors.newFixedThreadPool(deployWorkers, new NamedThreadFactory("UserVm-BulkDeploy"));
+        _bulkDeployHostConcurrency = Math.max(NumbersUtil.parseInt(_configDao.getValue(Config.VmBulkDeployHostConcurrency.key()), 4), 1);
+
         _itMgr.registerGuru(VirtualMachine.Type.User, this);
 
         VirtualMachine.State.getStateMachine().registerListener(new UserVmStateListener(_usageEventDao, _networkDao, _nicDao));
@@ -1190,6 +1207,7 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
     @Override
     public boolean stop() {
         _executor.shutdown();
+        _deployExecutor.shutdown();
         return true;
     }
 
@@ -2654,6 +2672,275 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
         return vm;
     }
 
+    @Override
+    public List<? extends UserVm> deployVirtualMachines(DeployVMsCmd cmd) throws InsufficientCapacityException, ConcurrentOperationException, ResourceUnavailableException,
+            ResourceAllocationException {
+        int count = cmd.getCount();
+        if (count < 1 || count > _bulkDeployMaxCount) {
+            throw new InvalidParameterValueException("Number of vms to deploy should be between 1 and " + _bulkDeployMaxCount);
+        }
+
+        Account owner = _accountService.getActiveAccountById(cmd.getEntityOwnerId());
+
+        DataCenterVO zone = _dcDao.findById(cmd.getZoneId());
+        if (zone == null) {
+            throw new InvalidParameterValueException("Unable to find zone by id=" + cmd.getZoneId());
+        }
+
+        ServiceOfferingVO serviceOffering = _serviceOfferingDao.findById(cmd.getServiceOfferingId());
+        if (serviceOffering == null) {
+            throw new InvalidParameterValueException("Unable to find service offering: " + cmd.getServiceOfferingId());
+        }
+
+        VMTemplateVO template = _templateDao.findById(cmd.getTemplateId());
+        if (template == null) {
+            throw new InvalidParameterValueException("Unable to use template " + cmd.getTemplateId());
+        }
+
+        DiskOfferingVO diskOffering = null;
+        if (cmd.getDiskOfferingId() != null) {
+            diskOffering = _diskOfferingDao.findById(cmd.getDiskOfferingId());
+            if (diskOffering == null) {
+                throw new InvalidParameterValueException("Unable to find disk offering " + cmd.getDiskOfferingId());
+            }
+        }
+
+        if (!zone.isLocalStorageEnabled()) {
+            if (serviceOffering.getUseLocalStorage()) {
+                throw new InvalidParameterValueException("Zone is not configured to use local storage but service offering " + serviceOffering.getName() + " uses it");
+            }
+            if (diskOffering != null && diskOffering.getUseLocalStorage()) {
+                throw new InvalidParameterValueException("Zone is not configured to use local storage but disk offering " + diskOffering.getName() + " uses it");
+            }
+        }
+
+        if (cmd.getHypervisor() == HypervisorType.BareMetal) {
+            throw new InvalidParameterValueException("Bulk deployment is not supported for " + HypervisorType.BareMetal + " vms");
+        }
+
+        // fail fast on the whole batch; each create below still checks its own vm
+        _resourceLimitMgr.checkResourceLimit(owner, ResourceType.user_vm, count);
+
+        String prefix = cmd.getDisplayName();
+        List<UserVmVO> vms = new ArrayList<UserVmVO>(count);
+        boolean created = false;
+        try {
+            for (int i = 0; i < count; i++) {
+                String displayName = prefix == null ? null : prefix + "-" + (i + 1);
+                UserVm vm = null;
+                if (zone.getNetworkType() == NetworkType.Basic) {
+                    if (cmd.getNetworkIds() != null) {
+                        throw new InvalidParameterValueException("Can't specify network Ids in Basic zone");
+                    }
+                    vm = createBasicSecurityGroupVirtualMachine(zone, serviceOffering, template, cmd.getSecurityGroupIdList(), owner, null, displayName,
+                            cmd.getDiskOfferingId(), cmd.getSize(), cmd.getGroup(), cmd.getHypervisor(), cmd.getUserData(), cmd.getSSHKeyPairName(), null, null, cmd.getKeyboard());
+                } else if (zone.isSecurityGroupEnabled()) {
+                    vm = createAdvancedSecurityGroupVirtualMachine(zone, serviceOffering, template, cmd.getNetworkIds(), cmd.getSecurityGroupIdList(), owner, null,
+                            displayName, cmd.getDiskOfferingId(), cmd.getSize(), cmd.getGroup(), cmd.getHypervisor(), cmd.getUserData(), cmd.getSSHKeyPairName(), null, null,
+                            cmd.getKeyboard());
+                } else {
+                    if (cmd.getSecurityGroupIdList() != null && !cmd.getSecurityGroupIdList().isEmpty()) {
+                        throw new InvalidParameterValueException("Can't create vm with security groups; security group feature is not enabled per zone");
+                    }
+                    vm = createAdvancedVirtualMachine(zone, serviceOffering, template, cmd.getNetworkIds(), owner, null, displayName, cmd.getDiskOfferingId(),
+                            cmd.getSize(), cmd.getGroup(), cmd.getHypervisor(), cmd.getUserData(), cmd.getSSHKeyPairName(), null, null, cmd.getKeyboard());
+                }
+                vms.add(_vmDao.findById(vm.getId()));
+            }
+            created = true;
+        } finally {
+            if (!created) {
+                expungeBulkDeployment(vms);
+            }
+        }
+
+        return startVirtualMachines(vms, owner, cmd.getSpreadAcrossHosts());
+    }
+
+    /**
+     * Destroys and expunges the vms already created for a bulk deployment that failed to create the rest.
+     */
+    protected void expungeBulkDeployment(List<UserVmVO> vms) {
+        Account caller = UserContext.current().getCaller();
+        long callerUserId = UserContext.current().getCallerUserId();
+        for (UserVmVO vm : vms) {
+            try {
+                destroyVm(vm.getId());
+                expunge(_vmDao.findById(vm.getId()), callerUserId, caller);
+            } catch (Exception e) {
+                s_logger.warn("Unable to clean up " + vm + " of the failed bulk deployment", e);
+            }
+        }
+    }
+
+    /**
+     * Plans the batch in one pass and starts the vms in parallel, one task per vm.  At most vm.bulk.deploy.host.concurrency
+     * vms are started on the same planned host at a time. A vm whose planned host no longer has room is handed back to
+     * the planners.
+     */
+    protected List<UserVmVO> startVirtualMachines(List<UserVmVO> vms, Account owner, final boolean spreadAcrossHosts) {
+        final Map<Long, DeployDestination> dests = _itMgr.planDeployments(vms, owner, spreadAcrossHosts);
+
+        Map<Long, List<UserVmVO>> vmsByHost = new LinkedHashMap<Long, List<UserVmVO>>();
+        for (UserVmVO vm : vms) {
+            DeployDestination dest = dests.get(vm.getId());
+            Long hostId = dest == null ? null : dest.getHost().getId();
+            List<UserVmVO> hostVms = vmsByHost.get(hostId);
+            if (hostVms == null) {
+                hostVms = new ArrayList<UserVmVO>();
+                vmsByHost.put(hostId, hostVms);
+            }
+            hostVms.add(vm);
+        }
+
+        final Set<Long> plannedHosts = new HashSet<Long>(vmsByHost.keySet());
+        plannedHosts.remove(null);
+        // hosts picked by the planners for the vms that had to be planned again
+        final Set<Long> replannedHosts = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        final long callerUserId = UserContext.current().getCallerUserId();
+        final Account caller = UserContext.current().getCaller();
+        final float cpuOverprovisioningFactor = NumbersUtil.parseFloat(_configDao.getValue(Config.CPUOverprovisioningFactor.key()), 1);
+
+        Map<Long, Semaphore> hostPermits = new HashMap<Long, Semaphore>();
+        for (Long hostId : plannedHosts) {
+            hostPermits.put(hostId, new Semaphore(_bulkDeployHostConcurrency));
+        }
+
+        // submitted round robin over the hosts so that the workers are not all held up by the limit of one host
+        List<Future<UserVmVO>> futures = new ArrayList<Future<UserVmVO>>();
+        for (int i = 0; futures.size() < vms.size(); i++) {
+            for (Map.Entry<Long, List<UserVmVO>> entry : vmsByHost.entrySet()) {
+                if (i >= entry.getValue().size()) {
+                    continue;
+                }
+                final UserVmVO vm = entry.getValue().get(i);
+                final Semaphore permits = entry.getKey() == null ? null : hostPermits.get(entry.getKey());
+                futures.add(_deployExecutor.submit(new Callable<UserVmVO>() {
+                    @Override
+                    public UserVmVO call() throws Exception {
+                        if (permits != null) {
+                            permits.acquire();
+                        }
+                        UserContext.registerContext(callerUserId, caller, null, false);
+                        Transaction txn = Transaction.open("BulkDeploy");
+                        try {
+                            DataCenterDeployment plan = getBulkDeploymentPlan(vm, dests.get(vm.getId()), plannedHosts, replannedHosts, spreadAcrossHosts,
+                                    cpuOverprovisioningFactor);
+                            UserVmVO started = startPlannedVirtualMachine(vm.getId(), plan);
+                            if (plan != null && plan.getHostId() == null && started != null && started.getHostId() != null) {
+                                replannedHosts.add(started.getHostId());
+                            }
+                            return started;
+                        } catch (Exception e) {
+                            s_logger.warn("Unable to start " + vm + " of bulk deployment", e);
+                            return null;
+                        } finally {
+                            txn.close();
+                            UserContext.unregisterContext();
+                            if (permits != null) {
+                                permits.release();
+                            }
+                        }
+                    }
+                }));
+            }
+        }
+
+        List<UserVmVO> started = new ArrayList<UserVmVO>();
+        for (Future<UserVmVO> future : futures) {
+            try {
+                UserVmVO vm = future.get();
+                if (vm != null) {
+                    started.add(vm);
+                }
+            } catch (InterruptedException e) {
+                s_logger.warn("Interrupted while waiting for vms of bulk deployment to start");
+                Thread.currentThread().interrupt();
+                break;
+            } catch (java.util.concurrent.ExecutionException e) {
+                s_logger.warn("Unable to start vm of bulk deployment", e.getCause());
+            }
+        }
+        return started;
+    }
+
+    private DataCenterDeployment getBulkDeploymentPlan(UserVmVO vm, DeployDestination dest, Set<Long> plannedHosts, Set<Long> replannedHosts, boolean spreadAcrossHosts,
+            float cpuOverprovisioningFactor) {
+        if (dest != null) {
+            ServiceOfferingVO offering = _serviceOfferingDao.findById(vm.getServiceOfferingId());
+            long hostId = dest.getHost().getId();
+            if (_capacityMgr.checkIfHostHasCapacity(hostId, offering.getCpu() * offering.getSpeed(), offering.getRamSize() * 1024L * 1024L, false, cpuOverprovisioningFactor, true)) {
+                DataCenterDeployment plan = new DataCenterDeployment(vm.getDataCenterIdToDeployIn(), dest.getPod().getId(), dest.getCluster().getId(), hostId, null, null);
+                if (isPlannedStorageAvailable(dest)) {
+                    plan.setPlannedDestination(dest);
+                }
+                return plan;
+            }
+            s_logger.debug("Planned host " + hostId + " no longer has capacity for " + vm + ", replanning");
+        }
+
+        if (!spreadAcrossHosts) {
+            return null;
+        }
+        DataCenterDeployment plan = new DataCenterDeployment(vm.getDataCenterIdToDeployIn());
+        ExcludeList avoids = new ExcludeList();
+        for (Long plannedHost : plannedHosts) {
+            if (dest == null || plannedHost.longValue() != dest.getHost().getId()) {
+                avoids.addHost(plannedHost);
+            }
+        }
+        for (Long replannedHost : replannedHosts) {
+            avoids.addHost(replannedHost);
+        }
+        plan.setAvoids(avoids);
+        return plan;
+    }
+
+    /**
+     * The other vms of the batch may have used up the pools planned for this one, the planners
+     * pick the storage again if so.
+     */
+    private boolean isPlannedStorageAvailable(DeployDestination dest) {
+        if (dest.getStorageForDisks() == null) {
+            return false;
+        }
+        Map<Long, List<Volume>> volumesByPool = new HashMap<Long, List<Volume>>();
+        for (Map.Entry<Volume, StoragePool> entry : dest.getStorageForDisks().entrySet()) {
+            List<Volume> volumes = volumesByPool.get(entry.getValue().getId());
+            if (volumes == null) {
+                volumes = new ArrayList<Volume>();
+                volumesByPool.put(entry.getValue().getId(), volumes);
+            }
+            volumes.add(entry.getKey());
+        }
+        for (Map.Entry<Long, List<Volume>> entry : volumesByPool.entrySet()) {
+            StoragePoolVO pool = _storagePoolDao.findById(entry.getKey());
+            if (pool == null || pool.getStatus() != StoragePoolStatus.Up || !_storageMgr.storagePoolHasEnoughSpace(entry.getValue(), pool)) {
+                s_logger.debug("Planned storage pool " + entry.getKey() + " is no longer available, replanning the storage");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected UserVmVO startPlannedVirtualMachine(long vmId, DataCenterDeployment plan) throws ResourceUnavailableException, InsufficientCapacityException,
+    ConcurrentOperationException {
+        Pair<UserVmVO, Map<VirtualMachineProfile.Param, Object>> vmParamPair = null;
+        try {
+            vmParamPair = startVirtualMachine(vmId, null, plan, null);
+        } finally {
+            updateVmStateForFailedVmCreation(vmId);
+        }
+
+        UserVmVO vm = vmParamPair.first();
+        VMTemplateVO template = _templateDao.findByIdIncludingRemoved(vm.getTemplateId());
+        if (template.getEnablePassword()) {
+            // this value is not being sent to the backend; need only for api display purposes
+            vm.setPassword((String)vmParamPair.second().get(VirtualMachineProfile.Param.VmPassword));
+        }
+        return vm;
+    }
+
     @Override
     public boolean finalizeVirtualMachineProfile(VirtualMachineProfile<UserVmVO> profile, DeployDestination dest, ReservationContext context) {
         UserVmVO vm = profile.getVirtualMachine();
@@ -2871,6 +3158,10 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
 
     @Override
     public Pair<UserVmVO, Map<VirtualMachineProfile.Param, Object>> startVirtualMachine(long vmId, Long hostId, Map<VirtualMachineProfile.Param, Object> additionalParams) throws ConcurrentOperationException, ResourceUnavailableException, InsufficientCapacityException {
+        return startVirtualMachine(vmId, hostId, null, additionalParams);
+    }
+
+    private Pair<UserVmVO, Map<VirtualMachineProfile.Param, Object>> startVirtualMachine(long vmId, Long hostId, DataCenterDeployment planToDeploy, Map<VirtualMachineProfile.Param, Object> additionalParams) throws ConcurrentOperationException, ResourceUnavailableException, InsufficientCapacityException {
         // Input validation
         Account callerAccount = UserContext.current().getCaller();
         UserVO callerUser = _userDao.findById(UserContext.current().getCallerUserId());
@@ -2928,6 +3219,8 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
         if (destinationHost != null) {
             s_logger.debug("Destination Host to deploy the VM is specified, specifying a deployment plan to deploy the VM");
             plan = new DataCenterDeployment(vm.getDataCenterIdToDeployIn(), destinationHost.getPodId(), destinationHost.getClusterId(), destinationHost.getId(), null, null);
+        } else {
+            plan = planToDeploy;
         }
 
         //Set parameters
@@ -3052,6 +3345,7 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
 
         Criteria c = new Criteria("id", Boolean.TRUE, cmd.getStartIndex(), cmd.getPageSizeVal());
         c.addCriteria(Criteria.KEYWORD, cmd.getKeyword());
+        c.addCriteria(Criteria.START_ID, cmd.getStartId());
         c.addCriteria(Criteria.ID, cmd.getId());
         c.addCriteria(Criteria.NAME, cmd.getInstanceName());
         c.addCriteria(Criteria.STATE, cmd.getState());
@@ -3094,6 +3388,10 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
     public Pair<List<UserVmVO>, Integer> searchForUserVMs(Criteria c, Account caller, Long domainId, boolean isRecursive, 
             List<Long> permittedAccounts, boolean listAll, ListProjectResourcesCriteria listProjectResourcesCriteria, Map<String, String> tags) {
         Filter searchFilter = new Filter(UserVmVO.class, c.getOrderBy(), c.getAscending(), c.getOffset(), c.getLimit());
+        Object startId = c.getCriteria(Criteria.START_ID);
+        if (startId != null) {
+            searchFilter.setStartAfter(UserVmVO.class, "id", c.getAscending(), startId);
+        }
 
         SearchBuilder<UserVmVO> sb = _vmDao.createSearchBuilder();
         _accountMgr.buildACLSearchBuilder(sb, domainId, isRecursive, permittedAccounts, listProjectResourcesCriteria);
@@ -96,6 +96,20 @@ public interface VirtualMachineManager extends Manager {
 
     <T extends VMInstanceVO> T advanceStart(T vm, Map<VirtualMachineProfile.Param, Object> params, User caller, Account account, DeploymentPlan planToDeploy) throws InsufficientCapacityException, ResourceUnavailableException, ConcurrentOperationException, OperationTimedoutException;
 
+    /**
+     * Runs the deployment planners once over a batch of VMs that have not been started yet.
+     * VMs for which no destination could be found are left out of the returned map.  The destinations
+     * include the storage for the disks and can be handed to start() with DataCenterDeployment.setPlannedDestination().
+     * The cpu and ram of the VMs planned earlier in the batch are counted against their hosts, a host that has no room
+     * left for the next VM is avoided for it.
+     *
+     * @param vms VMs to plan for, in the order they should be placed.
+     * @param owner owner of the VMs.
+     * @param spreadAcrossHosts if true, hosts chosen for earlier VMs in the batch are avoided for later ones.
+     * @return planned destination keyed by VM id.
+     */
+    <T extends VMInstanceVO> Map<Long, DeployDestination> planDeployments(List<T> vms, Account owner, boolean spreadAcrossHosts);
+
     <T extends VMInstanceVO> boolean advanceStop(T vm, boolean forced, User caller, Account account) throws ResourceUnavailableException, OperationTimedoutException, ConcurrentOperationException;
 
     <T extends VMInstanceVO> boolean advanceExpunge(T vm, User caller, Account account) throws ResourceUnavailableException, OperationTimedoutException, ConcurrentOperationException;
@@ -29,6 +29,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -51,6 +52,8 @@ import com.cloud.agent.api.ClusterSyncCommand;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.MigrateAnswer;
 import com.cloud.agent.api.MigrateCommand;
+import com.cloud.agent.api.GetVmStatesAnswer;
+import com.cloud.agent.api.GetVmStatesCommand;
 import com.cloud.agent.api.PingRoutingCommand;
 import com.cloud.agent.api.PrepareForMigrationAnswer;
 import com.cloud.agent.api.PrepareForMigrationCommand;
@@ -61,6 +64,7 @@ import com.cloud.agent.api.StartCommand;
 import com.cloud.agent.api.StartupCommand;
 import com.cloud.agent.api.StartupRoutingCommand;
 import com.cloud.agent.api.StartupRoutingCommand.VmState;
+import com.cloud.agent.api.VmStateReport;
 import com.cloud.agent.api.StopAnswer;
 import com.cloud.agent.api.StopCommand;
 import com.cloud.agent.api.to.NicTO;
@@ -216,6 +220,8 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
     @Inject
     protected CapacityManager _capacityMgr;
     @Inject
+    protected ConfigurationDao _configDao;
+    @Inject
     protected HighAvailabilityManager _haMgr;
     @Inject
     protected HostPodDao _podDao;
@@ -243,6 +249,10 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
     ScheduledExecutorService _executor = null;
     protected int _operationTimeout;
 
+    // what each host has reported in its pings, and the GetVmStatesCommand outstanding for it
+    protected final ConcurrentHashMap<Long, VmStateReport> _hostStates = new ConcurrentHashMap<Long, VmStateReport>();
+    protected final ConcurrentHashMap<Long, Long> _hostStatesRequests = new ConcurrentHashMap<Long, Long>();
+
     protected int _retry;
     protected long _nodeId;
     protected long _cleanupWait;
@@ -597,6 +607,59 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
         return advanceStart(vm, params, caller, account, null);
     }
 
+    @Override
+    public <T extends VMInstanceVO> Map<Long, DeployDestination> planDeployments(List<T> vms, Account owner, boolean spreadAcrossHosts) {
+        Map<Long, DeployDestination> dests = new HashMap<Long, DeployDestination>();
+        // cpu and ram of the vms planned on each host so far; the capacity in the DB only counts them once they start
+        Map<Long, long[]> plannedCapacity = new HashMap<Long, long[]>();
+        float cpuOverprovisioningFactor = NumbersUtil.parseFloat(_configDao.getValue(Config.CPUOverprovisioningFactor.key()), 1);
+        for (T vm : vms) {
+            ServiceOfferingVO offering = _offeringDao.findById(vm.getServiceOfferingId());
+            VMTemplateVO template = _templateDao.findById(vm.getTemplateId());
+            VirtualMachineProfileImpl<T> vmProfile = new VirtualMachineProfileImpl<T>(vm, template, offering, owner, null);
+            int cpu = offering.getCpu() * offering.getSpeed();
+            long ram = offering.getRamSize() * 1024L * 1024L;
+
+            DataCenterDeployment plan = new DataCenterDeployment(vm.getDataCenterIdToDeployIn(), vm.getPodIdToDeployIn(), null, null, null, null);
+            ExcludeList avoids = new ExcludeList();
+            for (Map.Entry<Long, long[]> entry : plannedCapacity.entrySet()) {
+                long[] planned = entry.getValue();
+                if (spreadAcrossHosts
+                        || !_capacityMgr.checkIfHostHasCapacity(entry.getKey(), (int)(planned[0] + cpu), planned[1] + ram, false, cpuOverprovisioningFactor, true)) {
+                    avoids.addHost(entry.getKey());
+                }
+            }
+
+            DeployDestination dest = null;
+            for (DeploymentPlanner planner : _planners) {
+                try {
+                    if (planner.canHandle(vmProfile, plan, avoids)) {
+                        dest = planner.plan(vmProfile, plan, avoids);
+                    }
+                } catch (InsufficientServerCapacityException e) {
+                    s_logger.debug("Planner " + planner.getName() + " could not place " + vm + ": " + e.getMessage());
+                }
+                if (dest != null) {
+                    break;
+                }
+            }
+
+            if (dest == null) {
+                s_logger.debug("No destination planned for " + vm + ", it will be planned again when it is started");
+                continue;
+            }
+            dests.put(vm.getId(), dest);
+            long[] planned = plannedCapacity.get(dest.getHost().getId());
+            if (planned == null) {
+                planned = new long[2];
+                plannedCapacity.put(dest.getHost().getId(), planned);
+            }
+            planned[0] += cpu;
+            planned[1] += ram;
+        }
+        return dests;
+    }
+
     @Override
     public <T extends VMInstanceVO> T advanceStart(T vm, Map<VirtualMachineProfile.Param, Object> params, User caller, Account account, DeploymentPlan planToDeploy)
             throws InsufficientCapacityException, ConcurrentOperationException, ResourceUnavailableException {
@@ -633,6 +696,10 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
             }
             plan = new DataCenterDeployment(planToDeploy.getDataCenterId(), planToDeploy.getPodId(), planToDeploy.getClusterId(), planToDeploy.getHostId(), planToDeploy.getPoolId(), planToDeploy.getPhysicalNetworkId(), ctx);
         }
+        DeployDestination plannedDest = null;
+        if (planToDeploy instanceof DataCenterDeployment) {
+            plannedDest = ((DataCenterDeployment)planToDeploy).getPlannedDestination();
+        }
 
         HypervisorGuru hvGuru = _hvGuruMgr.getGuru(vm.getHypervisorType());
 
@@ -710,7 +777,17 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
                 
                 VirtualMachineProfileImpl<T> vmProfile = new VirtualMachineProfileImpl<T>(vm, template, offering, account, params);
                 DeployDestination dest = null;
+                if (plannedDest != null && !planChangedByVolume) {
+                    // the planned destination is only tried once, the planners take over if it fails
+                    dest = plannedDest;
+                    plannedDest = null;
+                    avoids.addHost(dest.getHost().getId());
+                    journal.record("Deployment planned ", vmProfile, dest);
+                }
                 for (DeploymentPlanner planner : _planners) {
+                    if (dest != null) {
+                        break;
+                    }
                     if (planner.canHandle(vmProfile, plan, avoids)) {
                         dest = planner.plan(vmProfile, plan, avoids);
                     } else {
@@ -1671,6 +1748,58 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
         return commands;
     }
 
+    /**
+     * Like fullHostSync but for a host that is already up: vms that either side has in the
+     * middle of an operation are left to the pings.
+     */
+    protected Commands resyncHost(long hostId, Map<String, State> states) {
+        Commands commands = new Commands(OnError.Continue);
+
+        Map<Long, AgentVmInfo> infos = convertDeltaToInfos(states);
+
+        final List<? extends VMInstanceVO> vms = _vmDao.listByHostId(hostId);
+        for (VMInstanceVO vm : vms) {
+            AgentVmInfo info = infos.remove(vm.getId());
+            if (vm.getState().isTransitional() || (info != null && info.state.isTransitional())) {
+                continue;
+            }
+            if (info == null) {
+                info = new AgentVmInfo(vm.getInstanceName(), getVmGuru(vm), vm, State.Stopped);
+            }
+            VMInstanceVO castedVm = info.guru.findById(vm.getId());
+
+            HypervisorGuru hvGuru = _hvGuruMgr.getGuru(castedVm.getHypervisorType());
+            Command command = compareState(hostId, castedVm, info, true, hvGuru.trackVmHostChange());
+            if (command != null) {
+                commands.addCommand(command);
+            }
+        }
+
+        for (final AgentVmInfo left : infos.values()) {
+            if (left.state.isTransitional()) {
+                continue;
+            }
+            VMInstanceVO vm = left.guru.findByName(left.name);
+            if (vm == null) {
+                s_logger.warn("Stopping a VM that we have no record of <resyncHost>: " + left.name);
+                commands.addCommand(cleanup(left.name));
+            } else if (!vm.getState().isTransitional()) {
+                HypervisorGuru hvGuru = _hvGuruMgr.getGuru(vm.getHypervisorType());
+                if (hvGuru.trackVmHostChange()) {
+                    Command command = compareState(hostId, vm, left, true, true);
+                    if (command != null) {
+                        commands.addCommand(command);
+                    }
+                } else {
+                    s_logger.warn("Stopping a VM, VM " + left.name + " migrate from Host " + vm.getHostId() + " to Host " + hostId);
+                    commands.addCommand(cleanup(left.name));
+                }
+            }
+        }
+
+        return commands;
+    }
+
     public Commands deltaHostSync(long hostId, Map<String, State> newStates) {
         Map<Long, AgentVmInfo> states = convertDeltaToInfos(newStates);
         Commands commands = new Commands(OnError.Continue);
@@ -1913,6 +2042,19 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
         return map;
     }
 
+    protected VmStateReport toStateReport(StartupRoutingCommand cmd) {
+        final HashMap<String, State> states = new HashMap<String, State>();
+        if (cmd.getVmStates() != null) {
+            for (Map.Entry<String, VmState> entry : cmd.getVmStates().entrySet()) {
+                states.put(entry.getKey(), entry.getValue().getState());
+            }
+        }
+
+        VmStateReport report = new VmStateReport();
+        report.reset(states, 0);
+        return report;
+    }
+
     protected Map<Long, AgentVmInfo> convertDeltaToInfos(final Map<String, State> states) {
         final HashMap<Long, AgentVmInfo> map = new HashMap<Long, AgentVmInfo>();
 
@@ -2199,11 +2341,107 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
                     deltaSync(hs.getNewStates());
                     hs.setExecuted();
                 }
+            } else if (answer instanceof GetVmStatesAnswer || !answer.getResult()) {
+                processVmStates(agentId, seq, answer);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks the states reported in a ping against what we have applied from the earlier ones
+     * and asks the host for all of its vm states if a ping went missing or the digests differ.
+     *
+     * @return false if the changes in the ping are already covered by a GetVmStatesAnswer.
+     */
+    protected boolean checkStateReport(long hostId, PingRoutingCommand ping) {
+        VmStateReport report = _hostStates.get(hostId);
+        if (report == null) {
+            requestVmStates(hostId, "nothing reported since the management server started");
+            return true;
+        }
+
+        Map<String, State> changes = ping.getNewStates();
+        boolean hasChanges = changes != null && !changes.isEmpty();
+        long seq = ping.getStateSequence();
+        synchronized (report) {
+            if (_hostStatesRequests.containsKey(hostId)) {
+                return true;
+            }
+
+            long last = report.getSequence();
+            if (seq < last || (seq == last && hasChanges)) {
+                s_logger.debug("Ignoring states from host " + hostId + " at sequence " + seq + ", already at " + last);
+                return false;
+            }
+            if (seq == last + 1 && hasChanges) {
+                report.apply(changes);
+                report.setSequence(seq);
+            } else if (seq != last) {
+                requestVmStates(hostId, "missed state changes " + (last + 1) + " to " + (seq - 1));
+                return true;
+            }
+
+            if (report.getDigest() != ping.getStateDigest().longValue()) {
+                requestVmStates(hostId, "digest mismatch at sequence " + seq);
             }
         }
         return true;
     }
 
+    protected void requestVmStates(long hostId, String reason) {
+        // the key is taken before the send so a ping in the meantime doesn't ask again
+        if (_hostStatesRequests.putIfAbsent(hostId, -1L) != null) {
+            return;
+        }
+
+        s_logger.info("Requesting all vm states from host " + hostId + ": " + reason);
+        try {
+            long seq = _agentMgr.send(hostId, new Commands(new GetVmStatesCommand()), this);
+            _hostStatesRequests.replace(hostId, -1L, seq);
+        } catch (AgentUnavailableException e) {
+            _hostStatesRequests.remove(hostId);
+            s_logger.warn("Unable to request vm states from host " + hostId, e);
+        }
+    }
+
+    protected void processVmStates(long hostId, long seq, Answer answer) {
+        // a GetVmStatesAnswer can come back before send() has returned the sequence to look for
+        Long requestSeq = _hostStatesRequests.get(hostId);
+        if (requestSeq == null || (requestSeq != seq && !(answer instanceof GetVmStatesAnswer))) {
+            return;
+        }
+
+        VmStateReport report = _hostStates.get(hostId);
+        if (report == null) {
+            _hostStates.putIfAbsent(hostId, new VmStateReport());
+            report = _hostStates.get(hostId);
+        }
+
+        GetVmStatesAnswer states;
+        synchronized (report) {
+            // answers go to every monitor as well as to the listener that sent the command
+            if (!_hostStatesRequests.remove(hostId, requestSeq)) {
+                return;
+            }
+            if (!answer.getResult() || !(answer instanceof GetVmStatesAnswer)) {
+                s_logger.warn("Unable to get vm states from host " + hostId + ": " + answer.getDetails());
+                return;
+            }
+            states = (GetVmStatesAnswer) answer;
+            report.reset(states.getStates(), states.getSequence());
+        }
+
+        Commands commands = resyncHost(hostId, states.getStates());
+        if (commands.size() > 0) {
+            try {
+                _agentMgr.send(hostId, commands, this);
+            } catch (final AgentUnavailableException e) {
+                s_logger.warn("Agent is now unavailable", e);
+            }
+        }
+    }
+
     @Override
     public boolean processTimeout(long agentId, long seq) {
         return true;
@@ -2220,7 +2458,8 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
         for (Command cmd : cmds) {
             if (cmd instanceof PingRoutingCommand) {
                 PingRoutingCommand ping = (PingRoutingCommand) cmd;
-                if (ping.getNewStates() != null && ping.getNewStates().size() > 0) {
+                boolean current = ping.getStateDigest() == null || checkStateReport(agentId, ping);
+                if (current && ping.getNewStates() != null && ping.getNewStates().size() > 0) {
                     Commands commands = deltaHostSync(agentId, ping.getNewStates());
                     if (commands.size() > 0) {
                         try {
@@ -2243,6 +2482,8 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
 
     @Override
     public boolean processDisconnect(long agentId, Status state) {
+        _hostStates.remove(agentId);
+        _hostStatesRequests.remove(agentId);
         return true;
     }
 
@@ -2282,6 +2523,8 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
         }
         else { // for others KVM and VMWare 
             StartupRoutingCommand startup = (StartupRoutingCommand) cmd;
+            _hostStates.put(agentId, toStateReport(startup));
+            _hostStatesRequests.remove(agentId);
             Commands commands = fullHostSync(agentId, startup);
 
             if (commands.size() > 0) {
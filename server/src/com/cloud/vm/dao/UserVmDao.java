@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.vm.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.Hashtable;
 import java.util.List;
@@ -50,6 +51,20 @@ public interface UserVmDao extends GenericDao<UserVmVO, Long> {
 	 */
 	public List<UserVmVO> listRunningByHostId(long hostId);
 
+	/**
+	 * List the vms with the given ids in one query
+	 * @param ids vm ids
+	 * @return the vms found, in no particular order
+	 */
+	List<UserVmVO> listByIds(Collection<Long> ids);
+
+	/**
+	 * List the running vms on any of the given hosts in one query
+	 * @param hostIds host ids
+	 * @return the vms found, in no particular order
+	 */
+	List<UserVmVO> listRunningByHostIds(Collection<Long> hostIds);
+
 	/**
 	 * List user vm instances with virtualized networking (i.e. not direct attached networking) for the given account and datacenter
 	 * @param accountId will search for vm instances belonging to this account
@@ -21,6 +21,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Hashtable;
 import java.util.List;
@@ -63,6 +64,8 @@ public class UserVmDaoImpl extends GenericDaoBase<UserVmVO, Long> implements Use
     protected final SearchBuilder<UserVmVO> LastHostSearch;
     protected final SearchBuilder<UserVmVO> HostUpSearch;
     protected final SearchBuilder<UserVmVO> HostRunningSearch;
+    protected final SearchBuilder<UserVmVO> IdsSearch;
+    protected final SearchBuilder<UserVmVO> HostsRunningSearch;
     protected final SearchBuilder<UserVmVO> StateChangeSearch;
     protected final SearchBuilder<UserVmVO> AccountHostSearch;
 
@@ -137,6 +140,15 @@ public class UserVmDaoImpl extends GenericDaoBase<UserVmVO, Long> implements Use
         HostRunningSearch.and("state", HostRunningSearch.entity().getState(), SearchCriteria.Op.EQ);
         HostRunningSearch.done();
         
+        IdsSearch = createSearchBuilder();
+        IdsSearch.and("ids", IdsSearch.entity().getId(), SearchCriteria.Op.IN);
+        IdsSearch.done();
+
+        HostsRunningSearch = createSearchBuilder();
+        HostsRunningSearch.and("hosts", HostsRunningSearch.entity().getHostId(), SearchCriteria.Op.IN);
+        HostsRunningSearch.and("state", HostsRunningSearch.entity().getState(), SearchCriteria.Op.EQ);
+        HostsRunningSearch.done();
+        
         AccountPodSearch = createSearchBuilder();
         AccountPodSearch.and("account", AccountPodSearch.entity().getAccountId(), SearchCriteria.Op.EQ);
         AccountPodSearch.and("pod", AccountPodSearch.entity().getPodIdToDeployIn(), SearchCriteria.Op.EQ);
@@ -262,6 +274,27 @@ public class UserVmDaoImpl extends GenericDaoBase<UserVmVO, Long> implements Use
         return listBy(sc);
     }
 
+    @Override
+    public List<UserVmVO> listByIds(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return new ArrayList<UserVmVO>();
+        }
+        SearchCriteria<UserVmVO> sc = IdsSearch.create();
+        sc.setParameters("ids", ids.toArray());
+        return listBy(sc);
+    }
+
+    @Override
+    public List<UserVmVO> listRunningByHostIds(Collection<Long> hostIds) {
+        if (hostIds.isEmpty()) {
+            return new ArrayList<UserVmVO>();
+        }
+        SearchCriteria<UserVmVO> sc = HostsRunningSearch.create();
+        sc.setParameters("hosts", hostIds.toArray());
+        sc.setParameters("state", State.Running);
+        return listBy(sc);
+    }
+
     @Override
     public List<UserVmVO> listVirtualNetworkInstancesByAcctAndZone(long accountId, long dcId, long networkId) {
 
@@ -83,6 +83,8 @@ public interface VMInstanceDao extends GenericDao<VMInstanceVO, Long>, StateDao<
     List<VMInstanceVO> listByZoneIdAndType(long zoneId, VirtualMachine.Type type);
 	List<VMInstanceVO> listUpByHostId(Long hostId);
 	List<VMInstanceVO> listByLastHostId(Long hostId);
+	List<VMInstanceVO> listUpByHostIds(List<Long> hostIds);
+	List<VMInstanceVO> listByLastHostIds(List<Long> hostIds);
 
     List<VMInstanceVO> listByTypeAndState(VirtualMachine.Type type, State state);
 
@@ -74,6 +74,8 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
     protected final SearchBuilder<VMInstanceVO> HostIdTypesSearch;
     protected final SearchBuilder<VMInstanceVO> HostIdUpTypesSearch;
     protected final SearchBuilder<VMInstanceVO> HostUpSearch;
+    protected final SearchBuilder<VMInstanceVO> HostsUpSearch;
+    protected final SearchBuilder<VMInstanceVO> LastHostsSearch;
     protected final GenericSearchBuilder<VMInstanceVO, Long> CountVirtualRoutersByAccount;
     protected GenericSearchBuilder<VMInstanceVO, Long> CountRunningByHost;
     protected GenericSearchBuilder<VMInstanceVO, Long> CountRunningByAccount;
@@ -177,6 +179,16 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         HostUpSearch.and("host", HostUpSearch.entity().getHostId(), Op.EQ);
         HostUpSearch.and("states", HostUpSearch.entity().getState(), Op.IN);
         HostUpSearch.done();
+
+        HostsUpSearch = createSearchBuilder();
+        HostsUpSearch.and("hosts", HostsUpSearch.entity().getHostId(), Op.IN);
+        HostsUpSearch.and("states", HostsUpSearch.entity().getState(), Op.IN);
+        HostsUpSearch.done();
+
+        LastHostsSearch = createSearchBuilder();
+        LastHostsSearch.and("lastHosts", LastHostsSearch.entity().getLastHostId(), Op.IN);
+        LastHostsSearch.and("state", LastHostsSearch.entity().getState(), Op.EQ);
+        LastHostsSearch.done();
         
         CountVirtualRoutersByAccount = createSearchBuilder(Long.class);
         CountVirtualRoutersByAccount.select(null, Func.COUNT, null);
@@ -307,6 +319,22 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         return listBy(sc);
     }
     
+    @Override
+    public List<VMInstanceVO> listUpByHostIds(List<Long> hostIds) {
+        SearchCriteria<VMInstanceVO> sc = HostsUpSearch.create();
+        sc.setParameters("hosts", hostIds.toArray());
+        sc.setParameters("states", new Object[] {State.Starting, State.Running});
+        return listBy(sc);
+    }
+
+    @Override
+    public List<VMInstanceVO> listByLastHostIds(List<Long> hostIds) {
+        SearchCriteria<VMInstanceVO> sc = LastHostsSearch.create();
+        sc.setParameters("lastHosts", hostIds.toArray());
+        sc.setParameters("state", State.Stopped);
+        return listBy(sc);
+    }
+
     @Override
     public List<VMInstanceVO> listByTypes(Type... types) {
         SearchCriteria<VMInstanceVO> sc = TypesSearch.create();
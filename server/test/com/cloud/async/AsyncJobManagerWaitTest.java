@@ -0,0 +1,137 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Field;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.agent.api.Command;
+import com.cloud.async.dao.AsyncJobDao;
+import com.cloud.cluster.ClusterManager;
+import com.cloud.utils.db.Transaction;
+
+public class AsyncJobManagerWaitTest {
+    private static final long JOB_ID = 1L;
+
+    AsyncJobManagerImpl _mgr;
+    AsyncJobDao _jobDao;
+    ClusterManager _clusterMgr;
+
+    @Before
+    public void setUp() throws Exception {
+        _mgr = new AsyncJobManagerImpl();
+        _jobDao = mock(AsyncJobDao.class);
+        _clusterMgr = mock(ClusterManager.class);
+        set(_mgr, "_jobDao", _jobDao);
+        set(_mgr, "_clusterMgr", _clusterMgr);
+    }
+
+    private static void set(Object target, String name, Object value) throws Exception {
+        Field field = AsyncJobManagerImpl.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    private static AsyncJobVO job(int status) {
+        AsyncJobVO job = mock(AsyncJobVO.class);
+        when(job.getId()).thenReturn(JOB_ID);
+        when(job.getStatus()).thenReturn(status);
+        return job;
+    }
+
+    @Test
+    public void testWaitForJobCompletedBeforeWaiterIsRegistered() {
+        // the completion notice came and went before the caller started waiting
+        AsyncJobVO completed = job(AsyncJobResult.STATUS_SUCCEEDED);
+        when(_jobDao.findById(JOB_ID)).thenReturn(completed);
+
+        long start = System.currentTimeMillis();
+        assertTrue(_mgr.waitAsyncJobCompletion(JOB_ID, 10000));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testWaitIsWokenUpByPeer() throws Exception {
+        AsyncJobVO inProgress = job(AsyncJobResult.STATUS_IN_PROGRESS);
+        AsyncJobVO completed = job(AsyncJobResult.STATUS_SUCCEEDED);
+        when(_jobDao.findById(JOB_ID)).thenReturn(inProgress);
+
+        final boolean[] result = new boolean[1];
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                result[0] = _mgr.waitAsyncJobCompletion(JOB_ID, 30000);
+            }
+        };
+        long start = System.currentTimeMillis();
+        waiter.start();
+        Thread.sleep(200);
+
+        when(_jobDao.findById(JOB_ID)).thenReturn(completed);
+        _mgr.onAsyncJobCompletedOnPeer(JOB_ID);
+        waiter.join(10000);
+
+        assertTrue(result[0]);
+        assertTrue(System.currentTimeMillis() - start < 10000);
+    }
+
+    @Test
+    public void testPollIsServedFromStatusRegistry() {
+        _mgr.onAsyncJobCompleted(job(AsyncJobResult.STATUS_SUCCEEDED));
+
+        assertEquals(AsyncJobResult.STATUS_SUCCEEDED, _mgr.queryAsyncJobResult(JOB_ID).getJobStatus());
+        assertEquals(AsyncJobResult.STATUS_SUCCEEDED, _mgr.findAsyncJob(JOB_ID).getStatus());
+        assertTrue(_mgr.waitAsyncJobCompletion(JOB_ID, 10000));
+        verify(_jobDao, never()).findById(anyLong());
+        verify(_clusterMgr, times(1)).broadcast(anyLong(), any(Command[].class));
+    }
+
+    @Test
+    public void testCompletionIsOnlyPublishedAfterCommit() {
+        AsyncJobVO inProgress = job(AsyncJobResult.STATUS_IN_PROGRESS);
+        when(_jobDao.findById(JOB_ID)).thenReturn(inProgress);
+
+        Transaction txn = Transaction.open("testCompletionIsOnlyPublishedAfterCommit");
+        try {
+            txn.start();
+            _mgr.completeAsyncJob(JOB_ID, AsyncJobResult.STATUS_SUCCEEDED, 0, null);
+            txn.rollback();
+            verify(_clusterMgr, never()).broadcast(anyLong(), any(Command[].class));
+            assertEquals(AsyncJobResult.STATUS_IN_PROGRESS, _mgr.findAsyncJob(JOB_ID).getStatus());
+
+            txn.start();
+            _mgr.completeAsyncJob(JOB_ID, AsyncJobResult.STATUS_SUCCEEDED, 0, null);
+            verify(_clusterMgr, never()).broadcast(anyLong(), any(Command[].class));
+            txn.commit();
+            verify(_clusterMgr, times(1)).broadcast(anyLong(), any(Command[].class));
+        } finally {
+            txn.close();
+        }
+    }
+}
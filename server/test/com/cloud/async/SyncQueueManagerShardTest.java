@@ -0,0 +1,118 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.async;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.async.dao.SyncQueueItemDao;
+import com.cloud.cluster.ClusterManager;
+import com.cloud.cluster.ManagementServerHostVO;
+import com.cloud.cluster.dao.ManagementServerHostDao;
+import com.cloud.utils.db.Transaction;
+
+public class SyncQueueManagerShardTest {
+    private static final long MSID = 1234L;
+
+    SyncQueueManagerImpl _mgr;
+    SyncQueueItemDao _itemDao;
+    ManagementServerHostDao _mshostDao;
+    ClusterManager _clusterMgr;
+
+    @Before
+    public void setUp() throws Exception {
+        _mgr = new SyncQueueManagerImpl();
+        _itemDao = mock(SyncQueueItemDao.class);
+        _mshostDao = mock(ManagementServerHostDao.class);
+        _clusterMgr = mock(ClusterManager.class);
+        when(_clusterMgr.getHeartbeatThreshold()).thenReturn(ClusterManager.DEFAULT_HEARTBEAT_THRESHOLD);
+        when(_itemDao.getNextQueueItems(10, 1, 0)).thenReturn(new ArrayList<SyncQueueItemVO>());
+        set(_mgr, "_syncQueueItemDao", _itemDao);
+        set(_mgr, "_mshostDao", _mshostDao);
+        set(_mgr, "_clusterMgr", _clusterMgr);
+    }
+
+    private static void set(Object target, String name, Object value) throws Exception {
+        Field field = SyncQueueManagerImpl.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    private static List<ManagementServerHostVO> nodes(long... ids) {
+        List<ManagementServerHostVO> nodes = new ArrayList<ManagementServerHostVO>();
+        for (long id : ids) {
+            ManagementServerHostVO node = mock(ManagementServerHostVO.class);
+            when(node.getId()).thenReturn(id);
+            nodes.add(node);
+        }
+        return nodes;
+    }
+
+    private void dequeue(String txnName) {
+        Transaction txn = Transaction.open(txnName);
+        try {
+            _mgr.dequeueFromAny(MSID, 10);
+        } finally {
+            txn.close();
+        }
+    }
+
+    @Test
+    public void testActiveNodesAreRebuiltAfterIsolation() {
+        _mgr.onManagementNodeJoined(nodes(1, 2, 3), 2);
+        dequeue("testActiveNodesAreRebuiltAfterIsolation");
+        verify(_itemDao).getNextQueueItems(10, 3, 1);
+
+        // isolated: every queue is scanned until the heartbeats show this server again
+        _mgr.onManagementNodeIsolated();
+        when(_mshostDao.getActiveList(any(Date.class))).thenReturn(nodes(1, 3));
+        dequeue("testActiveNodesAreRebuiltAfterIsolation");
+        verify(_itemDao, times(1)).getNextQueueItems(10, 1, 0);
+
+        // rejoined: the peers that were around all along are back in the shards
+        when(_mshostDao.getActiveList(any(Date.class))).thenReturn(nodes(1, 2, 3, 4));
+        dequeue("testActiveNodesAreRebuiltAfterIsolation");
+        verify(_itemDao).getNextQueueItems(10, 4, 1);
+
+        // and the heartbeats are not read again once rebuilt
+        dequeue("testActiveNodesAreRebuiltAfterIsolation");
+        verify(_itemDao, times(2)).getNextQueueItems(10, 4, 1);
+        verify(_mshostDao, times(2)).getActiveList(any(Date.class));
+    }
+
+    @Test
+    public void testLeftNodeIsRemovedFromShards() {
+        _mgr.onManagementNodeJoined(nodes(1, 2, 3), 3);
+        _mgr.onManagementNodeLeft(nodes(1), 3);
+        dequeue("testLeftNodeIsRemovedFromShards");
+        verify(_itemDao).getNextQueueItems(10, 2, 1);
+        verify(_itemDao, never()).getNextQueueItems(10, 3, 2);
+        verify(_mshostDao, never()).getActiveList(any(Date.class));
+    }
+}
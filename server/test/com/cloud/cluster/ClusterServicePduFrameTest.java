@@ -0,0 +1,86 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ClusterServicePduFrameTest extends TestCase {
+
+    public void testPduFrameRoundTrip() throws IOException {
+        List<ClusterServicePdu> pdus = new ArrayList<ClusterServicePdu>();
+        ClusterServicePdu request = new ClusterServicePdu();
+        request.setSequenceId(11);
+        request.setPduType(ClusterServicePdu.PDU_TYPE_REQUEST);
+        request.setSourcePeer("1");
+        request.setDestPeer("2");
+        request.setAgentId(42);
+        request.setStopOnError(true);
+        request.setJsonPackage("[{\"StartCommand\":{\"vm\":\"i-2-3-VM\",\"desc\":\"\u00e9t\u00e9\"}}]");
+        pdus.add(request);
+
+        ClusterServicePdu response = new ClusterServicePdu();
+        response.setSequenceId(12);
+        response.setAckSequenceId(7);
+        response.setPduType(ClusterServicePdu.PDU_TYPE_RESPONSE);
+        response.setSourcePeer("1");
+        response.setDestPeer(null);
+        response.setJsonPackage("");
+        pdus.add(response);
+
+        ClusterServicePduFrame frame = ClusterServicePduFrame.decode(ClusterServicePduFrame.pdus(99, pdus).encode());
+        assertEquals(ClusterServicePduFrame.TYPE_PDUS, frame.getType());
+        assertEquals(99, frame.getFrameId());
+        assertEquals(2, frame.getCount());
+
+        ClusterServicePdu decoded = frame.getPdus().get(0);
+        assertEquals(11, decoded.getSequenceId());
+        assertEquals(ClusterServicePdu.PDU_TYPE_REQUEST, decoded.getPduType());
+        assertEquals("1", decoded.getSourcePeer());
+        assertEquals("2", decoded.getDestPeer());
+        assertEquals(42, decoded.getAgentId());
+        assertTrue(decoded.isStopOnError());
+        assertEquals(request.getJsonPackage(), decoded.getJsonPackage());
+
+        decoded = frame.getPdus().get(1);
+        assertEquals(7, decoded.getAckSequenceId());
+        assertEquals(ClusterServicePdu.PDU_TYPE_RESPONSE, decoded.getPduType());
+        assertNull(decoded.getDestPeer());
+        assertEquals("", decoded.getJsonPackage());
+        assertFalse(decoded.isStopOnError());
+    }
+
+    public void testAckFrameRoundTrip() throws IOException {
+        ClusterServicePduFrame frame = ClusterServicePduFrame.decode(ClusterServicePduFrame.ack(5, 256).encode());
+        assertEquals(ClusterServicePduFrame.TYPE_ACK, frame.getType());
+        assertEquals(5, frame.getFrameId());
+        assertEquals(256, frame.getCount());
+    }
+
+    public void testUnknownVersionIsRejected() {
+        byte[] data = ClusterServicePduFrame.ack(5, 1).encode();
+        data[0] = 99;
+        try {
+            ClusterServicePduFrame.decode(data);
+            fail("frame with an unknown version should not decode");
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,126 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.Task;
+
+public class ClusterServicePeerChannelTest {
+    ClusterService _fallback;
+    ExecutorService _executor;
+    ClusterServicePeerChannel _channel;
+    Link _link;
+
+    @Before
+    public void setUp() throws Exception {
+        _fallback = mock(ClusterService.class);
+        when(_fallback.execute(any(ClusterServicePdu.class))).thenReturn("true");
+        _executor = Executors.newSingleThreadExecutor();
+        _channel = new ClusterServicePeerChannel("2", "127.0.0.1", 9091, _fallback, _executor, 5, 10);
+        _link = mock(Link.class);
+        _channel.create(Task.Type.CONNECT, _link, null).run();
+    }
+
+    @After
+    public void tearDown() {
+        _executor.shutdownNow();
+    }
+
+    private ClusterServiceRequestPdu request() {
+        ClusterServiceRequestPdu pdu = new ClusterServiceRequestPdu();
+        pdu.setSourcePeer("1");
+        pdu.setDestPeer("2");
+        pdu.setJsonPackage("[]");
+        return pdu;
+    }
+
+    @Test
+    public void testUnacknowledgedRequestsFailOnDisconnect() throws Exception {
+        assertTrue(_channel.isConnected());
+        ClusterServiceRequestPdu pdu = request();
+        assertEquals("true", _channel.execute(pdu));
+        verify(_link, timeout(5000)).send(any(byte[].class));
+        assertNull(pdu.getResponseResult());
+        assertEquals(1, _channel.getPdusInFlight());
+
+        // the peer never acknowledged the frame, the caller waiting for the answer is released
+        _channel.create(Task.Type.DISCONNECT, _link, null).run();
+        assertEquals("", pdu.getResponseResult());
+        assertEquals(0, _channel.getPdusInFlight());
+        assertFalse(_channel.isConnected());
+    }
+
+    @Test
+    public void testFrameQueuedAfterDisconnectIsNotLost() throws Exception {
+        // the connection closes between send() picking the link and putting the frame in _unacked
+        Field field = ClusterServicePeerChannel.class.getDeclaredField("_unacked");
+        field.setAccessible(true);
+        field.set(_channel, new ConcurrentHashMap<Long, Object>() {
+            boolean _disconnected;
+
+            @Override
+            public Object put(Long key, Object value) {
+                if (!_disconnected) {
+                    _disconnected = true;
+                    _channel.create(Task.Type.DISCONNECT, _link, null).run();
+                }
+                return super.put(key, value);
+            }
+        });
+
+        ClusterServiceRequestPdu pdu = request();
+        assertEquals("true", _channel.execute(pdu));
+
+        // nothing was written to the closed connection, the pdu goes through the servlet and frees its window permit
+        verify(_fallback, timeout(5000)).execute(pdu);
+        verify(_link, never()).send(any(byte[].class));
+        assertEquals(0, _channel.getPdusInFlight());
+        assertFalse(_channel.isConnected());
+    }
+
+    @Test
+    public void testClosedChannelUsesServlet() throws Exception {
+        _channel.close();
+        assertFalse(_channel.isConnected());
+
+        ClusterServiceRequestPdu pdu = request();
+        assertEquals("true", _channel.execute(pdu));
+        verify(_fallback).execute(pdu);
+        verify(_link, never()).send(any(byte[].class));
+        assertEquals(1, _channel.getFallbackPdus());
+    }
+}
@@ -0,0 +1,125 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.capacity.dao.CapacityDao;
+import com.cloud.dc.ClusterVO;
+import com.cloud.dc.HostPodVO;
+import com.cloud.dc.dao.ClusterDao;
+import com.cloud.dc.dao.HostPodDao;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.SearchCriteria;
+
+public class PlannerCapacityIndexTest {
+    private static final long ZONE_ID = 1L;
+    private static final long POD_ID = 2L;
+    private static final long GB = 1024L * 1024L * 1024L;
+
+    CapacityDao _capacityDao;
+    ClusterDao _clusterDao;
+    HostPodDao _podDao;
+    PlannerCapacityIndex _index;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        _capacityDao = mock(CapacityDao.class);
+        _clusterDao = mock(ClusterDao.class);
+        _podDao = mock(HostPodDao.class);
+
+        // host 100 in cluster 10 is mostly free, host 200 in cluster 20 mostly used
+        List<CapacityVO> capacities = new ArrayList<CapacityVO>();
+        capacities.add(new CapacityVO(100L, ZONE_ID, POD_ID, 10L, 1000, 4000, Capacity.CAPACITY_TYPE_CPU));
+        capacities.add(new CapacityVO(100L, ZONE_ID, POD_ID, 10L, 2 * GB, 8 * GB, Capacity.CAPACITY_TYPE_MEMORY));
+        capacities.add(new CapacityVO(200L, ZONE_ID, POD_ID, 20L, 3500, 4000, Capacity.CAPACITY_TYPE_CPU));
+        capacities.add(new CapacityVO(200L, ZONE_ID, POD_ID, 20L, 7 * GB, 8 * GB, Capacity.CAPACITY_TYPE_MEMORY));
+        when(_capacityDao.createSearchCriteria()).thenReturn(mock(SearchCriteria.class));
+        when(_capacityDao.search(any(SearchCriteria.class), any(Filter.class))).thenReturn(capacities);
+
+        when(_clusterDao.listByZoneId(ZONE_ID)).thenReturn(Arrays.asList(cluster(10L), cluster(20L)));
+        HostPodVO pod = mock(HostPodVO.class);
+        when(pod.getId()).thenReturn(POD_ID);
+        when(_podDao.listByDataCenterId(ZONE_ID)).thenReturn(Collections.singletonList(pod));
+
+        _index = new PlannerCapacityIndex(_capacityDao, _clusterDao, _podDao, 60000);
+    }
+
+    private static ClusterVO cluster(long id) {
+        ClusterVO cluster = mock(ClusterVO.class);
+        when(cluster.getId()).thenReturn(id);
+        return cluster;
+    }
+
+    @Test
+    public void testClustersWithEnoughCapacity() {
+        assertEquals(Arrays.asList(10L), _index.listClustersWithEnoughCapacity(ZONE_ID, null, 1000, 2 * GB, 1.0f));
+        assertTrue(_index.listClustersWithEnoughCapacity(ZONE_ID, POD_ID + 1, 1000, 2 * GB, 1.0f).isEmpty());
+
+        // over provisioning gives cluster 20 enough cpu
+        List<Long> clusters = _index.listClustersWithEnoughCapacity(ZONE_ID, POD_ID, 1000, GB / 2, 2.0f);
+        Collections.sort(clusters);
+        assertEquals(Arrays.asList(10L, 20L), clusters);
+
+        assertEquals(Arrays.asList(POD_ID), _index.listPodsWithEnoughCapacity(ZONE_ID, 1000, 2 * GB, 1.0f));
+    }
+
+    @Test
+    public void testOrderByAggregateCapacity() {
+        assertEquals(Arrays.asList(10L, 20L), _index.orderClustersByAggregateCapacity(ZONE_ID, null, Capacity.CAPACITY_TYPE_CPU, 1.0f).first());
+        assertEquals(0.25, _index.orderClustersByAggregateCapacity(ZONE_ID, null, Capacity.CAPACITY_TYPE_MEMORY, 1.0f).second().get(10L), 0.0001);
+        assertEquals(Arrays.asList(POD_ID), _index.orderPodsByAggregateCapacity(ZONE_ID, Capacity.CAPACITY_TYPE_CPU, 1.0f).first());
+    }
+
+    @Test
+    public void testReserveAndReload() {
+        _index.listClustersWithEnoughCapacity(ZONE_ID, null, 1000, 2 * GB, 1.0f);
+
+        // capacity handed out by the planner is seen before the next reload
+        _index.reserve(ZONE_ID, 100L, 2500, 0);
+        assertTrue(_index.listClustersWithEnoughCapacity(ZONE_ID, null, 1000, 2 * GB, 1.0f).isEmpty());
+        verify(_capacityDao, times(1)).search(any(SearchCriteria.class), any(Filter.class));
+
+        _index.invalidate(ZONE_ID);
+        assertEquals(Arrays.asList(10L), _index.listClustersWithEnoughCapacity(ZONE_ID, null, 1000, 2 * GB, 1.0f));
+        verify(_capacityDao, times(2)).search(any(SearchCriteria.class), any(Filter.class));
+    }
+
+    @Test
+    public void testDisabledWithoutTtl() {
+        assertTrue(_index.isEnabled());
+        assertFalse(new PlannerCapacityIndex(_capacityDao, _clusterDao, _podDao, 0).isEnabled());
+    }
+}
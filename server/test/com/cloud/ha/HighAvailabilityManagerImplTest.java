@@ -0,0 +1,240 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.ha.HighAvailabilityManager.Step;
+import com.cloud.ha.HighAvailabilityManager.WorkType;
+import com.cloud.ha.dao.HighAvailabilityDao;
+import com.cloud.vm.VirtualMachine;
+import com.cloud.vm.VirtualMachine.State;
+
+public class HighAvailabilityManagerImplTest {
+    private static final long SERVER_ID = 1234L;
+
+    TestHaManager _mgr;
+    HighAvailabilityDao _haDao;
+
+    /**
+     * Records the work items handed to the workers instead of acting on the vms.
+     */
+    class TestHaManager extends HighAvailabilityManagerImpl {
+        final List<Long> dispatched = Collections.synchronizedList(new ArrayList<Long>());
+        final Map<Long, Boolean> inProgress = new ConcurrentHashMap<Long, Boolean>();
+        final Map<Long, AtomicInteger> tries = new ConcurrentHashMap<Long, AtomicInteger>();
+        final AtomicInteger overlaps = new AtomicInteger(0);
+        volatile boolean rescheduleOnce;
+
+        private Long process(HaWorkVO work) {
+            if (inProgress.put(work.getId(), Boolean.TRUE) != null) {
+                overlaps.incrementAndGet();
+            }
+            dispatched.add(work.getId());
+            try {
+                Thread.sleep(work.getId() % 3);
+            } catch (InterruptedException e) {
+            } finally {
+                inProgress.remove(work.getId());
+            }
+
+            tries.putIfAbsent(work.getId(), new AtomicInteger(0));
+            if (rescheduleOnce && tries.get(work.getId()).incrementAndGet() == 1 && work.getId() % 2 == 0) {
+                return System.currentTimeMillis() >> 10;
+            }
+            return null;
+        }
+
+        @Override
+        protected Long restart(HaWorkVO work) {
+            return process(work);
+        }
+
+        @Override
+        protected Long stopVM(HaWorkVO work) {
+            return process(work);
+        }
+
+        @Override
+        public Long migrate(HaWorkVO work) {
+            return process(work);
+        }
+
+        @Override
+        protected Long destroyVM(HaWorkVO work) {
+            return process(work);
+        }
+
+        void startThreads(int workers, int started) {
+            _workers = new WorkerThread[workers];
+            for (int i = 0; i < workers; i++) {
+                _workers[i] = new WorkerThread("HA-Worker-" + i);
+            }
+            _dispatcher = new DispatcherThread("HA-Dispatcher");
+            _dispatcher.start();
+            for (int i = 0; i < started; i++) {
+                _workers[i].start();
+            }
+        }
+    }
+
+    /**
+     * Hands out every due work item once, the way the row locks of the real take() do, and puts
+     * the rescheduled ones back.
+     */
+    class WorkTable implements Answer<List<HaWorkVO>> {
+        final List<HaWorkVO> due = new ArrayList<HaWorkVO>();
+        int maxTaken;
+
+        synchronized void add(HaWorkVO work) {
+            due.add(work);
+        }
+
+        @Override
+        public synchronized List<HaWorkVO> answer(InvocationOnMock invocation) {
+            int max = (Integer)invocation.getArguments()[1];
+            maxTaken = Math.max(maxTaken, max);
+            List<HaWorkVO> taken = new ArrayList<HaWorkVO>();
+            while (taken.size() < max && !due.isEmpty()) {
+                HaWorkVO work = due.remove(0);
+                work.setServerId((Long)invocation.getArguments()[0]);
+                taken.add(work);
+            }
+            return taken;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        _haDao = mock(HighAvailabilityDao.class);
+        _mgr = new TestHaManager();
+        _mgr._haDao = _haDao;
+        _mgr._serverId = SERVER_ID;
+        _mgr._timeToSleep = 100;
+        _mgr._executor = mock(ScheduledExecutorService.class);
+    }
+
+    @After
+    public void tearDown() {
+        _mgr.stop();
+    }
+
+    private static HaWorkVO work(long id, VirtualMachine.Type type, WorkType workType, long timeToTry) throws Exception {
+        HaWorkVO work = new HaWorkVO(id, type, workType, Step.Scheduled, 1L, State.Running, 0, 0);
+        Field field = HaWorkVO.class.getDeclaredField("id");
+        field.setAccessible(true);
+        field.set(work, id);
+        work.setTimeToTry(timeToTry);
+        return work;
+    }
+
+    private static void waitFor(List<Long> dispatched, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (dispatched.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testWorkIsDispatchedInPriorityOrder() throws Exception {
+        // in the order of time_to_try, as the DB returns them
+        List<HaWorkVO> works = Arrays.asList(
+                work(1, VirtualMachine.Type.User, WorkType.Destroy, 10),
+                work(2, VirtualMachine.Type.User, WorkType.Migration, 11),
+                work(3, VirtualMachine.Type.User, WorkType.HA, 12),
+                work(4, VirtualMachine.Type.User, WorkType.Stop, 13),
+                work(5, VirtualMachine.Type.ConsoleProxy, WorkType.HA, 14),
+                work(6, VirtualMachine.Type.DomainRouter, WorkType.HA, 15),
+                work(7, VirtualMachine.Type.User, WorkType.HA, 9));
+        when(_haDao.take(eq(SERVER_ID), anyInt())).thenReturn(works).thenReturn(new ArrayList<HaWorkVO>());
+
+        // with every worker idle the dispatcher takes the whole batch at once, then one worker drains it
+        _mgr.startThreads(works.size(), 0);
+        long deadline = System.currentTimeMillis() + 30000;
+        while (_mgr.getQueuedWorkCount() < works.size() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(works.size(), _mgr.getQueuedWorkCount());
+        verify(_haDao).take(SERVER_ID, works.size());
+
+        _mgr._workers[0].start();
+        waitFor(_mgr.dispatched, works.size());
+
+        // restarts first, routers before system vms before user vms, then stops, migrations and the rest
+        assertEquals(Arrays.asList(6L, 5L, 7L, 3L, 4L, 2L, 1L), _mgr.dispatched);
+        verify(_haDao).update(eq(6L), any(HaWorkVO.class));
+        assertEquals(Step.Done, works.get(5).getStep());
+    }
+
+    @Test(timeout = 60000)
+    public void testConcurrentWorkersNeverDispatchTheSameWork() throws Exception {
+        final int count = 200;
+        final int workers = 8;
+        final WorkTable table = new WorkTable();
+        WorkType[] types = WorkType.values();
+        for (int i = 1; i <= count; i++) {
+            table.add(work(i, VirtualMachine.Type.User, types[i % types.length], i));
+        }
+        when(_haDao.take(anyLong(), anyInt())).thenAnswer(table);
+        when(_haDao.update(anyLong(), any(HaWorkVO.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                HaWorkVO work = (HaWorkVO)invocation.getArguments()[1];
+                if (work.getServerId() == null) {
+                    table.add(work);
+                }
+                return true;
+            }
+        });
+
+        // even ids are rescheduled once and come back through the table
+        _mgr.rescheduleOnce = true;
+        _mgr.startThreads(workers, workers);
+        waitFor(_mgr.dispatched, count + count / 2);
+
+        assertEquals(count + count / 2, _mgr.dispatched.size());
+        assertEquals(0, _mgr.overlaps.get());
+        for (long id = 1; id <= count; id++) {
+            assertEquals("Dispatches of " + id, id % 2 == 0 ? 2 : 1, Collections.frequency(_mgr.dispatched, id));
+        }
+        assertTrue("Took " + table.maxTaken + " items for " + workers + " workers", table.maxTaken <= workers);
+    }
+}
@@ -0,0 +1,175 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.SecurityGroupWorkCommand;
+import com.cloud.cluster.ClusterManager;
+import com.cloud.vm.UserVmVO;
+import com.cloud.vm.dao.UserVmDao;
+
+public class ClusteredSecurityGroupWorkQueueTest {
+    UserVmDao _vmDao;
+    ClusterManager _clusterMgr;
+    ClusteredSecurityGroupWorkQueue _queue;
+    List<UserVmVO> _vms;
+
+    @Before
+    public void setUp() {
+        _vmDao = mock(UserVmDao.class);
+        _clusterMgr = mock(ClusterManager.class);
+        // hosts 1 and 2 are owned by this management server, host 3 by peer "3"
+        when(_clusterMgr.getPeerName(1L)).thenReturn(null);
+        when(_clusterMgr.getPeerName(2L)).thenReturn(null);
+        when(_clusterMgr.getPeerName(3L)).thenReturn("3");
+
+        _vms = new ArrayList<UserVmVO>();
+        _vms.add(vm(10L, 1L));
+        _vms.add(vm(11L, 1L));
+        _vms.add(vm(12L, 1L));
+        _vms.add(vm(20L, 2L));
+        _vms.add(vm(30L, 3L));
+        _vms.add(vm(40L, null));
+        when(_vmDao.listByIds(any(Collection.class))).thenAnswer(new Answer<List<UserVmVO>>() {
+            @Override
+            public List<UserVmVO> answer(InvocationOnMock invocation) {
+                Collection<?> ids = (Collection<?>)invocation.getArguments()[0];
+                List<UserVmVO> found = new ArrayList<UserVmVO>();
+                for (UserVmVO vm : _vms) {
+                    if (ids.contains(vm.getId())) {
+                        found.add(vm);
+                    }
+                }
+                return found;
+            }
+        });
+
+        _queue = new ClusteredSecurityGroupWorkQueue(_vmDao, _clusterMgr);
+    }
+
+    private UserVmVO vm(long id, Long hostId) {
+        UserVmVO vm = mock(UserVmVO.class);
+        when(vm.getId()).thenReturn(id);
+        when(vm.getHostId()).thenReturn(hostId);
+        return vm;
+    }
+
+    private Set<Long> ids(Long... ids) {
+        return new HashSet<Long>(Arrays.asList(ids));
+    }
+
+    private Set<Long> instanceIds(List<SecurityGroupWork> work) {
+        Set<Long> ids = new HashSet<Long>();
+        for (SecurityGroupWork w : work) {
+            ids.add(w.getInstanceId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testWorkIsRoutedByHostOwner() {
+        int newWork = _queue.submitWorkForVms(ids(10L, 11L, 12L, 20L, 30L, 40L));
+
+        assertEquals(4, newWork);
+        assertEquals(4, _queue.size());
+        assertEquals(2, _queue.getHostsInQueue());
+        assertEquals(1, _queue.getForwardedCount());
+
+        ArgumentCaptor<Command[]> cmds = ArgumentCaptor.forClass(Command[].class);
+        verify(_clusterMgr).executeAsync(eq("3"), eq(0L), cmds.capture(), anyBoolean());
+        SecurityGroupWorkCommand cmd = (SecurityGroupWorkCommand)cmds.getValue()[0];
+        assertEquals(SecurityGroupWorkCommand.Type.Work, cmd.getType());
+        assertEquals(30L, cmd.getIds()[0]);
+        assertEquals(3L, cmd.getHostIds()[0]);
+    }
+
+    @Test
+    public void testWorkIsHandedOutPerHost() throws InterruptedException {
+        _queue.submitWorkForVms(ids(10L, 11L, 12L, 20L));
+
+        List<SecurityGroupWork> first = _queue.getWork(2);
+        assertEquals(2, first.size());
+        assertTrue(ids(10L, 11L, 12L).containsAll(instanceIds(first)));
+
+        // host 1 still has work but goes behind host 2
+        List<SecurityGroupWork> second = _queue.getWork(2);
+        assertEquals(ids(20L), instanceIds(second));
+
+        List<SecurityGroupWork> third = _queue.getWork(2);
+        assertEquals(1, third.size());
+        assertTrue(ids(10L, 11L, 12L).containsAll(instanceIds(third)));
+        assertEquals(0, _queue.size());
+        assertEquals(0, _queue.getHostsInQueue());
+    }
+
+    @Test
+    public void testDuplicateWorkIsCoalesced() throws InterruptedException {
+        _queue.submitWorkForVms(ids(10L, 20L));
+        int newWork = _queue.submitWorkForVms(ids(10L, 11L, 20L));
+        assertEquals(1, newWork);
+        assertEquals(3, _queue.size());
+
+        List<SecurityGroupWork> work = _queue.getWork(10);
+        assertEquals(ids(10L, 11L), instanceIds(work));
+
+        // once taken, the same vm can be queued again
+        assertEquals(1, _queue.submitWorkFromPeer(new long[] { 10L }, new long[] { 1L }));
+        assertEquals(2, _queue.size());
+    }
+
+    @Test
+    public void testWorkFromPeerIsNotForwardedAgain() {
+        _queue.submitWorkFromPeer(new long[] { 30L, 31L }, new long[] { 3L, 3L });
+
+        assertEquals(2, _queue.size());
+        assertEquals(ids(30L, 31L), new HashSet<Long>(_queue.getVmsInQueue()));
+        verify(_clusterMgr, never()).executeAsync(any(String.class), anyLong(), any(Command[].class), anyBoolean());
+    }
+
+    @Test
+    public void testClear() {
+        _queue.submitWorkForVms(ids(10L, 20L));
+        _queue.clear();
+        assertEquals(0, _queue.size());
+        assertEquals(0, _queue.getHostsInQueue());
+        assertEquals(1, _queue.submitWorkForVms(ids(10L)));
+    }
+}
@@ -0,0 +1,90 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.SecurityGroupWorkCommand;
+import com.cloud.agent.api.SecurityGroupWorkCommand.Type;
+import com.cloud.cluster.ClusterManager;
+
+public class SecurityGroupPeerNotificationTest {
+    SecurityGroupManagerImpl2 _mgr;
+    ClusterManager _clusterMgr;
+
+    @Before
+    public void setUp() {
+        _clusterMgr = mock(ClusterManager.class);
+        _mgr = new SecurityGroupManagerImpl2();
+        _mgr._clusterMgr = _clusterMgr;
+        _mgr._clusteredQueue = true;
+    }
+
+    @Test
+    public void testChangesAreBroadcastTogether() {
+        _mgr.notifyPeers(Type.VmStarted, 1L);
+        _mgr.notifyPeers(Type.VmStarted, 2L);
+        _mgr.notifyPeers(Type.VmStarted, 1L);
+        _mgr.notifyPeers(Type.VmStopped, 1L);
+        _mgr.notifyPeers(Type.RulesChanged, 5L);
+        _mgr.notifyPeers(Type.VmStarted, 1L);
+        verify(_clusterMgr, never()).broadcast(anyLong(), any(Command[].class));
+
+        _mgr.flushPeerNotifications();
+        ArgumentCaptor<Command[]> captor = ArgumentCaptor.forClass(Command[].class);
+        verify(_clusterMgr, times(1)).broadcast(eq(0L), captor.capture());
+
+        // runs of one type are merged, the order between them is kept
+        Command[] cmds = captor.getValue();
+        assertEquals(4, cmds.length);
+        assertCommand(cmds[0], Type.VmStarted, 1L, 2L);
+        assertCommand(cmds[1], Type.VmStopped, 1L);
+        assertCommand(cmds[2], Type.RulesChanged, 5L);
+        assertCommand(cmds[3], Type.VmStarted, 1L);
+
+        // nothing queued, nothing sent
+        _mgr.flushPeerNotifications();
+        verify(_clusterMgr, times(1)).broadcast(anyLong(), any(Command[].class));
+    }
+
+    @Test
+    public void testNothingQueuedWithLocalQueue() {
+        _mgr._clusteredQueue = false;
+        _mgr.notifyPeers(Type.VmStarted, 1L);
+        _mgr.flushPeerNotifications();
+        verify(_clusterMgr, never()).broadcast(anyLong(), any(Command[].class));
+    }
+
+    private static void assertCommand(Command cmd, Type type, long... ids) {
+        SecurityGroupWorkCommand workCmd = (SecurityGroupWorkCommand)cmd;
+        assertEquals(type, workCmd.getType());
+        assertArrayEquals(ids, workCmd.getIds());
+    }
+}
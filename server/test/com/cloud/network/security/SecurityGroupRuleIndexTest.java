@@ -0,0 +1,154 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.network.NetworkManager;
+import com.cloud.network.security.SecurityGroupManagerImpl.PortAndProto;
+import com.cloud.network.security.SecurityGroupRuleIndex.Ruleset;
+import com.cloud.network.security.SecurityRule.SecurityRuleType;
+import com.cloud.network.security.dao.SecurityGroupRuleDao;
+import com.cloud.network.security.dao.SecurityGroupVMMapDao;
+import com.cloud.vm.Nic;
+import com.cloud.vm.VirtualMachine.State;
+
+public class SecurityGroupRuleIndexTest {
+    private static final long GROUP_ID = 1L;
+    private static final PortAndProto SSH = new PortAndProto("tcp", 22, 22);
+
+    SecurityGroupVMMapDao _vmMapDao;
+    SecurityGroupRuleDao _ruleDao;
+    NetworkManager _networkMgr;
+    SecurityGroupRuleIndex _index;
+    List<SecurityGroupVMMapVO> _running;
+
+    @Before
+    public void setUp() {
+        _vmMapDao = mock(SecurityGroupVMMapDao.class);
+        _ruleDao = mock(SecurityGroupRuleDao.class);
+        _networkMgr = mock(NetworkManager.class);
+
+        // every member of group 1 allows ssh from the other members
+        List<SecurityGroupRuleVO> ingress = new ArrayList<SecurityGroupRuleVO>();
+        ingress.add(new SecurityGroupRuleVO(SecurityRuleType.IngressRule, GROUP_ID, 22, 22, "tcp", GROUP_ID));
+        when(_ruleDao.listBySecurityGroupId(GROUP_ID, SecurityRuleType.IngressRule)).thenReturn(ingress);
+        when(_ruleDao.listBySecurityGroupId(GROUP_ID, SecurityRuleType.EgressRule)).thenReturn(new ArrayList<SecurityGroupRuleVO>());
+
+        _running = new ArrayList<SecurityGroupVMMapVO>();
+        for (long vmId = 1; vmId <= 3; vmId++) {
+            SecurityGroupVMMapVO mapping = mapping(vmId, "10.1.1." + vmId);
+            _running.add(mapping);
+            when(_vmMapDao.listByInstanceId(vmId)).thenReturn(Arrays.asList(mapping));
+        }
+        when(_vmMapDao.listBySecurityGroup(GROUP_ID, State.Running)).thenReturn(_running);
+
+        _index = new SecurityGroupRuleIndex(_vmMapDao, _ruleDao, _networkMgr, 60000);
+    }
+
+    private SecurityGroupVMMapVO mapping(long vmId, String ip) {
+        SecurityGroupVMMapVO mapping = mock(SecurityGroupVMMapVO.class);
+        when(mapping.getSecurityGroupId()).thenReturn(GROUP_ID);
+        when(mapping.getInstanceId()).thenReturn(vmId);
+        Nic nic = mock(Nic.class);
+        when(nic.getIp4Address()).thenReturn(ip);
+        when(_networkMgr.getDefaultNic(vmId)).thenReturn(nic);
+        return mapping;
+    }
+
+    @Test
+    public void testRulesetsShareLoadedGroups() {
+        for (long vmId = 1; vmId <= 3; vmId++) {
+            Ruleset ruleset = _index.getRuleset(vmId);
+            assertEquals(3, ruleset.getIngress().get(SSH).size());
+            assertTrue(ruleset.getEgress().isEmpty());
+        }
+        verify(_vmMapDao, times(1)).listBySecurityGroup(GROUP_ID, State.Running);
+        verify(_ruleDao, times(1)).listBySecurityGroupId(GROUP_ID, SecurityRuleType.IngressRule);
+    }
+
+    @Test
+    public void testRulesetCachedUntilMembersChange() {
+        Ruleset ruleset = _index.getRuleset(1);
+        assertSame(ruleset, _index.getRuleset(1));
+
+        SecurityGroupVMMapVO started = mapping(4, "10.1.1.4");
+        when(_vmMapDao.listByInstanceId(4)).thenReturn(Arrays.asList(started));
+        _index.vmStarted(4);
+
+        Ruleset updated = _index.getRuleset(1);
+        assertNotSame(ruleset, updated);
+        assertTrue(updated.getIngress().get(SSH).contains("10.1.1.4/32"));
+
+        _index.vmStopped(2);
+        assertEquals(3, _index.getRuleset(1).getIngress().get(SSH).size());
+        assertFalse(_index.getRuleset(1).getIngress().get(SSH).contains("10.1.1.2/32"));
+
+        // members were updated from the events, not reloaded
+        verify(_vmMapDao, times(1)).listBySecurityGroup(GROUP_ID, State.Running);
+    }
+
+    @Test
+    public void testRulesReloadedAfterChange() {
+        _index.getRuleset(1);
+        when(_ruleDao.listBySecurityGroupId(GROUP_ID, SecurityRuleType.IngressRule)).thenReturn(new ArrayList<SecurityGroupRuleVO>());
+        _index.rulesChanged(GROUP_ID);
+        assertTrue(_index.getRuleset(1).getIngress().isEmpty());
+    }
+
+    @Test
+    public void testDiffAgainstSentRuleset() {
+        Ruleset sent = _index.getRuleset(1);
+        sent.setSignature("sig1");
+        _index.rulesetSent(1, 10, sent);
+        assertSame(sent, _index.getSentRuleset(1, 10).getRuleset());
+        assertEquals(null, _index.getSentRuleset(1, 11));
+
+        _index.vmStopped(3);
+        SecurityGroupVMMapVO started = mapping(4, "10.1.1.4");
+        when(_vmMapDao.listByInstanceId(4)).thenReturn(Arrays.asList(started));
+        _index.vmStarted(4);
+        Ruleset current = _index.getRuleset(1);
+
+        Map<PortAndProto, Set<String>> added = SecurityGroupRuleIndex.subtract(current.getIngress(), sent.getIngress());
+        Map<PortAndProto, Set<String>> revoked = SecurityGroupRuleIndex.subtract(sent.getIngress(), current.getIngress());
+        assertEquals(1, added.get(SSH).size());
+        assertTrue(added.get(SSH).contains("10.1.1.4/32"));
+        assertEquals(1, revoked.get(SSH).size());
+        assertTrue(revoked.get(SSH).contains("10.1.1.3/32"));
+
+        _index.rulesetFailed(1);
+        assertEquals(null, _index.getSentRuleset(1, 10));
+    }
+}
@@ -0,0 +1,110 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.cloud.agent.AgentManager;
+import com.cloud.agent.Listener;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
+import com.cloud.agent.manager.Commands;
+import com.cloud.network.security.SecurityGroupRuleIndex.Ruleset;
+import com.cloud.network.security.SecurityGroupWork.Step;
+import com.cloud.uservm.UserVm;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.vm.UserVmVO;
+import com.cloud.vm.VirtualMachine.State;
+import com.cloud.vm.dao.UserVmDao;
+
+public class SecurityGroupRulesetBatchTest {
+    private static final long HOST_ID = 10L;
+    private static final long BROKEN_VM = 2L;
+
+    SecurityGroupManagerImpl2 _mgr;
+
+    @Before
+    public void setUp() {
+        _mgr = new SecurityGroupManagerImpl2() {
+            @Override
+            protected SecurityGroupRulesCmd generateRulesetCmd(UserVm vm, long agentId, Ruleset ruleset, long seqnum) {
+                if (vm.getId() == BROKEN_VM) {
+                    throw new CloudRuntimeException("Unable to build the ruleset of " + vm.getId());
+                }
+                return new SecurityGroupRulesCmd("10.1.1." + vm.getId(), "02:00:00:00:00:0" + vm.getId(), "i-2-" + vm.getId() + "-VM", vm.getId(), "sig",
+                        seqnum, new IpPortAndProto[0], new IpPortAndProto[0]);
+            }
+        };
+        _mgr._ruleIndex = mock(SecurityGroupRuleIndex.class);
+        _mgr._mBean = mock(SecurityManagerMBeanImpl.class);
+        _mgr._agentMgr = mock(AgentManager.class);
+        _mgr._userVMDao = mock(UserVmDao.class);
+    }
+
+    private static SecurityGroupWork work(long vmId) {
+        SecurityGroupWork work = mock(SecurityGroupWork.class);
+        when(work.getInstanceId()).thenReturn(vmId);
+        when(work.getLogsequenceNumber()).thenReturn(vmId * 100);
+        return work;
+    }
+
+    private static UserVmVO vm(long vmId) {
+        UserVmVO vm = mock(UserVmVO.class);
+        when(vm.getId()).thenReturn(vmId);
+        when(vm.getState()).thenReturn(State.Running);
+        when(vm.getHostId()).thenReturn(HOST_ID);
+        return vm;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFailingVmDoesNotFailTheBatch() throws Exception {
+        List<SecurityGroupWork> works = Arrays.asList(work(1L), work(BROKEN_VM), work(3L));
+        when(_mgr._userVMDao.listByIds(anyCollection())).thenReturn(Arrays.asList(vm(1L), vm(BROKEN_VM), vm(3L)));
+
+        _mgr.sendRulesetUpdates(works);
+
+        verify(works.get(1)).setStep(Step.Error);
+        verify(works.get(0), never()).setStep(Step.Error);
+        verify(works.get(2), never()).setStep(Step.Error);
+
+        // the rulesets of the other vms still go out to their host
+        ArgumentCaptor<Commands> captor = ArgumentCaptor.forClass(Commands.class);
+        verify(_mgr._agentMgr).send(eq(HOST_ID), captor.capture(), any(Listener.class));
+        List<Long> sent = new ArrayList<Long>();
+        for (Command cmd : captor.getValue().toCommands()) {
+            sent.add(((SecurityGroupRulesCmd)cmd).getVmId());
+        }
+        assertEquals(Arrays.asList(1L, 3L), sent);
+    }
+}
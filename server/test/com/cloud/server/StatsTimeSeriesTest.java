@@ -0,0 +1,91 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import junit.framework.TestCase;
+
+import com.cloud.server.StatsHistory.Metric;
+
+public class StatsTimeSeriesTest extends TestCase {
+    private static final Metric[] METRICS = { Metric.CpuUtilization, Metric.NetworkReadKBs };
+
+    public void testSamplesAreKeptInOrder() {
+        StatsTimeSeries series = new StatsTimeSeries(METRICS, 1000, 3);
+        series.add(1000, 10, 100);
+        series.add(2000, 20, 200);
+
+        StatsHistory history = series.snapshot();
+        assertEquals(2, history.getSampleCount());
+        assertEquals(1000, history.getTime(0));
+        assertEquals(10.0, history.getValue(0, 0), 0.001);
+        assertEquals(200.0, history.getValue(1, 1), 0.001);
+    }
+
+    public void testOldestSampleIsOverwrittenWhenFull() {
+        StatsTimeSeries series = new StatsTimeSeries(METRICS, 1000, 3);
+        for (int i = 1; i <= 5; i++) {
+            series.add(i * 1000, i, i * 100);
+        }
+
+        assertEquals(3, series.getSampleCount());
+        assertEquals(3000, series.getTime(0));
+        assertEquals(5000, series.getTime(2));
+        assertEquals(5000, series.getLastTime());
+
+        StatsHistory history = series.snapshot();
+        assertEquals(3, history.getSampleCount());
+        assertEquals(3.0, history.getValue(0, 0), 0.001);
+        assertEquals(500.0, history.getValue(2, 1), 0.001);
+    }
+
+    public void testSampleInSameSlotReplacesLatest() {
+        StatsTimeSeries series = new StatsTimeSeries(METRICS, 60000, 3);
+        series.add(60000, 10, 100);
+        series.add(90000, 30, 300);
+
+        assertEquals(1, series.getSampleCount());
+        assertEquals(90000, series.getTime(0));
+        assertEquals(30.0, series.getValue(0, 0), 0.001);
+    }
+
+    public void testLargeCountersKeepTheirPrecision() {
+        StatsTimeSeries series = new StatsTimeSeries(METRICS, 1000, 3);
+        series.add(1000, 12.5, 123456789.25);
+
+        assertEquals(123456789.25, series.getValue(0, 1), 0.0);
+    }
+
+    public void testSnapshotIsNotChangedByLaterSamples() {
+        StatsTimeSeries series = new StatsTimeSeries(METRICS, 1000, 3);
+        series.add(1000, 10, 100);
+        StatsHistory history = series.snapshot();
+        series.add(2000, 20, 200);
+
+        assertEquals(1, history.getSampleCount());
+        assertEquals(2, series.getSampleCount());
+    }
+
+    public void testEmptyCapacityKeepsTheLatestSample() {
+        StatsTimeSeries series = new StatsTimeSeries(METRICS, 1000, 0);
+        series.add(1000, 10, 100);
+        series.add(2000, 20, 200);
+
+        assertEquals(1, series.getSampleCount());
+        assertEquals(2000, series.getTime(0));
+        assertEquals(20.0, series.getValue(0, 0), 0.001);
+    }
+}
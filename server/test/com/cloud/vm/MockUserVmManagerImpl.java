@@ -34,6 +34,7 @@ import com.cloud.api.commands.CreateTemplateCmd;
 import com.cloud.api.commands.CreateVMGroupCmd;
 import com.cloud.api.commands.DeleteVMGroupCmd;
 import com.cloud.api.commands.DeployVMCmd;
+import com.cloud.api.commands.DeployVMsCmd;
 import com.cloud.api.commands.DestroyVMCmd;
 import com.cloud.api.commands.DetachVolumeCmd;
 import com.cloud.api.commands.ListVMsCmd;
@@ -298,6 +299,13 @@ public class MockUserVmManagerImpl implements UserVmManager, UserVmService, Mana
         return null;
     }
 
+    @Override
+    public List<? extends UserVm> deployVirtualMachines(DeployVMsCmd cmd) throws InsufficientCapacityException, ConcurrentOperationException, ResourceUnavailableException,
+            ResourceAllocationException {
+        // TODO Auto-generated method stub
+        return null;
+    }
+
     @Override
     public InstanceGroup createVmGroup(CreateVMGroupCmd cmd) {
         // TODO Auto-generated method stub
@@ -192,6 +192,12 @@ public class MockVirtualMachineManagerImpl implements VirtualMachineManager {
         return null;
     }
 
+    @Override
+    public <T extends VMInstanceVO> Map<Long, DeployDestination> planDeployments(List<T> vms, Account owner, boolean spreadAcrossHosts) {
+        // TODO Auto-generated method stub
+        return null;
+    }
+
     @Override
     public <T extends VMInstanceVO> T advanceStart(T vm, Map<Param, Object> params, User caller, Account account, DeploymentPlan planToDeploy) throws InsufficientCapacityException,
     ResourceUnavailableException, ConcurrentOperationException, OperationTimedoutException {
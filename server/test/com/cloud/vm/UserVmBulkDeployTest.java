@@ -0,0 +1,345 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyFloat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.api.commands.DeployVMsCmd;
+import com.cloud.capacity.CapacityManager;
+import com.cloud.configuration.dao.ConfigurationDao;
+import com.cloud.dc.DataCenter;
+import com.cloud.dc.DataCenter.NetworkType;
+import com.cloud.dc.DataCenterVO;
+import com.cloud.dc.Pod;
+import com.cloud.dc.dao.DataCenterDao;
+import com.cloud.deploy.DataCenterDeployment;
+import com.cloud.deploy.DeployDestination;
+import com.cloud.exception.ConcurrentOperationException;
+import com.cloud.exception.InsufficientCapacityException;
+import com.cloud.exception.InsufficientServerCapacityException;
+import com.cloud.exception.ResourceAllocationException;
+import com.cloud.exception.ResourceUnavailableException;
+import com.cloud.exception.StorageUnavailableException;
+import com.cloud.host.Host;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.offering.ServiceOffering;
+import com.cloud.org.Cluster;
+import com.cloud.service.ServiceOfferingVO;
+import com.cloud.service.dao.ServiceOfferingDao;
+import com.cloud.storage.StorageManager;
+import com.cloud.storage.StoragePool;
+import com.cloud.storage.StoragePoolStatus;
+import com.cloud.storage.StoragePoolVO;
+import com.cloud.storage.VMTemplateVO;
+import com.cloud.storage.Volume;
+import com.cloud.storage.dao.StoragePoolDao;
+import com.cloud.storage.dao.VMTemplateDao;
+import com.cloud.template.VirtualMachineTemplate;
+import com.cloud.user.Account;
+import com.cloud.user.AccountService;
+import com.cloud.user.ResourceLimitService;
+import com.cloud.user.UserContext;
+import com.cloud.vm.dao.UserVmDao;
+
+public class UserVmBulkDeployTest {
+    private static final long ZONE_ID = 1L;
+    private static final long POOL_ID = 50L;
+
+    TestUserVmManager _mgr;
+    DeployVMsCmd _cmd;
+    VirtualMachineManager _itMgr;
+    CapacityManager _capacityMgr;
+    StorageManager _storageMgr;
+    StoragePoolVO _pool;
+
+    class TestUserVmManager extends UserVmManagerImpl {
+        int failCreateAt = -1;
+        long failStartOf = -1;
+        int created;
+        List<Long> destroyed = Collections.synchronizedList(new ArrayList<Long>());
+        List<Long> expunged = Collections.synchronizedList(new ArrayList<Long>());
+        Map<Long, DataCenterDeployment> plans = Collections.synchronizedMap(new HashMap<Long, DataCenterDeployment>());
+        long startTime;
+        AtomicInteger starting = new AtomicInteger();
+        AtomicInteger maxStarting = new AtomicInteger();
+
+        @Override
+        public UserVm createAdvancedVirtualMachine(DataCenter zone, ServiceOffering serviceOffering, VirtualMachineTemplate template, List<Long> networkIdList,
+                Account owner, String hostName, String displayName, Long diskOfferingId, Long diskSize, String group, HypervisorType hypervisor, String userData,
+                String sshKeyPair, Map<Long, String> requestedIps, String defaultIp, String keyboard) throws InsufficientCapacityException,
+                ConcurrentOperationException, ResourceUnavailableException, StorageUnavailableException, ResourceAllocationException {
+            if (++created == failCreateAt) {
+                throw new InsufficientServerCapacityException("No room for " + displayName, DataCenter.class, ZONE_ID);
+            }
+            UserVm vm = mock(UserVm.class);
+            when(vm.getId()).thenReturn((long)created);
+            return vm;
+        }
+
+        @Override
+        public UserVm destroyVm(long vmId) {
+            destroyed.add(vmId);
+            return null;
+        }
+
+        @Override
+        public boolean expunge(UserVmVO vm, long callerUserId, Account caller) {
+            expunged.add(vm.getId());
+            return true;
+        }
+
+        @Override
+        protected UserVmVO startPlannedVirtualMachine(long vmId, DataCenterDeployment plan) throws ResourceUnavailableException {
+            plans.put(vmId, plan);
+            int now = starting.incrementAndGet();
+            while (maxStarting.get() < now && !maxStarting.compareAndSet(maxStarting.get(), now)) {
+            }
+            try {
+                Thread.sleep(startTime);
+            } catch (InterruptedException e) {
+            } finally {
+                starting.decrementAndGet();
+            }
+            if (vmId == failStartOf) {
+                throw new ResourceUnavailableException("Unable to start " + vmId, DataCenter.class, ZONE_ID);
+            }
+            return _vmDao.findById(vmId);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _mgr = new TestUserVmManager();
+        _mgr._bulkDeployMaxCount = 10;
+        _mgr._bulkDeployHostConcurrency = 2;
+        _mgr._deployExecutor = Executors.newFixedThreadPool(2);
+        _mgr._accountService = mock(AccountService.class);
+        _mgr._resourceLimitMgr = mock(ResourceLimitService.class);
+
+        DataCenterVO zone = mock(DataCenterVO.class);
+        when(zone.getNetworkType()).thenReturn(NetworkType.Advanced);
+        when(zone.isLocalStorageEnabled()).thenReturn(true);
+        _mgr._dcDao = mock(DataCenterDao.class);
+        when(_mgr._dcDao.findById(ZONE_ID)).thenReturn(zone);
+
+        _mgr._serviceOfferingDao = mock(ServiceOfferingDao.class);
+        when(_mgr._serviceOfferingDao.findById(anyLong())).thenReturn(mock(ServiceOfferingVO.class));
+        _mgr._templateDao = mock(VMTemplateDao.class);
+        when(_mgr._templateDao.findById(anyLong())).thenReturn(mock(VMTemplateVO.class));
+
+        _mgr._vmDao = mock(UserVmDao.class);
+        for (long id = 1; id <= 4; id++) {
+            UserVmVO vm = mock(UserVmVO.class);
+            when(vm.getId()).thenReturn(id);
+            when(vm.getDataCenterIdToDeployIn()).thenReturn(ZONE_ID);
+            when(_mgr._vmDao.findById(id)).thenReturn(vm);
+        }
+
+        _itMgr = mock(VirtualMachineManager.class);
+        _capacityMgr = mock(CapacityManager.class);
+        _storageMgr = mock(StorageManager.class);
+        _pool = mock(StoragePoolVO.class);
+        when(_pool.getStatus()).thenReturn(StoragePoolStatus.Up);
+        _mgr._itMgr = _itMgr;
+        _mgr._capacityMgr = _capacityMgr;
+        _mgr._storageMgr = _storageMgr;
+        _mgr._storagePoolDao = mock(StoragePoolDao.class);
+        when(_mgr._storagePoolDao.findById(POOL_ID)).thenReturn(_pool);
+
+        Field configDao = UserVmManagerImpl.class.getDeclaredField("_configDao");
+        configDao.setAccessible(true);
+        configDao.set(_mgr, mock(ConfigurationDao.class));
+
+        _cmd = mock(DeployVMsCmd.class);
+        when(_cmd.getZoneId()).thenReturn(ZONE_ID);
+        when(_cmd.getServiceOfferingId()).thenReturn(2L);
+        when(_cmd.getTemplateId()).thenReturn(3L);
+        when(_cmd.getSpreadAcrossHosts()).thenReturn(true);
+
+        UserContext.registerContext(1L, mock(Account.class), null, false);
+    }
+
+    @After
+    public void tearDown() {
+        UserContext.unregisterContext();
+        _mgr._deployExecutor.shutdownNow();
+    }
+
+    private DeployDestination dest(long hostId) {
+        Pod pod = mock(Pod.class);
+        Cluster cluster = mock(Cluster.class);
+        Host host = mock(Host.class);
+        when(host.getId()).thenReturn(hostId);
+        StoragePool pool = mock(StoragePool.class);
+        when(pool.getId()).thenReturn(POOL_ID);
+        Map<Volume, StoragePool> storage = new HashMap<Volume, StoragePool>();
+        storage.put(mock(Volume.class), pool);
+        return new DeployDestination(mock(DataCenter.class), pod, cluster, host, storage);
+    }
+
+    private void hostHasCapacity(long hostId, boolean hasCapacity) {
+        when(_capacityMgr.checkIfHostHasCapacity(eq(hostId), anyInt(), anyLong(), anyBoolean(), anyFloat(), anyBoolean())).thenReturn(hasCapacity);
+    }
+
+    @Test
+    public void testFailedCreationExpungesCreatedVms() throws Exception {
+        when(_cmd.getCount()).thenReturn(3);
+        _mgr.failCreateAt = 3;
+        try {
+            _mgr.deployVirtualMachines(_cmd);
+            fail("The failed creation should be reported to the caller");
+        } catch (InsufficientCapacityException e) {
+        }
+
+        assertEquals(2L, _mgr.destroyed.size());
+        assertTrue(_mgr.destroyed.contains(1L) && _mgr.destroyed.contains(2L));
+        assertEquals(_mgr.destroyed, _mgr.expunged);
+        assertTrue(_mgr.plans.isEmpty());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testVmsStartOnPlannedDestination() throws Exception {
+        when(_cmd.getCount()).thenReturn(3);
+        Map<Long, DeployDestination> dests = new HashMap<Long, DeployDestination>();
+        dests.put(1L, dest(100L));
+        dests.put(2L, dest(200L));
+        dests.put(3L, dest(300L));
+        when(_itMgr.planDeployments(anyList(), any(Account.class), anyBoolean())).thenReturn(dests);
+        when(_storageMgr.storagePoolHasEnoughSpace(anyList(), eq(_pool))).thenReturn(true);
+        hostHasCapacity(100L, true);
+        hostHasCapacity(200L, false);
+        hostHasCapacity(300L, true);
+        _mgr.failStartOf = 3L;
+
+        List<? extends UserVm> started = _mgr.deployVirtualMachines(_cmd);
+
+        // the failed start of vm 3 does not hold back the others
+        assertEquals(2, started.size());
+        assertEquals(3, _mgr.plans.size());
+        assertTrue(_mgr.destroyed.isEmpty());
+
+        // the planned host and storage are handed to the start
+        DataCenterDeployment plan = _mgr.plans.get(1L);
+        assertEquals(Long.valueOf(100L), plan.getHostId());
+        assertSame(dests.get(1L), plan.getPlannedDestination());
+
+        // host 200 filled up in the meantime, the planners pick another host avoiding the planned ones
+        plan = _mgr.plans.get(2L);
+        assertNull(plan.getHostId());
+        assertNull(plan.getPlannedDestination());
+        assertTrue(plan.getAvoids().getHostsToAvoid().contains(100L));
+        assertTrue(plan.getAvoids().getHostsToAvoid().contains(300L));
+        assertFalse(plan.getAvoids().getHostsToAvoid().contains(200L));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPlannedStorageIsDroppedWhenPoolIsFull() throws Exception {
+        when(_cmd.getCount()).thenReturn(1);
+        when(_itMgr.planDeployments(anyList(), any(Account.class), anyBoolean())).thenReturn(Collections.singletonMap(1L, dest(100L)));
+        when(_storageMgr.storagePoolHasEnoughSpace(anyList(), eq(_pool))).thenReturn(false);
+        hostHasCapacity(100L, true);
+
+        assertEquals(1, _mgr.deployVirtualMachines(_cmd).size());
+
+        DataCenterDeployment plan = _mgr.plans.get(1L);
+        assertEquals(Long.valueOf(100L), plan.getHostId());
+        assertNull(plan.getPlannedDestination());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testReplannedVmsAvoidEachOthersHosts() throws Exception {
+        when(_cmd.getCount()).thenReturn(3);
+        Map<Long, DeployDestination> dests = new HashMap<Long, DeployDestination>();
+        dests.put(1L, dest(100L));
+        dests.put(2L, dest(200L));
+        dests.put(3L, dest(300L));
+        when(_itMgr.planDeployments(anyList(), any(Account.class), anyBoolean())).thenReturn(dests);
+        when(_storageMgr.storagePoolHasEnoughSpace(anyList(), eq(_pool))).thenReturn(true);
+        hostHasCapacity(100L, false);
+        hostHasCapacity(200L, false);
+        hostHasCapacity(300L, true);
+        when(_mgr._vmDao.findById(1L).getHostId()).thenReturn(400L);
+        when(_mgr._vmDao.findById(2L).getHostId()).thenReturn(500L);
+        // one worker, the vms start in the order they were planned
+        _mgr._deployExecutor.shutdownNow();
+        _mgr._deployExecutor = Executors.newSingleThreadExecutor();
+
+        assertEquals(3, _mgr.deployVirtualMachines(_cmd).size());
+
+        // vm 2 is planned again after vm 1 was, it avoids the host the planners picked for vm 1
+        Set<Long> avoids = _mgr.plans.get(2L).getAvoids().getHostsToAvoid();
+        assertTrue(avoids.contains(400L));
+        assertTrue(avoids.contains(100L));
+        assertTrue(avoids.contains(300L));
+        assertFalse(avoids.contains(200L));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testVmsOfOneHostStartInParallelUpToTheLimit() throws Exception {
+        when(_cmd.getCount()).thenReturn(4);
+        Map<Long, DeployDestination> dests = new HashMap<Long, DeployDestination>();
+        for (long id = 1; id <= 4; id++) {
+            dests.put(id, dest(100L));
+        }
+        when(_itMgr.planDeployments(anyList(), any(Account.class), anyBoolean())).thenReturn(dests);
+        when(_storageMgr.storagePoolHasEnoughSpace(anyList(), eq(_pool))).thenReturn(true);
+        hostHasCapacity(100L, true);
+        _mgr._deployExecutor.shutdownNow();
+        _mgr._deployExecutor = Executors.newFixedThreadPool(4);
+        _mgr.startTime = 200;
+
+        assertEquals(4, _mgr.deployVirtualMachines(_cmd).size());
+
+        // the whole batch is planned on host 100, its vms start two at a time rather than one after the other
+        assertEquals(2, _mgr.maxStarting.get());
+        for (long id = 1; id <= 4; id++) {
+            assertEquals(Long.valueOf(100L), _mgr.plans.get(id).getHostId());
+        }
+    }
+}
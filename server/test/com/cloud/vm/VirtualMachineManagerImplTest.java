@@ -0,0 +1,329 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyFloat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+
+import com.cloud.agent.AgentManager;
+import com.cloud.agent.AgentManager.OnError;
+import com.cloud.agent.Listener;
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.GetVmStatesAnswer;
+import com.cloud.agent.api.GetVmStatesCommand;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.agent.api.StopCommand;
+import com.cloud.agent.api.VmStateReport;
+import com.cloud.agent.manager.Commands;
+import com.cloud.capacity.CapacityManager;
+import com.cloud.configuration.dao.ConfigurationDao;
+import com.cloud.dc.DataCenter;
+import com.cloud.dc.Pod;
+import com.cloud.deploy.DeployDestination;
+import com.cloud.deploy.DeploymentPlan;
+import com.cloud.deploy.DeploymentPlanner;
+import com.cloud.deploy.DeploymentPlanner.ExcludeList;
+import com.cloud.exception.InsufficientServerCapacityException;
+import com.cloud.host.Host;
+import com.cloud.org.Cluster;
+import com.cloud.service.ServiceOfferingVO;
+import com.cloud.service.dao.ServiceOfferingDao;
+import com.cloud.storage.VMTemplateVO;
+import com.cloud.storage.dao.VMTemplateDao;
+import com.cloud.user.Account;
+import com.cloud.utils.component.Adapters;
+import com.cloud.vm.VirtualMachine.State;
+
+public class VirtualMachineManagerImplTest {
+    private static final int CPU = 1000;
+    private static final long RAM = 1024L * 1024L * 1024L;
+    // hosts in the order a first fit allocator tries them
+    private static final List<Long> HOSTS = Arrays.asList(1L, 2L, 3L);
+
+    private static final long HOST_ID = 7L;
+    private static final long REQUEST_SEQ = 42L;
+
+    TestVirtualMachineManager _vmMgr;
+    // what the agent on HOST_ID keeps and reports in its pings
+    VmStateReport _agentReport;
+
+    /**
+     * Records the resyncs instead of looking the vms up.
+     */
+    class TestVirtualMachineManager extends VirtualMachineManagerImpl {
+        List<Map<String, State>> fullSyncs = new ArrayList<Map<String, State>>();
+        List<Map<String, State>> deltaSyncs = new ArrayList<Map<String, State>>();
+
+        @Override
+        protected Commands resyncHost(long hostId, Map<String, State> states) {
+            fullSyncs.add(states);
+            return new Commands(OnError.Continue);
+        }
+
+        @Override
+        public Commands deltaHostSync(long hostId, Map<String, State> newStates) {
+            deltaSyncs.add(newStates);
+            return new Commands(OnError.Continue);
+        }
+    }
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        _vmMgr = new TestVirtualMachineManager();
+        _vmMgr._agentMgr = mock(AgentManager.class);
+        when(_vmMgr._agentMgr.send(anyLong(), any(Commands.class), any(Listener.class))).thenReturn(REQUEST_SEQ);
+
+        ServiceOfferingVO offering = mock(ServiceOfferingVO.class);
+        when(offering.getCpu()).thenReturn(1);
+        when(offering.getSpeed()).thenReturn(CPU);
+        when(offering.getRamSize()).thenReturn((int)(RAM / 1024 / 1024));
+        _vmMgr._offeringDao = mock(ServiceOfferingDao.class);
+        when(_vmMgr._offeringDao.findById(anyLong())).thenReturn(offering);
+        _vmMgr._templateDao = mock(VMTemplateDao.class);
+        when(_vmMgr._templateDao.findById(anyLong())).thenReturn(mock(VMTemplateVO.class));
+        _vmMgr._configDao = mock(ConfigurationDao.class);
+
+        // every host has room for two vms, not counting the ones planned but not started yet
+        _vmMgr._capacityMgr = mock(CapacityManager.class);
+        when(_vmMgr._capacityMgr.checkIfHostHasCapacity(anyLong(), anyInt(), anyLong(), anyBoolean(), anyFloat(), anyBoolean())).thenAnswer(new org.mockito.stubbing.Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                Object[] args = invocation.getArguments();
+                return (Integer)args[1] <= 2 * CPU && (Long)args[2] <= 2 * RAM;
+            }
+        });
+
+        final DeploymentPlanner planner = mock(DeploymentPlanner.class);
+        when(planner.canHandle(any(VirtualMachineProfile.class), any(DeploymentPlan.class), any(ExcludeList.class))).thenReturn(true);
+        when(planner.plan(any(VirtualMachineProfile.class), any(DeploymentPlan.class), any(ExcludeList.class))).thenAnswer(new org.mockito.stubbing.Answer<DeployDestination>() {
+            @Override
+            public DeployDestination answer(InvocationOnMock invocation) throws InsufficientServerCapacityException {
+                ExcludeList avoids = (ExcludeList)invocation.getArguments()[2];
+                for (Long hostId : HOSTS) {
+                    if (avoids.getHostsToAvoid() == null || !avoids.getHostsToAvoid().contains(hostId)) {
+                        Host host = mock(Host.class);
+                        when(host.getId()).thenReturn(hostId);
+                        return new DeployDestination(mock(DataCenter.class), mock(Pod.class), mock(Cluster.class), host);
+                    }
+                }
+                throw new InsufficientServerCapacityException("No host left", DataCenter.class, 1L);
+            }
+        });
+        _vmMgr._planners = mock(Adapters.class);
+        when(_vmMgr._planners.iterator()).thenAnswer(new org.mockito.stubbing.Answer<Iterator<DeploymentPlanner>>() {
+            @Override
+            public Iterator<DeploymentPlanner> answer(InvocationOnMock invocation) {
+                return Arrays.asList(planner).iterator();
+            }
+        });
+    }
+
+    private static List<VMInstanceVO> vms(int count) {
+        List<VMInstanceVO> vms = new ArrayList<VMInstanceVO>();
+        for (long id = 1; id <= count; id++) {
+            VMInstanceVO vm = mock(VMInstanceVO.class);
+            when(vm.getId()).thenReturn(id);
+            when(vm.getDataCenterIdToDeployIn()).thenReturn(1L);
+            when(vm.getType()).thenReturn(VirtualMachine.Type.User);
+            vms.add(vm);
+        }
+        return vms;
+    }
+
+    private static long hostOf(Map<Long, DeployDestination> dests, long vmId) {
+        return dests.get(vmId).getHost().getId();
+    }
+
+    @Test
+    public void testPlannedVmsAreCountedAgainstTheirHost() {
+        Map<Long, DeployDestination> dests = _vmMgr.planDeployments(vms(6), mock(Account.class), false);
+
+        // without the vms planned before it each vm would land on the first host
+        assertEquals(6, dests.size());
+        assertEquals(1L, hostOf(dests, 1));
+        assertEquals(1L, hostOf(dests, 2));
+        assertEquals(2L, hostOf(dests, 3));
+        assertEquals(2L, hostOf(dests, 4));
+        assertEquals(3L, hostOf(dests, 5));
+        assertEquals(3L, hostOf(dests, 6));
+    }
+
+    @Test
+    public void testBatchLargerThanTheHostsIsPartlyPlanned() {
+        Map<Long, DeployDestination> dests = _vmMgr.planDeployments(vms(7), mock(Account.class), false);
+
+        // the last vm is left to be planned when it is started
+        assertEquals(6, dests.size());
+        assertFalse(dests.containsKey(7L));
+    }
+
+    @Test
+    public void testSpreadAcrossHostsAvoidsEveryPlannedHost() {
+        Map<Long, DeployDestination> dests = _vmMgr.planDeployments(vms(4), mock(Account.class), true);
+
+        assertEquals(3, dests.size());
+        assertEquals(1L, hostOf(dests, 1));
+        assertEquals(2L, hostOf(dests, 2));
+        assertEquals(3L, hostOf(dests, 3));
+        assertFalse(dests.containsKey(4L));
+    }
+
+    private static Map<String, State> states(Object... nameAndStates) {
+        HashMap<String, State> states = new HashMap<String, State>();
+        for (int i = 0; i < nameAndStates.length; i += 2) {
+            states.put((String)nameAndStates[i], (State)nameAndStates[i + 1]);
+        }
+        return states;
+    }
+
+    /**
+     * The host connects with the given vms, both sides start from the same report.
+     */
+    private void connect(Map<String, State> states) {
+        _agentReport = new VmStateReport();
+        _agentReport.reset(states, 0);
+        VmStateReport report = new VmStateReport();
+        report.reset(states, 0);
+        _vmMgr._hostStates.put(HOST_ID, report);
+    }
+
+    /**
+     * The agent applies the changes and builds the ping that reports them.
+     */
+    private PingRoutingCommand ping(Map<String, State> changes) {
+        _agentReport.next(changes);
+        PingRoutingCommand ping = new PingRoutingCommand(Host.Type.Routing, HOST_ID, changes);
+        ping.setStateReport(_agentReport);
+        return ping;
+    }
+
+    private void verifyStatesRequested(int times) throws Exception {
+        verify(_vmMgr._agentMgr, times(times)).send(eq(HOST_ID), any(Commands.class), eq(_vmMgr));
+    }
+
+    private GetVmStatesAnswer fullStates() {
+        return new GetVmStatesAnswer(new GetVmStatesCommand(), _agentReport.getStates(), _agentReport.getSequence());
+    }
+
+    @Test
+    public void testMissedSequenceRequestsAllStates() throws Exception {
+        connect(states("i-2-1-VM", State.Running));
+
+        // in order, the change is applied without asking the host for everything
+        assertTrue(_vmMgr.checkStateReport(HOST_ID, ping(states("i-2-2-VM", State.Running))));
+        assertEquals(1L, _vmMgr._hostStates.get(HOST_ID).getSequence());
+        assertEquals(_agentReport.getDigest(), _vmMgr._hostStates.get(HOST_ID).getDigest());
+        verifyStatesRequested(0);
+
+        // the ping with sequence 2 never arrives
+        ping(states("i-2-3-VM", State.Running));
+        assertTrue(_vmMgr.checkStateReport(HOST_ID, ping(states("i-2-1-VM", State.Stopped))));
+        verifyStatesRequested(1);
+        assertEquals(Long.valueOf(REQUEST_SEQ), _vmMgr._hostStatesRequests.get(HOST_ID));
+
+        // the request is outstanding, later pings don't ask again
+        assertTrue(_vmMgr.checkStateReport(HOST_ID, ping(states("i-2-4-VM", State.Running))));
+        verifyStatesRequested(1);
+    }
+
+    @Test
+    public void testDigestMismatchRequestsAllStates() throws Exception {
+        connect(states("i-2-1-VM", State.Running));
+        // a change the management server never saw, without moving the sequence
+        _agentReport.apply(states("i-2-9-VM", State.Running));
+
+        assertTrue(_vmMgr.checkStateReport(HOST_ID, ping(states("i-2-2-VM", State.Running))));
+        assertEquals(1L, _vmMgr._hostStates.get(HOST_ID).getSequence());
+        verifyStatesRequested(1);
+
+        // the answer replaces the report, the next ping matches again
+        _vmMgr.processAnswers(HOST_ID, REQUEST_SEQ, new Answer[] { fullStates() });
+        assertNull(_vmMgr._hostStatesRequests.get(HOST_ID));
+        assertEquals(Collections.singletonList(_agentReport.getStates()), _vmMgr.fullSyncs);
+        assertTrue(_vmMgr.checkStateReport(HOST_ID, ping(states("i-2-3-VM", State.Running))));
+        assertEquals(_agentReport.getDigest(), _vmMgr._hostStates.get(HOST_ID).getDigest());
+        verifyStatesRequested(1);
+    }
+
+    @Test
+    public void testStalePingAfterFullStatesIsIgnored() throws Exception {
+        connect(states("i-2-1-VM", State.Running));
+        PingRoutingCommand delayed = ping(states("i-2-2-VM", State.Running));
+        PingRoutingCommand next = ping(states("i-2-2-VM", State.Stopped));
+
+        // the host is asked for everything and answers before the delayed pings are processed
+        _vmMgr.requestVmStates(HOST_ID, "test");
+        _vmMgr.processAnswers(HOST_ID, REQUEST_SEQ, new Answer[] { fullStates() });
+        assertEquals(2L, _vmMgr._hostStates.get(HOST_ID).getSequence());
+
+        // their changes are already in the answer, they must not be applied on top of it
+        assertFalse(_vmMgr.checkStateReport(HOST_ID, delayed));
+        assertTrue(_vmMgr.processCommands(HOST_ID, 0, new Command[] { next }));
+        assertTrue(_vmMgr.deltaSyncs.isEmpty());
+        assertEquals(_agentReport.getDigest(), _vmMgr._hostStates.get(HOST_ID).getDigest());
+        assertEquals(2L, _vmMgr._hostStates.get(HOST_ID).getSequence());
+        verifyStatesRequested(1);
+    }
+
+    @Test
+    public void testFailedUnrelatedAnswerKeepsTheRequest() throws Exception {
+        connect(states("i-2-1-VM", State.Running));
+        _vmMgr.requestVmStates(HOST_ID, "test");
+
+        // a stop sent to the same host fails, the states are still awaited
+        Answer failed = new Answer(new StopCommand("i-2-1-VM"), false, "Unable to stop");
+        _vmMgr.processAnswers(HOST_ID, REQUEST_SEQ + 1, new Answer[] { failed });
+        assertEquals(Long.valueOf(REQUEST_SEQ), _vmMgr._hostStatesRequests.get(HOST_ID));
+        assertTrue(_vmMgr.fullSyncs.isEmpty());
+
+        // so a ping with a gap does not ask a second time
+        ping(states("i-2-2-VM", State.Running));
+        _vmMgr.checkStateReport(HOST_ID, ping(states("i-2-3-VM", State.Running)));
+        verifyStatesRequested(1);
+
+        // the answer to the request itself clears it
+        _vmMgr.processAnswers(HOST_ID, REQUEST_SEQ, new Answer[] { fullStates() });
+        assertNull(_vmMgr._hostStatesRequests.get(HOST_ID));
+        assertEquals(1, _vmMgr.fullSyncs.size());
+    }
+}
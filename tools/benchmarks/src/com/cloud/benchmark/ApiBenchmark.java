@@ -0,0 +1,128 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.benchmark;
+
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cloud.api.ApiServer;
+import com.cloud.api.SerializationContext;
+import com.cloud.api.response.ApiResponseSerializer;
+import com.cloud.api.response.EventResponse;
+import com.cloud.api.response.ListResponse;
+import com.cloud.event.Event;
+
+/**
+ * Response serialization and request signature checking of the API server.
+ * The uuid translation of the ids needs the database so it is turned off
+ * here; the numbers are for the serialization itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ApiBenchmark {
+    @Param({ "20", "500" })
+    public int responses;
+
+    protected ListResponse<EventResponse> _listResponse;
+    protected String _unsignedRequest;
+    protected String _signature;
+    protected String _secretKey;
+
+    @Setup
+    public void setup() throws Exception {
+        SerializationContext.current().setUuidTranslation(false);
+
+        List<EventResponse> events = new ArrayList<EventResponse>();
+        for (int i = 0; i < responses; i++) {
+            EventResponse event = new EventResponse();
+            event.setId((long)i);
+            event.setUsername("admin");
+            event.setEventType("VM.START");
+            event.setLevel("INFO");
+            event.setDescription("Starting instance i-2-" + i + "-VM");
+            event.setAccountName("admin");
+            event.setDomainId(1L);
+            event.setDomainName("ROOT");
+            event.setCreated(new Date());
+            event.setState(Event.State.Completed);
+            event.setObjectName("event");
+            events.add(event);
+        }
+        _listResponse = new ListResponse<EventResponse>();
+        _listResponse.setResponses(events, events.size());
+        _listResponse.setResponseName("listeventsresponse");
+
+        _secretKey = "VDaACYb0LV9eNjTetIOElcVQkvJck_J_QljX_FcHRj87ZKiy0z0ty0ZsYBkoXkY9b7eq1EhwJaw7FF3akA3KBQ";
+        List<String> names = new ArrayList<String>();
+        String[][] params = { { "command", "listVirtualMachines" }, { "apikey", "plgWJfZK4gyS3mOMTVmjUVg-X-jlWlnfaUJ9GAbBbf9EdM-kAYMmAiLqzzq1ElZLYq_u38zCm0bewzGUdP66mg" },
+                { "response", "json" }, { "listall", "true" }, { "page", "1" }, { "pagesize", "500" }, { "keyword", "web server" } };
+        for (String[] param : params) {
+            names.add(param[0]);
+        }
+        Collections.sort(names);
+        StringBuilder unsigned = new StringBuilder();
+        for (String name : names) {
+            for (String[] param : params) {
+                if (param[0].equals(name)) {
+                    if (unsigned.length() > 0) {
+                        unsigned.append("&");
+                    }
+                    unsigned.append(name).append("=").append(URLEncoder.encode(param[1], "UTF-8").replaceAll("\\+", "%20"));
+                }
+            }
+        }
+        _unsignedRequest = unsigned.toString();
+
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(_secretKey.getBytes(), "HmacSHA1"));
+        _signature = Base64.encodeBase64String(mac.doFinal(_unsignedRequest.toLowerCase().getBytes()));
+    }
+
+    @Benchmark
+    public String serializeListJson() {
+        return ApiResponseSerializer.toJSONSerializedString(_listResponse);
+    }
+
+    @Benchmark
+    public boolean verifySignature() throws Exception {
+        return ApiServer.verifySignature(_unsignedRequest, _signature, _secretKey);
+    }
+}
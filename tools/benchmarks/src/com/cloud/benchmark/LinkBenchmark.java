@@ -0,0 +1,152 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cloud.utils.nio.Link;
+
+/**
+ * SSL wrapping and framing of Link over a loopback connection.  The other
+ * end only drains the socket so the numbers are for the sending side.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LinkBenchmark {
+    @Param({ "512", "16384", "131072" })
+    public int size;
+
+    protected ServerSocketChannel _server;
+    protected SocketChannel _client;
+    protected SocketChannel _accepted;
+    protected SSLEngine _clientEngine;
+    protected Thread _drainer;
+    protected ByteBuffer _message;
+
+    @Setup
+    public void setup() throws Exception {
+        _server = ServerSocketChannel.open();
+        _server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        _client = SocketChannel.open(new InetSocketAddress("127.0.0.1", _server.socket().getLocalPort()));
+        _accepted = _server.accept();
+
+        _clientEngine = Link.initSSLContext(true).createSSLEngine();
+        _clientEngine.setUseClientMode(true);
+        final SSLEngine serverEngine = getServerContext().createSSLEngine();
+        serverEngine.setUseClientMode(false);
+        serverEngine.setNeedClientAuth(false);
+
+        Thread handshake = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Link.doHandshake(_accepted, serverEngine, false);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        handshake.start();
+        Link.doHandshake(_client, _clientEngine, true);
+        handshake.join();
+
+        _drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+                try {
+                    while (_accepted.read(buffer) >= 0) {
+                        buffer.clear();
+                    }
+                } catch (IOException e) {
+                    // closed by tearDown
+                }
+            }
+        }, "LinkBenchmark-Drainer");
+        _drainer.setDaemon(true);
+        _drainer.start();
+
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)('a' + i % 26);
+        }
+        _message = ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * The same keystore the management server falls back to when it has not
+     * generated its own.
+     */
+    protected SSLContext getServerContext() throws Exception {
+        char[] passphrase = "vmops.com".toCharArray();
+        KeyStore ks = KeyStore.getInstance("JKS");
+        InputStream stream = Link.class.getResourceAsStream("/cloud.keystore");
+        try {
+            ks.load(stream, passphrase);
+        } finally {
+            stream.close();
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+        kmf.init(ks, passphrase);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
+        tmf.init(ks);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        return context;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        _client.close();
+        _accepted.close();
+        _server.close();
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        Link.write(_client, new ByteBuffer[] { _message.duplicate() }, _clientEngine);
+    }
+}
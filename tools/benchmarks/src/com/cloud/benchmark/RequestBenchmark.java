@@ -0,0 +1,162 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.GetVmStatsAnswer;
+import com.cloud.agent.api.GetVmStatsCommand;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.agent.api.VmStatsEntry;
+import com.cloud.agent.transport.BinaryCommandCodec;
+import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Response;
+import com.cloud.host.Host;
+import com.cloud.serializer.GsonHelper;
+import com.cloud.vm.VirtualMachine;
+import com.google.gson.Gson;
+
+/**
+ * Serializing and parsing of the agent requests.  The number of vms decides
+ * the size of the ping and stats traffic; with 1000 vms the content is over
+ * the compression threshold.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+    @Param({ "10", "1000" })
+    public int vms;
+
+    protected Gson _gson;
+    protected Command[] _pings;
+    protected Request _request;
+    protected Response _response;
+    protected String _pingJson;
+    protected byte[] _requestJsonBytes;
+    protected byte[] _requestBinaryBytes;
+    protected byte[] _responseJsonBytes;
+    protected byte[] _responseBinaryBytes;
+
+    @Setup
+    public void setup() {
+        _gson = GsonHelper.getGson();
+
+        Map<String, VirtualMachine.State> states = new HashMap<String, VirtualMachine.State>();
+        List<String> vmNames = new ArrayList<String>();
+        HashMap<String, VmStatsEntry> stats = new HashMap<String, VmStatsEntry>();
+        for (int i = 0; i < vms; i++) {
+            String name = "i-2-" + (1000 + i) + "-VM";
+            states.put(name, i % 10 == 0 ? VirtualMachine.State.Stopped : VirtualMachine.State.Running);
+            vmNames.add(name);
+            stats.put(name, new VmStatsEntry(12.5 + i, 1024.0 * i, 2048.0 * i, 2, "UserVm"));
+        }
+
+        _pings = new Command[] { new PingRoutingCommand(Host.Type.Routing, 1, states) };
+        _pingJson = _gson.toJson(_pings, Command[].class);
+
+        _request = new Request(1, 2, _pings, true, false);
+        _request.setSequence(100);
+        _requestJsonBytes = _request.getBytes();
+        _requestBinaryBytes = toBytes(_request.toBytes(BinaryCommandCodec.VERSION));
+
+        GetVmStatsCommand cmd = new GetVmStatsCommand(vmNames, "guid", "host");
+        Request statsRequest = new Request(1, 2, cmd, true);
+        _response = new Response(statsRequest, new Answer[] { new GetVmStatsAnswer(cmd, stats) });
+        _responseJsonBytes = _response.getBytes();
+        _responseBinaryBytes = toBytes(_response.toBytes(BinaryCommandCodec.VERSION));
+    }
+
+    protected static byte[] toBytes(ByteBuffer[] buffers) {
+        int len1 = buffers[0].remaining();
+        int len2 = buffers[1].remaining();
+        byte[] bytes = new byte[len1 + len2];
+        buffers[0].get(bytes, 0, len1);
+        buffers[1].get(bytes, len1, len2);
+        return bytes;
+    }
+
+    @Benchmark
+    public String gsonToJson() {
+        return _gson.toJson(_pings, Command[].class);
+    }
+
+    @Benchmark
+    public Command[] gsonFromJson() {
+        return _gson.fromJson(_pingJson, Command[].class);
+    }
+
+    @Benchmark
+    public ByteBuffer[] serializeRequestJson() {
+        Request request = new Request(1, 2, _pings, true, false);
+        return request.toBytes();
+    }
+
+    @Benchmark
+    public ByteBuffer[] serializeRequestBinary() {
+        Request request = new Request(1, 2, _pings, true, false);
+        return request.toBytes(BinaryCommandCodec.VERSION);
+    }
+
+    @Benchmark
+    public Command[] parseRequestJson() throws Exception {
+        return Request.parse(_requestJsonBytes).getCommands();
+    }
+
+    @Benchmark
+    public Command[] parseRequestBinary() throws Exception {
+        return Request.parse(_requestBinaryBytes).getCommands();
+    }
+
+    @Benchmark
+    public long parseRequestHeaders() {
+        // What the routing code looks at without parsing the whole request
+        return Request.getAgentId(_requestJsonBytes) + Request.getManagementServerId(_requestJsonBytes) + Request.getSequence(_requestJsonBytes);
+    }
+
+    @Benchmark
+    public Answer[] parseResponseJson() throws Exception {
+        return Response.parse(_responseJsonBytes).getAnswers();
+    }
+
+    @Benchmark
+    public Answer[] parseResponseBinary() throws Exception {
+        return Response.parse(_responseBinaryBytes).getAnswers();
+    }
+}
@@ -0,0 +1,166 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.benchmark;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cloud.utils.Pair;
+import com.cloud.utils.db.Attribute;
+import com.cloud.utils.db.GenericDao;
+import com.cloud.utils.db.GenericDaoBase;
+import com.cloud.utils.db.SearchBuilder;
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.SqlGenerator;
+
+/**
+ * SQL building done by GenericDaoBase before it goes to the database.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+    public enum BenchState {
+        Running, Stopped
+    }
+
+    @Entity
+    @Table(name = "bench")
+    public static class BenchVO {
+        @Id
+        @GeneratedValue(strategy = GenerationType.IDENTITY)
+        @Column(name = "id")
+        long id;
+
+        @Column(name = "name")
+        String name;
+
+        @Column(name = "state")
+        @Enumerated(EnumType.STRING)
+        BenchState state;
+
+        @Column(name = "host_id")
+        Long hostId;
+
+        @Column(name = "data_center_id")
+        long dataCenterId;
+
+        @Column(name = GenericDao.CREATED_COLUMN)
+        Date created;
+
+        @Column(name = GenericDao.REMOVED_COLUMN)
+        Date removed;
+
+        public BenchVO() {
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public BenchState getState() {
+            return state;
+        }
+
+        public Long getHostId() {
+            return hostId;
+        }
+
+        public long getDataCenterId() {
+            return dataCenterId;
+        }
+    }
+
+    public static class BenchDao extends GenericDaoBase<BenchVO, Long> {
+        protected BenchDao() {
+        }
+    }
+
+    protected BenchDao _dao;
+    protected SqlGenerator _generator;
+    protected SearchBuilder<BenchVO> _search;
+
+    @Setup
+    public void setup() {
+        _dao = new BenchDao();
+        _generator = new SqlGenerator(BenchVO.class);
+
+        _search = _dao.createSearchBuilder();
+        _search.and("zone", _search.entity().getDataCenterId(), SearchCriteria.Op.EQ);
+        _search.and("host", _search.entity().getHostId(), SearchCriteria.Op.EQ);
+        _search.and("states", _search.entity().getState(), SearchCriteria.Op.IN);
+        _search.and("name", _search.entity().getName(), SearchCriteria.Op.LIKE);
+        _search.done();
+    }
+
+    @Benchmark
+    public Pair<StringBuilder, Attribute[]> buildSelectSql() {
+        return _generator.buildSelectSql(false);
+    }
+
+    @Benchmark
+    public List<Pair<String, Attribute[]>> buildInsertSqls() {
+        return _generator.buildInsertSqls();
+    }
+
+    @Benchmark
+    public String buildWhereClause() {
+        SearchCriteria<BenchVO> sc = _search.create();
+        sc.setParameters("zone", 1L);
+        sc.setParameters("host", 20L);
+        sc.setParameters("states", BenchState.Running, BenchState.Stopped);
+        sc.setParameters("name", "i-2-%");
+        return sc.getWhereClause();
+    }
+
+    @Benchmark
+    public String buildWhereClauseWithAdditionals() {
+        SearchCriteria<BenchVO> sc = _search.create();
+        sc.setParameters("zone", 1L);
+        sc.addAnd("hostId", SearchCriteria.Op.NNULL);
+        sc.addAnd("id", SearchCriteria.Op.GT, 1000L);
+        return sc.getWhereClause();
+    }
+}
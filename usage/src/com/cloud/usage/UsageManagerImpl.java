@@ -66,6 +66,7 @@ import com.cloud.user.AccountVO;
 import com.cloud.user.UserStatisticsVO;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.UserStatisticsDao;
+import com.cloud.utils.ActionDelegate;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.component.Inject;
 import com.cloud.utils.concurrency.NamedThreadFactory;
@@ -490,33 +491,34 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                 userTxn.close();
             }
 
-            // TODO:  Fetch a maximum number of events and process them before moving on to the next range of events
-
-            // - get a list of the latest events
             // - insert the latest events into the usage.events table
-            List<UsageEventVO> events = _usageEventDao.getRecentEvents(new Date(endDateMillis));
+            final Date eventEndDate = new Date(endDateMillis);
+            _usageEventDao.copyRecentEvents(eventEndDate);
 
             
             Transaction usageTxn = Transaction.open(Transaction.USAGE_DB);
             try {
                 usageTxn.start();
 
-                // make sure start date is before all of our un-processed events (the events are ordered oldest
-                // to newest, so just test against the first event)
-                if ((events != null) && (events.size() > 0)) {
-                    Date oldestEventDate = events.get(0).getCreateDate();
+                // make sure start date is before all of our un-processed events
+                UsageEventVO oldestEvent = _usageEventDao.findOldestLatestEvent(eventEndDate);
+                if (oldestEvent != null) {
+                    Date oldestEventDate = oldestEvent.getCreateDate();
                     if (oldestEventDate.getTime() < startDateMillis) {
                         startDateMillis = oldestEventDate.getTime();
                         startDate = new Date(startDateMillis);
                     }
 
-                    // - loop over the list of events and create entries in the helper tables
+                    // - go over the events a page at a time and create entries in the helper tables
                     // - create the usage records using the parse methods below
-                    for (UsageEventVO event : events) {
-                        event.setProcessed(true);
-                        _usageEventDao.update(event.getId(), event);
-                        createHelperRecord(event);
-                    }
+                    _usageEventDao.streamLatestEvents(eventEndDate, new ActionDelegate<UsageEventVO>() {
+                        @Override
+                        public void action(UsageEventVO event) {
+                            event.setProcessed(true);
+                            _usageEventDao.update(event.getId(), event);
+                            createHelperRecord(event);
+                        }
+                    });
                 }
 
                 // TODO:  Fetch a maximum number of user stats and process them before moving on to the next range of user stats
@@ -17,6 +17,7 @@
 package com.cloud.usage.parser;
 
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -91,6 +92,7 @@ public class SecurityGroupUsageParser {
             updateSGUsageData(usageMap, key, usageSG.getVmInstanceId(), currentDuration);
         }
 
+        List<UsageVO> usageRecords = new ArrayList<UsageVO>();
         for (String sgIdKey : usageMap.keySet()) {
             Pair<Long, Long> sgtimeInfo = usageMap.get(sgIdKey);
             long useTime = sgtimeInfo.second().longValue();
@@ -98,10 +100,12 @@ public class SecurityGroupUsageParser {
             // Only create a usage record if we have a runningTime of bigger than zero.
             if (useTime > 0L) {
                 SGInfo info = sgMap.get(sgIdKey);
-                createUsageRecord(UsageTypes.SECURITY_GROUP, useTime, startDate, endDate, account, info.getVmId(), info.getSGId(), info.getZoneId());
+                usageRecords.add(createUsageRecord(UsageTypes.SECURITY_GROUP, useTime, startDate, endDate, account, info.getVmId(), info.getSGId(), info.getZoneId()));
             }
         }
 
+        m_usageDao.persistBatch(usageRecords);
+
         return true;
     }
 
@@ -117,7 +121,7 @@ public class SecurityGroupUsageParser {
         usageDataMap.put(key, sgUsageInfo);
     }
 
-    private static void createUsageRecord(int type, long runningTime, Date startDate, Date endDate, AccountVO account, long vmId, long sgId, long zoneId) {
+    private static UsageVO createUsageRecord(int type, long runningTime, Date startDate, Date endDate, AccountVO account, long vmId, long sgId, long zoneId) {
         // Our smallest increment is hourly for now
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Total running time " + runningTime + "ms");
@@ -137,7 +141,7 @@ public class SecurityGroupUsageParser {
 
         UsageVO usageRecord = new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", type,
                 new Double(usage), vmId, null, null, null, sgId, null, startDate, endDate);
-        m_usageDao.persist(usageRecord);
+        return usageRecord;
     }
     
     private static class SGInfo {
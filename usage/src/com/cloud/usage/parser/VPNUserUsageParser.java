@@ -17,6 +17,7 @@
 package com.cloud.usage.parser;
 
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -86,6 +87,7 @@ public class VPNUserUsageParser {
             updateVUUsageData(usageMap, key, usageVU.getUserId(), currentDuration);
         }
 
+        List<UsageVO> usageRecords = new ArrayList<UsageVO>();
         for (String vuIdKey : usageMap.keySet()) {
             Pair<Long, Long> vutimeInfo = usageMap.get(vuIdKey);
             long useTime = vutimeInfo.second().longValue();
@@ -93,10 +95,12 @@ public class VPNUserUsageParser {
             // Only create a usage record if we have a runningTime of bigger than zero.
             if (useTime > 0L) {
                 VUInfo info = vuMap.get(vuIdKey);
-                createUsageRecord(UsageTypes.VPN_USERS, useTime, startDate, endDate, account, info.getUserId(), info.getUserName(), info.getZoneId());
+                usageRecords.add(createUsageRecord(UsageTypes.VPN_USERS, useTime, startDate, endDate, account, info.getUserId(), info.getUserName(), info.getZoneId()));
             }
         }
 
+        m_usageDao.persistBatch(usageRecords);
+
         return true;
     }
 
@@ -112,7 +116,7 @@ public class VPNUserUsageParser {
         usageDataMap.put(key, vuUsageInfo);
     }
 
-    private static void createUsageRecord(int type, long runningTime, Date startDate, Date endDate, AccountVO account, long userId, String userName, long zoneId) {
+    private static UsageVO createUsageRecord(int type, long runningTime, Date startDate, Date endDate, AccountVO account, long userId, String userName, long zoneId) {
         // Our smallest increment is hourly for now
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Total running time " + runningTime + "ms");
@@ -132,7 +136,7 @@ public class VPNUserUsageParser {
 
         UsageVO usageRecord = new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", type,
                 new Double(usage), null, null, null, null, userId, null, startDate, endDate);
-        m_usageDao.persist(usageRecord);
+        return usageRecord;
     }
     
     private static class VUInfo {
@@ -0,0 +1,33 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+/**
+ * EntityCacheInvalidator propagates invalidations of the entity cache kept
+ * by GenericDaoBase to the other management servers in the cluster.  The
+ * invalidations are only handed to it after the DB transaction that caused
+ * them has completed.
+ */
+public interface EntityCacheInvalidator {
+    /**
+     * Invalidates the cached entities on the peers.
+     * 
+     * @param cacheName name of the dao owning the cache.
+     * @param ids ids of the entities to invalidate; null means the entire cache.
+     */
+    void invalidate(String cacheName, String[] ids);
+}
@@ -37,6 +37,9 @@ public class Filter {
     Long _offset;
     Long _limit;
     String _orderBy;
+    String _keysetColumn;
+    boolean _keysetAscending;
+    Object _keysetValue;
     
     /**
      * @param clazz the VO object type
@@ -69,6 +72,18 @@ public class Filter {
         if (field == null) {
             return;
         }
+        
+        StringBuilder order = new StringBuilder(getColumn(clazz, field));
+        order.append(ascending ? " ASC " : " DESC ");
+        
+        if (_orderBy == null) {
+            _orderBy = order.insert(0, " ORDER BY ").toString();
+        } else {
+            _orderBy = order.insert(0, _orderBy).toString();
+        }
+    }
+    
+    protected static String getColumn(Class<?> clazz, String field) {
         Field f;
         Pair<Class<?>, Field> pair = ReflectUtil.getAnyField(clazz, field);
         assert(pair != null) : "Can't find field " + field + " in " + clazz.getName();
@@ -78,21 +93,49 @@ public class Filter {
         Column column = f.getAnnotation(Column.class);
         String name = column != null ? column.name() : field;
         
-        StringBuilder order = new StringBuilder();
+        StringBuilder str = new StringBuilder();
         if (column.table() == null || column.table().length() == 0) {
-            order.append(DbUtil.getTableName(clazz));
+            str.append(DbUtil.getTableName(clazz));
         } else {
-            order.append(column.table());
+            str.append(column.table());
         }
-        order.append(".").append(name).append(ascending ? " ASC " : " DESC ");
-        
-        if (_orderBy == null) {
-            _orderBy = order.insert(0, " ORDER BY ").toString();
-        } else {
-            _orderBy = order.insert(0, _orderBy).toString();
+        return str.append(".").append(name).toString();
+    }
+    
+    /**
+     * Switches this filter to keyset paging.  Instead of skipping over offset
+     * rows, the search starts right after the row whose field has the given
+     * value so every page costs the same no matter how deep it is.  The field
+     * must be unique and becomes the only order by of the filter.
+     * 
+     * @param clazz the VO object type
+     * @param field name of the field, usually the id.
+     * @param ascending
+     * @param value value of the field in the last row of the previous page.
+     */
+    public void setStartAfter(Class<?> clazz, String field, boolean ascending, Object value) {
+        _orderBy = null;
+        addOrderBy(clazz, field, ascending);
+        _keysetColumn = getColumn(clazz, field);
+        _keysetAscending = ascending;
+        _keysetValue = value;
+        if (_limit != null) {
+            _offset = 0L;
         }
     }
     
+    public String getKeysetColumn() {
+        return _keysetColumn;
+    }
+    
+    public boolean isKeysetAscending() {
+        return _keysetAscending;
+    }
+    
+    public Object getKeysetValue() {
+        return _keysetValue;
+    }
+    
     public String getOrderBy() {
         return _orderBy;
     }
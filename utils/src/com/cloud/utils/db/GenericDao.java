@@ -17,11 +17,13 @@
 package com.cloud.utils.db;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
 import javax.naming.ConfigurationException;
 
+import com.cloud.utils.ActionDelegate;
 import com.cloud.utils.Pair;
 
 /**
@@ -159,6 +161,21 @@ public interface GenericDao<T, ID extends Serializable> {
      * @return list of entity beans.
      */
     List<T> search(SearchCriteria<T> sc, Filter filter, final boolean enable_query_cache);
+
+    /**
+     * Walks through every entity bean matching the search without holding
+     * them all in memory.  The rows are read in pages ordered by the id
+     * and each entity bean is handed to the delegate as it is read so the
+     * delegate is free to update or remove it.
+     * 
+     * @param sc search criteria.  A condition on the id is added to it.
+     * @param pageSize number of rows to read at a time.
+     * @param delegate called for each entity bean.
+     * @return number of entity beans found.
+     */
+    int searchStream(SearchCriteria<T> sc, int pageSize, ActionDelegate<T> delegate);
+
+    int searchStreamIncludingRemoved(SearchCriteria<T> sc, int pageSize, ActionDelegate<T> delegate);
     
     
     List<T> searchIncludingRemoved(SearchCriteria<T> sc, final Filter filter, final Boolean lock, final boolean cache);
@@ -197,6 +214,31 @@ public interface GenericDao<T, ID extends Serializable> {
      **/
     T persist(T entity);
     
+    /**
+     * Persist the entity beans using one batched insert per table.  The id
+     * field of each entity is updated with the new id, or has to be set
+     * already if the table does not generate it.  Unlike persist(), the
+     * entities are not reloaded from the database.
+     * @param entities beans to persist.
+     * @return the same entity beans.
+     **/
+    List<T> persistBatch(List<T> entities);
+    
+    /**
+     * Update the entity beans using batched updates.  Entities with the same
+     * set of changes share the same statement.
+     * @param entities entity beans generated by this dao keyed by their id.
+     * @return number of rows updated.
+     */
+    int updateBatch(Map<ID, T> entities);
+    
+    /**
+     * Delete the rows of the given ids using one batched delete per table.
+     * @param ids ids to delete.
+     * @return number of rows deleted from all of the tables of the entity.
+     */
+    int expungeBatch(Collection<ID> ids);
+    
     /**
      * remove the entity bean.  This will call delete automatically if
      * the entity bean does not have a removed field.
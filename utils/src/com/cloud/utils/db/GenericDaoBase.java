@@ -20,6 +20,7 @@ import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.net.MalformedURLException;
@@ -42,6 +43,7 @@ import java.util.Map;
 import java.util.TimeZone;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.naming.ConfigurationException;
 import javax.persistence.AttributeOverride;
@@ -60,9 +62,11 @@ import net.sf.cglib.proxy.NoOp;
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
 
 import org.apache.log4j.Logger;
 
+import com.cloud.utils.ActionDelegate;
 import com.cloud.utils.DateUtil;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
@@ -70,6 +74,7 @@ import com.cloud.utils.Ternary;
 import com.cloud.utils.crypt.DBEncryptionUtil;
 import com.cloud.utils.db.SearchCriteria.SelectType;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.net.Ip;
 import com.cloud.utils.net.NetUtils;
 
@@ -116,6 +121,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     protected final static TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
 
     protected final static Map<Class<?>, GenericDaoBase<?, ? extends Serializable>> s_daoMaps = new ConcurrentHashMap<Class<?>, GenericDaoBase<?, ? extends Serializable>>(71);
+    protected final static Map<String, GenericDaoBase<?, ? extends Serializable>> s_cachedDaos = new ConcurrentHashMap<String, GenericDaoBase<?, ? extends Serializable>>();
+    protected static volatile EntityCacheInvalidator s_cacheInvalidator;
 
     protected Class<T> _entityBeanType;
     protected String _table;
@@ -179,6 +186,30 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         return _allAttributes;
     }
 
+    /**
+     * Sets the invalidator used to tell the other management servers about
+     * changes to entities kept in a coherent cache.
+     */
+    public static void setCacheInvalidator(EntityCacheInvalidator invalidator) {
+        s_cacheInvalidator = invalidator;
+    }
+
+    /**
+     * Applies an invalidation received from another management server.
+     * @param cacheName name of the dao owning the cache.
+     * @param ids ids of the entities to invalidate; null for the entire cache.
+     */
+    public static void invalidateCacheFromPeer(String cacheName, String[] ids) {
+        GenericDaoBase<?, ? extends Serializable> dao = s_cachedDaos.get(cacheName);
+        if (dao == null) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("No cache by the name of " + cacheName + " to invalidate");
+            }
+            return;
+        }
+        dao.invalidateFromPeer(ids);
+    }
+
     @SuppressWarnings("unchecked")
     protected GenericDaoBase() {
         Type t = getClass().getGenericSuperclass();
@@ -347,45 +378,61 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     @Override
     public List<T> searchIncludingRemoved(SearchCriteria<T> sc, final Filter filter, final Boolean lock, 
             final boolean cache, final boolean enable_query_cache) {
-        String clause = sc != null ? sc.getWhereClause() : null;
-        if (clause != null && clause.length() == 0) {
-            clause = null;
-        }
+        final Transaction txn = Transaction.currentTxn();
+        assert (lock == null || txn.dbTxnStarted() == true) : "As nice as I can here now....how do you lock when there's no DB transaction?  Review your db 101 course from college.";
 
-        final StringBuilder str = createPartialSelectSql(sc, clause != null, enable_query_cache);
-        if (clause != null) {
-            str.append(clause);
-        }
+        final String key = getSqlTemplateKey(sc, filter, lock, enable_query_cache);
+        String sql = key != null ? sc.getSqlTemplate(key) : null;
 
         Collection<JoinBuilder<SearchCriteria<?>>> joins = null;
-        if (sc != null) {
-            joins = sc.getJoins();
-            if (joins != null) {
-                addJoins(str, joins);
+        List<Object> groupByValues = null;
+        if (sql == null) {
+            String clause = sc != null ? sc.getWhereClause() : null;
+            if (clause != null && clause.length() == 0) {
+                clause = null;
             }
-        }
+            clause = addKeyset(clause, filter);
 
-        List<Object> groupByValues = addGroupBy(str, sc);
-        addFilter(str, filter);
+            final StringBuilder str = createPartialSelectSql(sc, clause != null, enable_query_cache);
+            if (clause != null) {
+                str.append(clause);
+            }
 
-        final Transaction txn = Transaction.currentTxn();
-        if (lock != null) {
-            assert (txn.dbTxnStarted() == true) : "As nice as I can here now....how do you lock when there's no DB transaction?  Review your db 101 course from college.";
-            str.append(lock ? FOR_UPDATE_CLAUSE : SHARE_MODE_CLAUSE);
-        }
+            if (sc != null) {
+                joins = sc.getJoins();
+                if (joins != null) {
+                    addJoins(str, joins);
+                }
+            }
 
-        final String sql = str.toString();
+            groupByValues = addGroupBy(str, sc);
+            if (key != null) {
+                addFilterTemplate(str, filter);
+            } else {
+                addFilter(str, filter);
+            }
+
+            if (lock != null) {
+                str.append(lock ? FOR_UPDATE_CLAUSE : SHARE_MODE_CLAUSE);
+            }
+
+            sql = str.toString();
+            if (key != null) {
+                sc.putSqlTemplate(key, sql);
+            }
+        }
 
         PreparedStatement pstmt = null;
         final List<T> result = new ArrayList<T>();
         try {
             pstmt = txn.prepareAutoCloseStatement(sql);
             int i = 0;
-            if (clause != null) {
+            if (sc != null) {
                 for (final Pair<Attribute, Object> value : sc.getValues()) {
                     prepareAttribute(++i, pstmt, value.first(), value.second());
                 }
             }
+            i = addKeysetValue(i, pstmt, filter);
 
             if (joins != null) {
                 i = addJoinAttributes(i, pstmt, joins);
@@ -397,6 +444,10 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
                 }
             }
 
+            if (key != null) {
+                i = addFilterValues(i, pstmt, filter);
+            }
+
             if (s_logger.isDebugEnabled() && lock != null) {
                 txn.registerLock(pstmt.toString());
             }
@@ -414,39 +465,54 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
     @Override @SuppressWarnings("unchecked")
     public <M> List<M> customSearchIncludingRemoved(SearchCriteria<M> sc, final Filter filter) {
-        String clause = sc != null ? sc.getWhereClause() : null;
-        if (clause != null && clause.length() == 0) {
-            clause = null;
-        }
-
-        final StringBuilder str = createPartialSelectSql(sc, clause != null);
-        if (clause != null) {
-            str.append(clause);
-        }
+        final String key = getSqlTemplateKey(sc, filter, null, false);
+        String sql = key != null ? sc.getSqlTemplate(key) : null;
 
         Collection<JoinBuilder<SearchCriteria<?>>> joins = null;
-        if (sc != null) {
-            joins = sc.getJoins();
-            if (joins != null) {
-                addJoins(str, joins);
+        List<Object> groupByValues = null;
+        if (sql == null) {
+            String clause = sc != null ? sc.getWhereClause() : null;
+            if (clause != null && clause.length() == 0) {
+                clause = null;
             }
-        }
+            clause = addKeyset(clause, filter);
 
-        List<Object> groupByValues = addGroupBy(str, sc);
-        addFilter(str, filter);
+            final StringBuilder str = createPartialSelectSql(sc, clause != null);
+            if (clause != null) {
+                str.append(clause);
+            }
 
-        final String sql = str.toString();
+            if (sc != null) {
+                joins = sc.getJoins();
+                if (joins != null) {
+                    addJoins(str, joins);
+                }
+            }
+
+            groupByValues = addGroupBy(str, sc);
+            if (key != null) {
+                addFilterTemplate(str, filter);
+            } else {
+                addFilter(str, filter);
+            }
+
+            sql = str.toString();
+            if (key != null) {
+                sc.putSqlTemplate(key, sql);
+            }
+        }
 
         final Transaction txn = Transaction.currentTxn();
         PreparedStatement pstmt = null;
         try {
             pstmt = txn.prepareAutoCloseStatement(sql);
             int i = 0;
-            if (clause != null) {
+            if (sc != null) {
                 for (final Pair<Attribute, Object> value : sc.getValues()) {
                     prepareAttribute(++i, pstmt, value.first(), value.second());
                 }
             }
+            i = addKeysetValue(i, pstmt, filter);
 
             if (joins != null) {
                 i = addJoinAttributes(i, pstmt, joins);
@@ -458,6 +524,10 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
                 }
             }
 
+            if (key != null) {
+                i = addFilterValues(i, pstmt, filter);
+            }
+
             ResultSet rs = pstmt.executeQuery();
             SelectType st = sc.getSelectType();
             ArrayList<M> results = new ArrayList<M>();
@@ -750,13 +820,11 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     }
 
     protected int update(ID id, UpdateBuilder ub, T entity) {
-        if (_cache != null) {
-            _cache.remove(id);
-        }
         SearchCriteria<T> sc = createSearchCriteria();
         sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.EQ, id);
         Transaction txn = Transaction.currentTxn();
         txn.start();
+        invalidateCache(id, true);
 
         try {
             if (ub.getCollectionChanges() != null) {
@@ -766,7 +834,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             throw new CloudRuntimeException("Unable to persist element collection", e);
         }
 
-        int rowsUpdated = update(ub, sc, null);
+        int rowsUpdated = executeUpdate(ub, sc, null);
 
         txn.commit();
 
@@ -774,6 +842,14 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     }
 
     public int update(UpdateBuilder ub, final SearchCriteria<?> sc, Integer rows) {
+        int result = executeUpdate(ub, sc, rows);
+        if (result > 0) {
+            invalidateCacheFor(sc);
+        }
+        return result;
+    }
+
+    protected int executeUpdate(UpdateBuilder ub, final SearchCriteria<?> sc, Integer rows) {
         StringBuilder sql = null;
         PreparedStatement pstmt = null;
         final Transaction txn = Transaction.currentTxn();
@@ -906,7 +982,18 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     public T findById(final ID id) {
         if (_cache != null) {
             final Element element = _cache.get(id);
-            return element == null ? lockRow(id, null) : (T)element.getObjectValue();
+            if (element != null) {
+                _cacheStats.hit();
+                return copyEntity((T)element.getObjectValue());
+            }
+            _cacheStats.miss();
+
+            final long generation = _cacheGeneration.get();
+            final T entity = lockRow(id, null);
+            if (entity != null && _cacheCoherent) {
+                cacheEntity(id, entity, generation);
+            }
+            return entity;
         } else {
             return lockRow(id, null);
         }
@@ -1038,6 +1125,88 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         }
     }
 
+    /**
+     * Adds the condition that starts a keyset paged search after the last
+     * row of the previous page.
+     */
+    @DB(txn=false)
+    protected String addKeyset(final String clause, final Filter filter) {
+        if (filter == null || filter.getKeysetValue() == null) {
+            return clause;
+        }
+
+        final String keyset = filter.getKeysetColumn() + (filter.isKeysetAscending() ? " > ? " : " < ? ");
+        return clause == null ? keyset : "(" + clause + ") AND " + keyset;
+    }
+
+    @DB(txn=false)
+    protected int addKeysetValue(int count, final PreparedStatement pstmt, final Filter filter) throws SQLException {
+        if (filter != null && filter.getKeysetValue() != null) {
+            pstmt.setObject(++count, filter.getKeysetValue());
+        }
+        return count;
+    }
+
+    /**
+     * Same as addFilter() except that the offset and limit are left as
+     * parameters so the sql stays the same from one page to the next.
+     * The values are set with addFilterValues().
+     */
+    @DB(txn=false)
+    protected void addFilterTemplate(final StringBuilder sql, final Filter filter) {
+        if (filter != null) {
+            if (filter.getOrderBy() != null) {
+                sql.append(filter.getOrderBy());
+            }
+            if (filter.getOffset() != null) {
+                sql.append(" LIMIT ?");
+                if (filter.getLimit() != null) {
+                    sql.append(", ?");
+                }
+            }
+        }
+    }
+
+    @DB(txn=false)
+    protected int addFilterValues(int count, final PreparedStatement pstmt, final Filter filter) throws SQLException {
+        if (filter != null && filter.getOffset() != null) {
+            pstmt.setLong(++count, filter.getOffset());
+            if (filter.getLimit() != null) {
+                pstmt.setLong(++count, filter.getLimit());
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the key the sql for this search is cached under in its SearchBuilder
+     *         or null if the sql has to be generated every time.
+     */
+    @DB(txn=false)
+    protected String getSqlTemplateKey(final SearchCriteria<?> sc, final Filter filter, final Boolean lock, final boolean enableQueryCache) {
+        if (sc == null) {
+            return null;
+        }
+
+        final String conditions = sc.getSqlTemplateKey();
+        if (conditions == null) {
+            return null;
+        }
+
+        final StringBuilder key = new StringBuilder(conditions);
+        key.append('|').append(lock == null ? '-' : (lock ? 'u' : 's')).append(enableQueryCache ? 'q' : '-');
+        if (filter != null) {
+            key.append(filter.getOffset() != null ? 'o' : '-').append(filter.getLimit() != null ? 'l' : '-');
+            if (filter.getKeysetValue() != null) {
+                key.append(filter.isKeysetAscending() ? 'a' : 'd').append(filter.getKeysetColumn());
+            }
+            if (filter.getOrderBy() != null) {
+                key.append(filter.getOrderBy());
+            }
+        }
+        return key.toString();
+    }
+
     @Override @DB(txn=false)
     public List<T> listAllIncludingRemoved(final Filter filter) {
         final StringBuilder sql = createPartialSelectSql(null, false);
@@ -1107,9 +1276,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             }
 
             txn.commit();
-            if (_cache != null) {
-                _cache.remove(id);
-            }
+            invalidateCache(id, true);
             return true;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1137,7 +1304,11 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             for (final Pair<Attribute, Object> value : sc.getValues()) {
                 prepareAttribute(++i, pstmt, value.first(), value.second());
             }
-            return pstmt.executeUpdate();
+            int result = pstmt.executeUpdate();
+            if (result > 0) {
+                invalidateCacheFor(sc);
+            }
+            return result;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         } catch (final Throwable e) {
@@ -1214,6 +1385,43 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         return search(sc, filter, null, false);
     }
     
+    @Override @DB(txn=false)
+    public int searchStream(final SearchCriteria<T> sc, final int pageSize, final ActionDelegate<T> delegate) {
+        if (_removed != null) {
+            sc.addAnd(_removed.second().field.getName(), SearchCriteria.Op.NULL);
+        }
+        return searchStreamIncludingRemoved(sc, pageSize, delegate);
+    }
+
+    @Override @DB(txn=false)
+    public int searchStreamIncludingRemoved(final SearchCriteria<T> sc, final int pageSize, final ActionDelegate<T> delegate) {
+        assert _idField != null && _idAttributes.get(_table).length == 1 : "Can only stream through " + _table + " if it has a single id column";
+        assert pageSize > 0 : "What's the point of reading zero rows at a time?";
+
+        // Keyset paging on the id keeps every page as cheap as the first and,
+        // unlike a streaming result set, leaves the connection free for the delegate.
+        final Filter filter = new Filter(_entityBeanType, _idField.getName(), true, 0L, (long)pageSize);
+        final String idCondition = sc.addAndCondition(_idAttributes.get(_table)[0], SearchCriteria.Op.GT);
+
+        int count = 0;
+        try {
+            while (true) {
+                final List<T> page = searchIncludingRemoved(sc, filter, null, false);
+                for (final T entity : page) {
+                    delegate.action(entity);
+                }
+                count += page.size();
+
+                if (page.size() < pageSize) {
+                    return count;
+                }
+                sc.setParameters(idCondition, _idField.get(page.get(page.size() - 1)));
+            }
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to get the id from " + _entityBeanType, e);
+        }
+    }
+
     @Override @DB(txn=false)
     public Pair<List<T>, Integer> searchAndCount(final SearchCriteria<T> sc, final Filter filter) {
         List<T> objects = search(sc, filter, null, false);
@@ -1328,6 +1536,204 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         return _idField != null ? findByIdIncludingRemoved(id) : null;
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<T> persistBatch(final List<T> entities) {
+        if (entities.isEmpty()) {
+            return entities;
+        }
+
+        final Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            txn.start();
+            boolean idsAssigned = false;
+            for (final Pair<String, Attribute[]> pair : _insertSqls) {
+                final Attribute[] attrs = pair.second();
+
+                pstmt = txn.prepareAutoCloseStatement(pair.first(), Statement.RETURN_GENERATED_KEYS);
+                for (final T entity : entities) {
+                    assert !Enhancer.isEnhanced(entity.getClass()) : "Use updateBatch for entities that have already been persisted";
+                    prepareAttributes(pstmt, entity, attrs, 1);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+
+                // The generated keys come back in the order the rows were batched.
+                // Like persist(), a table that generates no keys leaves the ids
+                // as they were given in the entities.
+                if (!idsAssigned && _idField != null) {
+                    final ResultSet rs = pstmt.getGeneratedKeys();
+                    final List<Object> keys = new ArrayList<Object>(entities.size());
+                    while (rs != null && rs.next()) {
+                        keys.add(rs.getObject(1));
+                    }
+                    if (keys.size() == entities.size()) {
+                        for (int i = 0; i < keys.size(); i++) {
+                            _idField.set(entities.get(i), keys.get(i));
+                        }
+                        idsAssigned = true;
+                    } else if (keys.size() > 0) {
+                        throw new CloudRuntimeException("Got " + keys.size() + " ids for " + entities.size() + " rows on: " + pstmt);
+                    }
+                }
+            }
+
+            if (_idField != null && !idsAssigned) {
+                for (final T entity : entities) {
+                    final Object id = _idField.get(entity);
+                    if (id == null || (id instanceof Number && ((Number)id).longValue() == 0)) {
+                        throw new CloudRuntimeException("No id was generated or given for " + entity);
+                    }
+                }
+            }
+
+            if (_ecAttributes != null && _ecAttributes.size() > 0) {
+                for (final T entity : entities) {
+                    HashMap<Attribute, Object> ecAttributes = new HashMap<Attribute, Object>();
+                    for (Attribute attr : _ecAttributes) {
+                        Object ec = attr.field.get(entity);
+                        if (ec != null) {
+                            ecAttributes.put(attr, ec);
+                        }
+                    }
+
+                    insertElementCollection(entity, _idAttributes.get(_table)[0], (ID)_idField.get(entity), ecAttributes);
+                }
+            }
+            txn.commit();
+        } catch (final SQLException e) {
+            if (e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists: ", e);
+            } else {
+                throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new CloudRuntimeException("Problem with setting the id or getting the ec attribute ", e);
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Problem with setting the id or getting the ec attribute ", e);
+        }
+
+        return entities;
+    }
+
+    @Override
+    public int updateBatch(final Map<ID, T> entities) {
+        if (entities.isEmpty()) {
+            return 0;
+        }
+
+        final Attribute idAttr = _idAttributes.get(_table)[0];
+        final String whereClause = idAttr.table + "." + idAttr.columnName + " = ?";
+
+        // Entities with the same set of changes share one statement.
+        final Map<String, PreparedStatement> pstmts = new HashMap<String, PreparedStatement>();
+        final List<UpdateBuilder> builders = new ArrayList<UpdateBuilder>(entities.size());
+        final Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            txn.start();
+            invalidateCacheEntries(entities.keySet().toArray(new Serializable[entities.size()]), true);
+
+            for (final Map.Entry<ID, T> entry : entities.entrySet()) {
+                final T entity = entry.getValue();
+                assert Enhancer.isEnhanced(entity.getClass()) : "Entity is not generated by this dao";
+
+                final UpdateBuilder ub = getUpdateBuilder(entity);
+                if (ub.getCollectionChanges() != null) {
+                    insertElementCollection(entity, idAttr, entry.getKey(), ub.getCollectionChanges());
+                }
+
+                final StringBuilder sql = ub.toSql(_tables);
+                if (sql == null) {
+                    ub.clear();
+                    continue;
+                }
+                sql.append(whereClause);
+
+                final String str = sql.toString();
+                pstmt = pstmts.get(str);
+                if (pstmt == null) {
+                    pstmt = txn.prepareStatement(str);
+                    pstmts.put(str, pstmt);
+                }
+
+                int i = 1;
+                for (final Ternary<Attribute, Boolean, Object> value : ub.getChanges()) {
+                    prepareAttribute(i++, pstmt, value.first(), value.third());
+                }
+                prepareAttribute(i, pstmt, idAttr, entry.getKey());
+                pstmt.addBatch();
+                builders.add(ub);
+            }
+
+            int result = 0;
+            for (final PreparedStatement batch : pstmts.values()) {
+                pstmt = batch;
+                for (final int rows : batch.executeBatch()) {
+                    if (rows > 0) {
+                        result += rows;
+                    }
+                }
+            }
+            txn.commit();
+
+            for (final UpdateBuilder ub : builders) {
+                ub.clear();
+            }
+            return result;
+        } catch (final SQLException e) {
+            if (e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists ", e);
+            }
+            throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+        } finally {
+            for (final PreparedStatement batch : pstmts.values()) {
+                try {
+                    batch.close();
+                } catch (SQLException e) {
+                    s_logger.trace("Unable to close statement: " + batch);
+                }
+            }
+        }
+    }
+
+    @Override
+    public int expungeBatch(final Collection<ID> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+
+        final Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            txn.start();
+            int result = 0;
+            for (final Pair<String, Attribute[]> deleteSql : _deleteSqls) {
+                final Attribute[] attrs = deleteSql.second();
+                pstmt = txn.prepareAutoCloseStatement(deleteSql.first());
+                for (final ID id : ids) {
+                    for (int i = 0; i < attrs.length; i++) {
+                        prepareAttribute(i + 1, pstmt, attrs[i], id);
+                    }
+                    pstmt.addBatch();
+                }
+
+                for (final int rows : pstmt.executeBatch()) {
+                    if (rows > 0) {
+                        result += rows;
+                    }
+                }
+            }
+
+            txn.commit();
+            invalidateCacheEntries(ids.toArray(new Serializable[ids.size()]), true);
+            return result;
+        } catch (final SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+        }
+    }
+
     protected void insertElementCollection(T entity, Attribute idAttribute, ID id, Map<Attribute, Object> ecAttributes) throws SQLException {
         Transaction txn = Transaction.currentTxn();
         txn.start();
@@ -1504,9 +1910,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
         toEntityBean(result, entity);
 
-        if (cache && _cache != null) {
+        if (cache && _cache != null && !_cacheCoherent) {
             try {
-                _cache.put(new Element(_idField.get(entity), entity));
+                _cache.put(new Element(_idField.get(entity), copyEntity(entity)));
             } catch (final Exception e) {
                 s_logger.debug("Can't put it in the cache", e);
             }
@@ -1526,7 +1932,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             throw new CloudRuntimeException("Illegal Access", e1);
         }
         toEntityBean(result, entity);
-        if (cache && _cache != null) {
+        if (cache && _cache != null && !_cacheCoherent) {
             try {
                 _cache.put(new Element(_idField.get(entity), entity));
             } catch (final Exception e) {
@@ -1677,9 +2083,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
             final int result = pstmt.executeUpdate();
             txn.commit();
-            if (_cache != null) {
-                _cache.remove(id);
-            }
+            invalidateCache(id, true);
             return result > 0;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1700,6 +2104,14 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     }
 
     protected Cache _cache;
+    protected boolean _cacheCoherent;
+    protected volatile Field[] _copyFields;
+    protected GenericDaoCacheMBeanImpl _cacheStats;
+
+    // Bumped on every invalidation so a reader can tell that the row it
+    // loaded may have been changed before it got to put it in the cache.
+    protected final AtomicLong _cacheGeneration = new AtomicLong();
+
     @DB(txn=false)
     protected void createCache(final Map<String, ? extends Object> params) {
         final String value = (String)params.get("cache.size");
@@ -1709,14 +2121,214 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             final int maxElements = NumbersUtil.parseInt(value, 0);
             final int live = NumbersUtil.parseInt((String)params.get("cache.time.to.live"), 300);
             final int idle = NumbersUtil.parseInt((String)params.get("cache.time.to.idle"), 300);
-            _cache = new Cache(getName(), maxElements, false, live == -1, live == -1 ? Integer.MAX_VALUE : live, idle);
+            final MemoryStoreEvictionPolicy policy = MemoryStoreEvictionPolicy.fromString((String)params.get("cache.eviction.policy"));
+            _cacheCoherent = Boolean.parseBoolean((String)params.get("cache.coherent"));
+            _cache = new Cache(getName(), maxElements, policy, false, null, live == -1, live == -1 ? Integer.MAX_VALUE : live, idle, false, 120, null);
             cm.addCache(_cache);
-            s_logger.info("Cache created: " + _cache.toString());
+            _cacheStats = new GenericDaoCacheMBeanImpl(this, _cache, _cacheCoherent, policy.toString());
+            if (_cacheCoherent) {
+                s_cachedDaos.put(getName(), this);
+            }
+            try {
+                JmxUtil.registerMBean("DaoCache", getName(), _cacheStats);
+            } catch (Exception e) {
+                s_logger.warn("Unable to register mbean for the cache of " + getName(), e);
+            }
+            s_logger.info("Cache created: " + _cache.toString() + (_cacheCoherent ? " coherent" : ""));
         } else {
             _cache = null;
         }
     }
 
+    @DB(txn=false)
+    public long getCacheGeneration() {
+        return _cacheGeneration.get();
+    }
+
+    /**
+     * Puts an entity loaded by findById into a coherent cache unless an
+     * invalidation came in while it was being loaded.  Entities read inside
+     * a DB transaction are not cached as they may not have been committed.
+     */
+    @DB(txn=false)
+    protected void cacheEntity(final ID id, final T entity, final long generation) {
+        if (Transaction.currentTxn().dbTxnStarted()) {
+            return;
+        }
+
+        _cache.put(new Element(id, copyEntity(entity)));
+        if (_cacheGeneration.get() != generation) {
+            _cache.remove(id);
+        }
+    }
+
+    /**
+     * Copies an entity so the one in the cache is never handed out: callers
+     * change the entities they get and each copy has its own UpdateBuilder.
+     * Lists, maps, dates and arrays in the entity are copied as well, anything
+     * else (strings, numbers, enums) is immutable or shared.
+     */
+    @DB(txn=false)
+    @SuppressWarnings("unchecked")
+    protected T copyEntity(final T entity) {
+        Field[] fields = _copyFields;
+        if (fields == null) {
+            List<Field> list = new ArrayList<Field>();
+            for (Class<?> clazz = _entityBeanType; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+                for (Field field : clazz.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        field.setAccessible(true);
+                        list.add(field);
+                    }
+                }
+            }
+            fields = list.toArray(new Field[list.size()]);
+            _copyFields = fields;
+        }
+
+        final T copy = (T)_factory.newInstance(new Callback[] {NoOp.INSTANCE, new UpdateBuilder(this)});
+        try {
+            for (Field field : fields) {
+                Object value = field.get(entity);
+                if (value instanceof ArrayList) {
+                    value = new ArrayList<Object>((ArrayList<Object>)value);
+                } else if (value instanceof HashMap) {
+                    value = new HashMap<Object, Object>((HashMap<Object, Object>)value);
+                } else if (value instanceof Date) {
+                    value = ((Date)value).clone();
+                } else if (value != null && value.getClass().isArray()) {
+                    int length = Array.getLength(value);
+                    Object array = Array.newInstance(value.getClass().getComponentType(), length);
+                    System.arraycopy(value, 0, array, 0, length);
+                    value = array;
+                }
+                field.set(copy, value);
+            }
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to copy " + entity, e);
+        }
+        return copy;
+    }
+
+    /**
+     * Invalidates what a criteria update or delete may have changed: only the
+     * entities it is restricted to by id, otherwise the whole cache.
+     */
+    @DB(txn=false)
+    protected void invalidateCacheFor(final SearchCriteria<?> sc) {
+        if (_cache == null) {
+            return;
+        }
+
+        Object[] values = sc != null ? sc.getRequiredValues(_idAttributes.get(_table)[0]) : null;
+        if (values != null) {
+            Serializable[] ids = new Serializable[values.length];
+            for (int i = 0; i < values.length; i++) {
+                if (!(values[i] instanceof Serializable)) {
+                    invalidateCache(null, true);
+                    return;
+                }
+                ids[i] = (Serializable)values[i];
+            }
+            invalidateCacheEntries(ids, true);
+        } else {
+            invalidateCache(null, true);
+        }
+    }
+
+    @DB(txn=false)
+    protected void evictFromCache(final Serializable[] ids) {
+        _cacheGeneration.incrementAndGet();
+        if (ids == null) {
+            _cache.removeAll();
+        } else {
+            for (Serializable id : ids) {
+                _cache.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Invalidates an entity in the cache.  For coherent caches, the entity is
+     * invalidated again once the current DB transaction completes and the
+     * invalidation is then sent to the other management servers.
+     * 
+     * @param id id of the entity; null to invalidate the entire cache.
+     * @param propagate whether to tell the other management servers.
+     */
+    @DB(txn=false)
+    protected void invalidateCache(final Serializable id, final boolean propagate) {
+        invalidateCacheEntries(id == null ? null : new Serializable[] { id }, propagate);
+    }
+
+    /**
+     * Same as invalidateCache but for several entities at once so that only
+     * one invalidation is sent to the other management servers.
+     * 
+     * @param ids ids of the entities; null to invalidate the entire cache.
+     * @param propagate whether to tell the other management servers.
+     */
+    @DB(txn=false)
+    protected void invalidateCacheEntries(final Serializable[] ids, final boolean propagate) {
+        if (_cache == null) {
+            return;
+        }
+
+        evictFromCache(ids);
+        _cacheStats.localInvalidation();
+        if (!_cacheCoherent || !propagate) {
+            return;
+        }
+
+        Transaction.currentTxn().registerCompletionTask(new Runnable() {
+            @Override
+            public void run() {
+                // Someone may have loaded the old row before the change was committed.
+                evictFromCache(ids);
+                EntityCacheInvalidator invalidator = s_cacheInvalidator;
+                if (invalidator != null) {
+                    String[] keys = null;
+                    if (ids != null) {
+                        keys = new String[ids.length];
+                        for (int i = 0; i < ids.length; i++) {
+                            keys[i] = ids[i].toString();
+                        }
+                    }
+                    invalidator.invalidate(getName(), keys);
+                }
+            }
+        });
+    }
+
+    @DB(txn=false)
+    protected void invalidateFromPeer(final String[] ids) {
+        if (_cache == null) {
+            return;
+        }
+
+        _cacheStats.remoteInvalidation();
+        if (ids == null) {
+            evictFromCache(null);
+            return;
+        }
+
+        final Class<?> type = _idField.getType();
+        final Serializable[] keys = new Serializable[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            if (type == Long.class || type == long.class) {
+                keys[i] = Long.valueOf(ids[i]);
+            } else if (type == Integer.class || type == int.class) {
+                keys[i] = Integer.valueOf(ids[i]);
+            } else if (type == String.class) {
+                keys[i] = ids[i];
+            } else {
+                evictFromCache(null);
+                return;
+            }
+        }
+        evictFromCache(keys);
+    }
+
     @Override @DB(txn=false)
     public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
         _name = name;
@@ -0,0 +1,119 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import net.sf.ehcache.Cache;
+
+/**
+ * Hit/miss and invalidation counters for the entity cache of one dao.
+ */
+public class GenericDaoCacheMBeanImpl extends StandardMBean implements GenericDaoCacheMBean {
+    private final GenericDaoBase<?, ?> _dao;
+    private final Cache _cache;
+    private final boolean _coherent;
+    private final String _evictionPolicy;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _localInvalidations = new AtomicLong();
+    private final AtomicLong _remoteInvalidations = new AtomicLong();
+
+    public GenericDaoCacheMBeanImpl(GenericDaoBase<?, ?> dao, Cache cache, boolean coherent, String evictionPolicy) {
+        super(GenericDaoCacheMBean.class, false);
+        _dao = dao;
+        _cache = cache;
+        _coherent = coherent;
+        _evictionPolicy = evictionPolicy;
+    }
+
+    public void hit() {
+        _hits.incrementAndGet();
+    }
+
+    public void miss() {
+        _misses.incrementAndGet();
+    }
+
+    public void localInvalidation() {
+        _localInvalidations.incrementAndGet();
+    }
+
+    public void remoteInvalidation() {
+        _remoteInvalidations.incrementAndGet();
+    }
+
+    @Override
+    public String getCacheName() {
+        return _cache.getName();
+    }
+
+    @Override
+    public boolean isCoherent() {
+        return _coherent;
+    }
+
+    @Override
+    public String getEvictionPolicy() {
+        return _evictionPolicy;
+    }
+
+    @Override
+    public int getSize() {
+        return _cache.getSize();
+    }
+
+    @Override
+    public long getHits() {
+        return _hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = _hits.get();
+        long total = hits + _misses.get();
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    @Override
+    public long getLocalInvalidations() {
+        return _localInvalidations.get();
+    }
+
+    @Override
+    public long getRemoteInvalidations() {
+        return _remoteInvalidations.get();
+    }
+
+    @Override
+    public long getGeneration() {
+        return _dao.getCacheGeneration();
+    }
+
+    @Override
+    public void clear() {
+        _dao.invalidateCache(null, false);
+    }
+}
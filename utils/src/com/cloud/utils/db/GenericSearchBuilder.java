@@ -22,6 +22,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.persistence.Transient;
 
@@ -43,7 +45,18 @@ import com.cloud.utils.exception.CloudRuntimeException;
  * @param <K> Result object that should contain the results.
  */
 public class GenericSearchBuilder<T, K> implements MethodInterceptor {
+    /**
+     * Upper bound on the number of sql templates kept per search.  A search
+     * produces a different sql for every combination of conditions and filters
+     * used with it so this keeps a badly behaving caller from growing it forever.
+     */
+    protected static final int MAX_SQL_TEMPLATES = 64;
+
+    protected static final AtomicLong s_sqlTemplateHits = new AtomicLong();
+    protected static final AtomicLong s_sqlTemplateMisses = new AtomicLong();
+
     final protected Map<String, Attribute> _attrs;
+    final protected ConcurrentHashMap<String, String> _sqlTemplates = new ConcurrentHashMap<String, String>();
     
     protected ArrayList<Condition> _conditions;
     protected HashMap<String, JoinBuilder<GenericSearchBuilder<?, ?>>> _joins;
@@ -313,6 +326,14 @@ public class GenericSearchBuilder<T, K> implements MethodInterceptor {
     public SelectType getSelectType() {
         return _selectType;
     }
+
+    public static long getSqlTemplateHits() {
+        return s_sqlTemplateHits.get();
+    }
+
+    public static long getSqlTemplateMisses() {
+        return s_sqlTemplateMisses.get();
+    }
     
     /**
      * Marks the SearchBuilder as completed in building the search conditions.
@@ -26,6 +26,12 @@ import com.cloud.utils.Profiler;
 //
 // Wrapper class for global database lock to reduce contention for database connections from within process
 //
+// By default the lock is a MySQL GET_LOCK().  When lock.global.use.op_lock is set, the cluster manager hands the
+// lock master over on start up and from then on the lock is kept in op_lock by Merovingian2, which caches it as a
+// lease instead of holding a database connection for it.  The two do not exclude each other, so a name must always
+// go through the same one: the flag is the same on every management server, and the only locks taken before the
+// hand over (database upgrade and integrity checks) are never taken after it.
+//
 // Example of using dynamic named locks
 //
 //		GlobalLock lock = GlobalLock.getInternLock("some table name" + rowId);
@@ -48,8 +54,10 @@ public class GlobalLock {
 	
 	private int referenceCount = 0;
 	private long holdingStartTick = 0;
+	private Merovingian2 lockMaster = null;
 	
 	private static Map<String, GlobalLock> s_lockMap = new HashMap<String, GlobalLock>();
+	private static volatile Merovingian2 s_lockMaster = null;
 	
 	private GlobalLock(String name) {
 		this.name = name;
@@ -83,6 +91,10 @@ public class GlobalLock {
 		return refCount;
 	}
 
+	public static void setLockMaster(Merovingian2 master) {
+		s_lockMaster = master;
+	}
+
 	public static GlobalLock getInternLock(String name) {
 		synchronized(s_lockMap) {
 			if(s_lockMap.containsKey(name)) {
@@ -148,8 +160,16 @@ public class GlobalLock {
 					}
 				}
 
-				if(DbUtil.getGlobalLock(name, remainingMilliSeconds / 1000)) {
+				Merovingian2 master = s_lockMaster;
+				boolean locked;
+				if(master != null)
+					locked = master.acquire(name, remainingMilliSeconds / 1000, false);
+				else
+					locked = DbUtil.getGlobalLock(name, remainingMilliSeconds / 1000);
+
+				if(locked) {
 					synchronized(this) {
+						lockMaster = master;
 						lockCount++;
 						holdingStartTick = System.currentTimeMillis();
 						
@@ -178,7 +198,11 @@ public class GlobalLock {
 				lockCount--;
 				if(lockCount == 0) {
 					ownerThread = null;
-					DbUtil.releaseGlobalLock(name);
+					if(lockMaster != null)
+						lockMaster.release(name);
+					else
+						DbUtil.releaseGlobalLock(name);
+					lockMaster = null;
 					
 					if(s_logger.isTraceEnabled())
 						s_logger.trace("lock " + name + " is returned to free state, total holding time :" + 
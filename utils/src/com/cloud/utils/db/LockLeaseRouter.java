@@ -0,0 +1,33 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+/**
+ * LockLeaseRouter asks the management server that owns a lock to give it
+ * up.  Merovingian2 uses it when another management server keeps a lock
+ * as an idle lease that this server is waiting for.
+ */
+public interface LockLeaseRouter {
+    /**
+     * Asks the owner to release the lock as soon as it is no longer in use.
+     * It does not wait for the owner to answer.
+     * 
+     * @param ownerMsId management server that owns the lock.
+     * @param key name of the lock.
+     */
+    void requestRelease(long ownerMsId, String key);
+}
@@ -20,37 +20,54 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.management.StandardMBean;
 
 import org.apache.log4j.Logger;
 
 import com.cloud.utils.DateUtil;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
-import com.cloud.utils.time.InaccurateClock;
-
 
+/**
+ * Merovingian2 keeps cluster wide locks as rows in op_lock.  Ownership is
+ * cached in memory: the row is only inserted on the first acquisition and
+ * only deleted when the last hold is released, so re-entrant acquisitions
+ * and locks waited on by other threads of this server never go to the
+ * database.  A released lock can also be kept as an idle lease for the
+ * lease time, so periodic tasks get it back from memory.  Other servers
+ * waiting for an idle lease ask for it through the LockLeaseRouter.
+ */
 public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private static final Logger s_logger = Logger.getLogger(Merovingian2.class);
 
     private static final String ACQUIRE_SQL = "INSERT INTO op_lock (op_lock.key, op_lock.mac, op_lock.ip, op_lock.thread, op_lock.acquired_on, waiters) VALUES (?, ?, ?, ?, ?, 1)";
-    private static final String INCREMENT_SQL = "UPDATE op_lock SET waiters=waiters+1 where op_lock.key=? AND op_lock.mac=? AND op_lock.ip=? AND op_lock.thread=?";
+    private static final String RENEW_SQL = "UPDATE op_lock SET acquired_on=? WHERE op_lock.key=? AND op_lock.mac=?";
     private static final String SELECT_SQL = "SELECT op_lock.key, mac, ip, thread, acquired_on, waiters FROM op_lock";
     private static final String INQUIRE_SQL = SELECT_SQL + " WHERE op_lock.key=?";
-    private static final String DECREMENT_SQL = "UPDATE op_lock SET waiters=waiters-1 where op_lock.key=? AND op_lock.mac=? AND op_lock.ip=? AND op_lock.thread=?";
     private static final String RELEASE_LOCK_SQL = "DELETE FROM op_lock WHERE op_lock.key = ?";
-    private static final String RELEASE_SQL = RELEASE_LOCK_SQL + " AND op_lock.mac=? AND waiters=0";
+    private static final String RELEASE_SQL = RELEASE_LOCK_SQL + " AND op_lock.mac=?";
     private static final String CLEANUP_MGMT_LOCKS_SQL = "DELETE FROM op_lock WHERE op_lock.mac = ?";
     private static final String SELECT_MGMT_LOCKS_SQL = SELECT_SQL + " WHERE mac=?";
     private static final String SELECT_THREAD_LOCKS_SQL = SELECT_SQL + " WHERE mac=? AND ip=?";
-    private static final String CLEANUP_THREAD_LOCKS_SQL = "DELETE FROM op_lock WHERE mac=? AND ip=? AND thread=?";
+
+    // how often a thread waiting for a lock held by another server checks the database again
+    private static final long POLL_INTERVAL = 1000;
+    // lock names beyond this are counted together so the statistics can't grow without bound
+    private static final int MAX_STATS_KEYS = 1024;
+    private static final String OTHER_STATS_KEY = "(other)";
 
     TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
 
@@ -60,6 +77,12 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private ConnectionConcierge _concierge = null;
     private static ThreadLocal<Count> s_tls = new ThreadLocal<Count>();
 
+    private final ConcurrentHashMap<String, Lease> _leases = new ConcurrentHashMap<String, Lease>();
+    private final ConcurrentHashMap<String, LockStats> _stats = new ConcurrentHashMap<String, LockStats>();
+    private volatile long _leaseTime = 0;
+    private volatile LockLeaseRouter _router;
+    private ScheduledExecutorService _leaseExpirer;
+
     private Merovingian2(long msId) {
         super(MerovingianMBean.class, false);
         _msId = msId;
@@ -91,6 +114,21 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         return s_instance;
     }
 
+    /**
+     * @param seconds how long a released lock is kept by this server before its row is deleted; 0 deletes it on release.
+     */
+    public synchronized void setLeaseTime(int seconds) {
+        _leaseTime = seconds * 1000L;
+        if (_leaseTime > 0 && _leaseExpirer == null) {
+            long interval = Math.max(_leaseTime / 2, 1000);
+            _leaseExpirer = Executors.newScheduledThreadPool(1, new NamedThreadFactory("LockLeaseExpirer"));
+            _leaseExpirer.scheduleWithFixedDelay(new LeaseExpiryTask(), interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void setLeaseRouter(LockLeaseRouter router) {
+        _router = router;
+    }
 
     protected void incrCount() {
         Count count = s_tls.get();
@@ -111,8 +149,15 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         count.count--;
     }
 
-
     public boolean acquire(String key, int timeInSeconds) {
+        return acquire(key, timeInSeconds, true);
+    }
+
+    /**
+     * @param releaseWithTransaction true if the lock is released when the transaction of the thread ends, false
+     *        if the caller holds it across transactions and always releases it itself.
+     */
+    public boolean acquire(String key, int timeInSeconds, boolean releaseWithTransaction) {
         Thread th = Thread.currentThread();
         String threadName = th.getName();
         int threadId = System.identityHashCode(th);
@@ -120,52 +165,168 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Acquiring lck-" + key + " with wait time of " + timeInSeconds);
         }
-        long startTime = InaccurateClock.getTime();
-
-        while ((InaccurateClock.getTime() - startTime) < (timeInSeconds * 1000)) {
-            int count = owns(key);
+        long startTime = System.currentTimeMillis();
+        LockStats stats = getStats(key);
+        boolean waited = false;
+        boolean routed = false;
+        boolean timedOut = false;
+
+        while (true) {
+            Lease lease = getLease(key);
+            long ownerMsId = -1;
+            synchronized (lease) {
+                if (lease.removed) {
+                    continue;
+                }
 
-            if (count >= 1) {
-                return increment(key, threadName, threadId);
-            } else if (count == 0) {
-                if (doAcquire(key, threadName, threadId)) {
+                if (lease.owner == th) {
+                    lease.count++;
+                    if (lease.releaseWithTransaction) {
+                        incrCount();
+                    }
+                    stats.reentered();
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("lck-" + key + " acquired again");
+                    }
                     return true;
                 }
-            }
-            try {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Sleeping more time while waiting for lck-" + key);
+
+                if (lease.owner == null) {
+                    boolean fromLease = lease.held && renew(lease);
+                    if (fromLease || (!lease.held && doAcquire(key, threadName, threadId))) {
+                        if (!fromLease) {
+                            lease.held = true;
+                            lease.confirmedOn = System.currentTimeMillis();
+                        }
+                        lease.take(th, releaseWithTransaction);
+                        if (releaseWithTransaction) {
+                            incrCount();
+                        }
+                        stats.acquired(fromLease, waited, System.currentTimeMillis() - startTime);
+                        if (s_logger.isTraceEnabled()) {
+                            s_logger.trace("lck-" + key + (fromLease ? " acquired from lease" : " acquired"));
+                        }
+                        return true;
+                    }
+                }
+
+                if (lease.owner == null && !routed && _router != null) {
+                    Map<String, String> owner = isLocked(key);
+                    if (owner != null && owner.get("mgmt").equals(Long.toString(_msId))) {
+                        // left behind by a lease dropped while this server was isolated
+                        deleteRow(key);
+                        continue;
+                    }
+                    routed = true;
+                    if (owner != null) {
+                        ownerMsId = Long.parseLong(owner.get("mgmt"));
+                    }
                 }
-                Thread.sleep(5000);
-            } catch (InterruptedException e) {
+
+                long remaining = timeInSeconds * 1000L - (System.currentTimeMillis() - startTime);
+                if (remaining <= 0) {
+                    stats.timedOut(System.currentTimeMillis() - startTime);
+                    removeIfUnused(lease);
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Timed out on acquiring lock " + key + ".  Waited for " + (System.currentTimeMillis() - startTime));
+                    }
+                    if (ownerMsId < 0) {
+                        return false;
+                    }
+                    // even a caller that does not wait asks the owner, so that the next try finds the lease released
+                    timedOut = true;
+                } else if (ownerMsId < 0) {
+                    waited = true;
+                    // a local holder wakes us up on release, a remote one is polled for
+                    lease.waiters++;
+                    try {
+                        if (s_logger.isTraceEnabled()) {
+                            s_logger.trace("Waiting for lck-" + key);
+                        }
+                        lease.wait(Math.min(remaining, POLL_INTERVAL));
+                    } catch (InterruptedException e) {
+                    } finally {
+                        lease.waiters--;
+                    }
+                    continue;
+                } else {
+                    waited = true;
+                }
+            }
+
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Asking management server " + ownerMsId + " to release lck-" + key);
+            }
+            _router.requestRelease(ownerMsId, key);
+            if (timedOut) {
+                return false;
             }
         }
-        if (s_logger.isTraceEnabled()) {
-            s_logger.trace("Timed out on acquiring lock " + key + ".  Waited for " + (InaccurateClock.getTime() - startTime));
+    }
+
+    protected Lease getLease(String key) {
+        Lease lease = _leases.get(key);
+        if (lease == null) {
+            lease = new Lease(key);
+            Lease existing = _leases.putIfAbsent(key, lease);
+            if (existing != null) {
+                lease = existing;
+            }
         }
-        return false;
+        return lease;
+    }
+
+    // must be called while holding the monitor of the lease
+    protected void removeIfUnused(Lease lease) {
+        if (lease.owner == null && !lease.held && lease.waiters == 0) {
+            lease.removed = true;
+            _leases.remove(lease.key, lease);
+        }
+    }
+
+    protected LockStats getStats(String key) {
+        LockStats stats = _stats.get(key);
+        if (stats == null) {
+            if (_stats.size() >= MAX_STATS_KEYS) {
+                key = OTHER_STATS_KEY;
+                stats = _stats.get(key);
+                if (stats != null) {
+                    return stats;
+                }
+            }
+            stats = new LockStats();
+            LockStats existing = _stats.putIfAbsent(key, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
     }
 
-    protected boolean increment(String key, String threadName, int threadId) {
+    /**
+     * Checks that the row of an idle lease is still ours, at most once per half of the lease time.
+     */
+    protected boolean renew(Lease lease) {
+        long now = System.currentTimeMillis();
+        if (now - lease.confirmedOn < _leaseTime / 2) {
+            return true;
+        }
+
         PreparedStatement pstmt = null;
         try {
-            pstmt = _concierge.conn().prepareStatement(INCREMENT_SQL);
-            pstmt.setString(1, key);
-            pstmt.setLong(2, _msId);
-            pstmt.setString(3, threadName);
-            pstmt.setInt(4, threadId);
-            int rows = pstmt.executeUpdate();
-            assert (rows <= 1) : "hmm...non unique key? " + pstmt;
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("lck-" + key + (rows == 1 ? " acquired again" : " failed to acquire again"));
-            }
-            if (rows == 1) {
-                incrCount();
+            pstmt = _concierge.conn().prepareStatement(RENEW_SQL);
+            pstmt.setString(1, DateUtil.getDateDisplayString(s_gmtTimeZone, new Date()));
+            pstmt.setString(2, lease.key);
+            pstmt.setLong(3, _msId);
+            if (pstmt.executeUpdate() == 1) {
+                lease.confirmedOn = now;
                 return true;
             }
+            s_logger.warn("Lease on lck-" + lease.key + " was removed from the database");
+            lease.held = false;
             return false;
         } catch (SQLException e) {
-            throw new CloudRuntimeException("Unable to increment " + key, e);
+            throw new CloudRuntimeException("Unable to renew " + lease.key, e);
         } finally {
             try {
                 if (pstmt != null) {
@@ -179,7 +340,7 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     protected boolean doAcquire(String key, String threadName, int threadId) {
         PreparedStatement pstmt = null;
 
-        long startTime = InaccurateClock.getTime();
+        long startTime = System.currentTimeMillis();
         try {
             pstmt = _concierge.conn().prepareStatement(ACQUIRE_SQL);
             pstmt.setString(1, key);
@@ -193,16 +354,15 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
                     if (s_logger.isTraceEnabled()) {
                         s_logger.trace("Acquired for lck-" + key);
                     }
-                    incrCount();
                     return true;
                 }
             } catch(SQLException e) {
                 if (!(e.getSQLState().equals("23000") && e.getErrorCode() == 1062)) {
-                    throw new CloudRuntimeException("Unable to lock " + key + ".  Waited " + (InaccurateClock.getTime() - startTime), e);
+                    throw new CloudRuntimeException("Unable to lock " + key + ".  Waited " + (System.currentTimeMillis() - startTime), e);
                 }
             }
         } catch(SQLException e) {
-            throw new CloudRuntimeException("Unable to lock " + key + ".  Waited " + (InaccurateClock.getTime() - startTime), e);
+            throw new CloudRuntimeException("Unable to lock " + key + ".  Waited " + (System.currentTimeMillis() - startTime), e);
         } finally {
             try {
                 if (pstmt != null) {
@@ -216,6 +376,40 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         return false;
     }
 
+    /**
+     * Deletes the row of the lease.  Must be called while holding the monitor of the lease.
+     */
+    protected void releaseRow(Lease lease) {
+        if (!lease.held) {
+            return;
+        }
+        lease.held = false;
+        lease.contended = false;
+        deleteRow(lease.key);
+    }
+
+    protected void deleteRow(String key) {
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = _concierge.conn().prepareStatement(RELEASE_SQL);
+            pstmt.setString(1, key);
+            pstmt.setLong(2, _msId);
+            int result = pstmt.executeUpdate();
+            if (result == 1 && s_logger.isTraceEnabled()) {
+                s_logger.trace("lck-" + key + " removed");
+            }
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to release " + key, e);
+        } finally {
+            try {
+                if (pstmt != null) {
+                    pstmt.close();
+                }
+            } catch (SQLException e) {
+            }
+        }
+    }
+
     protected Map<String, String> isLocked(String key) {
         PreparedStatement pstmt = null;
         ResultSet rs = null;
@@ -267,49 +461,91 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             } catch (SQLException e) {
             }
         }
+
+        if (msId == _msId) {
+            dropLeases();
+        }
+    }
+
+    /**
+     * Forgets every lease of this server without touching op_lock, e.g. when this server is isolated and its
+     * peers delete its rows.  A lock in use stays with its holder until released, but is not kept as a lease.
+     */
+    public void dropLeases() {
+        for (Lease lease : _leases.values()) {
+            synchronized (lease) {
+                lease.held = false;
+                lease.contended = false;
+                lease.notifyAll();
+                removeIfUnused(lease);
+            }
+        }
     }
 
     public boolean release(String key) {
-        PreparedStatement pstmt = null;
         Thread th = Thread.currentThread();
-        String threadName = th.getName();
-        int threadId = System.identityHashCode(th);
-        try {
-            pstmt = _concierge.conn().prepareStatement(DECREMENT_SQL);
-            pstmt.setString(1, key);
-            pstmt.setLong(2, _msId);
-            pstmt.setString(3, threadName);
-            pstmt.setLong(4, threadId);
-            int rows = pstmt.executeUpdate();
-            assert (rows <= 1) : "hmmm....keys not unique? " + pstmt;
-           
-            
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("lck-" + key + " released");
-            }
-            if (rows == 1) {
-                pstmt.close();
-                pstmt = _concierge.conn().prepareStatement(RELEASE_SQL);
-                pstmt.setString(1, key);
-                pstmt.setLong(2, _msId);
-                int result = pstmt.executeUpdate();
-                if (result == 1 && s_logger.isTraceEnabled()) {
-                    s_logger.trace("lck-" + key + " removed");
+        Lease lease = _leases.get(key);
+        if (lease != null) {
+            synchronized (lease) {
+                if (lease.owner == th) {
+                    lease.count--;
+                    if (lease.releaseWithTransaction) {
+                        decrCount();
+                    }
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("lck-" + key + " released");
+                    }
+                    if (lease.count > 0) {
+                        return true;
+                    }
+
+                    getStats(key).released(System.currentTimeMillis() - lease.acquiredOn);
+                    lease.owner = null;
+                    if (_leaseTime > 0 && lease.held && !lease.contended) {
+                        lease.idleSince = System.currentTimeMillis();
+                    } else {
+                        releaseRow(lease);
+                    }
+                    lease.notifyAll();
+                    removeIfUnused(lease);
+                    return true;
                 }
-                decrCount();
-            } else  if (rows < 1) {
-                s_logger.warn("Was unable to find lock for the key " + key + " and thread id " + threadId);
             }
-            
-            return rows == 1;
-        } catch (SQLException e) {
-            throw new CloudRuntimeException("Unable to release " + key, e);
-        } finally {
-            try {
-                if (pstmt != null) {
-                    pstmt.close();
+        }
+
+        s_logger.warn("Was unable to find lock for the key " + key + " and thread id " + System.identityHashCode(th));
+        return false;
+    }
+
+    /**
+     * Called when another management server is waiting for a lock owned by this server.  An idle lease is
+     * released right away; a lock in use is released as soon as its holder is done with it.
+     */
+    public void releaseLeaseForPeer(String key) {
+        Lease lease = _leases.get(key);
+        if (lease == null) {
+            return;
+        }
+
+        getStats(key).requestedByPeer();
+        synchronized (lease) {
+            if (lease.owner == null) {
+                releaseRow(lease);
+                removeIfUnused(lease);
+            } else {
+                lease.contended = true;
+            }
+        }
+    }
+
+    protected void expireLeases() {
+        long now = System.currentTimeMillis();
+        for (Lease lease : _leases.values()) {
+            synchronized (lease) {
+                if (lease.owner == null && lease.held && now - lease.idleSince >= _leaseTime) {
+                    releaseRow(lease);
+                    removeIfUnused(lease);
                 }
-            } catch (SQLException e) {
             }
         }
     }
@@ -329,7 +565,23 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     protected List<Map<String, String>> toLocks(ResultSet rs) throws SQLException {
         LinkedList<Map<String, String>> results = new LinkedList<Map<String, String>>();
         while (rs.next()) {
-            results.add(toLock(rs));
+            Map<String, String> lock = toLock(rs);
+            if (lock.get("mgmt").equals(Long.toString(_msId))) {
+                // the row only records the first holder, the current one is in memory
+                Lease lease = _leases.get(lock.get("key"));
+                if (lease != null) {
+                    synchronized (lease) {
+                        if (lease.owner != null) {
+                            lock.put("name", lease.ownerName);
+                            lock.put("tid", Integer.toString(lease.ownerId));
+                            lock.put("count", Integer.toString(lease.count));
+                        } else {
+                            lock.put("count", "0");
+                        }
+                    }
+                }
+            }
+            results.add(lock);
         }
         return results;
     }
@@ -369,9 +621,41 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         return getLocks(SELECT_MGMT_LOCKS_SQL, _msId);
     }
 
+    @Override
+    public List<Map<String, String>> getLockStatistics() {
+        List<Map<String, String>> results = new ArrayList<Map<String, String>>(_stats.size());
+        for (Map.Entry<String, LockStats> entry : _stats.entrySet()) {
+            results.add(entry.getValue().toMap(entry.getKey()));
+        }
+        return results;
+    }
+
+    @Override
+    public void resetLockStatistics() {
+        _stats.clear();
+    }
+
+    @Override
+    public int getLeaseTime() {
+        return (int)(_leaseTime / 1000);
+    }
+
     public int owns(String key) {
         Thread th = Thread.currentThread();
         int threadId = System.identityHashCode(th);
+        Lease lease = _leases.get(key);
+        if (lease != null) {
+            synchronized (lease) {
+                if (lease.owner == th) {
+                    return lease.count;
+                } else if (lease.owner != null) {
+                    return -1;
+                } else if (lease.held) {
+                    return 0;
+                }
+            }
+        }
+
         Map<String, String> owner = isLocked(key);
         if (owner == null) {
             return 0;
@@ -418,32 +702,35 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         count.count = 0;
 
         Thread th = Thread.currentThread();
-        String threadName = th.getName();
-        int threadId = System.identityHashCode(th);
-
-        PreparedStatement pstmt = null;
-        try {
-            pstmt = _concierge.conn().prepareStatement(CLEANUP_THREAD_LOCKS_SQL);
-            pstmt.setLong(1, _msId);
-            pstmt.setString(2, threadName);
-            pstmt.setInt(3, threadId);
-            int rows = pstmt.executeUpdate();
-            assert (false) : "Abandon hope, all ye who enter here....There were still " + rows + ":" + c + " locks not released when the transaction ended, check for lock not released or @DB is not added to the code that using the locks!";
-        } catch (SQLException e) {
-            throw new CloudRuntimeException("Can't clear locks " + pstmt, e);
-        } finally {
-            try {
-                if (pstmt != null) {
-                    pstmt.close();
+        int rows = 0;
+        for (Lease lease : _leases.values()) {
+            synchronized (lease) {
+                if (lease.owner == th && lease.releaseWithTransaction) {
+                    lease.owner = null;
+                    lease.count = 0;
+                    releaseRow(lease);
+                    lease.notifyAll();
+                    removeIfUnused(lease);
+                    rows++;
                 }
-            } catch (SQLException e) {
             }
         }
+        assert (false) : "Abandon hope, all ye who enter here....There were still " + rows + ":" + c + " locks not released when the transaction ended, check for lock not released or @DB is not added to the code that using the locks!";
     }
 
     @Override
     public boolean releaseLockAsLastResortAndIReallyKnowWhatIAmDoing(String key) {
         s_logger.info("Releasing a lock from JMX lck-" + key);
+        Lease lease = _leases.get(key);
+        if (lease != null) {
+            synchronized (lease) {
+                lease.held = false;
+                lease.contended = false;
+                lease.notifyAll();
+                removeIfUnused(lease);
+            }
+        }
+
         PreparedStatement pstmt = null;
         try {
             pstmt = _concierge.conn().prepareStatement(RELEASE_LOCK_SQL);
@@ -455,7 +742,113 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             return false;
         }
     }
+
     protected static class Count {
         public int count = 0;
     }
+
+    /**
+     * What this server knows about one lock.  held tells whether this server has the row in op_lock; owner is
+     * the thread using the lock, or null if the row is kept as an idle lease.
+     */
+    protected static class Lease {
+        final String key;
+        Thread owner;
+        String ownerName;
+        int ownerId;
+        int count;
+        boolean releaseWithTransaction;
+        boolean held;
+        boolean contended;
+        boolean removed;
+        int waiters;
+        long acquiredOn;
+        long idleSince;
+        long confirmedOn;
+
+        Lease(String key) {
+            this.key = key;
+        }
+
+        void take(Thread th, boolean releaseWithTransaction) {
+            owner = th;
+            ownerName = th.getName();
+            ownerId = System.identityHashCode(th);
+            count = 1;
+            this.releaseWithTransaction = releaseWithTransaction;
+            acquiredOn = System.currentTimeMillis();
+        }
+    }
+
+    protected static class LockStats {
+        long acquired;
+        long reentered;
+        long fromLease;
+        long waited;
+        long timedOut;
+        long totalWaitMs;
+        long maxWaitMs;
+        long totalHoldMs;
+        long maxHoldMs;
+        long peerRequests;
+
+        synchronized void acquired(boolean lease, boolean contended, long waitMs) {
+            acquired++;
+            if (lease) {
+                fromLease++;
+            }
+            if (contended) {
+                waited++;
+                totalWaitMs += waitMs;
+                maxWaitMs = Math.max(maxWaitMs, waitMs);
+            }
+        }
+
+        synchronized void reentered() {
+            reentered++;
+        }
+
+        synchronized void timedOut(long waitMs) {
+            timedOut++;
+            totalWaitMs += waitMs;
+            maxWaitMs = Math.max(maxWaitMs, waitMs);
+        }
+
+        synchronized void released(long holdMs) {
+            totalHoldMs += holdMs;
+            maxHoldMs = Math.max(maxHoldMs, holdMs);
+        }
+
+        synchronized void requestedByPeer() {
+            peerRequests++;
+        }
+
+        synchronized Map<String, String> toMap(String key) {
+            Map<String, String> map = new HashMap<String, String>();
+            map.put("key", key);
+            map.put("acquired", Long.toString(acquired));
+            map.put("reentered", Long.toString(reentered));
+            map.put("fromLease", Long.toString(fromLease));
+            map.put("waited", Long.toString(waited));
+            map.put("timedOut", Long.toString(timedOut));
+            long waits = waited + timedOut;
+            map.put("avgWaitMs", Long.toString(waits > 0 ? totalWaitMs / waits : 0));
+            map.put("maxWaitMs", Long.toString(maxWaitMs));
+            map.put("avgHoldMs", Long.toString(acquired > 0 ? totalHoldMs / acquired : 0));
+            map.put("maxHoldMs", Long.toString(maxHoldMs));
+            map.put("peerRequests", Long.toString(peerRequests));
+            return map;
+        }
+    }
+
+    protected class LeaseExpiryTask implements Runnable {
+        @Override
+        public void run() {
+            try {
+                expireLeases();
+            } catch (Throwable th) {
+                s_logger.warn("Unable to expire lock leases", th);
+            }
+        }
+    }
 }
@@ -29,4 +29,16 @@ public interface MerovingianMBean {
     boolean releaseLockAsLastResortAndIReallyKnowWhatIAmDoing(String key);
     
     void cleanupForServer(long msId);
+    
+    /**
+     * @return per lock name: acquisitions, re-entries, acquisitions served from a lease, waits, timeouts, wait and hold times in ms, and release requests from other servers.
+     */
+    List<Map<String, String>> getLockStatistics();
+    
+    void resetLockStatistics();
+    
+    /**
+     * @return seconds a released lock is kept by this server; 0 if leases are disabled.
+     */
+    int getLeaseTime();
 }
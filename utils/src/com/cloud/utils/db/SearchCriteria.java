@@ -118,6 +118,7 @@ public class SearchCriteria<K> {
     private final Class<K> _resultType;
     private final SelectType _selectType;
     private final QueryBuilder<?, K> _builder;
+    private final Map<String, String> _sqlTemplates;
     
     protected SearchCriteria(QueryBuilder<?, K> builder) {
         _builder = builder;
@@ -131,6 +132,7 @@ public class SearchCriteria<K> {
         _groupByValues = null;
         _resultType = null;
         _selectType = null;
+        _sqlTemplates = null;
     }
     
     protected SearchCriteria(final Map<String, Attribute> attrs, ArrayList<GenericSearchBuilder.Condition> conditions, ArrayList<Select> selects, SelectType selectType, Class<K> resultType, HashMap<String, Object[]> params) {
@@ -146,6 +148,7 @@ public class SearchCriteria<K> {
 		this._joins = null;
 		this._groupBy = null;
 		this._groupByValues = null;
+		this._sqlTemplates = null;
     }
     
     protected SearchCriteria(GenericSearchBuilder<?, K> sb) {
@@ -171,6 +174,7 @@ public class SearchCriteria<K> {
         }
         _resultType = sb._resultType;
         _selectType = sb._selectType;
+        _sqlTemplates = sb._sqlTemplates;
     }
     
     public SelectType getSelectType() {
@@ -297,6 +301,18 @@ public class SearchCriteria<K> {
         setParameters(name, values);
     }
     
+    /**
+     * Adds an AND condition that is left out of the search until its value
+     * is given through setParameters().
+     * 
+     * @return name of the condition to set the parameters with.
+     */
+    public String addAndCondition(Attribute attr, Op op) {
+        String name = Integer.toString(_counter++);
+        addCondition(name, " AND ", attr, op);
+        return name;
+    }
+
     protected void addCondition(String conditionName, String cond, String fieldName, Op op) {
     	Attribute attr = _attrs.get(fieldName);
     	assert attr != null : "Unable to find field: " + fieldName;
@@ -328,6 +344,130 @@ public class SearchCriteria<K> {
         return sql.toString();
     }
     
+    /**
+     * Finds the values a search restricts an attribute to, which is the case
+     * when an EQ or IN condition on it is in use outside of any parenthesis
+     * and no OR is.
+     * 
+     * @return the values or null if the search can match any value of attr.
+     */
+    protected Object[] getRequiredValues(Attribute attr) {
+        if (_conditions == null || _joins != null) {
+            return null;
+        }
+
+        Object[] values = null;
+        int depth = 0;
+        ArrayList<Condition> conditions = new ArrayList<Condition>(_conditions);
+        if (_additionals != null) {
+            conditions.addAll(_additionals);
+        }
+        for (Condition condition : conditions) {
+            Object[] params = _params.get(condition.name);
+            if (condition.op != null && condition.op.params != 0 && params == null) {
+                continue;
+            }
+            if (condition.op == Op.RP) {
+                depth--;
+                continue;
+            }
+            if (depth == 0 && condition.cond != null && condition.cond.contains("OR")) {
+                return null;
+            }
+            if (condition.cond != null && condition.cond.contains("(")) {
+                depth++;
+                continue;
+            }
+            if (depth == 0 && values == null && attr.equals(condition.attr)
+                    && (condition.op == Op.EQ || condition.op == Op.IN) && params.length > 0) {
+                values = params;
+            }
+        }
+
+        if (values != null) {
+            for (Object value : values) {
+                if (value == null) {
+                    return null;
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Describes which conditions of the search are in use and how many
+     * parameters each one takes.  Two criteria created from the same
+     * SearchBuilder with the same key generate the same sql.
+     * 
+     * @return the key or null if the sql generated can not be reused.
+     */
+    protected String getSqlTemplateKey() {
+        if (_sqlTemplates == null || _joins != null || _groupBy != null) {
+            return null;
+        }
+
+        StringBuilder key = new StringBuilder(_conditions.size() + 8);
+        for (Condition condition : _conditions) {
+            if (condition.op == null || condition.op.params == 0) {
+                key.append('c');
+                continue;
+            }
+
+            Object[] params = _params.get(condition.name);
+            if (params == null) {
+                key.append('-');
+            } else if (condition.op == Op.SC) {
+                return null;
+            } else if (condition.op.params == -1) {
+                key.append(params.length).append(',');
+            } else if ((condition.op == Op.EQ || condition.op == Op.NEQ) && (params.length == 0 || params[0] == null)) {
+                key.append('n');
+            } else {
+                key.append('p');
+            }
+        }
+
+        // Conditions added after create(), such as the "removed IS NULL" added
+        // by GenericDaoBase, are not known to the builder so they are spelled out.
+        if (_additionals != null) {
+            for (Condition condition : _additionals) {
+                if (condition.op == Op.SC) {
+                    return null;
+                }
+
+                key.append('|').append(condition.cond.trim()).append(' ').append(condition.attr).append(' ').append(condition.op.name());
+                Object[] params = _params.get(condition.name);
+                if (condition.op.params == 0) {
+                    continue;
+                } else if (params == null) {
+                    key.append('-');
+                } else if (condition.op.params == -1) {
+                    key.append(params.length);
+                } else if ((condition.op == Op.EQ || condition.op == Op.NEQ) && (params.length == 0 || params[0] == null)) {
+                    key.append('n');
+                }
+            }
+        }
+
+        return key.toString();
+    }
+
+    protected String getSqlTemplate(String key) {
+        String sql = _sqlTemplates.get(key);
+        if (sql != null) {
+            GenericSearchBuilder.s_sqlTemplateHits.incrementAndGet();
+        } else {
+            GenericSearchBuilder.s_sqlTemplateMisses.incrementAndGet();
+        }
+        return sql;
+    }
+
+    protected void putSqlTemplate(String key, String sql) {
+        if (_sqlTemplates.size() < GenericSearchBuilder.MAX_SQL_TEMPLATES) {
+            _sqlTemplates.put(key, sql);
+        }
+    }
+
     public List<Pair<Attribute, Object>> getValues() {
         ArrayList<Pair<Attribute, Object>> params = new ArrayList<Pair<Attribute, Object>>(_params.size());
         for (Condition condition : _conditions) {
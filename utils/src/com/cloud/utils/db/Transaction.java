@@ -28,6 +28,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.sql.DataSource;
@@ -37,6 +38,8 @@ import org.apache.commons.dbcp.DriverManagerConnectionFactory;
 import org.apache.commons.dbcp.PoolableConnectionFactory;
 import org.apache.commons.dbcp.PoolingDataSource;
 import org.apache.commons.pool.KeyedObjectPoolFactory;
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import org.apache.commons.pool.impl.GenericKeyedObjectPoolFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
 import org.apache.commons.pool.impl.StackKeyedObjectPoolFactory;
 import org.apache.log4j.Logger;
@@ -84,6 +87,8 @@ public class Transaction {
     public static final short CONNECTED_DB = -1;
 
     private static AtomicLong s_id = new AtomicLong();
+    private static final AtomicLong s_stmtPrepareCount = new AtomicLong();
+    private static final AtomicLong s_stmtPrepareNanos = new AtomicLong();
     private static final TransactionMBeanImpl s_mbean = new TransactionMBeanImpl();
     static {
         try {
@@ -97,6 +102,8 @@ public class Transaction {
     private long _id;
 
     private final LinkedList<Pair<String, Long>> _lockTimes = new LinkedList<Pair<String, Long>>();
+    private final LinkedList<Runnable> _completionTasks = new LinkedList<Runnable>();
+    private final LinkedList<Runnable> _commitTasks = new LinkedList<Runnable>();
 
     private String _name;
     private Connection _conn;
@@ -409,6 +416,19 @@ public class Transaction {
         }
     }
 
+    protected static void recordPrepare(long start) {
+        s_stmtPrepareCount.incrementAndGet();
+        s_stmtPrepareNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    public static long getStatementPrepareCount() {
+        return s_stmtPrepareCount.get();
+    }
+
+    public static long getStatementPrepareTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(s_stmtPrepareNanos.get());
+    }
+
     protected void closePreviousStatement() {
         if (_stmt != null) {
             try {
@@ -451,7 +471,9 @@ public class Transaction {
 
     public PreparedStatement prepareStatement(final String sql) throws SQLException {
         final Connection conn = getConnection();
+        final long start = System.nanoTime();
         final PreparedStatement pstmt = conn.prepareStatement(sql);
+        recordPrepare(start);
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
         }
@@ -471,7 +493,9 @@ public class Transaction {
      */
     public PreparedStatement prepareAutoCloseStatement(final String sql, final int autoGeneratedKeys) throws SQLException {
         final Connection conn = getConnection();
+        final long start = System.nanoTime();
         final PreparedStatement pstmt = conn.prepareStatement(sql, autoGeneratedKeys);
+        recordPrepare(start);
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
         }
@@ -493,7 +517,9 @@ public class Transaction {
      */
     public PreparedStatement prepareAutoCloseStatement(final String sql, final String[] columnNames) throws SQLException {
         final Connection conn = getConnection();
+        final long start = System.nanoTime();
         final PreparedStatement pstmt = conn.prepareStatement(sql, columnNames);
+        recordPrepare(start);
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
         }
@@ -514,7 +540,9 @@ public class Transaction {
      */
     public PreparedStatement prepareAutoCloseStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
         final Connection conn = getConnection();
+        final long start = System.nanoTime();
         final PreparedStatement pstmt = conn.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        recordPrepare(start);
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
         }
@@ -697,6 +725,58 @@ public class Transaction {
         }
     }
 
+    /**
+     * Registers a task to be run once the outermost DB transaction of this
+     * thread completes, whether it commits or rolls back.  If there's no DB
+     * transaction in progress, the task is run immediately.
+     * 
+     * @param task task to run.
+     */
+    public void registerCompletionTask(Runnable task) {
+        if (!_txn) {
+            task.run();
+            return;
+        }
+        _completionTasks.add(task);
+    }
+
+    /**
+     * Registers a task to be run once the outermost DB transaction of this
+     * thread commits.  The task is dropped if the transaction rolls back.
+     * If there's no DB transaction in progress, the task is run immediately.
+     * 
+     * @param task task to run.
+     */
+    public void registerCommitTask(Runnable task) {
+        if (!_txn) {
+            task.run();
+            return;
+        }
+        _commitTasks.add(task);
+    }
+
+    protected void runCompletionTasks(boolean committed) {
+        while (!_commitTasks.isEmpty()) {
+            Runnable task = _commitTasks.removeFirst();
+            if (!committed) {
+                continue;
+            }
+            try {
+                task.run();
+            } catch (Exception e) {
+                s_logger.warn("Unable to run transaction commit task " + task, e);
+            }
+        }
+        while (!_completionTasks.isEmpty()) {
+            Runnable task = _completionTasks.removeFirst();
+            try {
+                task.run();
+            } catch (Exception e) {
+                s_logger.warn("Unable to run transaction completion task " + task, e);
+            }
+        }
+    }
+
     public boolean commit() {
         if (!_txn) {
             s_logger.warn("txn: Commit called when it is not a transaction: " + buildName());
@@ -727,6 +807,7 @@ public class Transaction {
                 clearLockTimes();
                 closeConnection();
             }
+            runCompletionTasks(true);
             return true;
         } catch (final SQLException e) {
             rollbackTransaction();
@@ -847,6 +928,8 @@ public class Transaction {
             closeConnection();
         } catch(final SQLException e) {
             s_logger.warn("Unable to rollback", e);
+        } finally {
+            runCompletionTasks(false);
         }
     }
 
@@ -862,6 +945,7 @@ public class Transaction {
         if (!hasTxnInStack()) {
             _txn = false;
             closeConnection();
+            runCompletionTasks(false);
         }
     }
 
@@ -913,6 +997,7 @@ public class Transaction {
         if (!hasTxnInStack()) {
             _txn = false;
             closeConnection();
+            runCompletionTasks(true);
         }
     }
 
@@ -1043,6 +1128,7 @@ public class Transaction {
             final int cloudRemoveAbandonedTimeout = Integer.parseInt(dbProps.getProperty("db.cloud.removeAbandonedTimeout"));
             final boolean cloudLogAbandoned = Boolean.parseBoolean(dbProps.getProperty("db.cloud.logAbandoned"));
             final boolean cloudPoolPreparedStatements = Boolean.parseBoolean(dbProps.getProperty("db.cloud.poolPreparedStatements"));
+            final int cloudMaxOpenPreparedStatements = Integer.parseInt(dbProps.getProperty("db.cloud.maxOpenPreparedStatements", "256"));
             final String url = dbProps.getProperty("db.cloud.url.params");
             final boolean useSSL = Boolean.parseBoolean(dbProps.getProperty("db.cloud.useSSL"));
             if(useSSL){
@@ -1056,7 +1142,10 @@ public class Transaction {
                     cloudMaxWait, cloudMaxIdle, cloudTestOnBorrow, false, cloudTimeBtwEvictionRunsMillis, 1, cloudMinEvcitableIdleTimeMillis, cloudTestWhileIdle);
             final ConnectionFactory cloudConnectionFactory = new DriverManagerConnectionFactory("jdbc:mysql://"+cloudHost + ":" + cloudPort + "/" + cloudDbName +
                     "?autoReconnect="+cloudAutoReconnect + (url != null ? "&" + url : "")+ (useSSL ? "&useSSL=true" : ""), cloudUsername, cloudPassword);
-            final KeyedObjectPoolFactory poolableObjFactory = (cloudPoolPreparedStatements ? new StackKeyedObjectPoolFactory() : null);
+            // The statement pool is per connection and keyed by the sql.  Once it is full the
+            // least recently returned statement is closed to make room for the new one.
+            final KeyedObjectPoolFactory poolableObjFactory = (cloudPoolPreparedStatements ? new GenericKeyedObjectPoolFactory(null, -1,
+                    GenericKeyedObjectPool.WHEN_EXHAUSTED_GROW, 0, 1, cloudMaxOpenPreparedStatements) : null);
             final PoolableConnectionFactory cloudPoolableConnectionFactory = new PoolableConnectionFactory(cloudConnectionFactory, cloudConnectionPool, poolableObjFactory,
                     cloudValidationQuery, false, false, isolationLevel);
             s_ds = new PoolingDataSource(cloudPoolableConnectionFactory.getPool());
@@ -29,5 +29,13 @@ public interface TransactionMBean {
     List<Map<String, String>> getActiveTransactions();
     
     List<Map<String, String>> getTransactionsWithDatabaseConnection();
+
+    long getStatementPrepareCount();
+
+    long getStatementPrepareTimeMillis();
+
+    long getSqlTemplateHits();
+
+    long getSqlTemplateMisses();
     
 }
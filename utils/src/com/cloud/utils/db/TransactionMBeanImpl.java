@@ -110,4 +110,24 @@ public class TransactionMBeanImpl extends StandardMBean implements TransactionMB
         }
         return txns;
     }
+
+    @Override
+    public long getStatementPrepareCount() {
+        return Transaction.getStatementPrepareCount();
+    }
+
+    @Override
+    public long getStatementPrepareTimeMillis() {
+        return Transaction.getStatementPrepareTimeMillis();
+    }
+
+    @Override
+    public long getSqlTemplateHits() {
+        return GenericSearchBuilder.getSqlTemplateHits();
+    }
+
+    @Override
+    public long getSqlTemplateMisses() {
+        return GenericSearchBuilder.getSqlTemplateMisses();
+    }
 }
@@ -0,0 +1,93 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BufferPool keeps direct ByteBuffers of one size around so the SSL
+ * packet buffers used on every agent write are not allocated, and then
+ * garbage collected, once per packet.
+ */
+public class BufferPool {
+    private final int _bufferSize;
+    private final int _maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> _pool;
+    private final AtomicInteger _pooled;
+    private final AtomicLong _allocated;
+    private final AtomicLong _reused;
+
+    /**
+     * @param bufferSize size of the buffers handed out.
+     * @param maxPooled number of released buffers to hold on to.  Buffers released past that are left to the GC.
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        _bufferSize = bufferSize;
+        _maxPooled = maxPooled;
+        _pool = new ConcurrentLinkedQueue<ByteBuffer>();
+        _pooled = new AtomicInteger(0);
+        _allocated = new AtomicLong(0);
+        _reused = new AtomicLong(0);
+    }
+
+    /**
+     * @return a cleared buffer of getBufferSize() bytes.  Give it back with release() when done.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = _pool.poll();
+        if (buffer != null) {
+            _pooled.decrementAndGet();
+            _reused.incrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+
+        _allocated.incrementAndGet();
+        return ByteBuffer.allocateDirect(_bufferSize);
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != _bufferSize) {
+            return;
+        }
+
+        if (_pooled.incrementAndGet() > _maxPooled) {
+            _pooled.decrementAndGet();
+            return;
+        }
+        _pool.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return _bufferSize;
+    }
+
+    public int getPooledCount() {
+        return _pooled.get();
+    }
+
+    public long getAllocatedCount() {
+        return _allocated.get();
+    }
+
+    public long getReusedCount() {
+        return _reused.get();
+    }
+}
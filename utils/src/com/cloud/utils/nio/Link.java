@@ -29,6 +29,8 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.WritableByteChannel;
 import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.net.ssl.KeyManagerFactory;
@@ -53,6 +55,9 @@ public class Link {
     private final NioConnection _connection;
     private SelectionKey _key;
     private final ConcurrentLinkedQueue<ByteBuffer[]> _writeQueue;
+    // packets the socket did not take yet and whether to close once they are out, selector thread only
+    private final List<ByteBuffer> _pendingPackets = new ArrayList<ByteBuffer>();
+    private boolean _closePending;
     private ByteBuffer _readBuffer;
     private ByteBuffer _plaintextBuffer;
     private Object _attach;
@@ -60,6 +65,7 @@ public class Link {
     private boolean _gotFollowingPacket;
     
     private SSLEngine _sslEngine;
+    private volatile int _codecVersion;
 
     public Link(InetSocketAddress addr, NioConnection connection) {
         _addr = addr;
@@ -92,6 +98,17 @@ public class Link {
         _sslEngine = sslEngine;
     }
 
+    /**
+     * @return version of the compact encoding agreed with the other side, 0 if not agreed.
+     */
+    public int getCodecVersion() {
+        return _codecVersion;
+    }
+
+    public void setCodecVersion(int codecVersion) {
+        _codecVersion = codecVersion;
+    }
+
     /**
      * No user, so comment it out.
      * 
@@ -135,59 +152,150 @@ public class Link {
     }
     */
     
-    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
-        SSLSession sslSession = sslEngine.getSession();
-        ByteBuffer pkgBuf = ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
-        SSLEngineResult engResult;
+    /**
+     * @return the pool of packet buffers big enough for the SSL records of this engine
+     *         plus our 4 byte header.
+     */
+    private static BufferPool getPacketPool(SSLEngine sslEngine) {
+        int size = sslEngine.getSession().getPacketBufferSize() + 40 + 4;
+        BufferPool pool = s_packetPool;
+        if (pool == null || pool.getBufferSize() < size) {
+            synchronized (Link.class) {
+                pool = s_packetPool;
+                if (pool == null || pool.getBufferSize() < size) {
+                    pool = new BufferPool(size, MAX_POOLED_PACKET_BUFFERS);
+                    s_packetPool = pool;
+                }
+            }
+        }
+        return pool;
+    }
 
-        ByteBuffer headBuf = ByteBuffer.allocate(4);
-        
-        int totalLen = 0;
+    public static BufferPool getPacketPool() {
+        return s_packetPool;
+    }
+
+    private static int remaining(ByteBuffer[] buffers) {
+        int remaining = 0;
         for (ByteBuffer buffer : buffers) {
-            totalLen += buffer.limit();
+            remaining += buffer.remaining();
         }
+        return remaining;
+    }
 
-        int processedLen = 0;
-        while (processedLen < totalLen) {
-            headBuf.clear();
-            pkgBuf.clear();
+    /**
+     * Wraps one message into as many SSL records as needed.  Each record is
+     * put in its own pooled buffer behind the 4 byte header and added to
+     * packets, ready to be written.
+     */
+    private static void wrap(ByteBuffer[] buffers, SSLEngine sslEngine, List<ByteBuffer> packets) throws IOException {
+        BufferPool pool = getPacketPool(sslEngine);
+        SSLEngineResult engResult;
+
+        int remaining = remaining(buffers);
+        while (remaining > 0) {
+            ByteBuffer pkgBuf = pool.acquire();
+            packets.add(pkgBuf);
+
+            pkgBuf.position(4);
             engResult = sslEngine.wrap(buffers, pkgBuf);
             if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
                     engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
                     engResult.getStatus() != SSLEngineResult.Status.OK) {
                 throw new IOException("SSL: SSLEngine return bad result! " + engResult);
             }
-            
-            processedLen = 0;
-            for (ByteBuffer buffer : buffers) {
-                processedLen += buffer.position();
-            }
 
-            int dataRemaining = pkgBuf.position();
-            int header = dataRemaining;
-            int headRemaining = 4;
-            pkgBuf.flip();
-            if (processedLen < totalLen) {
+            remaining = remaining(buffers);
+            int header = pkgBuf.position() - 4;
+            if (remaining > 0) {
                 header = header | HEADER_FLAG_FOLLOWING;
             }
-            headBuf.putInt(header);
-            headBuf.flip();
+            pkgBuf.putInt(0, header);
+            pkgBuf.flip();
+        }
+    }
 
-            while (headRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Header " + headRemaining);
-                }
-                long count = ch.write(headBuf);
-                headRemaining -= count;
+    /**
+     * Writes all of the packets in one gathering write and gives the buffers
+     * back to the pool.
+     * 
+     * @return number of bytes written.
+     */
+    private static long flush(SocketChannel ch, List<ByteBuffer> packets) throws IOException {
+        if (packets.isEmpty()) {
+            return 0;
+        }
+
+        ByteBuffer[] srcs = packets.toArray(new ByteBuffer[packets.size()]);
+        long total = remaining(srcs);
+        long written = 0;
+        while (written < total) {
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Writing " + srcs.length + " packets, remaining " + (total - written));
             }
-            while (dataRemaining > 0) {
+            written += ch.write(srcs);
+        }
+
+        release(packets);
+        return total;
+    }
+
+    /**
+     * Writes as much of the packets as the socket takes without blocking.  The
+     * packets written out completely are given back to the pool and removed
+     * from the list, the rest is left for the next call.
+     * 
+     * @return number of bytes written.
+     */
+    private static long flushAvailable(SocketChannel ch, List<ByteBuffer> packets) throws IOException {
+        if (packets.isEmpty()) {
+            return 0;
+        }
+
+        ByteBuffer[] srcs = packets.toArray(new ByteBuffer[packets.size()]);
+        long written = 0;
+        while (remaining(srcs) > 0) {
+            long count = ch.write(srcs);
+            if (count == 0) {
                 if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Data " + dataRemaining);
+                    s_logger.trace("Socket buffer is full, " + remaining(srcs) + " bytes left for later");
                 }
-                long count = ch.write(pkgBuf);
-                dataRemaining -= count;
+                break;
+            }
+            written += count;
+        }
+
+        int done = 0;
+        while (done < srcs.length && !srcs[done].hasRemaining()) {
+            done++;
+        }
+        List<ByteBuffer> sent = packets.subList(0, done);
+        release(sent);
+        return written;
+    }
+
+    private static void release(List<ByteBuffer> packets) {
+        if (packets.isEmpty()) {
+            return;
+        }
+
+        BufferPool pool = s_packetPool;
+        if (pool != null) {
+            for (ByteBuffer packet : packets) {
+                pool.release(packet);
             }
         }
+        packets.clear();
+    }
+
+    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
+        List<ByteBuffer> packets = new ArrayList<ByteBuffer>();
+        try {
+            wrap(buffers, sslEngine, packets);
+            flush(ch, packets);
+        } finally {
+            release(packets);
+        }
     }
     
     /**
@@ -208,6 +316,13 @@ public class Link {
     /* SSL has limitation of 16k, we may need to split packets. 18000 is 16k + some extra SSL informations */
     protected static final int      MAX_SIZE_PER_PACKET = 18000;
     protected static final int      HEADER_FLAG_FOLLOWING = 0x10000;
+    /* Number of packets queued up before they are written out in one go */
+    protected static final int      MAX_GATHERED_PACKETS = 64;
+    protected static final int      MAX_POOLED_PACKET_BUFFERS = 512;
+    /* Plain text buffers bigger than this are not kept around between messages */
+    protected static final int      MAX_RETAINED_PLAINTEXT_SIZE = 64 * 1024;
+
+    private static volatile BufferPool s_packetPool;
     
     public byte[] read(SocketChannel ch) throws IOException {
         if (_readHeader) {   // Start of a packet
@@ -215,9 +330,11 @@ public class Link {
                 _readBuffer.limit(4);
             }
             
-            if (ch.read(_readBuffer) == -1) {
+            int read = ch.read(_readBuffer);
+            if (read == -1) {
                 throw new IOException("Connection closed with -1 on reading size.");
             }
+            _connection.recordRead(read, 0);
             
             if (_readBuffer.hasRemaining()) {
                 s_logger.trace("Need to read the rest of the packet length");
@@ -235,7 +352,11 @@ public class Link {
             }
             
             if (!_gotFollowingPacket) {
-                _plaintextBuffer = ByteBuffer.allocate(2000);
+                if (_plaintextBuffer == null) {
+                    _plaintextBuffer = ByteBuffer.allocate(_sslEngine.getSession().getApplicationBufferSize() + 40);
+                } else {
+                    _plaintextBuffer.clear();
+                }
             }
             
             if ((header & HEADER_FLAG_FOLLOWING) != 0) {
@@ -256,9 +377,11 @@ public class Link {
             _readBuffer.limit(readSize);
         }
         
-        if (ch.read(_readBuffer) == -1) {
+        int read = ch.read(_readBuffer);
+        if (read == -1) {
             throw new IOException("Connection closed with -1 on read.");
         }
+        _connection.recordRead(read, 0);
         
         if (_readBuffer.hasRemaining()) {   // We're not done yet.
             if (s_logger.isTraceEnabled()) {
@@ -269,16 +392,22 @@ public class Link {
         
         _readBuffer.flip();
 
-        ByteBuffer appBuf;
-
         SSLSession sslSession = _sslEngine.getSession();
         SSLEngineResult engResult;
         int remaining = 0;
 
         while (_readBuffer.hasRemaining()) {
             remaining = _readBuffer.remaining();
-            appBuf = ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
-            engResult = _sslEngine.unwrap(_readBuffer, appBuf);
+            int appSize = sslSession.getApplicationBufferSize() + 40;
+            if (_plaintextBuffer.remaining() < appSize) {
+                // Unwrap straight into _plaintextBuffer so make sure a whole record fits
+                ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(_plaintextBuffer.capacity() * 2, _plaintextBuffer.position() + appSize));
+                _plaintextBuffer.flip();
+                newBuffer.put(_plaintextBuffer);
+                _plaintextBuffer = newBuffer;
+            }
+            int position = _plaintextBuffer.position();
+            engResult = _sslEngine.unwrap(_readBuffer, _plaintextBuffer);
             if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
                     engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
                     engResult.getStatus() != SSLEngineResult.Status.OK) {
@@ -288,17 +417,8 @@ public class Link {
                 throw new IOException("SSL: Unable to unwrap received data! still remaining " + remaining + "bytes!");
             }
             
-            appBuf.flip();
-            if (_plaintextBuffer.remaining() < appBuf.limit()) {
-                // We need to expand _plaintextBuffer for more data
-                ByteBuffer newBuffer = ByteBuffer.allocate(_plaintextBuffer.capacity() + appBuf.limit() * 5);
-                _plaintextBuffer.flip();
-                newBuffer.put(_plaintextBuffer);
-                _plaintextBuffer = newBuffer;
-            }
-            _plaintextBuffer.put(appBuf);
             if (s_logger.isTraceEnabled()) {
-                s_logger.trace("Done with packet: " + appBuf.limit());
+                s_logger.trace("Done with packet: " + (_plaintextBuffer.position() - position));
             }
         }
         
@@ -309,6 +429,10 @@ public class Link {
             _plaintextBuffer.flip();
             byte[] result = new byte[_plaintextBuffer.limit()];
             _plaintextBuffer.get(result);
+            if (_plaintextBuffer.capacity() > MAX_RETAINED_PLAINTEXT_SIZE) {
+                _plaintextBuffer = null;
+            }
+            _connection.recordRead(0, 1);
             return result;
         } else {
             if (s_logger.isTraceEnabled()) {
@@ -327,22 +451,12 @@ public class Link {
     }
     
     public void send(ByteBuffer[] data, boolean close) throws ClosedChannelException {
-        ByteBuffer[] item = new ByteBuffer[data.length + 1];
-        int remaining = 0;
-        for (int i = 0; i < data.length; i++) {
-            remaining += data[i].remaining();
-            item[i + 1] = data[i];
-        }
-        
-        item[0] = ByteBuffer.allocate(4);
-        item[0].putInt(remaining);
-        item[0].flip();
-        
         if (s_logger.isTraceEnabled()) {
-            s_logger.trace("Sending packet of length " + remaining);
+            s_logger.trace("Sending packet of length " + remaining(data));
         }
         
-        _writeQueue.add(item);
+        // The length goes into the header of each SSL record when it is written out.
+        _writeQueue.add(data);
         if  (close) {
             _writeQueue.add(new ByteBuffer[0]);
         }
@@ -364,23 +478,61 @@ public class Link {
         }
     }
     
+    /**
+     * Writes out everything queued up.  The SSL records of several messages
+     * are gathered and written with a single write call.  Once the socket
+     * takes no more, the rest is kept and hasPendingWrites() tells the caller
+     * to wait until the socket is writable again.
+     * 
+     * @return true if the connection should be closed.
+     */
     public boolean write(SocketChannel ch) throws IOException {
+        List<ByteBuffer> packets = _pendingPackets;
+        _connection.recordWrite(flushAvailable(ch, packets), 0);
+        if (!packets.isEmpty()) {
+            return false;
+        }
+        if (_closePending) {
+            return true;
+        }
+
         ByteBuffer[] data = null;
+        int messages = 0;
         while ((data = _writeQueue.poll()) != null) {
             if (data.length == 0) {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Closing connection requested");
                 }
+                _connection.recordWrite(flushAvailable(ch, packets), messages);
+                if (!packets.isEmpty()) {
+                    _closePending = true;
+                    return false;
+                }
                 return true;
             }
 
-            ByteBuffer[] raw_data = new ByteBuffer[data.length - 1];
-            System.arraycopy(data, 1, raw_data, 0, data.length - 1);
-
-            doWrite(ch, raw_data, _sslEngine);
+            wrap(data, _sslEngine, packets);
+            messages++;
+            if (packets.size() >= MAX_GATHERED_PACKETS) {
+                _connection.recordWrite(flushAvailable(ch, packets), messages);
+                messages = 0;
+                if (!packets.isEmpty()) {
+                    // the socket is full, what is still queued waits for it as well
+                    return false;
+                }
+            }
         }
+        _connection.recordWrite(flushAvailable(ch, packets), messages);
         return false;
     }
+
+    /**
+     * @return true if the last write left data behind because the socket did
+     *         not take it, or if there may be more in the queue behind it.
+     */
+    public boolean hasPendingWrites() {
+        return !_pendingPackets.isEmpty() || _closePending;
+    }
     
     public InetSocketAddress getSocketAddress() {
         return _addr;
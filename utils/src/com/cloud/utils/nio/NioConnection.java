@@ -31,22 +31,32 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.StandardMBean;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 
 import org.apache.log4j.Logger;
 
 import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.mgmt.JmxUtil;
 
 /**
  * NioConnection abstracts the NIO socket operations.  The Java implementation
  * provides that.
+ * 
+ * By default one selector thread accepts, handshakes, reads and writes for
+ * every connection.  With setSelectorThreads() the selector thread only
+ * accepts; the SSL handshakes are done by a pool of workers and the
+ * connections are then spread across the given number of selector threads.
  */
-public abstract class NioConnection implements Runnable {
+public abstract class NioConnection implements Runnable, NioConnectionMBean {
     private static final Logger s_logger = Logger.getLogger(NioConnection.class);;
     
     protected Selector _selector;
@@ -58,6 +68,17 @@ public abstract class NioConnection implements Runnable {
     protected HandlerFactory _factory;
     protected String _name;
     protected ExecutorService _executor;
+    protected int _selectorCount;
+    protected int _handshakeWorkers;
+    protected SelectorThread[] _selectorThreads;
+    protected ExecutorService _handshakeExecutor;
+    private final AtomicInteger _nextSelectorThread = new AtomicInteger();
+
+    private final AtomicLong _bytesRead = new AtomicLong();
+    private final AtomicLong _bytesWritten = new AtomicLong();
+    private final AtomicLong _messagesRead = new AtomicLong();
+    private final AtomicLong _messagesWritten = new AtomicLong();
+    private final AtomicLong _writeCalls = new AtomicLong();
     
     public NioConnection(String name, int port, int workers, HandlerFactory factory) {
         _name = name;
@@ -69,20 +90,64 @@ public abstract class NioConnection implements Runnable {
         _executor = new ThreadPoolExecutor(workers, 5 * workers, 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name + "-Handler"));
     }
 
+    /**
+     * Spreads the accepted connections over several selector threads and
+     * does the SSL handshakes in a separate pool.  Must be called before
+     * start().
+     * 
+     * @param selectors number of selector threads for reads and writes; 0 keeps everything on one thread.
+     * @param handshakeWorkers number of threads doing the SSL handshakes.
+     */
+    public void setSelectorThreads(int selectors, int handshakeWorkers) {
+        _selectorCount = selectors;
+        _handshakeWorkers = handshakeWorkers > 0 ? handshakeWorkers : 1;
+    }
+
     public void start() {
         _todos = new ArrayList<ChangeRequest>();
         
+        if (_selectorCount > 0) {
+            SelectorThread[] threads = new SelectorThread[_selectorCount];
+            try {
+                for (int i = 0; i < threads.length; i++) {
+                    threads[i] = new SelectorThread(Selector.open());
+                }
+                _selectorThreads = threads;
+                _handshakeExecutor = Executors.newFixedThreadPool(_handshakeWorkers, new NamedThreadFactory(_name + "-Handshake"));
+            } catch (IOException e) {
+                s_logger.warn("Unable to open " + _selectorCount + " selectors for " + _name + ", falling back to one selector thread", e);
+                for (SelectorThread thread : threads) {
+                    if (thread != null) {
+                        thread.close();
+                    }
+                }
+            }
+        }
+
         _thread = new Thread(this, _name + "-Selector");
         _isRunning = true;
+        if (_selectorThreads != null) {
+            for (int i = 0; i < _selectorThreads.length; i++) {
+                _selectorThreads[i].start(_name + "-Selector-" + (i + 1));
+            }
+        }
         _thread.start();
-        // Wait until we got init() done
+        // Wait until we got init() done, the thread may already be past it or have died on it
         synchronized(_thread) {
             try {
-                _thread.wait();
+                while (!_isStartup && _thread.isAlive()) {
+                    _thread.wait();
+                }
             } catch (InterruptedException e) {
                 s_logger.warn("Interrupted start thread ", e);
             }
         }
+
+        try {
+            JmxUtil.registerMBean("NioConnection", _name, new StandardMBean(this, NioConnectionMBean.class));
+        } catch (Exception e) {
+            s_logger.warn("Unable to register " + _name + " for JMX", e);
+        }
     }
 
     public void stop() {
@@ -91,6 +156,86 @@ public abstract class NioConnection implements Runnable {
         if (_thread != null) {
             _thread.interrupt();
         }
+        if (_handshakeExecutor != null) {
+            _handshakeExecutor.shutdown();
+        }
+        if (_selectorThreads != null) {
+            for (SelectorThread thread : _selectorThreads) {
+                thread.stop();
+            }
+        }
+
+        try {
+            JmxUtil.unregisterMBean("NioConnection", _name);
+        } catch (Exception e) {
+            s_logger.debug("Unable to unregister " + _name + " from JMX: " + e.getMessage());
+        }
+    }
+
+    protected void recordRead(long bytes, int messages) {
+        if (bytes > 0) {
+            _bytesRead.addAndGet(bytes);
+        }
+        if (messages > 0) {
+            _messagesRead.addAndGet(messages);
+        }
+    }
+
+    protected void recordWrite(long bytes, int messages) {
+        if (bytes > 0) {
+            _bytesWritten.addAndGet(bytes);
+            _writeCalls.incrementAndGet();
+        }
+        if (messages > 0) {
+            _messagesWritten.addAndGet(messages);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return _bytesRead.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return _bytesWritten.get();
+    }
+
+    @Override
+    public long getMessagesRead() {
+        return _messagesRead.get();
+    }
+
+    @Override
+    public long getMessagesWritten() {
+        return _messagesWritten.get();
+    }
+
+    @Override
+    public long getWriteCalls() {
+        return _writeCalls.get();
+    }
+
+    @Override
+    public int getSelectorThreads() {
+        return _selectorThreads != null ? _selectorThreads.length : 0;
+    }
+
+    @Override
+    public long getPacketBuffersAllocated() {
+        BufferPool pool = Link.getPacketPool();
+        return pool != null ? pool.getAllocatedCount() : 0;
+    }
+
+    @Override
+    public long getPacketBuffersReused() {
+        BufferPool pool = Link.getPacketPool();
+        return pool != null ? pool.getReusedCount() : 0;
     }
     
     public boolean isRunning() {
@@ -124,40 +269,7 @@ public abstract class NioConnection implements Runnable {
             try {
                 _selector.select();
 
-                // Someone is ready for I/O, get the ready keys
-                Set<SelectionKey> readyKeys = _selector.selectedKeys();
-                Iterator<SelectionKey> i = readyKeys.iterator();
-
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Keys Processing: " + readyKeys.size());
-                }
-                // Walk through the ready keys collection.
-                while (i.hasNext()) {
-                    SelectionKey sk = i.next();
-                    i.remove();
-
-                    if (!sk.isValid()) {
-                        if (s_logger.isTraceEnabled()) {
-                            s_logger.trace("Selection Key is invalid: " + sk.toString());
-                        }
-                        Link link = (Link)sk.attachment();
-                        if (link != null) {
-                            link.terminated();
-                        } else {
-                            closeConnection(sk);
-                        }
-                    } else if (sk.isReadable()) {
-                        read(sk);
-                    } else if (sk.isWritable()) {
-                        write(sk);
-                    } else if (sk.isAcceptable()) {
-                        accept(sk);
-                    } else if (sk.isConnectable()) {
-                        connect(sk);
-                    }
-                }
-                
-                s_logger.trace("Keys Done Processing.");
+                processSelectedKeys(_selector);
 
                 processTodos();
             } catch (Throwable e) {
@@ -169,6 +281,46 @@ public abstract class NioConnection implements Runnable {
     	}
     }
 
+    /**
+     * Dispatches the keys that are ready in the selector.
+     */
+    protected void processSelectedKeys(Selector selector) throws IOException {
+        // Someone is ready for I/O, get the ready keys
+        Set<SelectionKey> readyKeys = selector.selectedKeys();
+        Iterator<SelectionKey> i = readyKeys.iterator();
+
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("Keys Processing: " + readyKeys.size());
+        }
+        // Walk through the ready keys collection.
+        while (i.hasNext()) {
+            SelectionKey sk = i.next();
+            i.remove();
+
+            if (!sk.isValid()) {
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Selection Key is invalid: " + sk.toString());
+                }
+                Link link = (Link)sk.attachment();
+                if (link != null) {
+                    link.terminated();
+                } else {
+                    closeConnection(sk);
+                }
+            } else if (sk.isReadable()) {
+                read(sk);
+            } else if (sk.isWritable()) {
+                write(sk);
+            } else if (sk.isAcceptable()) {
+                accept(sk);
+            } else if (sk.isConnectable()) {
+                connect(sk);
+            }
+        }
+        
+        s_logger.trace("Keys Done Processing.");
+    }
+
     abstract void init() throws IOException;
     abstract void registerLink(InetSocketAddress saddr, Link link);
     abstract void unregisterLink(InetSocketAddress saddr);
@@ -176,14 +328,48 @@ public abstract class NioConnection implements Runnable {
     protected void accept(SelectionKey key) throws IOException {
         ServerSocketChannel serverSocketChannel = (ServerSocketChannel)key.channel();
 
-        SocketChannel socketChannel = serverSocketChannel.accept();
+        final SocketChannel socketChannel = serverSocketChannel.accept();
+        if (socketChannel == null) {
+            return;
+        }
         Socket socket = socketChannel.socket();
         socket.setKeepAlive(true);
 
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Connection accepted for " + socket);
         }
-        
+
+        if (_selectorThreads == null) {
+            handshake(socketChannel, key.selector(), null);
+            return;
+        }
+
+        // Don't hold up the accepts behind the handshakes of a reconnect storm
+        final SelectorThread selectorThread = nextSelectorThread();
+        _handshakeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handshake(socketChannel, null, selectorThread);
+                } catch (Throwable e) {
+                    s_logger.warn("Unable to handshake with " + socketChannel.socket(), e);
+                    try {
+                        socketChannel.close();
+                    } catch (IOException ignore) {
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Does the SSL handshake on a newly accepted connection.  The connection is
+     * then either registered with the given selector right away, which must be
+     * done on the thread of that selector, or handed to the given selector thread.
+     */
+    protected void handshake(SocketChannel socketChannel, Selector selector, SelectorThread selectorThread) throws IOException {
+        Socket socket = socketChannel.socket();
+
         // Begin SSL handshake in BLOCKING mode
         socketChannel.configureBlocking(true);
 
@@ -215,11 +401,37 @@ public abstract class NioConnection implements Runnable {
         InetSocketAddress saddr = (InetSocketAddress)socket.getRemoteSocketAddress();
         Link link = new Link(saddr, this);
         link.setSSLEngine(sslEngine);
-        link.setKey(socketChannel.register(key.selector(), SelectionKey.OP_READ, link));
+        if (selectorThread != null) {
+            selectorThread.addTodo(new ChangeRequest(socketChannel, ChangeRequest.ACCEPT, SelectionKey.OP_READ, link));
+            return;
+        }
+        link.setKey(socketChannel.register(selector, SelectionKey.OP_READ, link));
+        connected(link);
+    }
+
+    protected void connected(Link link) {
         Task task = _factory.create(Task.Type.CONNECT, link, null);
-        registerLink(saddr, link);
+        registerLink(link.getSocketAddress(), link);
         _executor.execute(task);
     }
+
+    protected SelectorThread nextSelectorThread() {
+        int index = (_nextSelectorThread.getAndIncrement() & Integer.MAX_VALUE) % _selectorThreads.length;
+        return _selectorThreads[index];
+    }
+
+    protected SelectorThread getSelectorThread(SelectionKey key) {
+        if (_selectorThreads == null || key == null) {
+            return null;
+        }
+        Selector selector = key.selector();
+        for (SelectorThread thread : _selectorThreads) {
+            if (thread._ioSelector == selector) {
+                return thread;
+            }
+        }
+        return null;
+    }
     
     protected void terminate(SelectionKey key) {
         Link link = (Link)key.attachment();
@@ -293,6 +505,10 @@ public abstract class NioConnection implements Runnable {
             _todos = new ArrayList<ChangeRequest>();
         }
 
+        processTodos(_selector, todos);
+    }
+
+    protected void processTodos(Selector selector, List<ChangeRequest> todos) {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Todos Processing: " + todos.size());
         }
@@ -316,7 +532,7 @@ public abstract class NioConnection implements Runnable {
                     break;
                 case ChangeRequest.REGISTER :
                     try {
-                        key = ((SocketChannel)(todo.key)).register(_selector, todo.ops, todo.att);
+                        key = ((SocketChannel)(todo.key)).register(selector, todo.ops, todo.att);
                         if (todo.att != null) {
                             Link link = (Link)todo.att;
                             link.setKey(key);
@@ -332,6 +548,19 @@ public abstract class NioConnection implements Runnable {
                         }
                     }
                     break;
+                case ChangeRequest.ACCEPT :
+                    try {
+                        Link link = (Link)todo.att;
+                        link.setKey(((SocketChannel)(todo.key)).register(selector, todo.ops, link));
+                        connected(link);
+                    } catch (ClosedChannelException e) {
+                        s_logger.warn("Couldn't register accepted socket: " + todo.key);
+                        try {
+                            ((SocketChannel)(todo.key)).close();
+                        } catch (IOException ignore) {
+                        }
+                    }
+                    break;
                 case ChangeRequest.CLOSE :
                     if (s_logger.isTraceEnabled()) {
                         s_logger.trace("Trying to close " + todo.key);
@@ -391,6 +620,9 @@ public abstract class NioConnection implements Runnable {
             if (close) {
                 closeConnection(key);
                 link.terminated();
+            } else if (link.hasPendingWrites()) {
+                // the socket buffer is full, the rest goes out once it is writable again
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
             } else {
                 key.interestOps(SelectionKey.OP_READ);
             }
@@ -426,6 +658,11 @@ public abstract class NioConnection implements Runnable {
 
     public void change(int ops, SelectionKey key, Object att) {
         ChangeRequest todo = new ChangeRequest(key, ChangeRequest.CHANGEOPS, ops, att);
+        SelectorThread thread = getSelectorThread(key);
+        if (thread != null) {
+            thread.addTodo(todo);
+            return;
+        }
         synchronized (this) {
             _todos.add(todo);
         }
@@ -434,6 +671,11 @@ public abstract class NioConnection implements Runnable {
 
     public void close(SelectionKey key) {
         ChangeRequest todo = new ChangeRequest(key, ChangeRequest.CLOSE, 0, null);
+        SelectorThread thread = getSelectorThread(key);
+        if (thread != null) {
+            thread.addTodo(todo);
+            return;
+        }
         synchronized (this) {
             _todos.add(todo);
         }
@@ -445,12 +687,83 @@ public abstract class NioConnection implements Runnable {
        if (_selector != null) {
            _selector.close();
        }
+       if (_selectorThreads != null) {
+           for (SelectorThread thread : _selectorThreads) {
+               thread.close();
+           }
+       }
+    }
+
+    /**
+     * Selector thread that reads and writes for the connections handed to it
+     * once their handshake is done.  Changes to its keys must go through its
+     * own todo list.
+     */
+    protected class SelectorThread implements Runnable {
+        protected final Selector _ioSelector;
+        protected List<ChangeRequest> _ioTodos = new ArrayList<ChangeRequest>();
+        protected Thread _ioThread;
+
+        public SelectorThread(Selector selector) {
+            _ioSelector = selector;
+        }
+
+        public void start(String name) {
+            _ioThread = new Thread(this, name);
+            _ioThread.start();
+        }
+
+        public void stop() {
+            if (_ioThread != null) {
+                _ioThread.interrupt();
+            }
+            _ioSelector.wakeup();
+        }
+
+        public void close() {
+            try {
+                _ioSelector.close();
+            } catch (IOException e) {
+                s_logger.debug("Unable to close selector: " + e.getMessage());
+            }
+        }
+
+        public void addTodo(ChangeRequest todo) {
+            synchronized (this) {
+                _ioTodos.add(todo);
+            }
+            _ioSelector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (_isRunning) {
+                try {
+                    _ioSelector.select();
+
+                    processSelectedKeys(_ioSelector);
+
+                    List<ChangeRequest> todos;
+                    synchronized (this) {
+                        if (_ioTodos.isEmpty()) {
+                            continue;
+                        }
+                        todos = _ioTodos;
+                        _ioTodos = new ArrayList<ChangeRequest>();
+                    }
+                    processTodos(_ioSelector, todos);
+                } catch (Throwable e) {
+                    s_logger.warn("Caught an exception but continuing on.", e);
+                }
+            }
+        }
     }
 
     public class ChangeRequest {
         public static final int REGISTER = 1;
         public static final int CHANGEOPS = 2;
         public static final int CLOSE = 3;
+        public static final int ACCEPT = 4;
 
         public Object key;
         public int type;
@@ -56,12 +56,17 @@ public class NioServer extends NioConnection {
     
     @Override
     protected void registerLink(InetSocketAddress addr, Link link) {
-        _links.put(addr, link);
+        // links may be registered by several selector threads
+        synchronized (_links) {
+            _links.put(addr, link);
+        }
     }
 
     @Override
     protected void unregisterLink(InetSocketAddress saddr) {
-        _links.remove(saddr);
+        synchronized (_links) {
+            _links.remove(saddr);
+        }
     }
     
     /**
@@ -74,7 +79,10 @@ public class NioServer extends NioConnection {
      * @return null if not sent.  attach object in link if sent.
      */
     public Object send(InetSocketAddress saddr, byte[] data) throws ClosedChannelException {
-        Link link = _links.get(saddr);
+        Link link;
+        synchronized (_links) {
+            link = _links.get(saddr);
+        }
         if (link == null) {
             return null;
         }
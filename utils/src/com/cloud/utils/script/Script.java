@@ -22,6 +22,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -174,6 +175,79 @@ public class Script implements Callable<String> {
             _logger.debug("Executing: " + buildCommandLine(command));
         }
 
+        long start = System.currentTimeMillis();
+        boolean pooled = false;
+        String result = null;
+        try {
+            ScriptShell shell = interpreter.drain() ? null : ScriptShell.borrow();
+            if (shell != null) {
+                pooled = true;
+                try {
+                    result = executeInShell(shell, command, interpreter);
+                    return result;
+                } catch (IOException ex) {
+                    if (shell.isSubmitted()) {
+                        _logger.warn("Exception: " + buildCommandLine(command), ex);
+                        result = stackTrace(ex);
+                        return result;
+                    }
+                    _logger.debug("Helper shell is gone, forking instead");
+                    pooled = false;
+                } catch (Exception ex) {
+                    _logger.warn("Exception: " + buildCommandLine(command), ex);
+                    result = stackTrace(ex);
+                    return result;
+                } finally {
+                    ScriptShell.release(shell);
+                }
+            }
+
+            result = executeProcess(command, interpreter);
+            return result;
+        } finally {
+            ScriptStatistics.getInstance().record(_command, System.currentTimeMillis() - start, pooled, result);
+        }
+    }
+
+    protected String executeInShell(ScriptShell shell, String[] command, OutputInterpreter interpreter) throws IOException {
+        List<String> output = new ArrayList<String>();
+        int exitValue = shell.run(_command, _workDir, _timeout, output);
+
+        StringBuilder buff = new StringBuilder();
+        for (String line : output) {
+            buff.append(line).append("\n");
+        }
+
+        if (exitValue == ScriptShell.TIMED_OUT) {
+            if (!_passwordCommand) {
+                _logger.warn("Timed out: " + buildCommandLine(command) + ".  Output is: " + buff);
+            } else {
+                _logger.warn("Timed out: " + buildCommandLine(command));
+            }
+            return ERR_TIMEOUT;
+        }
+
+        BufferedReader reader = new BufferedReader(new StringReader(buff.toString()));
+        if (exitValue == 0) {
+            _logger.debug("Execution is successful.");
+            return interpreter.interpret(reader);
+        }
+
+        _logger.debug("Exit value is " + exitValue);
+        String error = interpreter.processError(reader);
+        if (_logger.isDebugEnabled()) {
+            _logger.debug(error);
+        }
+        return error;
+    }
+
+    private static String stackTrace(Exception ex) {
+        StringWriter writer = new StringWriter();
+        ex.printStackTrace(new PrintWriter(writer));
+        return writer.toString();
+    }
+
+    protected String executeProcess(String[] command, OutputInterpreter interpreter) {
         try {
             ProcessBuilder pb = new ProcessBuilder(command);
             pb.redirectErrorStream(true);
@@ -0,0 +1,234 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.script;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * A long lived /bin/bash that runs commands handed to it over its stdin, so that the agent
+ * does not have to fork the whole JVM for every Script.  Each command is started in the
+ * background of the helper shell with stderr merged into stdout and, once the command
+ * exits, the shell writes a marker line with the exit value on stdout.  On timeout the helper shell is terminated, its TERM trap kills
+ * the running command, and the shell is not reused.
+ *
+ * Shells are pooled; the pool is empty (and Script forks as before) until setPoolSize is
+ * called with a positive size.  When every shell is busy Script forks as well.
+ */
+public class ScriptShell {
+    private static final Logger s_logger = Logger.getLogger(ScriptShell.class);
+
+    public static final int TIMED_OUT = -1;
+
+    // a daemon, the timer must not keep the JVM of an agent or a command line tool from exiting
+    private static final ScheduledExecutorService s_timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        private final ThreadFactory _factory = new NamedThreadFactory("ScriptShellTimer");
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = _factory.newThread(r);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final LinkedList<ScriptShell> s_idle = new LinkedList<ScriptShell>();
+    private static int s_poolSize = 0;
+    private static int s_shells = 0;
+
+    private final Process _process;
+    private final Writer _in;
+    private final BufferedReader _out;
+    private final String _marker;
+    private volatile boolean _alive = true;
+    private volatile boolean _timedOut;
+    private boolean _submitted;
+
+    public static synchronized void setPoolSize(int size) {
+        s_poolSize = size;
+        while (s_shells > s_poolSize && !s_idle.isEmpty()) {
+            s_idle.removeFirst().destroy();
+            s_shells--;
+        }
+    }
+
+    public static synchronized int getPoolSize() {
+        return s_poolSize;
+    }
+
+    /**
+     * @return an idle shell, a new one if the pool is not full, or null if the caller should fork.
+     */
+    public static ScriptShell borrow() {
+        synchronized (ScriptShell.class) {
+            while (!s_idle.isEmpty()) {
+                ScriptShell shell = s_idle.removeFirst();
+                if (shell.isAlive()) {
+                    return shell;
+                }
+                shell.destroy();
+                s_shells--;
+            }
+            if (s_shells >= s_poolSize) {
+                return null;
+            }
+            s_shells++;
+        }
+
+        try {
+            return new ScriptShell();
+        } catch (IOException e) {
+            s_logger.warn("Unable to start a helper shell, forking instead", e);
+            synchronized (ScriptShell.class) {
+                s_shells--;
+            }
+            return null;
+        }
+    }
+
+    public static void release(ScriptShell shell) {
+        synchronized (ScriptShell.class) {
+            if (shell.isAlive() && s_shells <= s_poolSize) {
+                s_idle.addFirst(shell);
+                return;
+            }
+            s_shells--;
+        }
+        shell.destroy();
+    }
+
+    protected ScriptShell() throws IOException {
+        _process = new ProcessBuilder("/bin/bash").start();
+        _in = new OutputStreamWriter(_process.getOutputStream());
+        _out = new BufferedReader(new InputStreamReader(_process.getInputStream()));
+        _marker = "__script_shell_" + UUID.randomUUID().toString().replace("-", "") + "__";
+
+        _in.write("exec 2>/dev/null; trap 'kill -9 $__pid; exit 1' TERM\n");
+        _in.flush();
+    }
+
+    /**
+     * Runs the command and collects its output.
+     *
+     * @return the exit value of the command, or TIMED_OUT.
+     * @throws IOException if the shell broke; isSubmitted() tells whether the command was started.
+     */
+    public int run(List<String> command, String workDir, long timeout, List<String> output) throws IOException {
+        _submitted = false;
+        _timedOut = false;
+
+        StringBuilder line = new StringBuilder();
+        if (workDir != null) {
+            line.append("( cd ").append(quote(workDir)).append(" && exec");
+            for (String arg : command) {
+                line.append(' ').append(quote(arg));
+            }
+            line.append(" )");
+        } else {
+            for (String arg : command) {
+                line.append(quote(arg)).append(' ');
+            }
+        }
+        line.append(" </dev/null 2>&1 & __pid=$!; wait $__pid; printf '\\n%s %d\\n' ").append(_marker).append(" $?\n");
+
+        try {
+            _in.write(line.toString());
+            _in.flush();
+        } catch (IOException e) {
+            destroy();
+            throw e;
+        }
+        _submitted = true;
+
+        ScheduledFuture<?> future = null;
+        if (timeout > 0) {
+            future = s_timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    _timedOut = true;
+                    destroy();
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        try {
+            String l;
+            while ((l = _out.readLine()) != null) {
+                if (l.startsWith(_marker)) {
+                    // the marker is preceded by a newline of its own, which is either an empty
+                    // line or the end of an unterminated last line of output
+                    if (!output.isEmpty() && output.get(output.size() - 1).length() == 0) {
+                        output.remove(output.size() - 1);
+                    }
+                    return Integer.parseInt(l.substring(_marker.length()).trim());
+                }
+                output.add(l);
+            }
+            throw new IOException("Helper shell exited");
+        } catch (IOException e) {
+            destroy();
+            if (_timedOut) {
+                return TIMED_OUT;
+            }
+            throw e;
+        } finally {
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    public boolean isSubmitted() {
+        return _submitted;
+    }
+
+    public boolean isAlive() {
+        if (!_alive) {
+            return false;
+        }
+        try {
+            _process.exitValue();
+            _alive = false;
+        } catch (IllegalThreadStateException e) {
+        }
+        return _alive;
+    }
+
+    public void destroy() {
+        _alive = false;
+        _process.destroy();
+    }
+
+    static String quote(String arg) {
+        return "'" + arg.replace("'", "'\\''") + "'";
+    }
+}
@@ -0,0 +1,148 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.script;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * Latency of every Script execution, keyed by the script name ("bash -c <first word>" for
+ * inline shell commands).
+ */
+public class ScriptStatistics implements ScriptStatisticsMBean {
+    private static final Logger s_logger = Logger.getLogger(ScriptStatistics.class);
+
+    private static final int MAX_SCRIPTS = 1024;
+    private static final String OTHER = "(other)";
+
+    private static final ScriptStatistics s_instance = new ScriptStatistics();
+    static {
+        try {
+            JmxUtil.registerMBean("Script", "Statistics", s_instance);
+        } catch (Exception e) {
+            s_logger.error("Unable to register mbean for script statistics", e);
+        }
+    }
+
+    private static class Stats {
+        long executed;
+        long pooled;
+        long failed;
+        long timedOut;
+        long totalMs;
+        long maxMs;
+
+        synchronized void record(long ms, boolean pooled, String result) {
+            executed++;
+            if (pooled) {
+                this.pooled++;
+            }
+            if (Script.ERR_TIMEOUT.equals(result)) {
+                timedOut++;
+            } else if (result != null) {
+                failed++;
+            }
+            totalMs += ms;
+            maxMs = Math.max(maxMs, ms);
+        }
+
+        synchronized Map<String, String> toMap(String name) {
+            Map<String, String> map = new HashMap<String, String>();
+            map.put("script", name);
+            map.put("executed", Long.toString(executed));
+            map.put("pooled", Long.toString(pooled));
+            map.put("failed", Long.toString(failed));
+            map.put("timedOut", Long.toString(timedOut));
+            map.put("totalMs", Long.toString(totalMs));
+            map.put("avgMs", Long.toString(executed == 0 ? 0 : totalMs / executed));
+            map.put("maxMs", Long.toString(maxMs));
+            return map;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Stats> _stats = new ConcurrentHashMap<String, Stats>();
+
+    public static ScriptStatistics getInstance() {
+        return s_instance;
+    }
+
+    public void record(List<String> command, long ms, boolean pooled, String result) {
+        String name = getName(command);
+        Stats stats = _stats.get(name);
+        if (stats == null) {
+            if (_stats.size() >= MAX_SCRIPTS) {
+                name = OTHER;
+            }
+            Stats newStats = new Stats();
+            stats = _stats.putIfAbsent(name, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        stats.record(ms, pooled, result);
+    }
+
+    static String getName(List<String> command) {
+        int i = 0;
+        if (command.size() > 1 && command.get(0).equals("sudo")) {
+            i++;
+        }
+
+        String name = new File(command.get(i)).getName();
+        if ((name.equals("bash") || name.equals("sh")) && command.size() > i + 2 && command.get(i + 1).equals("-c")) {
+            String script = command.get(i + 2).trim();
+            int end = 0;
+            while (end < script.length() && !Character.isWhitespace(script.charAt(end)) && script.charAt(end) != ';' && script.charAt(end) != '|') {
+                end++;
+            }
+            name = name + " -c " + script.substring(0, end);
+        }
+        return name;
+    }
+
+    @Override
+    public List<Map<String, String>> getScriptStatistics() {
+        List<Map<String, String>> list = new ArrayList<Map<String, String>>(_stats.size());
+        for (Map.Entry<String, Stats> entry : _stats.entrySet()) {
+            list.add(entry.getValue().toMap(entry.getKey()));
+        }
+        return list;
+    }
+
+    @Override
+    public void resetScriptStatistics() {
+        _stats.clear();
+    }
+
+    @Override
+    public int getHelperShellPoolSize() {
+        return ScriptShell.getPoolSize();
+    }
+
+    @Override
+    public void setHelperShellPoolSize(int size) {
+        ScriptShell.setPoolSize(size);
+    }
+}
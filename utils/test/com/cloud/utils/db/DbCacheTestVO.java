@@ -0,0 +1,74 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+@Entity
+@Table(name = "test_cache")
+public class DbCacheTestVO {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    long id;
+
+    @Column(name = "fld_string")
+    String fieldString;
+
+    @Column(name = "fld_date")
+    @Temporal(value = TemporalType.TIMESTAMP)
+    Date fieldDate;
+
+    @Column(name = GenericDao.REMOVED_COLUMN)
+    Date removed;
+
+    public DbCacheTestVO() {
+    }
+
+    public DbCacheTestVO(String fieldString, Date fieldDate) {
+        this.fieldString = fieldString;
+        this.fieldDate = fieldDate;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getFieldString() {
+        return fieldString;
+    }
+
+    public void setFieldString(String fieldString) {
+        this.fieldString = fieldString;
+    }
+
+    public Date getFieldDate() {
+        return fieldDate;
+    }
+
+    public Date getRemoved() {
+        return removed;
+    }
+}
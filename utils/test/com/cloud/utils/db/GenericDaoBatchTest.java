@@ -0,0 +1,127 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Tests the batched persist and expunge of GenericDaoBase against the same
+ * test table as TransactionTest.
+ */
+public class GenericDaoBatchTest {
+
+    @BeforeClass
+    public static void oneTimeSetup() {
+        execute("CREATE TABLE `cloud`.`test` ("
+                + "`id` bigint unsigned NOT NULL UNIQUE AUTO_INCREMENT," + "`fld_int` int unsigned,"
+                + "`fld_long` bigint unsigned," + "`fld_string` varchar(255)," + "PRIMARY KEY (`id`)"
+                + ") ENGINE=InnoDB DEFAULT CHARSET=utf8;");
+    }
+
+    @After
+    public void tearDown() {
+        execute("truncate table `cloud`.`test`");
+    }
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        execute("DROP TABLE IF EXISTS `cloud`.`test`");
+    }
+
+    private static void execute(String sql) {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        try {
+            conn = Transaction.getStandaloneConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.execute();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Problem with sql", e);
+        } finally {
+            if (pstmt != null) {
+                try {
+                    pstmt.close();
+                } catch (SQLException e) {
+                }
+            }
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                }
+            }
+        }
+    }
+
+    private static List<DbTestVO> newEntities(int count) {
+        List<DbTestVO> vos = new ArrayList<DbTestVO>(count);
+        for (int i = 0; i < count; i++) {
+            DbTestVO vo = new DbTestVO();
+            vo.fieldInt = i;
+            vo.fieldLong = (long)i;
+            vo.fieldString = "Record " + i;
+            vos.add(vo);
+        }
+        return vos;
+    }
+
+    @Test
+    public void testPersistBatchAssignsIds() {
+        DbTestDao testDao = ComponentLocator.inject(DbTestDao.class);
+        List<DbTestVO> vos = testDao.persistBatch(newEntities(5));
+
+        Set<Long> ids = new HashSet<Long>();
+        for (DbTestVO vo : vos) {
+            Assert.assertTrue("No id for " + vo.getFieldString(), vo.id > 0);
+            Assert.assertTrue("Duplicate id " + vo.id, ids.add(vo.id));
+
+            DbTestVO persisted = testDao.findById(vo.id);
+            Assert.assertNotNull(persisted);
+            Assert.assertEquals(vo.getFieldString(), persisted.getFieldString());
+        }
+    }
+
+    @Test
+    public void testExpungeBatchCountsRows() {
+        DbTestDao testDao = ComponentLocator.inject(DbTestDao.class);
+        List<DbTestVO> vos = testDao.persistBatch(newEntities(4));
+
+        List<Long> ids = new ArrayList<Long>();
+        ids.add(vos.get(0).id);
+        ids.add(vos.get(2).id);
+        ids.add(Long.MAX_VALUE);
+        Assert.assertEquals(2, testDao.expungeBatch(ids));
+        Assert.assertNull(testDao.findById(vos.get(0).id));
+        Assert.assertNotNull(testDao.findById(vos.get(1).id));
+        Assert.assertEquals(2, testDao.listAll().size());
+    }
+}
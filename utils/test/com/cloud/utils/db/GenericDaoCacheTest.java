@@ -0,0 +1,182 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Tests that the entity cache of GenericDaoBase hands out copies and is
+ * invalidated by every kind of change made through the dao.
+ */
+public class GenericDaoCacheTest {
+    private static final long DATE = 1000000000000L;
+
+    static DbCacheTestDao s_dao;
+
+    @BeforeClass
+    public static void oneTimeSetup() throws Exception {
+        execute("CREATE TABLE `cloud`.`test_cache` ("
+                + "`id` bigint unsigned NOT NULL UNIQUE AUTO_INCREMENT," + "`fld_string` varchar(255),"
+                + "`fld_date` datetime," + "`removed` datetime," + "PRIMARY KEY (`id`)"
+                + ") ENGINE=InnoDB DEFAULT CHARSET=utf8;");
+
+        s_dao = ComponentLocator.inject(DbCacheTestDao.class);
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("cache.size", "100");
+        params.put("cache.coherent", "true");
+        s_dao.configure("DbCacheTestDao", params);
+    }
+
+    @After
+    public void tearDown() {
+        execute("truncate table `cloud`.`test_cache`");
+        s_dao._cache.removeAll();
+    }
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        execute("DROP TABLE IF EXISTS `cloud`.`test_cache`");
+    }
+
+    private static void execute(String sql) {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        try {
+            conn = Transaction.getStandaloneConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.execute();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Problem with sql", e);
+        } finally {
+            if (pstmt != null) {
+                try {
+                    pstmt.close();
+                } catch (SQLException e) {
+                }
+            }
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Persists an entity and loads it once so that it is in the cache.
+     */
+    private static long cached(String value) {
+        long id = s_dao.persist(new DbCacheTestVO(value, new Date(DATE))).getId();
+        Assert.assertEquals(value, s_dao.findById(id).getFieldString());
+        return id;
+    }
+
+    private static void changeBehindTheCache(long id) {
+        execute("UPDATE `cloud`.`test_cache` SET fld_string='changed behind the cache' WHERE id=" + id);
+    }
+
+    @Test
+    public void testCacheHitHandsOutCopies() {
+        long id = cached("first");
+        changeBehindTheCache(id);
+
+        DbCacheTestVO hit = s_dao.findById(id);
+        Assert.assertEquals("first", hit.getFieldString());
+        Assert.assertNotSame(hit, s_dao.findById(id));
+
+        // what a caller does to its copy is not seen by the next one
+        hit.setFieldString("changed by the caller");
+        hit.getFieldDate().setTime(0);
+        DbCacheTestVO again = s_dao.findById(id);
+        Assert.assertEquals("first", again.getFieldString());
+        Assert.assertEquals(DATE, again.getFieldDate().getTime());
+    }
+
+    @Test
+    public void testUpdateInvalidates() {
+        long id = cached("first");
+
+        DbCacheTestVO vo = s_dao.createForUpdate();
+        vo.setFieldString("updated");
+        Assert.assertTrue(s_dao.update(id, vo));
+        Assert.assertEquals("updated", s_dao.findById(id).getFieldString());
+    }
+
+    @Test
+    public void testRemoveInvalidates() {
+        long id = cached("first");
+
+        Assert.assertTrue(s_dao.remove(id));
+        Assert.assertNull(s_dao.findById(id));
+        Assert.assertNotNull(s_dao.findByIdIncludingRemoved(id).getRemoved());
+    }
+
+    @Test
+    public void testExpungeInvalidates() {
+        long id = cached("first");
+
+        Assert.assertTrue(s_dao.expunge(id));
+        Assert.assertNull(s_dao.findById(id));
+    }
+
+    @Test
+    public void testCriteriaUpdateInvalidatesById() {
+        long first = cached("first");
+        long second = cached("second");
+        changeBehindTheCache(second);
+
+        SearchCriteria<DbCacheTestVO> sc = s_dao.createSearchCriteria();
+        sc.addAnd("id", SearchCriteria.Op.EQ, first);
+        DbCacheTestVO vo = s_dao.createForUpdate();
+        vo.setFieldString("updated");
+        Assert.assertEquals(1, s_dao.update(s_dao.getUpdateBuilder(vo), sc, null));
+
+        Assert.assertEquals("updated", s_dao.findById(first).getFieldString());
+        // restricted by id, the other entities stay in the cache
+        Assert.assertEquals("second", s_dao.findById(second).getFieldString());
+    }
+
+    @Test
+    public void testCriteriaRemoveInvalidatesAll() {
+        long first = cached("first");
+        long second = cached("second");
+        changeBehindTheCache(second);
+
+        SearchCriteria<DbCacheTestVO> sc = s_dao.createSearchCriteria();
+        sc.addAnd("fieldString", SearchCriteria.Op.EQ, "first");
+        Assert.assertEquals(1, s_dao.remove(sc));
+
+        Assert.assertNull(s_dao.findById(first));
+        // not restricted by id, the whole cache is dropped
+        Assert.assertEquals("changed behind the cache", s_dao.findById(second).getFieldString());
+    }
+}
@@ -16,6 +16,11 @@
 // under the License.
 package com.cloud.utils.db;
 
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
@@ -26,7 +31,7 @@ import org.junit.Test;
 
 public class Merovingian2Test extends TestCase {
     static final Logger s_logger = Logger.getLogger(Merovingian2Test.class);
-    Merovingian2 _lockMaster = Merovingian2.createLockMaster(1234);
+    Merovingian2 _lockMaster = Merovingian2.getLockMaster() != null ? Merovingian2.getLockMaster() : Merovingian2.createLockMaster(1234);
     
     @Override @Before
     protected void setUp() throws Exception {
@@ -35,6 +40,8 @@ public class Merovingian2Test extends TestCase {
     
     @Override @After
     protected void tearDown() throws Exception {
+        _lockMaster.setLeaseRouter(null);
+        _lockMaster.setLeaseTime(0);
         _lockMaster.cleanupThisServer();
     }
 
@@ -73,5 +80,91 @@ public class Merovingian2Test extends TestCase {
         result = _lockMaster.release("first"+1234);
         Assert.assertTrue(result);
     }
+
+    @Test
+    public void testLockKeptAsLease() {
+        _lockMaster.setLeaseTime(60);
+
+        Assert.assertTrue(_lockMaster.acquire("lease"+1234, 5, false));
+        Assert.assertTrue(_lockMaster.release("lease"+1234));
+
+        s_logger.info("Testing the row is kept after the release");
+        Assert.assertEquals(0, _lockMaster.owns("lease"+1234));
+        boolean found = false;
+        for (Map<String, String> lock : _lockMaster.getLocksAcquiredByThisServer()) {
+            if (lock.get("key").equals("lease"+1234)) {
+                Assert.assertEquals("0", lock.get("count"));
+                found = true;
+            }
+        }
+        Assert.assertTrue(found);
+
+        s_logger.info("Testing reacquire from the lease");
+        Assert.assertTrue(_lockMaster.acquire("lease"+1234, 5, false));
+        Assert.assertEquals(1, _lockMaster.owns("lease"+1234));
+        Assert.assertTrue(_lockMaster.release("lease"+1234));
+
+        for (Map<String, String> stats : _lockMaster.getLockStatistics()) {
+            if (stats.get("key").equals("lease"+1234)) {
+                Assert.assertEquals("2", stats.get("acquired"));
+                Assert.assertEquals("1", stats.get("fromLease"));
+            }
+        }
+
+        s_logger.info("Testing a request from another server releases the lease");
+        _lockMaster.releaseLeaseForPeer("lease"+1234);
+        for (Map<String, String> lock : _lockMaster.getLocksAcquiredByThisServer()) {
+            Assert.assertFalse(lock.get("key").equals("lease"+1234));
+        }
+    }
+
+    @Test
+    public void testDroppedLeaseIsTakenAgain() {
+        final List<String> requests = new ArrayList<String>();
+        _lockMaster.setLeaseRouter(new LockLeaseRouter() {
+            @Override
+            public void requestRelease(long ownerMsId, String key) {
+                requests.add(ownerMsId + ":" + key);
+            }
+        });
+        _lockMaster.setLeaseTime(60);
+        Assert.assertTrue(_lockMaster.acquire("drop"+1234, 5, false));
+        Assert.assertTrue(_lockMaster.release("drop"+1234));
+
+        s_logger.info("Testing the row left behind by a dropped lease does not block this server");
+        _lockMaster.dropLeases();
+        Assert.assertTrue(_lockMaster.acquire("drop"+1234, 0, false));
+        Assert.assertEquals(1, _lockMaster.owns("drop"+1234));
+        Assert.assertTrue(_lockMaster.release("drop"+1234));
+        Assert.assertTrue(requests.isEmpty());
+    }
+
+    @Test
+    public void testNoWaitAsksOwner() throws Exception {
+        final List<String> requests = new ArrayList<String>();
+        _lockMaster.setLeaseRouter(new LockLeaseRouter() {
+            @Override
+            public void requestRelease(long ownerMsId, String key) {
+                requests.add(ownerMsId + ":" + key);
+            }
+        });
+
+        Transaction txn = Transaction.open("testNoWaitAsksOwner");
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement("INSERT INTO op_lock (op_lock.key, op_lock.mac, op_lock.ip, op_lock.thread, op_lock.acquired_on, waiters) VALUES ('peer1234', 5678, 'test', 1, now(), 1)");
+            pstmt.executeUpdate();
+        } finally {
+            txn.close();
+        }
+
+        try {
+            s_logger.info("Testing a try lock asks the owner before it gives up");
+            Assert.assertFalse(_lockMaster.acquire("peer"+1234, 0, false));
+            Assert.assertEquals(1, requests.size());
+            Assert.assertEquals("5678:peer1234", requests.get(0));
+        } finally {
+            _lockMaster.cleanupForServer(5678);
+        }
+    }
     
 }
@@ -0,0 +1,122 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.cloud.utils.ActionDelegate;
+import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Tests GenericDaoBase.searchStream against the same test table as
+ * TransactionTest, including a delegate that deletes what it is given.
+ */
+public class SearchStreamTest {
+
+    @BeforeClass
+    public static void oneTimeSetup() {
+        execute("CREATE TABLE `cloud`.`test` ("
+                + "`id` bigint unsigned NOT NULL UNIQUE AUTO_INCREMENT," + "`fld_int` int unsigned,"
+                + "`fld_long` bigint unsigned," + "`fld_string` varchar(255)," + "PRIMARY KEY (`id`)"
+                + ") ENGINE=InnoDB DEFAULT CHARSET=utf8;");
+        DbTestDao testDao = ComponentLocator.inject(DbTestDao.class);
+        for (int i = 0; i < 7; i++) {
+            testDao.create(i, i, i % 2 == 0 ? "even" : "odd");
+        }
+    }
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        execute("DROP TABLE IF EXISTS `cloud`.`test`");
+    }
+
+    private static void execute(String sql) {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        try {
+            conn = Transaction.getStandaloneConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.execute();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Problem with sql", e);
+        } finally {
+            if (pstmt != null) {
+                try {
+                    pstmt.close();
+                } catch (SQLException e) {
+                }
+            }
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testStreamInPages() {
+        DbTestDao testDao = ComponentLocator.inject(DbTestDao.class);
+        SearchCriteria<DbTestVO> sc = testDao.createSearchCriteria();
+        sc.addAnd("fieldString", SearchCriteria.Op.EQ, "even");
+
+        final List<Long> ids = new ArrayList<Long>();
+        int count = testDao.searchStream(sc, 3, new ActionDelegate<DbTestVO>() {
+            @Override
+            public void action(DbTestVO vo) {
+                Assert.assertEquals("even", vo.getFieldString());
+                ids.add(vo.id);
+            }
+        });
+
+        Assert.assertEquals(4, count);
+        Assert.assertEquals(4, ids.size());
+        for (int i = 1; i < ids.size(); i++) {
+            Assert.assertTrue(ids.get(i - 1) < ids.get(i));
+        }
+    }
+
+    @Test
+    public void testDelegateCanExpunge() {
+        final DbTestDao testDao = ComponentLocator.inject(DbTestDao.class);
+        SearchCriteria<DbTestVO> sc = testDao.createSearchCriteria();
+        sc.addAnd("fieldString", SearchCriteria.Op.EQ, "odd");
+
+        int count = testDao.searchStream(sc, 2, new ActionDelegate<DbTestVO>() {
+            @Override
+            public void action(DbTestVO vo) {
+                testDao.expunge(vo.id);
+            }
+        });
+
+        Assert.assertEquals(3, count);
+        for (DbTestVO vo : testDao.listAll()) {
+            Assert.assertEquals("even", vo.getFieldString());
+        }
+    }
+}
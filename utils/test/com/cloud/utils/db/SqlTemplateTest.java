@@ -0,0 +1,156 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Checks that searches on a dao with a removed column reuse the sql their
+ * SearchBuilder generated even though GenericDaoBase adds "removed IS NULL"
+ * to every criteria.
+ */
+public class SqlTemplateTest {
+    @Entity
+    @Table(name = "test_removed")
+    public static class RemovedTestVO {
+        @Id
+        @GeneratedValue(strategy = GenerationType.IDENTITY)
+        long id;
+
+        @Column(name = "fld_string")
+        String fieldString;
+
+        @Column(name = GenericDao.REMOVED_COLUMN)
+        Date removed;
+
+        public String getFieldString() {
+            return fieldString;
+        }
+
+        public RemovedTestVO() {
+        }
+    }
+
+    public static class RemovedTestDao extends GenericDaoBase<RemovedTestVO, Long> implements GenericDao<RemovedTestVO, Long> {
+        protected final SearchBuilder<RemovedTestVO> StringSearch;
+
+        protected RemovedTestDao() {
+            StringSearch = createSearchBuilder();
+            StringSearch.and("string", StringSearch.entity().getFieldString(), SearchCriteria.Op.EQ);
+            StringSearch.done();
+        }
+
+        public List<RemovedTestVO> listByString(String value) {
+            SearchCriteria<RemovedTestVO> sc = StringSearch.create();
+            sc.setParameters("string", value);
+            return listBy(sc);
+        }
+    }
+
+    @BeforeClass
+    public static void oneTimeSetup() {
+        execute("CREATE TABLE `cloud`.`test_removed` ("
+                + "`id` bigint unsigned NOT NULL UNIQUE AUTO_INCREMENT," + "`fld_string` varchar(255),"
+                + "`removed` datetime," + "PRIMARY KEY (`id`)" + ") ENGINE=InnoDB DEFAULT CHARSET=utf8;");
+    }
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        execute("DROP TABLE IF EXISTS `cloud`.`test_removed`");
+    }
+
+    private static void execute(String sql) {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        try {
+            conn = Transaction.getStandaloneConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.execute();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Problem with sql", e);
+        } finally {
+            if (pstmt != null) {
+                try {
+                    pstmt.close();
+                } catch (SQLException e) {
+                }
+            }
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRemovedColumnSearchHitsTemplate() {
+        RemovedTestDao testDao = ComponentLocator.inject(RemovedTestDao.class);
+        RemovedTestVO kept = new RemovedTestVO();
+        kept.fieldString = "template";
+        kept = testDao.persist(kept);
+        RemovedTestVO gone = new RemovedTestVO();
+        gone.fieldString = "template";
+        gone = testDao.persist(gone);
+        testDao.remove(gone.id);
+
+        Assert.assertEquals(1, testDao.listByString("template").size());
+        long hits = GenericSearchBuilder.getSqlTemplateHits();
+        List<RemovedTestVO> vos = testDao.listByString("template");
+        Assert.assertEquals(hits + 1, GenericSearchBuilder.getSqlTemplateHits());
+        Assert.assertEquals(1, vos.size());
+        Assert.assertEquals(kept.id, vos.get(0).id);
+    }
+
+    @Test
+    public void testAddedConditionsAreInTheKey() {
+        RemovedTestDao testDao = ComponentLocator.inject(RemovedTestDao.class);
+        SearchCriteria<RemovedTestVO> sc1 = testDao.StringSearch.create();
+        sc1.setParameters("string", "a");
+        sc1.addAnd("removed", SearchCriteria.Op.NULL);
+        SearchCriteria<RemovedTestVO> sc2 = testDao.StringSearch.create();
+        sc2.setParameters("string", "b");
+        sc2.addAnd("removed", SearchCriteria.Op.NULL);
+        SearchCriteria<RemovedTestVO> sc3 = testDao.StringSearch.create();
+        sc3.setParameters("string", "b");
+        sc3.addAnd("removed", SearchCriteria.Op.NNULL);
+
+        Assert.assertNotNull(sc1.getSqlTemplateKey());
+        Assert.assertEquals(sc1.getSqlTemplateKey(), sc2.getSqlTemplateKey());
+        Assert.assertFalse(sc1.getSqlTemplateKey().equals(sc3.getSqlTemplateKey()));
+    }
+}
@@ -0,0 +1,176 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.nio;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs a server with several selector threads against a few clients over
+ * loopback.  The server answers every message with an echo.
+ */
+public class NioConnectionTest {
+    private static final int SELECTORS = 2;
+    private static final int CLIENTS = 4;
+
+    NioServer _server;
+    List<NioClient> _clients = new ArrayList<NioClient>();
+    BlockingQueue<Link> _clientLinks = new LinkedBlockingQueue<Link>();
+    BlockingQueue<String> _answers = new LinkedBlockingQueue<String>();
+
+    class EchoHandler implements HandlerFactory {
+        @Override
+        public Task create(Task.Type type, Link link, byte[] data) {
+            return new Task(type, link, data) {
+                @Override
+                protected void doTask(Task task) throws Exception {
+                    if (task.getType() == Task.Type.DATA) {
+                        byte[] data = task.getData();
+                        byte[] echo = new byte[data.length + 5];
+                        System.arraycopy("echo:".getBytes(), 0, echo, 0, 5);
+                        System.arraycopy(data, 0, echo, 5, data.length);
+                        task.getLink().send(echo);
+                    }
+                }
+            };
+        }
+    }
+
+    class ClientHandler implements HandlerFactory {
+        @Override
+        public Task create(Task.Type type, Link link, byte[] data) {
+            return new Task(type, link, data) {
+                @Override
+                protected void doTask(Task task) throws Exception {
+                    if (task.getType() == Task.Type.CONNECT) {
+                        _clientLinks.add(task.getLink());
+                    } else if (task.getType() == Task.Type.DATA) {
+                        _answers.add(new String(task.getData()));
+                    }
+                }
+            };
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+
+        _server = new NioServer("NioConnectionTestServer", port, 2, new EchoHandler());
+        _server.setSelectorThreads(SELECTORS, 2);
+        _server.start();
+        Assert.assertTrue(_server.isStartup());
+
+        for (int i = 0; i < CLIENTS; i++) {
+            NioClient client = new NioClient("NioConnectionTestClient-" + i, "127.0.0.1", port, 1, new ClientHandler());
+            client.start();
+            Assert.assertTrue(client.isStartup());
+            _clients.add(client);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (NioClient client : _clients) {
+            client.stop();
+        }
+        if (_server != null) {
+            _server.stop();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testConnectionsAreSpreadAcrossSelectors() throws Exception {
+        Assert.assertEquals(SELECTORS, _server.getSelectorThreads());
+
+        // the handshakes are done by the workers, wait for every connection to be registered
+        int[] keys = new int[SELECTORS];
+        while (true) {
+            int total = 0;
+            for (int i = 0; i < SELECTORS; i++) {
+                keys[i] = _server._selectorThreads[i]._ioSelector.keys().size();
+                total += keys[i];
+            }
+            if (total == CLIENTS) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+
+        // handed out round robin
+        for (int i = 0; i < SELECTORS; i++) {
+            Assert.assertEquals("Connections of selector " + i + " in " + Arrays.toString(keys), CLIENTS / SELECTORS, keys[i]);
+        }
+        // the accepting selector only has the server socket
+        Assert.assertEquals(1, _server._selector.keys().size());
+    }
+
+    @Test(timeout = 60000)
+    public void testDataFlowsBothWays() throws Exception {
+        Set<String> expected = new HashSet<String>();
+        for (int i = 0; i < CLIENTS; i++) {
+            Link link = _clientLinks.poll(30, TimeUnit.SECONDS);
+            Assert.assertNotNull("Client " + i + " did not connect", link);
+            for (int j = 0; j < 3; j++) {
+                String message = "client " + i + " message " + j;
+                link.send(message.getBytes());
+                expected.add("echo:" + message);
+            }
+        }
+
+        Set<String> answers = new HashSet<String>();
+        while (answers.size() < expected.size()) {
+            String answer = _answers.poll(30, TimeUnit.SECONDS);
+            Assert.assertNotNull("Missing answers, got " + answers, answer);
+            answers.add(answer);
+        }
+        Assert.assertEquals(expected, answers);
+        // the writes are counted once they are flushed, which may be after the client got the echo
+        while (_server.getMessagesWritten() < expected.size()) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(expected.size(), _server.getMessagesRead());
+        Assert.assertEquals(expected.size(), _server.getMessagesWritten());
+    }
+
+    @Test(timeout = 60000)
+    public void testLargeMessage() throws Exception {
+        // several SSL records and more than the socket buffer takes in one write
+        char[] chars = new char[4 * 1024 * 1024];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char)('a' + i % 26);
+        }
+        String message = new String(chars);
+
+        _clientLinks.poll(30, TimeUnit.SECONDS).send(message.getBytes());
+        Assert.assertEquals("echo:" + message, _answers.poll(30, TimeUnit.SECONDS));
+    }
+}
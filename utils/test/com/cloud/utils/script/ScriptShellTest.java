@@ -0,0 +1,66 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.script;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ScriptShellTest extends TestCase {
+    private ScriptShell _shell;
+
+    @Override
+    protected void setUp() throws Exception {
+        _shell = new ScriptShell();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        _shell.destroy();
+    }
+
+    public void testOutputAndExitValue() throws Exception {
+        List<String> output = new ArrayList<String>();
+        assertEquals(0, _shell.run(Arrays.asList("/bin/echo", "it's", "$HOME"), null, 5000, output));
+        assertEquals(Arrays.asList("it's $HOME"), output);
+
+        output.clear();
+        assertEquals(3, _shell.run(Arrays.asList("/bin/bash", "-c", "printf 'a\\nb'; echo c >&2; exit 3"), null, 5000, output));
+        assertEquals(Arrays.asList("a", "bc"), output);
+
+        output.clear();
+        assertEquals(0, _shell.run(Arrays.asList("pwd"), "/", 5000, output));
+        assertEquals(Arrays.asList("/"), output);
+        assertTrue(_shell.isAlive());
+    }
+
+    public void testTimeout() throws Exception {
+        List<String> output = new ArrayList<String>();
+        long start = System.currentTimeMillis();
+        assertEquals(ScriptShell.TIMED_OUT, _shell.run(Arrays.asList("sleep", "30"), null, 200, output));
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertFalse(_shell.isAlive());
+    }
+
+    public void testStatisticsName() {
+        assertEquals("modifyvlan.sh", ScriptStatistics.getName(Arrays.asList("/usr/lib/cloud/modifyvlan.sh", "-v", "100")));
+        assertEquals("bash -c brctl", ScriptStatistics.getName(Arrays.asList("/bin/bash", "-c", "brctl show|grep br0")));
+        assertEquals("ip", ScriptStatistics.getName(Arrays.asList("sudo", "ip", "link")));
+    }
+}